@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Minimal micro-benchmark harness: runs a task until its timing stabilizes
+ * and then reports the average time and (when the JVM supports it) heap
+ * allocation per operation.
+ */
+public final class BenchmarkRunner {
+
+  private static final long WARM_UP_NANOS = 2000000000L;
+  private static final long MEASURE_NANOS = 3000000000L;
+
+  /**
+   * Operation being measured.
+   */
+  public interface Task {
+
+    /**
+     * Runs the operation once.
+     *
+     * @return any value derived from the operation, so the JIT compiler can't
+     *         eliminate it.
+     */
+    Object run() throws Exception;
+  }
+
+  private static final Method GET_ALLOCATED_BYTES = getAllocatedBytesMethod();
+
+  // sink for the results of the tasks
+  private static volatile int sink;
+
+  private BenchmarkRunner() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Measures a task, printing the results to the standard output.
+   */
+  public static void run(String name, Task task) throws Exception {
+    loop(task, WARM_UP_NANOS);
+    long allocatedBefore = getAllocatedBytes();
+    long start = System.nanoTime();
+    long operations = loop(task, MEASURE_NANOS);
+    long elapsed = System.nanoTime() - start;
+    long allocated = getAllocatedBytes() - allocatedBefore;
+    String allocation = allocatedBefore < 0 ? "n/a" :
+        String.format("%,d B/op", allocated / operations);
+    System.out.printf("%-48s %,14.1f ns/op %16s%n", name,
+        (double) elapsed / operations, allocation);
+  }
+
+  private static long loop(Task task, long nanos) throws Exception {
+    long operations = 0;
+    long deadline = System.nanoTime() + nanos;
+    do {
+      Object result = task.run();
+      sink += System.identityHashCode(result);
+      operations++;
+    } while (System.nanoTime() < deadline);
+    return operations;
+  }
+
+  private static Method getAllocatedBytesMethod() {
+    try {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      Class<?> sunBean = Class.forName("com.sun.management.ThreadMXBean");
+      if (!sunBean.isInstance(bean)) {
+        return null;
+      }
+      return sunBean.getMethod("getThreadAllocatedBytes", long.class);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Gets the bytes allocated so far by the current thread, or {@literal -1}
+   * if not supported.
+   */
+  private static long getAllocatedBytes() {
+    if (GET_ALLOCATED_BYTES == null) {
+      return -1;
+    }
+    try {
+      return (Long) GET_ALLOCATED_BYTES.invoke(
+          ManagementFactory.getThreadMXBean(),
+          Thread.currentThread().getId());
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Measures the impact of gzip compression (see
+ * {@link Sender#setCompressionThreshold(int)}) on multicast requests:
+ * <ul>
+ * <li>the compression ratio and CPU cost of compressing a request body, for
+ *     random registration ids (like real ones) and for ids sharing a long
+ *     prefix (a best case);
+ * <li>the bytes on the wire and the latency of requests sent to a
+ *     {@link FakeGcmServer} over links of different bandwidths.
+ * </ul>
+ *
+ * <p>
+ * Usage: {@code ant benchmark -Dbenchmark.class=CompressionBenchmark
+ * [-Dbenchmark.args="key=value ..."]}, where the options (and their
+ * defaults) are:
+ * <ul>
+ * <li>{@code bandwidths}: comma-separated bandwidths of the link, in
+ *     kilobytes per second, {@literal 0} meaning unlimited (0,1250,125);
+ * <li>{@code requests}: number of requests sent over each link (50);
+ * <li>{@code recipients}: devices per request (1000).
+ * </ul>
+ */
+public class CompressionBenchmark {
+
+  private static final String BASE64_CHARS =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+  public static void main(String[] args) throws Exception {
+    String bandwidths = "0,1250,125";
+    int requests = 50;
+    int recipients = 1000;
+    for (String arg : args) {
+      String[] option = arg.split("=", 2);
+      if (option.length != 2) {
+        throw new IllegalArgumentException("Invalid option: " + arg);
+      }
+      if (option[0].equals("bandwidths")) {
+        bandwidths = option[1];
+      } else if (option[0].equals("requests")) {
+        requests = Integer.parseInt(option[1]);
+      } else if (option[0].equals("recipients")) {
+        recipients = Integer.parseInt(option[1]);
+      } else {
+        throw new IllegalArgumentException("Unknown option: " + arg);
+      }
+    }
+    Message message = new Message.Builder().collapseKey("benchmark")
+        .timeToLive(3600).addData("body", "Lorem ipsum dolor sit amet")
+        .build();
+    List<String> randomIds = newRandomRegIds(recipients);
+    measureCompression("random ids", message, randomIds);
+    measureCompression("shared-prefix ids", message,
+        SendPathBenchmark.newRegIds(recipients));
+    for (String bandwidth : bandwidths.split(",")) {
+      long bytesPerSecond = Long.parseLong(bandwidth) * 1000;
+      String link = bytesPerSecond == 0 ? "unlimited"
+          : bandwidth + " KB/s";
+      // warm up
+      send(link, 0, message, randomIds, Math.min(requests, 10), false);
+      send(link, bytesPerSecond, message, randomIds, requests, true);
+      send(link, bytesPerSecond, message, randomIds, requests, false);
+    }
+  }
+
+  private static void measureCompression(String name, Message message,
+      List<String> regIds) throws Exception {
+    final JsonWriter json = new JsonWriter(256 * 1024);
+    Sender.writeMulticastRequest(json, message, regIds);
+    final GzipEncoder gzip = new GzipEncoder(Deflater.BEST_SPEED, 128 * 1024);
+    gzip.encode(json.getBuffer(), json.size());
+    System.out.printf("%s: %,d bytes, %,d compressed (%.0f%%)%n", name,
+        json.size(), gzip.size(), 100.0 * gzip.size() / json.size());
+    BenchmarkRunner.run("gzip of " + name, new BenchmarkRunner.Task() {
+      public Object run() {
+        return gzip.encode(json.getBuffer(), json.size()).size();
+      }
+    });
+  }
+
+  private static void send(String link, long bandwidth, Message message,
+      List<String> regIds, int requests, boolean print) throws Exception {
+    for (boolean compress : new boolean[] {false, true}) {
+      FakeGcmServer server = new FakeGcmServer().setBandwidth(bandwidth);
+      Sender sender = server.newSender();
+      sender.setConnectionPool(new ConnectionPool(1, 5000, 60000));
+      sender.setCompressionThreshold(compress ? 1024 : 0);
+      SendMetrics metrics = new SendMetrics();
+      sender.setSendListener(metrics);
+      try {
+        for (int i = 0; i < requests; i++) {
+          sender.sendNoRetry(message, regIds);
+        }
+      } finally {
+        server.stop();
+      }
+      if (print) {
+        SendMetrics.Histogram latencies = metrics.getLatencies();
+        System.out.printf("%-10s %-5s %,8d bytes up %,8d bytes down " +
+            "%,8.1f ms p50 %,8.1f ms p99%n", link, compress ? "gzip" : "plain",
+            server.getBytesReceived() / requests,
+            server.getBytesSent() / requests,
+            latencies.getPercentile(50) / 1000.0,
+            latencies.getPercentile(99) / 1000.0);
+      }
+    }
+  }
+
+  /**
+   * Creates registration ids like the ones issued by GCM: a fixed prefix
+   * followed by random base64 characters.
+   */
+  static List<String> newRandomRegIds(int size) {
+    Random random = new Random(42);
+    List<String> regIds = new ArrayList<String>(size);
+    for (int i = 0; i < size; i++) {
+      StringBuilder regId = new StringBuilder("APA91b");
+      while (regId.length() < 162) {
+        regId.append(BASE64_CHARS.charAt(random.nextInt(64)));
+      }
+      regIds.add(regId.toString());
+    }
+    return regIds;
+  }
+
+}
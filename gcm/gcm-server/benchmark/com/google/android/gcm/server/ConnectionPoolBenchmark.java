@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Compares the cost of opening a new connection per multicast with reusing
+ * pooled connections, using a {@link FakeGcmServer} reached through plain
+ * HTTP and through HTTPS, where each new connection also costs a TLS
+ * handshake. Without a pool, requests ask for their connection to be closed,
+ * as otherwise the keep-alive cache of the JDK would still reuse it.
+ *
+ * <p>
+ * Usage: {@code ant benchmark -Dbenchmark.class=ConnectionPoolBenchmark}
+ */
+public class ConnectionPoolBenchmark {
+
+  private static final int THREADS = 4;
+  private static final int REQUESTS = 2000;
+  private static final int RECIPIENTS = 100;
+
+  public static void main(String[] args) throws Exception {
+    Message message = new Message.Builder().addData("key", "value").build();
+    List<String> regIds = new ArrayList<String>();
+    for (int i = 0; i < RECIPIENTS; i++) {
+      regIds.add("registration-id-" + i);
+    }
+    SSLContext sslContext = FakeGcmServer.newSelfSignedContext();
+    // warm up
+    run("warm-up", null, null, message, regIds);
+    run("warm-up", null, new ConnectionPool(THREADS, 0, 0), message, regIds);
+    run("warm-up", sslContext, null, message, regIds);
+
+    run("http, new connection", null, null, message, regIds);
+    run("http, pooled connections", null,
+        new ConnectionPool(THREADS, 5000, 5000), message, regIds);
+    run("https, new connection", sslContext, null, message, regIds);
+    run("https, pooled connections", sslContext,
+        new ConnectionPool(THREADS, 5000, 5000), message, regIds);
+  }
+
+  private static void run(String name, SSLContext sslContext,
+      ConnectionPool pool, final Message message, final List<String> regIds)
+      throws Exception {
+    FakeGcmServer server = new FakeGcmServer(sslContext);
+    final Sender sender = server.newSender(pool != null);
+    sender.setConnectionPool(pool);
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    List<Future<MulticastResult>> futures =
+        new ArrayList<Future<MulticastResult>>();
+    long start = System.nanoTime();
+    for (int i = 0; i < REQUESTS; i++) {
+      futures.add(executor.submit(new Callable<MulticastResult>() {
+        public MulticastResult call() throws Exception {
+          return sender.sendNoRetry(message, regIds);
+        }
+      }));
+    }
+    for (Future<MulticastResult> future : futures) {
+      future.get();
+    }
+    long elapsed = System.nanoTime() - start;
+    executor.shutdown();
+    server.stop();
+    System.out.printf("%-28s %6d requests %8.1f req/s %6d connections%n",
+        name, server.getRequests(), REQUESTS * 1e9 / elapsed,
+        server.getConnections());
+  }
+
+}
@@ -0,0 +1,688 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Fake GCM send endpoint, so tests and benchmarks don't depend on the real
+ * service.
+ *
+ * <p>
+ * The server can be reached in two ways: through HTTP/1.1 on the loopback
+ * interface (see {@link #newSender()}), where connections are kept alive
+ * unless the client asks otherwise and each accepted connection is counted;
+ * or in-process, through a {@link Transport} that skips the network
+ * altogether (see {@link #newTransport()}). The HTTP endpoint can also be
+ * served over TLS, with a self-signed certificate (see
+ * {@link #newSelfSignedContext()}), so benchmarks pay the cost of the
+ * handshakes like they would with the real service.
+ *
+ * <p>
+ * Its behavior can be tuned to mimic the real service: a latency for each
+ * request, a fraction of requests rejected with 503 (and a
+ * {@code Retry-After}), and errors or canonical ids for given registration
+ * ids. Over HTTP, it also accepts gzip-compressed requests, compresses its
+ * responses when asked to, and can throttle the bandwidth of each
+ * connection to mimic a slow link.
+ *
+ * <p>
+ * Connections asking for an upgrade to cleartext HTTP/2 ({@code h2c}), as
+ * {@link Http2Transport} does, are upgraded: their requests are then served
+ * concurrently (see {@link FakeHttp2Connection}), without compression nor
+ * throttling.
+ */
+public class FakeGcmServer {
+
+  private final Logger logger = Logger.getLogger(getClass().getName());
+  private final SSLContext sslContext;
+  private final ServerSocket serverSocket;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final Map<Socket, Boolean> openSockets =
+      new ConcurrentHashMap<Socket, Boolean>();
+  private final AtomicInteger connections = new AtomicInteger();
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger unavailableRequests = new AtomicInteger();
+  private final AtomicInteger activeRequests = new AtomicInteger();
+  private final AtomicInteger maxActiveRequests = new AtomicInteger();
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final Map<String, String> errors =
+      new ConcurrentHashMap<String, String>();
+  private final Map<String, String> canonicalIds =
+      new ConcurrentHashMap<String, String>();
+  private final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+    @Override
+    protected Random initialValue() {
+      return new Random();
+    }
+  };
+  private volatile boolean running = true;
+  private volatile int minLatency;
+  private volatile int maxLatency;
+  private volatile double unavailableRate;
+  private volatile int retryAfter;
+  private volatile long bandwidth;
+
+  /**
+   * Reply to a request.
+   */
+  protected static final class Reply {
+
+    final int status;
+    final String body;
+    final String retryAfter;
+
+    Reply(int status, String body, String retryAfter) {
+      this.status = status;
+      this.body = body;
+      this.retryAfter = retryAfter;
+    }
+  }
+
+  public FakeGcmServer() throws IOException {
+    this(null);
+  }
+
+  /**
+   * Creates a server reached through HTTPS.
+   *
+   * @param sslContext context holding the certificate of the server, which
+   *        also trusts it (see {@link #newSelfSignedContext()}), or
+   *        {@literal null} to serve plain HTTP.
+   */
+  public FakeGcmServer(SSLContext sslContext) throws IOException {
+    this.sslContext = sslContext;
+    InetAddress loopback = InetAddress.getByName(null);
+    serverSocket = sslContext == null
+        ? new ServerSocket(0, 128, loopback)
+        : sslContext.getServerSocketFactory().createServerSocket(0, 128,
+            loopback);
+    executor.execute(new Runnable() {
+      public void run() {
+        accept();
+      }
+    });
+  }
+
+  /**
+   * Creates an SSL context holding a new self-signed certificate for
+   * {@code localhost}, which it also trusts, by running the
+   * {@code keytool} of the running JDK.
+   */
+  public static SSLContext newSelfSignedContext() throws IOException {
+    File keyStoreFile = File.createTempFile("fake-gcm-server", ".p12");
+    char[] password = "fake-gcm-server".toCharArray();
+    try {
+      // keytool won't overwrite the (empty) file
+      keyStoreFile.delete();
+      String keytool = System.getProperty("java.home") + File.separator
+          + "bin" + File.separator + "keytool";
+      Process process = new ProcessBuilder(keytool, "-genkeypair",
+          "-alias", "localhost", "-keyalg", "RSA", "-keysize", "2048",
+          "-validity", "1", "-dname", "CN=localhost",
+          "-ext", "san=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+          "-keystore", keyStoreFile.getPath(),
+          "-storepass", new String(password))
+          .redirectErrorStream(true).start();
+      int status;
+      try {
+        status = process.waitFor();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted running keytool");
+      }
+      if (status != 0) {
+        throw new IOException("keytool failed with status " + status);
+      }
+      KeyStore keyStore = KeyStore.getInstance("PKCS12");
+      InputStream in = new FileInputStream(keyStoreFile);
+      try {
+        keyStore.load(in, password);
+      } finally {
+        in.close();
+      }
+      KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(
+          KeyManagerFactory.getDefaultAlgorithm());
+      keyManagers.init(keyStore, password);
+      TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(
+          TrustManagerFactory.getDefaultAlgorithm());
+      trustManagers.init(keyStore);
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(keyManagers.getKeyManagers(),
+          trustManagers.getTrustManagers(), null);
+      return context;
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Could not create SSL context: " + e);
+    } finally {
+      keyStoreFile.delete();
+    }
+  }
+
+  /**
+   * Sets the latency of each request, as a random value between the given
+   * values (in milliseconds).
+   */
+  public FakeGcmServer setLatency(int minLatency, int maxLatency) {
+    if (minLatency < 0 || maxLatency < minLatency) {
+      throw new IllegalArgumentException("invalid latency range");
+    }
+    this.minLatency = minLatency;
+    this.maxLatency = maxLatency;
+    return this;
+  }
+
+  /**
+   * Sets the fraction of requests rejected with a 503 status.
+   *
+   * @param unavailableRate fraction of requests, from {@literal 0} to
+   *        {@literal 1}.
+   * @param retryAfter value (in seconds) of the {@code Retry-After} header
+   *        of those responses, or {@literal 0} to not send the header.
+   */
+  public FakeGcmServer setUnavailableRate(double unavailableRate,
+      int retryAfter) {
+    if (unavailableRate < 0 || unavailableRate > 1) {
+      throw new IllegalArgumentException("invalid rate: " + unavailableRate);
+    }
+    this.unavailableRate = unavailableRate;
+    this.retryAfter = retryAfter;
+    return this;
+  }
+
+  /**
+   * Throttles each connection to the given bandwidth (in bytes per second,
+   * each way), or {@literal 0} for no limit.
+   */
+  public FakeGcmServer setBandwidth(long bandwidth) {
+    if (bandwidth < 0) {
+      throw new IllegalArgumentException("invalid bandwidth: " + bandwidth);
+    }
+    this.bandwidth = bandwidth;
+    return this;
+  }
+
+  /**
+   * Makes messages to a device fail with the given error (see the
+   * {@code ERROR_} values of {@link Constants}).
+   */
+  public FakeGcmServer addError(String regId, String error) {
+    errors.put(regId, error);
+    return this;
+  }
+
+  /**
+   * Makes messages to a device succeed with a canonical registration id.
+   */
+  public FakeGcmServer addCanonicalId(String regId, String canonicalId) {
+    canonicalIds.put(regId, canonicalId);
+    return this;
+  }
+
+  /**
+   * Gets the URL that should be used instead of
+   * {@link Constants#GCM_SEND_ENDPOINT}.
+   */
+  public String getUrl() {
+    return (sslContext == null ? "http" : "https") + "://localhost:"
+        + serverSocket.getLocalPort() + "/gcm/send";
+  }
+
+  /**
+   * Gets the number of connections accepted so far.
+   */
+  public int getConnections() {
+    return connections.get();
+  }
+
+  /**
+   * Gets the number of requests served so far.
+   */
+  public int getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * Gets the number of requests rejected with a 503 status so far.
+   */
+  public int getUnavailableRequests() {
+    return unavailableRequests.get();
+  }
+
+  /**
+   * Gets the maximum number of requests served at the same time so far.
+   */
+  public int getMaxConcurrentRequests() {
+    return maxActiveRequests.get();
+  }
+
+  /**
+   * Gets the number of bytes of the request bodies received over HTTP so
+   * far, as sent on the wire.
+   */
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  /**
+   * Gets the number of bytes of the response bodies sent over HTTP so far,
+   * as sent on the wire.
+   */
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  /**
+   * Stops accepting connections and closes the open ones.
+   */
+  public void stop() throws IOException {
+    running = false;
+    serverSocket.close();
+    executor.shutdownNow();
+    for (Socket socket : openSockets.keySet()) {
+      socket.close();
+    }
+  }
+
+  /**
+   * Creates a {@link Sender} whose requests are sent to this server through
+   * HTTP, or HTTPS if the server has an SSL context.
+   */
+  public Sender newSender() {
+    return newSender(true);
+  }
+
+  /**
+   * Creates a {@link Sender} whose requests are sent to this server through
+   * HTTP, or HTTPS if the server has an SSL context.
+   *
+   * @param keepAlive whether connections can be reused; if not, requests
+   *        ask for their connection to be closed, so the keep-alive cache
+   *        of {@link HttpURLConnection} doesn't reuse it either.
+   */
+  public Sender newSender(final boolean keepAlive) {
+    final String url = getUrl();
+    // the same factory is used for all connections, as the keep-alive cache
+    // only reuses sockets created by the same one
+    final SSLSocketFactory socketFactory =
+        sslContext == null ? null : sslContext.getSocketFactory();
+    return new Sender("fake-key") {
+      @Override
+      protected HttpURLConnection getConnection(String ignored)
+          throws IOException {
+        HttpURLConnection conn = super.getConnection(url);
+        if (socketFactory != null) {
+          ((HttpsURLConnection) conn).setSSLSocketFactory(socketFactory);
+        }
+        if (!keepAlive) {
+          conn.setRequestProperty("Connection", "close");
+        }
+        return conn;
+      }
+    };
+  }
+
+  /**
+   * Creates a {@link Transport} that serves requests in-process, in the
+   * calling thread.
+   */
+  public Transport newTransport() {
+    return new Transport() {
+      public Response post(String url, String contentType, String apiKey,
+          byte[] body, int length, int timeout) throws IOException {
+        final Reply reply = handle(new String(body, 0, length, "UTF-8"));
+        final byte[] replyBody = reply.body.getBytes("UTF-8");
+        return new Response() {
+          public int getStatus() {
+            return reply.status;
+          }
+
+          public String getHeader(String name) {
+            return name.equalsIgnoreCase("Retry-After") ? reply.retryAfter
+                : null;
+          }
+
+          public InputStream getBody() {
+            return new ByteArrayInputStream(replyBody);
+          }
+
+          public void close() {
+          }
+        };
+      }
+    };
+  }
+
+  private void accept() {
+    while (running) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        if (running) {
+          logger.log(Level.WARNING, "Could not accept connection", e);
+        }
+        return;
+      }
+      connections.incrementAndGet();
+      openSockets.put(socket, Boolean.TRUE);
+      executor.execute(new Runnable() {
+        public void run() {
+          serve(socket);
+        }
+      });
+    }
+  }
+
+  private void serve(Socket socket) {
+    try {
+      socket.setTcpNoDelay(true);
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+      boolean keepAlive = true;
+      while (keepAlive && running) {
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+          break;
+        }
+        int contentLength = 0;
+        boolean gzipRequest = false;
+        boolean gzipResponse = false;
+        boolean upgrade = false;
+        String header;
+        while ((header = readLine(in)) != null && header.length() > 0) {
+          int separator = header.indexOf(':');
+          String name = header.substring(0, separator).trim();
+          String value = header.substring(separator + 1).trim();
+          if (name.equalsIgnoreCase("Content-Length")) {
+            contentLength = Integer.parseInt(value);
+          } else if (name.equalsIgnoreCase("Connection")) {
+            keepAlive = !value.equalsIgnoreCase("close");
+          } else if (name.equalsIgnoreCase("Content-Encoding")) {
+            gzipRequest = value.equalsIgnoreCase("gzip");
+          } else if (name.equalsIgnoreCase("Accept-Encoding")) {
+            gzipResponse = value.toLowerCase().contains("gzip");
+          } else if (name.equalsIgnoreCase("Upgrade")) {
+            upgrade = value.equalsIgnoreCase("h2c");
+          }
+        }
+        byte[] body = new byte[contentLength];
+        int read = 0;
+        while (read < contentLength) {
+          int count = in.read(body, read, contentLength - read);
+          if (count == -1) {
+            throw new IOException("Unexpected end of request body");
+          }
+          read += count;
+        }
+        bytesReceived.addAndGet(contentLength);
+        throttle(contentLength);
+        if (gzipRequest) {
+          body = gunzip(body);
+        }
+        if (upgrade) {
+          out.write(("HTTP/1.1 101 Switching Protocols\r\n"
+              + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n")
+              .getBytes("UTF-8"));
+          out.flush();
+          new FakeHttp2Connection(this, executor, in, out).serve(body);
+          break;
+        }
+        writeReply(out, handle(new String(body, "UTF-8")), gzipResponse,
+            keepAlive);
+      }
+    } catch (IOException e) {
+      if (running) {
+        logger.log(Level.FINE, "Connection closed", e);
+      }
+    } finally {
+      openSockets.remove(socket);
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  /**
+   * Handles a request, applying the latency and the 503 rate.
+   */
+  Reply handle(String body) throws IOException {
+    int active = activeRequests.incrementAndGet();
+    try {
+      int max;
+      while (active > (max = maxActiveRequests.get())
+          && !maxActiveRequests.compareAndSet(max, active)) {
+        // retry
+      }
+      return handleRequest(body);
+    } finally {
+      activeRequests.decrementAndGet();
+    }
+  }
+
+  private Reply handleRequest(String body) throws IOException {
+    int request = requests.incrementAndGet();
+    Random random = this.random.get();
+    int latency = minLatency + random.nextInt(maxLatency - minLatency + 1);
+    if (latency > 0) {
+      try {
+        Thread.sleep(latency);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted");
+      }
+    }
+    if (random.nextDouble() < unavailableRate) {
+      unavailableRequests.incrementAndGet();
+      int seconds = retryAfter;
+      return new Reply(503, "",
+          seconds > 0 ? Integer.toString(seconds) : null);
+    }
+    return respond(request, body);
+  }
+
+  /**
+   * Creates the reply for a request body.
+   */
+  protected Reply respond(int request, String body) throws IOException {
+    if (!body.startsWith("{")) {
+      return new Reply(200, respondPlainText(request, body), null);
+    }
+    JSONObject json = (JSONObject) JSONValue.parse(body);
+    if (json == null) {
+      return new Reply(400, "Invalid JSON", null);
+    }
+    List<?> regIds = (List<?>) json.get(Constants.JSON_REGISTRATION_IDS);
+    int success = 0, failure = 0, canonical = 0;
+    StringBuilder results = new StringBuilder();
+    for (int i = 0; i < regIds.size(); i++) {
+      String regId = (String) regIds.get(i);
+      if (i > 0) {
+        results.append(',');
+      }
+      String error = errors.get(regId);
+      if (error != null) {
+        failure++;
+        results.append("{\"error\":\"").append(error).append("\"}");
+        continue;
+      }
+      success++;
+      results.append("{\"message_id\":\"0:").append(request).append('%')
+          .append(i).append('"');
+      String canonicalId = canonicalIds.get(regId);
+      if (canonicalId != null) {
+        canonical++;
+        results.append(",\"registration_id\":\"").append(canonicalId)
+            .append('"');
+      }
+      results.append('}');
+    }
+    String response = new StringBuilder()
+        .append("{\"multicast_id\":").append(request)
+        .append(",\"success\":").append(success)
+        .append(",\"failure\":").append(failure)
+        .append(",\"canonical_ids\":").append(canonical)
+        .append(",\"results\":[").append(results).append("]}")
+        .toString();
+    return new Reply(200, response, null);
+  }
+
+  void countBytesReceived(long bytes) {
+    bytesReceived.addAndGet(bytes);
+  }
+
+  void countBytesSent(long bytes) {
+    bytesSent.addAndGet(bytes);
+  }
+
+  private String respondPlainText(int request, String body)
+      throws IOException {
+    String regId = null;
+    for (String parameter : body.split("&")) {
+      if (parameter.startsWith(Constants.PARAM_REGISTRATION_ID + "=")) {
+        regId = URLDecoder.decode(parameter.substring(
+            Constants.PARAM_REGISTRATION_ID.length() + 1), "UTF-8");
+      }
+    }
+    String error = regId == null ? Constants.ERROR_MISSING_REGISTRATION
+        : errors.get(regId);
+    if (error != null) {
+      return Constants.TOKEN_ERROR + "=" + error;
+    }
+    String response = Constants.TOKEN_MESSAGE_ID + "=" + request;
+    String canonicalId = canonicalIds.get(regId);
+    if (canonicalId != null) {
+      response += "\n" + Constants.TOKEN_CANONICAL_REG_ID + "=" + canonicalId;
+    }
+    return response;
+  }
+
+  private void writeReply(OutputStream out, Reply reply, boolean gzip,
+      boolean keepAlive) throws IOException {
+    byte[] bytes = reply.body.getBytes("UTF-8");
+    gzip &= bytes.length > 0;
+    if (gzip) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+      gzipOut.write(bytes);
+      gzipOut.close();
+      bytes = compressed.toByteArray();
+    }
+    bytesSent.addAndGet(bytes.length);
+    throttle(bytes.length);
+    StringBuilder headers = new StringBuilder("HTTP/1.1 ")
+        .append(reply.status).append(reply.status == 200 ? " OK" : " Error")
+        .append("\r\nContent-Type: application/json\r\n")
+        .append("Content-Length: ").append(bytes.length).append("\r\n");
+    if (gzip) {
+      headers.append("Content-Encoding: gzip\r\n");
+    }
+    if (reply.retryAfter != null) {
+      headers.append("Retry-After: ").append(reply.retryAfter).append("\r\n");
+    }
+    if (!keepAlive) {
+      // or the client may reuse the connection while it's being closed
+      headers.append("Connection: close\r\n");
+    }
+    out.write(headers.append("\r\n").toString().getBytes("UTF-8"));
+    out.write(bytes);
+    out.flush();
+  }
+
+  /**
+   * Waits as long as it takes to transfer the given number of bytes over the
+   * throttled link.
+   */
+  private void throttle(int bytes) throws IOException {
+    long bandwidth = this.bandwidth;
+    if (bandwidth == 0 || bytes == 0) {
+      return;
+    }
+    long nanos = bytes * 1000000000L / bandwidth;
+    try {
+      Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted");
+    }
+  }
+
+  private static byte[] gunzip(byte[] body) throws IOException {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+    byte[] buffer = new byte[8192];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+    return out.toByteArray();
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1) {
+      if (b == '\n') {
+        break;
+      }
+      if (b != '\r') {
+        line.write(b);
+      }
+    }
+    if (b == -1 && line.size() == 0) {
+      return null;
+    }
+    return line.toString("UTF-8");
+  }
+
+}
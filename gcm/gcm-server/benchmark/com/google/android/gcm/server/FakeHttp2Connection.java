@@ -0,0 +1,388 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Server side of a cleartext HTTP/2 connection of {@link FakeGcmServer},
+ * once upgraded from HTTP/1.1.
+ *
+ * <p>
+ * It implements just enough of the protocol to serve GCM requests: the
+ * requests of each stream are handled concurrently, their header blocks are
+ * not decoded (all of them are assumed to be {@code POST}s to the send
+ * endpoint), and responses are encoded without the HPACK dynamic table nor
+ * Huffman coding. Flow control is honored both ways.
+ */
+final class FakeHttp2Connection {
+
+  private static final byte[] PREFACE =
+      bytes("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+  private static final int DEFAULT_WINDOW = 65535;
+  private static final int MAX_FRAME_SIZE = 16384;
+
+  // frame types
+  private static final int DATA = 0x0;
+  private static final int HEADERS = 0x1;
+  private static final int RST_STREAM = 0x3;
+  private static final int SETTINGS = 0x4;
+  private static final int PING = 0x6;
+  private static final int GOAWAY = 0x7;
+  private static final int WINDOW_UPDATE = 0x8;
+
+  // frame flags
+  private static final int END_STREAM = 0x1;
+  private static final int ACK = 0x1;
+  private static final int END_HEADERS = 0x4;
+  private static final int PADDED = 0x8;
+
+  private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+  private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+  // limits announced to the client, like the ones of Google front ends
+  private static final int MAX_CONCURRENT_STREAMS = 100;
+  private static final int RECEIVE_STREAM_WINDOW = 1024 * 1024;
+  private static final int RECEIVE_CONNECTION_WINDOW = 16 * 1024 * 1024;
+
+  private static final Logger logger =
+      Logger.getLogger(FakeHttp2Connection.class.getName());
+
+  private final FakeGcmServer server;
+  private final Executor executor;
+  private final DataInputStream in;
+  private final OutputStream out;
+  // request bodies being received, only used by the reading thread
+  private final Map<Integer, ByteArrayOutputStream> requests =
+      new HashMap<Integer, ByteArrayOutputStream>();
+
+  // send windows, guarded by this
+  private final Map<Integer, Integer> streamWindows =
+      new HashMap<Integer, Integer>();
+  private int connectionWindow = DEFAULT_WINDOW;
+  private int initialWindow = DEFAULT_WINDOW;
+  private boolean closed;
+
+  FakeHttp2Connection(FakeGcmServer server, Executor executor,
+      InputStream in, OutputStream out) {
+    this.server = server;
+    this.executor = executor;
+    this.in = new DataInputStream(in);
+    this.out = out;
+  }
+
+  /**
+   * Serves the connection until the client closes it.
+   *
+   * @param upgradeBody body of the HTTP/1.1 request that was upgraded, which
+   *        becomes stream 1.
+   */
+  void serve(byte[] upgradeBody) throws IOException {
+    try {
+      byte[] settings = new byte[12];
+      writeSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS,
+          MAX_CONCURRENT_STREAMS);
+      writeSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE,
+          RECEIVE_STREAM_WINDOW);
+      writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+      writeWindowUpdate(0, RECEIVE_CONNECTION_WINDOW - DEFAULT_WINDOW);
+      byte[] preface = new byte[PREFACE.length];
+      in.readFully(preface);
+      if (!Arrays.equals(preface, PREFACE)) {
+        throw new IOException("Invalid connection preface");
+      }
+      openStream(1);
+      dispatch(1, upgradeBody);
+      byte[] header = new byte[9];
+      while (true) {
+        in.readFully(header);
+        int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8)
+            | (header[2] & 0xff);
+        int type = header[3] & 0xff;
+        int flags = header[4] & 0xff;
+        int streamId = readInt(header, 5) & 0x7fffffff;
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        switch (type) {
+          case HEADERS:
+            onHeaders(streamId, flags);
+            break;
+          case DATA:
+            onData(streamId, flags, payload);
+            break;
+          case SETTINGS:
+            onSettings(flags, payload);
+            break;
+          case PING:
+            if ((flags & ACK) == 0) {
+              writeFrame(PING, ACK, 0, payload, 0, payload.length);
+            }
+            break;
+          case WINDOW_UPDATE:
+            onWindowUpdate(streamId, readInt(payload, 0) & 0x7fffffff);
+            break;
+          case RST_STREAM:
+            requests.remove(streamId);
+            closeStream(streamId);
+            break;
+          case GOAWAY:
+            return;
+          default:
+            // PRIORITY, CONTINUATION and unknown frames are ignored
+        }
+      }
+    } finally {
+      synchronized (this) {
+        closed = true;
+        notifyAll();
+      }
+    }
+  }
+
+  private void onHeaders(int streamId, int flags) throws IOException {
+    if ((flags & END_HEADERS) == 0) {
+      throw new IOException("CONTINUATION frames are not supported");
+    }
+    openStream(streamId);
+    if ((flags & END_STREAM) != 0) {
+      dispatch(streamId, new byte[0]);
+    } else {
+      requests.put(streamId, new ByteArrayOutputStream());
+    }
+  }
+
+  private void onData(int streamId, int flags, byte[] payload)
+      throws IOException {
+    if (payload.length > 0) {
+      writeWindowUpdate(0, payload.length);
+    }
+    ByteArrayOutputStream request = requests.get(streamId);
+    if (request == null) {
+      // the stream was reset by the client
+      return;
+    }
+    int offset = 0;
+    int length = payload.length;
+    if ((flags & PADDED) != 0) {
+      offset = 1;
+      length -= 1 + (payload[0] & 0xff);
+    }
+    request.write(payload, offset, length);
+    server.countBytesReceived(length);
+    if ((flags & END_STREAM) != 0) {
+      requests.remove(streamId);
+      dispatch(streamId, request.toByteArray());
+    } else if (payload.length > 0) {
+      writeWindowUpdate(streamId, payload.length);
+    }
+  }
+
+  private void onSettings(int flags, byte[] payload) throws IOException {
+    if ((flags & ACK) != 0) {
+      return;
+    }
+    for (int i = 0; i + 6 <= payload.length; i += 6) {
+      int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+      if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+        synchronized (this) {
+          int delta = readInt(payload, i + 2) - initialWindow;
+          initialWindow += delta;
+          for (Map.Entry<Integer, Integer> entry : streamWindows.entrySet()) {
+            entry.setValue(entry.getValue() + delta);
+          }
+          notifyAll();
+        }
+      }
+    }
+    writeFrame(SETTINGS, ACK, 0, new byte[0], 0, 0);
+  }
+
+  private synchronized void onWindowUpdate(int streamId, int increment) {
+    if (streamId == 0) {
+      connectionWindow += increment;
+    } else {
+      Integer window = streamWindows.get(streamId);
+      if (window != null) {
+        streamWindows.put(streamId, window + increment);
+      }
+    }
+    notifyAll();
+  }
+
+  private synchronized void openStream(int streamId) {
+    streamWindows.put(streamId, initialWindow);
+  }
+
+  private synchronized void closeStream(int streamId) {
+    streamWindows.remove(streamId);
+    notifyAll();
+  }
+
+  /**
+   * Handles a request in a thread of its own, so the streams of the
+   * connection are served concurrently.
+   */
+  private void dispatch(final int streamId, final byte[] body) {
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          FakeGcmServer.Reply reply =
+              server.handle(new String(body, "UTF-8"));
+          writeReply(streamId, reply);
+        } catch (IOException e) {
+          logger.log(Level.FINE, "Could not reply to stream " + streamId, e);
+        } finally {
+          closeStream(streamId);
+        }
+      }
+    });
+  }
+
+  private void writeReply(int streamId, FakeGcmServer.Reply reply)
+      throws IOException {
+    byte[] body = reply.body.getBytes("UTF-8");
+    ByteArrayOutputStream headers = new ByteArrayOutputStream();
+    if (reply.status == 200) {
+      // indexed :status 200
+      headers.write(0x88);
+    } else {
+      // literals without indexing, with the name taken from the static table
+      writeLiteral(headers, 8, Integer.toString(reply.status));
+    }
+    writeLiteral(headers, 31, "application/json");
+    writeLiteral(headers, 28, Integer.toString(body.length));
+    if (reply.retryAfter != null) {
+      writeLiteral(headers, 53, reply.retryAfter);
+    }
+    byte[] block = headers.toByteArray();
+    int flags = END_HEADERS | (body.length == 0 ? END_STREAM : 0);
+    writeFrame(HEADERS, flags, streamId, block, 0, block.length);
+    int offset = 0;
+    while (offset < body.length) {
+      int count = reserveWindow(streamId,
+          Math.min(body.length - offset, MAX_FRAME_SIZE));
+      flags = offset + count == body.length ? END_STREAM : 0;
+      writeFrame(DATA, flags, streamId, body, offset, count);
+      offset += count;
+    }
+    server.countBytesSent(body.length);
+  }
+
+  /**
+   * Waits until the peer lets us send data on a stream, returning how many
+   * bytes (up to the given number) can be sent.
+   */
+  private synchronized int reserveWindow(int streamId, int wanted)
+      throws IOException {
+    while (true) {
+      Integer streamWindow = streamWindows.get(streamId);
+      if (closed || streamWindow == null) {
+        throw new IOException("Stream " + streamId + " was closed");
+      }
+      int count = Math.min(wanted, Math.min(connectionWindow, streamWindow));
+      if (count > 0) {
+        connectionWindow -= count;
+        streamWindows.put(streamId, streamWindow - count);
+        return count;
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted");
+      }
+    }
+  }
+
+  private void writeWindowUpdate(int streamId, int increment)
+      throws IOException {
+    byte[] payload = new byte[4];
+    writeInt(payload, 0, increment);
+    writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, payload.length);
+  }
+
+  private void writeFrame(int type, int flags, int streamId, byte[] payload,
+      int offset, int length) throws IOException {
+    byte[] header = new byte[9];
+    header[0] = (byte) (length >>> 16);
+    header[1] = (byte) (length >>> 8);
+    header[2] = (byte) length;
+    header[3] = (byte) type;
+    header[4] = (byte) flags;
+    writeInt(header, 5, streamId);
+    synchronized (out) {
+      out.write(header);
+      out.write(payload, offset, length);
+      out.flush();
+    }
+  }
+
+  /**
+   * Writes an HPACK literal header field without indexing, whose name is
+   * the given entry of the static table.
+   */
+  private static void writeLiteral(ByteArrayOutputStream block, int nameIndex,
+      String value) {
+    if (nameIndex < 15) {
+      block.write(nameIndex);
+    } else {
+      block.write(15);
+      block.write(nameIndex - 15);
+    }
+    byte[] bytes = bytes(value);
+    // short enough to fit the 7-bit prefix
+    block.write(bytes.length);
+    block.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeSetting(byte[] payload, int offset, int id,
+      int value) {
+    payload[offset] = (byte) (id >>> 8);
+    payload[offset + 1] = (byte) id;
+    writeInt(payload, offset + 2, value);
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+        | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+  }
+
+  private static void writeInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  private static byte[] bytes(String value) {
+    try {
+      return value.getBytes("US-ASCII");
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares multicasts sent concurrently through pooled HTTP/1.1 connections
+ * with multicasts multiplexed on a single HTTP/2 connection (see
+ * {@link Http2Transport}), using a {@link FakeGcmServer}.
+ *
+ * <p>
+ * Requires Java 11 or later. Usage:
+ * {@code ant benchmark -Dbenchmark.class=Http2TransportBenchmark
+ * [-Dbenchmark.args="key=value ..."]}, where the options (and their
+ * defaults) are:
+ * <ul>
+ * <li>{@code threads}: comma-separated numbers of multicasts in flight
+ *     (1,8,32);
+ * <li>{@code requests}: number of multicasts sent for each number of
+ *     threads (500);
+ * <li>{@code recipients}: devices per multicast (1000);
+ * <li>{@code latency}: latency of each request, in milliseconds (20).
+ * </ul>
+ */
+public class Http2TransportBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    String threads = "1,8,32";
+    int requests = 500;
+    int recipients = 1000;
+    int latency = 20;
+    for (String arg : args) {
+      String[] option = arg.split("=", 2);
+      if (option.length != 2) {
+        throw new IllegalArgumentException("Invalid option: " + arg);
+      }
+      if (option[0].equals("threads")) {
+        threads = option[1];
+      } else if (option[0].equals("requests")) {
+        requests = Integer.parseInt(option[1]);
+      } else if (option[0].equals("recipients")) {
+        recipients = Integer.parseInt(option[1]);
+      } else if (option[0].equals("latency")) {
+        latency = Integer.parseInt(option[1]);
+      } else {
+        throw new IllegalArgumentException("Unknown option: " + arg);
+      }
+    }
+    if (!Http2Transport.isAvailable()) {
+      throw new UnsupportedOperationException("Requires Java 11 or later");
+    }
+    int maxThreads = 1;
+    for (String value : threads.split(",")) {
+      maxThreads = Math.max(maxThreads, Integer.parseInt(value));
+    }
+    // lets the keep-alive cache hold all the pooled connections
+    System.setProperty("http.maxConnections", Integer.toString(maxThreads));
+    Message message = new Message.Builder().collapseKey("benchmark")
+        .addData("body", "Lorem ipsum dolor sit amet").build();
+    List<String> regIds = CompressionBenchmark.newRandomRegIds(recipients);
+    // warm up
+    run(false, maxThreads, Math.min(requests, 100), 0, message, regIds,
+        false);
+    run(true, maxThreads, Math.min(requests, 100), 0, message, regIds,
+        false);
+    for (String value : threads.split(",")) {
+      int count = Integer.parseInt(value);
+      run(false, count, requests, latency, message, regIds, true);
+      run(true, count, requests, latency, message, regIds, true);
+    }
+  }
+
+  private static void run(boolean http2, int threads, int requests,
+      int latency, final Message message, final List<String> regIds,
+      boolean print) throws Exception {
+    FakeGcmServer server = new FakeGcmServer().setLatency(latency, latency);
+    final Sender sender;
+    if (http2) {
+      sender = new Sender("fake-key");
+      sender.setTransport(newTransport(server.getUrl()));
+    } else {
+      sender = server.newSender();
+      sender.setConnectionPool(new ConnectionPool(threads, 5000, 60000));
+    }
+    // opens (and upgrades) the first connection
+    sender.sendNoRetry(message, regIds);
+    SendMetrics metrics = new SendMetrics();
+    sender.setSendListener(metrics);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<MulticastResult>> futures =
+        new ArrayList<Future<MulticastResult>>();
+    long start = System.nanoTime();
+    try {
+      for (int i = 0; i < requests; i++) {
+        futures.add(executor.submit(new Callable<MulticastResult>() {
+          public MulticastResult call() throws Exception {
+            return sender.sendNoRetry(message, regIds);
+          }
+        }));
+      }
+      for (Future<MulticastResult> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+      server.stop();
+    }
+    long elapsed = System.nanoTime() - start;
+    if (print) {
+      SendMetrics.Histogram latencies = metrics.getLatencies();
+      System.out.printf("%-8s %3d threads %8.1f req/s %8.1f ms p50 " +
+          "%8.1f ms p99 %4d connections %4d concurrent%n",
+          http2 ? "HTTP/2" : "HTTP/1.1", threads, requests * 1e9 / elapsed,
+          latencies.getPercentile(50) / 1000.0,
+          latencies.getPercentile(99) / 1000.0, server.getConnections(),
+          server.getMaxConcurrentRequests());
+    }
+  }
+
+  /**
+   * Creates an HTTP/2 transport whose requests are sent to the given URL.
+   */
+  private static Transport newTransport(final String url) {
+    final Transport transport = new Http2Transport();
+    return new Transport() {
+      public Response post(String ignored, String contentType, String apiKey,
+          byte[] body, int length, int timeout) throws IOException {
+        return transport.post(url, contentType, apiKey, body, length,
+            timeout);
+      }
+    };
+  }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator that sends multicasts through a {@link Sender} from many
+ * threads against a {@link FakeGcmServer}, and reports the throughput and
+ * the latency of the {@code send()} calls.
+ *
+ * <p>
+ * Usage: {@code ant benchmark -Dbenchmark.class=LoadGenerator
+ * -Dbenchmark.args="threads=16 sends=2000 recipients=1000 latency=20"}
+ *
+ * <p>
+ * Options (with their defaults):
+ * <ul>
+ * <li>{@code threads=8}: number of threads calling the sender.
+ * <li>{@code sends=1000}: total number of {@code send()} calls.
+ * <li>{@code recipients=1000}: number of devices of each call.
+ * <li>{@code retries=3}: number of retries of each call.
+ * <li>{@code latency=10}: maximum latency (in milliseconds) of each request;
+ *     the actual latency is random, from half that value to it.
+ * <li>{@code unavailable=0}: fraction of requests rejected with 503.
+ * <li>{@code errors=0}: fraction of devices whose messages fail.
+ * <li>{@code transport=http}: {@code http} to send the requests over
+ *     loopback HTTP with pooled connections, or {@code inprocess} to hand
+ *     them straight to the server.
+ * </ul>
+ */
+public class LoadGenerator {
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("threads", "8");
+    options.put("sends", "1000");
+    options.put("recipients", "1000");
+    options.put("retries", "3");
+    options.put("latency", "10");
+    options.put("unavailable", "0");
+    options.put("errors", "0");
+    options.put("transport", "http");
+    for (String arg : args) {
+      String[] option = arg.split("=", 2);
+      if (option.length != 2 || !options.containsKey(option[0])) {
+        throw new IllegalArgumentException("Invalid option: " + arg);
+      }
+      options.put(option[0], option[1]);
+    }
+    System.out.println("Options: " + options);
+    int threads = Integer.parseInt(options.get("threads"));
+    int sends = Integer.parseInt(options.get("sends"));
+    int recipients = Integer.parseInt(options.get("recipients"));
+    int retries = Integer.parseInt(options.get("retries"));
+    int latency = Integer.parseInt(options.get("latency"));
+    double unavailable = Double.parseDouble(options.get("unavailable"));
+    double errors = Double.parseDouble(options.get("errors"));
+
+    List<String> regIds = new ArrayList<String>(recipients);
+    for (int i = 0; i < recipients; i++) {
+      regIds.add("APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx-" + i);
+    }
+    FakeGcmServer server = new FakeGcmServer()
+        .setLatency(latency / 2, latency)
+        .setUnavailableRate(unavailable, 0);
+    for (int i = 0; i < recipients * errors; i++) {
+      server.addError(regIds.get(i), Constants.ERROR_NOT_REGISTERED);
+    }
+    Sender sender;
+    if (options.get("transport").equals("inprocess")) {
+      sender = new Sender("fake-key");
+      sender.setTransport(server.newTransport());
+    } else {
+      // the keep-alive cache must hold a connection per thread
+      System.setProperty("http.maxConnections", Integer.toString(threads));
+      sender = server.newSender();
+      sender.setConnectionPool(new ConnectionPool(threads, 5000, 30000));
+    }
+    Message message = new Message.Builder().collapseKey("load")
+        .addData("key", "value").build();
+    try {
+      // warm up
+      run(sender, message, regIds, retries, threads, Math.min(sends, 200));
+      run(sender, message, regIds, retries, threads, sends).print(server);
+    } finally {
+      server.stop();
+    }
+  }
+
+  private static Report run(final Sender sender, final Message message,
+      final List<String> regIds, final int retries, int threads,
+      final int sends) throws InterruptedException {
+    final Report report = new Report(sends, regIds.size());
+    final AtomicInteger next = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(threads);
+    long start = System.nanoTime();
+    for (int i = 0; i < threads; i++) {
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            int index;
+            while ((index = next.getAndIncrement()) < sends) {
+              long sendStart = System.nanoTime();
+              try {
+                MulticastResult result =
+                    sender.send(message, regIds, retries);
+                report.record(index, System.nanoTime() - sendStart, result);
+              } catch (Exception e) {
+                report.fail(index, System.nanoTime() - sendStart);
+              }
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    done.await();
+    report.elapsed = System.nanoTime() - start;
+    return report;
+  }
+
+  /**
+   * Latencies and outcomes of the calls.
+   */
+  private static final class Report {
+
+    private final long[] latencies;
+    private final int recipients;
+    private final AtomicInteger successes = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger failedSends = new AtomicInteger();
+    private long elapsed;
+
+    Report(int sends, int recipients) {
+      latencies = new long[sends];
+      this.recipients = recipients;
+    }
+
+    void record(int index, long latency, MulticastResult result) {
+      latencies[index] = latency;
+      successes.addAndGet(result.getSuccess());
+      failures.addAndGet(result.getFailure());
+    }
+
+    void fail(int index, long latency) {
+      latencies[index] = latency;
+      failedSends.incrementAndGet();
+    }
+
+    void print(FakeGcmServer server) {
+      long[] sorted = latencies.clone();
+      Arrays.sort(sorted);
+      double seconds = elapsed / 1e9;
+      System.out.printf("%,d sends of %,d recipients in %.2fs%n",
+          sorted.length, recipients, seconds);
+      System.out.printf("  %,.0f messages/s, %,.1f sends/s%n",
+          sorted.length * (double) recipients / seconds,
+          sorted.length / seconds);
+      System.out.printf("  latency: p50 %.1fms, p99 %.1fms, max %.1fms%n",
+          percentile(sorted, 0.5), percentile(sorted, 0.99),
+          sorted[sorted.length - 1] / 1e6);
+      System.out.printf("  results: %,d successes, %,d failures, " +
+          "%,d failed sends%n", successes.get(), failures.get(),
+          failedSends.get());
+      System.out.printf("  server: %,d requests (%,d unavailable), " +
+          "%,d connections%n", server.getRequests(),
+          server.getUnavailableRequests(), server.getConnections());
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+      int index = (int) Math.ceil(percentile * sorted.length) - 1;
+      return sorted[Math.max(0, index)] / 1e6;
+    }
+  }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures the throughput of an {@link OutboundQueue}: entries added per
+ * second by a number of threads (whose adds share the disk syncs), and
+ * entries polled and acknowledged per second.
+ *
+ * <p>
+ * Usage: {@code ant benchmark -Dbenchmark.class=OutboundQueueBenchmark
+ * [-Dbenchmark.args="key=value ..."]}, where the options (and their
+ * defaults) are:
+ * <ul>
+ * <li>{@code dir}: directory of the queue (a temporary directory), which
+ *     should be on the disk being evaluated;
+ * <li>{@code threads}: comma-separated numbers of adding threads (1,4,16);
+ * <li>{@code adds}: number of entries added by each thread (500);
+ * <li>{@code recipients}: devices per entry (1000).
+ * </ul>
+ */
+public class OutboundQueueBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    String dir = null;
+    String threads = "1,4,16";
+    int adds = 500;
+    int recipients = 1000;
+    for (String arg : args) {
+      String[] option = arg.split("=", 2);
+      if (option.length != 2) {
+        throw new IllegalArgumentException("Invalid option: " + arg);
+      }
+      if (option[0].equals("dir")) {
+        dir = option[1];
+      } else if (option[0].equals("threads")) {
+        threads = option[1];
+      } else if (option[0].equals("adds")) {
+        adds = Integer.parseInt(option[1]);
+      } else if (option[0].equals("recipients")) {
+        recipients = Integer.parseInt(option[1]);
+      } else {
+        throw new IllegalArgumentException("Unknown option: " + arg);
+      }
+    }
+    Message message = new Message.Builder().collapseKey("benchmark")
+        .timeToLive(3600).addData("body", "Lorem ipsum dolor sit amet")
+        .build();
+    List<String> regIds = SendPathBenchmark.newRegIds(recipients);
+    for (String count : threads.split(",")) {
+      File directory = dir == null ? newTempDirectory()
+          : new File(dir, "queue-" + System.nanoTime());
+      try {
+        run(directory, message, regIds, Integer.parseInt(count), adds);
+      } finally {
+        delete(directory);
+      }
+    }
+  }
+
+  private static void run(File directory, final Message message,
+      final List<String> regIds, int threads, final int adds)
+      throws Exception {
+    final OutboundQueue queue = new OutboundQueue(directory);
+    try {
+      final CountDownLatch done = new CountDownLatch(threads);
+      final AtomicReference<Exception> error =
+          new AtomicReference<Exception>();
+      long start = System.nanoTime();
+      for (int i = 0; i < threads; i++) {
+        new Thread(new Runnable() {
+          public void run() {
+            try {
+              for (int j = 0; j < adds; j++) {
+                queue.add(message, regIds);
+              }
+            } catch (Exception e) {
+              error.set(e);
+            } finally {
+              done.countDown();
+            }
+          }
+        }).start();
+      }
+      done.await();
+      if (error.get() != null) {
+        throw error.get();
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      int entries = threads * adds;
+      long bytes = 0;
+      for (File file : directory.listFiles()) {
+        bytes += file.length();
+      }
+      System.out.printf("%2d threads: %,9.0f adds/s %,12.0f devices/s " +
+          "%,8.1f MB/s%n", threads, entries / seconds,
+          (double) entries * regIds.size() / seconds,
+          bytes / seconds / (1024 * 1024));
+
+      start = System.nanoTime();
+      OutboundQueue.Entry entry;
+      int polled = 0;
+      while ((entry = queue.poll()) != null) {
+        queue.acknowledge(entry);
+        polled++;
+      }
+      seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("            %,9.0f polls/s %,11.0f devices/s%n",
+          polled / seconds, (double) polled * regIds.size() / seconds);
+    } finally {
+      queue.close();
+    }
+  }
+
+  private static File newTempDirectory() throws Exception {
+    File directory = File.createTempFile("queue", "");
+    if (!directory.delete()) {
+      throw new IllegalStateException("Could not delete " + directory);
+    }
+    return directory;
+  }
+
+  private static void delete(File directory) {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.List;
+
+/**
+ * Compares a {@link RegistrationIdArena} with a list of strings holding the
+ * same registration ids:
+ * <ul>
+ * <li>the heap (and direct memory) they retain;
+ * <li>the time and allocation needed to write the request bodies of all the
+ *     chunks of a multicast message.
+ * </ul>
+ *
+ * <p>
+ * Usage: {@code ant benchmark -Dbenchmark.class=RegistrationIdArenaBenchmark
+ * [-Dbenchmark.args="1000000"]}, where the argument is the audience size
+ * (that's the default).
+ */
+public class RegistrationIdArenaBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int size = args.length == 0 ? 1000000 : Integer.parseInt(args[0]);
+    final Message message = new Message.Builder().collapseKey("benchmark")
+        .timeToLive(3600).addData("body", "Lorem ipsum dolor sit amet")
+        .build();
+    String suffix = String.format(" (%,d)", size);
+
+    long before = getUsedHeap();
+    List<String> strings = CompressionBenchmark.newRandomRegIds(size);
+    long stringHeap = getUsedHeap() - before;
+    before = getUsedHeap();
+    RegistrationIdArena arena = new RegistrationIdArena(size,
+        RegistrationIdArena.DEFAULT_SEGMENT_SIZE);
+    arena.addAll(strings);
+    long arenaHeap = getUsedHeap() - before;
+    System.out.printf("strings: %,d bytes of heap%n", stringHeap);
+    System.out.printf("arena:   %,d bytes of heap, %,d bytes of direct " +
+        "memory (%,d used)%n", arenaHeap, arena.getAllocatedBytes(),
+        arena.getUsedBytes());
+
+    final JsonWriter json = new JsonWriter(256 * 1024);
+    final List<List<String>> stringChunks = Sender.split(strings);
+    final List<List<String>> arenaChunks = Sender.split(arena.asList());
+    BenchmarkRunner.run("request bodies from strings" + suffix,
+        new BenchmarkRunner.Task() {
+          public Object run() {
+            return writeRequests(json, message, stringChunks);
+          }
+        });
+    BenchmarkRunner.run("request bodies from arena" + suffix,
+        new BenchmarkRunner.Task() {
+          public Object run() {
+            return writeRequests(json, message, arenaChunks);
+          }
+        });
+  }
+
+  private static int writeRequests(JsonWriter json, Message message,
+      List<List<String>> chunks) {
+    int bytes = 0;
+    for (List<String> chunk : chunks) {
+      Sender.writeMulticastRequest(json.reset(), message, chunk);
+      bytes += json.size();
+    }
+    return bytes;
+  }
+
+  private static long getUsedHeap() throws InterruptedException {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares parsing a 1000-result multicast response with json-simple (the
+ * previous implementation, which read the response into a String and built
+ * a tree of maps) against {@link Sender#parseMulticastResult}.
+ *
+ * <p>
+ * Usage: {@code ant benchmark -Dbenchmark.class=ResponseParsingBenchmark}
+ */
+public class ResponseParsingBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    final byte[] response = newResponse(1000).getBytes("UTF-8");
+    System.out.println("Response size: " + response.length + " bytes");
+
+    BenchmarkRunner.run("json-simple tree", new BenchmarkRunner.Task() {
+      public Object run() throws Exception {
+        String body = Sender.getString(new ByteArrayInputStream(response));
+        return parseWithJsonSimple(body);
+      }
+    });
+    BenchmarkRunner.run("JsonReader pull parser", new BenchmarkRunner.Task() {
+      public Object run() throws Exception {
+        return Sender.parseMulticastResult(new InputStreamReader(
+            new ByteArrayInputStream(response), "UTF-8"));
+      }
+    });
+  }
+
+  /**
+   * Creates a response with the given number of results, with a mix of
+   * successes, canonical ids and errors.
+   */
+  static String newResponse(int size) {
+    StringBuilder json = new StringBuilder("{\"multicast_id\":")
+        .append("6782339717028231855,\"success\":").append(size)
+        .append(",\"failure\":0,\"canonical_ids\":0,\"results\":[");
+    for (int i = 0; i < size; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      if (i % 10 == 9) {
+        json.append("{\"error\":\"NotRegistered\"}");
+      } else if (i % 10 == 8) {
+        json.append("{\"message_id\":\"0:1353458183186917%").append(i)
+            .append("\",\"registration_id\":\"APA91bHun4MxP5egoKMwt2KZFBaFUH")
+            .append("-1RYqx-").append(i).append("\"}");
+      } else {
+        json.append("{\"message_id\":\"0:1353458183186917%").append(i)
+            .append("\"}");
+      }
+    }
+    return json.append("]}").toString();
+  }
+
+  private static MulticastResult parseWithJsonSimple(String responseBody)
+      throws Exception {
+    JSONObject jsonResponse = (JSONObject) new JSONParser().parse(responseBody);
+    int success = ((Number) jsonResponse.get("success")).intValue();
+    int failure = ((Number) jsonResponse.get("failure")).intValue();
+    int canonicalIds = ((Number) jsonResponse.get("canonical_ids")).intValue();
+    long multicastId = ((Number) jsonResponse.get("multicast_id")).longValue();
+    MulticastResult.Builder builder = new MulticastResult.Builder(success,
+        failure, canonicalIds, multicastId);
+    @SuppressWarnings("unchecked")
+    List<Map<String, Object>> results =
+        (List<Map<String, Object>>) jsonResponse.get("results");
+    for (Map<String, Object> jsonResult : results) {
+      builder.addResult(new Result.Builder()
+          .messageId((String) jsonResult.get("message_id"))
+          .canonicalRegistrationId((String) jsonResult.get("registration_id"))
+          .errorCode((String) jsonResult.get("error"))
+          .build());
+    }
+    return builder.build();
+  }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks the CPU-bound steps of a multicast send, for audiences of
+ * different sizes (split in chunks of {@link Constants#MULTICAST_SIZE}
+ * devices, as {@link Sender} does):
+ * <ul>
+ * <li>building the JSON request body of each chunk;
+ * <li>parsing the JSON response of each chunk;
+ * <li>tracking the results of each chunk and the devices to be retried,
+ *     with a tenth of the devices unavailable;
+ * <li>building the overall {@link MulticastResult}.
+ * </ul>
+ *
+ * <p>
+ * Usage: {@code ant benchmark -Dbenchmark.class=SendPathBenchmark
+ * [-Dbenchmark.args="1000 10000 1000000"]}, where the arguments are the
+ * audience sizes (those are the defaults).
+ */
+public class SendPathBenchmark {
+
+  private static final int UNAVAILABLE_EVERY = 10;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      args = new String[] {"1000", "10000", "1000000"};
+    }
+    for (String arg : args) {
+      run(Integer.parseInt(arg));
+    }
+  }
+
+  private static void run(final int size) throws Exception {
+    final Message message = new Message.Builder()
+        .collapseKey("benchmark")
+        .timeToLive(3600)
+        .addData("title", "Benchmark")
+        .addData("body", "Lorem ipsum dolor sit amet")
+        .build();
+    final List<String> regIds = newRegIds(size);
+    final List<List<String>> chunks = Sender.split(regIds);
+    final List<byte[]> responses = new ArrayList<byte[]>();
+    final List<MulticastResult> chunkResults =
+        new ArrayList<MulticastResult>();
+    for (List<String> chunk : chunks) {
+      byte[] response = newResponse(chunk.size()).getBytes("UTF-8");
+      responses.add(response);
+      chunkResults.add(parse(response));
+    }
+    String suffix = String.format(" (%,d)", size);
+    final JsonWriter json = new JsonWriter(256 * 1024);
+
+    BenchmarkRunner.run("request bodies" + suffix,
+        new BenchmarkRunner.Task() {
+          public Object run() {
+            int bytes = 0;
+            for (List<String> chunk : chunks) {
+              Sender.writeMulticastRequest(json.reset(), message, chunk);
+              bytes += json.size();
+            }
+            return bytes;
+          }
+        });
+    BenchmarkRunner.run("response parsing" + suffix,
+        new BenchmarkRunner.Task() {
+          public Object run() throws Exception {
+            int total = 0;
+            for (byte[] response : responses) {
+              total += parse(response).getTotal();
+            }
+            return total;
+          }
+        });
+    BenchmarkRunner.run("retry tracking" + suffix,
+        new BenchmarkRunner.Task() {
+          public Object run() {
+            int pending = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+              MulticastTracker tracker = new MulticastTracker(chunks.get(i));
+              tracker.update(chunkResults.get(i));
+              pending += tracker.getPendingRegIds().size();
+            }
+            return pending;
+          }
+        });
+    final List<MulticastTracker> trackers = new ArrayList<MulticastTracker>();
+    for (int i = 0; i < chunks.size(); i++) {
+      MulticastTracker tracker = new MulticastTracker(chunks.get(i));
+      tracker.update(chunkResults.get(i));
+      trackers.add(tracker);
+    }
+    BenchmarkRunner.run("MulticastResult building" + suffix,
+        new BenchmarkRunner.Task() {
+          public Object run() {
+            MulticastResult[] built = new MulticastResult[trackers.size()];
+            for (int i = 0; i < built.length; i++) {
+              built[i] = trackers.get(i).build();
+            }
+            return built.length == 1 ? built[0] : Sender.mergeChunks(built);
+          }
+        });
+  }
+
+  private static MulticastResult parse(byte[] response) throws Exception {
+    return Sender.parseMulticastResult(new InputStreamReader(
+        new ByteArrayInputStream(response), "UTF-8"));
+  }
+
+  /**
+   * Creates registration ids as long as real ones.
+   */
+  static List<String> newRegIds(int size) {
+    List<String> regIds = new ArrayList<String>(size);
+    StringBuilder prefix = new StringBuilder("APA91b");
+    while (prefix.length() < 150) {
+      prefix.append("Hun4MxP5egoKMwt2KZFBaFUH-1RYqx");
+    }
+    for (int i = 0; i < size; i++) {
+      regIds.add(prefix.toString() + i);
+    }
+    return regIds;
+  }
+
+  /**
+   * Creates the response of a chunk, where a tenth of the devices are
+   * unavailable.
+   */
+  private static String newResponse(int size) {
+    StringBuilder json = new StringBuilder("{\"multicast_id\":")
+        .append("6782339717028231855,\"success\":")
+        .append(size - size / UNAVAILABLE_EVERY).append(",\"failure\":")
+        .append(size / UNAVAILABLE_EVERY)
+        .append(",\"canonical_ids\":0,\"results\":[");
+    for (int i = 0; i < size; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      if (i % UNAVAILABLE_EVERY == UNAVAILABLE_EVERY - 1) {
+        json.append("{\"error\":\"Unavailable\"}");
+      } else {
+        json.append("{\"message_id\":\"0:1353458183186917%").append(i)
+            .append("\"}");
+      }
+    }
+    return json.append("]}").toString();
+  }
+
+}
@@ -0,0 +1,604 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.MULTICAST_SIZE;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Sends a message to an audience too big to be kept in memory, such as all
+ * registered devices, keeping track of its progress so it can be resumed
+ * after a crash.
+ *
+ * <p>
+ * Registration ids are read from an {@link Iterator} (for example, backed by
+ * a database cursor) in chunks of {@link Constants#MULTICAST_SIZE} devices,
+ * which are sent through {@link Sender#sendAsync(Message, List, int)}. At most
+ * a given number of chunks are in flight: beyond that, the iterator is not
+ * read until a chunk completes, so memory use is bounded regardless of the
+ * size of the audience.
+ *
+ * <p>
+ * Completed chunks are recorded in a checkpoint file, which is synced to
+ * disk. The file is written by one thread at a time, outside the lock of
+ * the campaign: chunks completed while it is being written are recorded
+ * together by the next write, so completions never wait for the disk.
+ * When {@link #send(Message, Iterator, int)} is called again with the
+ * same checkpoint (after a crash or an error), the chunks already completed
+ * are skipped; that requires the iterator to return the same registration
+ * ids in the same order, at least up to the last chunk completed. Once the
+ * campaign completes, the checkpoint is kept, so sending it again is a no-op;
+ * it must be deleted to start a new campaign.
+ *
+ * <p>
+ * Registration ids to be updated or removed are handled like for any other
+ * request, through {@link Sender#setRegistrationSink(RegistrationSink)}.
+ * As the storage of the application might lag behind, a
+ * {@link DeadTokenFilter} can be set to skip the devices already reported
+ * as dead (see {@link #setDeadTokenFilter(DeadTokenFilter)}).
+ */
+public final class Broadcast {
+
+  private static final Logger logger =
+      Logger.getLogger(Broadcast.class.getName());
+
+  private static final int CHECKPOINT_VERSION = 2;
+
+  private final Sender sender;
+  private final File checkpoint;
+  private final int maxChunksInFlight;
+
+  private volatile Campaign campaign;
+  private volatile DeadTokenFilter deadTokenFilter;
+
+  /**
+   * Default constructor.
+   *
+   * @param sender sender of the chunks; it must have been created with an
+   *        executor.
+   * @param checkpoint file where the progress of the campaign is recorded.
+   * @param maxChunksInFlight maximum number of chunks being sent at the same
+   *        time.
+   *
+   * @throws IllegalArgumentException if sender or checkpoint are
+   *         {@literal null}, or if maxChunksInFlight is not positive.
+   */
+  public Broadcast(Sender sender, File checkpoint, int maxChunksInFlight) {
+    if (maxChunksInFlight <= 0) {
+      throw new IllegalArgumentException("maxChunksInFlight must be positive");
+    }
+    this.sender = Sender.nonNull(sender);
+    this.checkpoint = Sender.nonNull(checkpoint);
+    this.maxChunksInFlight = maxChunksInFlight;
+  }
+
+  /**
+   * Sets the filter of dead registration ids, which are removed from the
+   * chunks before they are sent; the filter is in turn fed by the results of
+   * the chunks. Chunks are still read from the iterator in the same way, so
+   * the filter can change between calls for the same checkpoint.
+   *
+   * @param deadTokenFilter filter, or {@literal null} to send to all devices
+   *        (the default).
+   */
+  public void setDeadTokenFilter(DeadTokenFilter deadTokenFilter) {
+    this.deadTokenFilter = deadTokenFilter;
+  }
+
+  /**
+   * Gets the filter of dead registration ids, if any.
+   */
+  public DeadTokenFilter getDeadTokenFilter() {
+    return deadTokenFilter;
+  }
+
+  /**
+   * Sends a message to all devices returned by an iterator, skipping the
+   * chunks completed by previous calls; the call returns once all chunks
+   * are done.
+   *
+   * <p>
+   * If a chunk fails or the iterator throws an exception, no more chunks are
+   * sent, and the exception is thrown once the chunks in flight are done and
+   * recorded; the campaign can then be resumed.
+   * This method must not be called concurrently for the same checkpoint.
+   *
+   * @param message message to be sent.
+   * @param regIds registration ids of the devices that will receive the
+   *        message, always in the same order.
+   * @param retries number of retries of each chunk in case of service
+   *        unavailability errors.
+   *
+   * @return progress of the whole campaign, including previous calls.
+   *
+   * @throws IOException if a chunk could not be sent, or if the checkpoint
+   *         could not be read or written.
+   * @throws InterruptedException if the thread was interrupted while waiting
+   *         for chunks to complete; chunks in flight are still recorded.
+   */
+  public Progress send(Message message, Iterator<String> regIds, int retries)
+      throws IOException, InterruptedException {
+    Sender.nonNull(message);
+    Sender.nonNull(regIds);
+    Campaign campaign = readCheckpoint();
+    this.campaign = campaign;
+    DeadTokenFilter filter = deadTokenFilter;
+    Semaphore permits = new Semaphore(maxChunksInFlight);
+    try {
+      for (int index = 0; regIds.hasNext() && !campaign.hasFailed();
+          index++) {
+        if (campaign.isDone(index)) {
+          for (int i = 0; i < MULTICAST_SIZE && regIds.hasNext(); i++) {
+            regIds.next();
+          }
+          campaign.addChunk(true);
+          continue;
+        }
+        // waits before reading the chunk, so at most maxChunksInFlight are
+        // in memory
+        permits.acquire();
+        if (campaign.hasFailed()) {
+          permits.release();
+          break;
+        }
+        List<String> chunk = new ArrayList<String>(MULTICAST_SIZE);
+        int filtered = 0;
+        try {
+          for (int i = 0; i < MULTICAST_SIZE && regIds.hasNext(); i++) {
+            String regId = regIds.next();
+            if (filter != null && filter.mightContain(regId)) {
+              filtered++;
+            } else {
+              chunk.add(regId);
+            }
+          }
+        } catch (RuntimeException e) {
+          permits.release();
+          throw e;
+        }
+        campaign.addChunk(false);
+        if (chunk.isEmpty()) {
+          campaign.complete(index, filtered, null);
+          permits.release();
+        } else {
+          sendChunk(campaign, index, message, chunk, filtered, filter,
+              retries, permits);
+        }
+      }
+    } catch (RuntimeException e) {
+      // the chunks in flight are still recorded before it's reported
+      campaign.fail(e);
+    }
+    // waits for the chunks in flight, and for their checkpoint
+    permits.acquire(maxChunksInFlight);
+    permits.release(maxChunksInFlight);
+    campaign.awaitCheckpoint();
+    campaign.checkFailure();
+    return campaign.getProgress();
+  }
+
+  /**
+   * Gets the progress of the campaign being sent (or last sent), or
+   * {@literal null} if {@link #send(Message, Iterator, int)} was not called
+   * yet.
+   */
+  public Progress getProgress() {
+    Campaign campaign = this.campaign;
+    return campaign == null ? null : campaign.getProgress();
+  }
+
+  private void sendChunk(final Campaign campaign, final int index,
+      Message message, final List<String> chunk, final int filtered,
+      final DeadTokenFilter filter, int retries, final Semaphore permits) {
+    final SendFuture<MulticastResult> future;
+    try {
+      future = sender.sendAsync(message, chunk, retries);
+    } catch (RuntimeException e) {
+      campaign.fail(e);
+      permits.release();
+      return;
+    }
+    future.addListener(new Runnable() {
+      public void run() {
+        try {
+          MulticastResult result = future.get();
+          if (filter != null) {
+            filter.addResults(chunk, result.getResults());
+          }
+          campaign.complete(index, filtered, result);
+        } catch (ExecutionException e) {
+          campaign.fail(e.getCause());
+        } catch (Exception e) {
+          // chunk was cancelled, or interrupted (which should not happen)
+          campaign.fail(e);
+        } finally {
+          permits.release();
+        }
+      }
+    }, Sender.SAME_THREAD_EXECUTOR);
+  }
+
+  /**
+   * Reads the checkpoint, or starts a new campaign if there is none.
+   */
+  private Campaign readCheckpoint() throws IOException {
+    Campaign campaign = new Campaign();
+    CheckedInputStream checked;
+    try {
+      checked = new CheckedInputStream(new BufferedInputStream(
+          new FileInputStream(checkpoint)), new CRC32());
+    } catch (FileNotFoundException e) {
+      return campaign;
+    }
+    DataInputStream in = new DataInputStream(checked);
+    try {
+      int version = in.readInt();
+      if (version != CHECKPOINT_VERSION) {
+        throw new IOException("Unknown checkpoint version in " + checkpoint);
+      }
+      campaign.watermark = in.readInt();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        campaign.done.add(in.readInt());
+      }
+      campaign.devices = in.readLong();
+      campaign.success = in.readLong();
+      campaign.failure = in.readLong();
+      campaign.canonicalIds = in.readLong();
+      campaign.filtered = in.readLong();
+      long checksum = checked.getChecksum().getValue();
+      if (in.readLong() != checksum) {
+        throw new IOException("Corrupt checkpoint " + checkpoint);
+      }
+    } catch (EOFException e) {
+      throw new IOException("Truncated checkpoint " + checkpoint);
+    } finally {
+      in.close();
+    }
+    logger.info("Resuming campaign of " + checkpoint + " after " +
+        campaign.getCompletedChunks() + " chunks");
+    return campaign;
+  }
+
+  /**
+   * Writes the checkpoint to a temporary file, which is synced and then
+   * renamed, so the checkpoint is either the previous or the new one.
+   */
+  private void writeCheckpoint(Checkpoint snapshot) throws IOException {
+    File temporary = new File(checkpoint.getPath() + ".tmp");
+    FileOutputStream file = new FileOutputStream(temporary);
+    try {
+      CheckedOutputStream checked = new CheckedOutputStream(
+          new BufferedOutputStream(file), new CRC32());
+      DataOutputStream out = new DataOutputStream(checked);
+      out.writeInt(CHECKPOINT_VERSION);
+      out.writeInt(snapshot.watermark);
+      out.writeInt(snapshot.done.length);
+      for (int index : snapshot.done) {
+        out.writeInt(index);
+      }
+      out.writeLong(snapshot.devices);
+      out.writeLong(snapshot.success);
+      out.writeLong(snapshot.failure);
+      out.writeLong(snapshot.canonicalIds);
+      out.writeLong(snapshot.filtered);
+      out.writeLong(checked.getChecksum().getValue());
+      out.flush();
+      file.getFD().sync();
+    } finally {
+      file.close();
+    }
+    // renameTo() does not replace an existing file on every platform
+    if (!temporary.renameTo(checkpoint)
+        && !(checkpoint.delete() && temporary.renameTo(checkpoint))) {
+      throw new IOException("Could not rename " + temporary + " to " +
+          checkpoint);
+    }
+  }
+
+  /**
+   * State of a campaign: which chunks were completed (all the ones below a
+   * watermark, plus the ones above it that completed out of order) and the
+   * combined results of those chunks.
+   */
+  private final class Campaign {
+
+    // guarded by this
+    int watermark;
+    final SortedSet<Integer> done = new TreeSet<Integer>();
+    long devices;
+    long success;
+    long failure;
+    long canonicalIds;
+    long filtered;
+    private int chunks;
+    private int skippedChunks;
+    private Throwable exception;
+    // whether a thread is writing the checkpoint, and whether chunks were
+    // completed since it took its snapshot
+    private boolean writing;
+    private boolean changed;
+
+    synchronized void addChunk(boolean skipped) {
+      chunks++;
+      if (skipped) {
+        skippedChunks++;
+      }
+    }
+
+    synchronized boolean isDone(int index) {
+      return index < watermark || done.contains(index);
+    }
+
+    synchronized int getCompletedChunks() {
+      return watermark + done.size();
+    }
+
+    /**
+     * Records a completed chunk.
+     *
+     * @param filtered number of devices removed from the chunk.
+     * @param result result of the chunk, or {@literal null} if all its
+     *        devices were removed.
+     */
+    void complete(int index, int filtered, MulticastResult result) {
+      synchronized (this) {
+        done.add(index);
+        while (done.remove(watermark)) {
+          watermark++;
+        }
+        this.filtered += filtered;
+        if (result != null) {
+          devices += result.getTotal();
+          success += result.getSuccess();
+          failure += result.getFailure();
+          canonicalIds += result.getCanonicalIds();
+        }
+        changed = true;
+        if (writing) {
+          // recorded by the next write of the thread writing it
+          return;
+        }
+        writing = true;
+      }
+      writeCheckpoints();
+    }
+
+    /**
+     * Writes the checkpoint until it holds all completed chunks.
+     */
+    private void writeCheckpoints() {
+      while (true) {
+        Checkpoint snapshot;
+        synchronized (this) {
+          if (!changed) {
+            writing = false;
+            notifyAll();
+            return;
+          }
+          changed = false;
+          snapshot = new Checkpoint(this);
+        }
+        try {
+          writeCheckpoint(snapshot);
+        } catch (IOException e) {
+          fail(e);
+        }
+      }
+    }
+
+    /**
+     * Waits until the checkpoint holds all completed chunks.
+     */
+    synchronized void awaitCheckpoint() throws InterruptedException {
+      while (writing) {
+        wait();
+      }
+    }
+
+    /**
+     * Records the first error, which stops the campaign.
+     */
+    synchronized void fail(Throwable exception) {
+      if (this.exception == null) {
+        logger.warning("Stopping campaign of " + checkpoint + ": " +
+            exception);
+        this.exception = exception;
+      }
+    }
+
+    synchronized boolean hasFailed() {
+      return exception != null;
+    }
+
+    /**
+     * Throws the error that stopped the campaign, if any.
+     */
+    synchronized void checkFailure() throws IOException {
+      if (exception instanceof IOException) {
+        throw (IOException) exception;
+      }
+      if (exception instanceof RuntimeException) {
+        throw (RuntimeException) exception;
+      }
+      if (exception instanceof Error) {
+        throw (Error) exception;
+      }
+      if (exception != null) {
+        IOException wrapped = new IOException("Could not send chunk");
+        wrapped.initCause(exception);
+        throw wrapped;
+      }
+    }
+
+    synchronized Progress getProgress() {
+      return new Progress(chunks, skippedChunks, getCompletedChunks(),
+          devices, success, failure, canonicalIds, filtered);
+    }
+  }
+
+  /**
+   * Copy of the state of a campaign, written to the checkpoint.
+   */
+  private static final class Checkpoint {
+
+    final int watermark;
+    final int[] done;
+    final long devices;
+    final long success;
+    final long failure;
+    final long canonicalIds;
+    final long filtered;
+
+    // called with the lock of the campaign held
+    Checkpoint(Campaign campaign) {
+      watermark = campaign.watermark;
+      done = new int[campaign.done.size()];
+      int i = 0;
+      for (int index : campaign.done) {
+        done[i++] = index;
+      }
+      devices = campaign.devices;
+      success = campaign.success;
+      failure = campaign.failure;
+      canonicalIds = campaign.canonicalIds;
+      filtered = campaign.filtered;
+    }
+  }
+
+  /**
+   * Progress of a campaign.
+   */
+  public static final class Progress {
+
+    private final int chunks;
+    private final int skippedChunks;
+    private final int completedChunks;
+    private final long devices;
+    private final long success;
+    private final long failure;
+    private final long canonicalIds;
+    private final long filteredDevices;
+
+    Progress(int chunks, int skippedChunks, int completedChunks,
+        long devices, long success, long failure, long canonicalIds,
+        long filteredDevices) {
+      this.chunks = chunks;
+      this.skippedChunks = skippedChunks;
+      this.completedChunks = completedChunks;
+      this.devices = devices;
+      this.success = success;
+      this.failure = failure;
+      this.canonicalIds = canonicalIds;
+      this.filteredDevices = filteredDevices;
+    }
+
+    /**
+     * Gets the number of chunks read from the iterator so far.
+     */
+    public int getChunks() {
+      return chunks;
+    }
+
+    /**
+     * Gets the number of chunks skipped because they were completed by a
+     * previous call.
+     */
+    public int getSkippedChunks() {
+      return skippedChunks;
+    }
+
+    /**
+     * Gets the number of chunks completed, including previous calls.
+     */
+    public int getCompletedChunks() {
+      return completedChunks;
+    }
+
+    /**
+     * Gets the number of devices the completed chunks were sent to, which
+     * excludes the filtered ones.
+     */
+    public long getDevices() {
+      return devices;
+    }
+
+    /**
+     * Gets the number of devices the message was sent to.
+     */
+    public long getSuccess() {
+      return success;
+    }
+
+    /**
+     * Gets the number of devices the message could not be sent to.
+     */
+    public long getFailure() {
+      return failure;
+    }
+
+    /**
+     * Gets the number of devices with a canonical registration id.
+     */
+    public long getCanonicalIds() {
+      return canonicalIds;
+    }
+
+    /**
+     * Gets the number of devices of the completed chunks that were skipped by
+     * the {@link DeadTokenFilter}.
+     */
+    public long getFilteredDevices() {
+      return filteredDevices;
+    }
+
+    @Override
+    public String toString() {
+      return new StringBuilder("Progress(")
+          .append("chunks=").append(chunks).append(",")
+          .append("skipped=").append(skippedChunks).append(",")
+          .append("completed=").append(completedChunks).append(",")
+          .append("devices=").append(devices).append(",")
+          .append("success=").append(success).append(",")
+          .append("failure=").append(failure).append(",")
+          .append("canonical_ids=").append(canonicalIds).append(",")
+          .append("filtered=").append(filteredDevices).append(")")
+          .toString();
+    }
+  }
+
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import com.google.android.gcm.server.SendMetrics.Histogram;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Sends messages split in chunks through many queues, limiting the number of
+ * chunks in flight.
+ *
+ * <p>
+ * When a slot is free, the next chunk is taken from the queue with the
+ * highest priority (lowest number) that has chunks waiting and is below its
+ * own limit of chunks in flight. Queues of the same priority share the slots
+ * through start-time fair queuing: each chunk is tagged with a virtual start
+ * time, which advances by the number of devices of the chunk divided by the
+ * weight of its queue, and the chunk with the earliest tag goes first. A
+ * queue that was idle starts at the current virtual time of its priority, so
+ * it cannot accumulate credit.
+ *
+ * <p>
+ * When a request fails or is cancelled, its queued chunks are dropped and
+ * its chunks in flight are cancelled, so the sender doesn't keep waiting on
+ * its rate limiter or retrying them.
+ */
+final class ChunkDispatcher {
+
+  private final int maxChunksInFlight;
+
+  // guarded by this
+  private final List<ChunkQueue> queues = new ArrayList<ChunkQueue>();
+  private final double[] virtualTimes;
+  private int chunksInFlight;
+  // whether a thread is running dispatch()
+  private boolean dispatching;
+
+  /**
+   * Default constructor.
+   *
+   * @param maxChunksInFlight maximum number of chunks being sent at the same
+   *        time.
+   * @param priorities number of priorities, {@literal 0} being the highest.
+   */
+  ChunkDispatcher(int maxChunksInFlight, int priorities) {
+    if (maxChunksInFlight <= 0) {
+      throw new IllegalArgumentException("maxChunksInFlight must be positive");
+    }
+    this.maxChunksInFlight = maxChunksInFlight;
+    virtualTimes = new double[priorities];
+  }
+
+  /**
+   * Adds a queue.
+   *
+   * @param sender sender of the chunks of the queue.
+   * @param priority priority of the queue.
+   * @param weight share of the devices sent to that the queue gets relative
+   *        to the other queues of the same priority.
+   * @param maxChunksInFlight maximum number of chunks of the queue being sent
+   *        at the same time.
+   */
+  synchronized ChunkQueue addQueue(Sender sender, int priority, int weight,
+      int maxChunksInFlight) {
+    if (priority < 0 || priority >= virtualTimes.length) {
+      throw new IllegalArgumentException("Invalid priority: " + priority);
+    }
+    if (weight <= 0) {
+      throw new IllegalArgumentException("weight must be positive");
+    }
+    if (maxChunksInFlight <= 0) {
+      throw new IllegalArgumentException("maxChunksInFlight must be positive");
+    }
+    ChunkQueue queue = new ChunkQueue(Sender.nonNull(sender), priority, weight,
+        maxChunksInFlight);
+    queues.add(queue);
+    return queue;
+  }
+
+  /**
+   * Queues a message to many devices, splitting it in chunks of up to
+   * {@link Constants#MULTICAST_SIZE} devices.
+   *
+   * @return future holding the combined result of all chunks.
+   *
+   * @throws IllegalArgumentException if message or regIds is {@literal null},
+   *         or if regIds is empty.
+   */
+  SendFuture<MulticastResult> send(ChunkQueue queue, Message message,
+      List<String> regIds, int retries) {
+    Sender.nonNull(message);
+    if (Sender.nonNull(regIds).isEmpty()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
+    }
+    // chunks are sent later, so they must not be views of the caller's list
+    List<List<String>> chunks = Sender.split(Sender.snapshot(regIds));
+    final Request request =
+        new Request(queue, message, retries, chunks.size());
+    request.future.addListener(new Runnable() {
+      public void run() {
+        if (!request.isComplete()) {
+          // failed or cancelled: its queued chunks won't be sent, and its
+          // chunks in flight are given up
+          removeChunks(request);
+          request.cancelChunks();
+        }
+      }
+    }, Sender.SAME_THREAD_EXECUTOR);
+    synchronized (this) {
+      for (int i = 0; i < chunks.size(); i++) {
+        queue.enqueue(new Chunk(queue, request, i, chunks.get(i)));
+      }
+    }
+    dispatch();
+    return request.future;
+  }
+
+  /**
+   * Gets the number of chunks waiting to be sent.
+   */
+  synchronized int getQueuedChunks() {
+    int queued = 0;
+    for (ChunkQueue queue : queues) {
+      queued += queue.chunks.size();
+    }
+    return queued;
+  }
+
+  /**
+   * Gets the number of chunks being sent.
+   */
+  synchronized int getChunksInFlight() {
+    return chunksInFlight;
+  }
+
+  /**
+   * Starts sending chunks, as long as there are slots available.
+   *
+   * <p>
+   * Only one thread dispatches at a time: chunks completed while a thread
+   * is dispatching (possibly by that same thread, when a chunk completes
+   * right away) free their slot, which the dispatching thread picks up, so
+   * this method never recurses.
+   */
+  private void dispatch() {
+    synchronized (this) {
+      if (dispatching) {
+        return;
+      }
+      dispatching = true;
+    }
+    boolean done = false;
+    try {
+      while (true) {
+        Chunk chunk;
+        synchronized (this) {
+          chunk = chunksInFlight < maxChunksInFlight ? pollNext() : null;
+          if (chunk == null) {
+            dispatching = false;
+            done = true;
+            return;
+          }
+          chunksInFlight++;
+          chunk.queue.chunksInFlight++;
+          virtualTimes[chunk.queue.priority] = chunk.start;
+        }
+        if (!start(chunk)) {
+          freeSlot(chunk);
+        }
+      }
+    } finally {
+      if (!done) {
+        synchronized (this) {
+          dispatching = false;
+        }
+      }
+    }
+  }
+
+  /**
+   * Takes the queued chunk with the highest priority and earliest start
+   * tag, among the queues that can have more chunks in flight.
+   */
+  private Chunk pollNext() {
+    ChunkQueue next = null;
+    for (ChunkQueue queue : queues) {
+      if (queue.chunks.isEmpty()
+          || queue.chunksInFlight >= queue.maxChunksInFlight) {
+        continue;
+      }
+      if (next == null || queue.priority < next.priority
+          || (queue.priority == next.priority
+              && queue.chunks.getFirst().start
+                  < next.chunks.getFirst().start)) {
+        next = queue;
+      }
+    }
+    return next == null ? null : next.chunks.removeFirst();
+  }
+
+  /**
+   * Starts sending a chunk.
+   *
+   * @return {@literal false} if the chunk was not sent, in which case the
+   *         caller frees its slot.
+   */
+  private boolean start(final Chunk chunk) {
+    final Request request = chunk.request;
+    if (request.future.isDone()) {
+      // another chunk failed, or the caller cancelled the request
+      return false;
+    }
+    chunk.queue.queueTimes.record(System.nanoTime() - chunk.queuedAt);
+    final SendFuture<MulticastResult> chunkFuture;
+    try {
+      chunkFuture = chunk.queue.sender.sendAsync(request.message,
+          chunk.regIds, request.retries);
+    } catch (RuntimeException e) {
+      request.setException(e);
+      return false;
+    }
+    // tracked before the listener is added, as it may run right away
+    request.addChunkFuture(chunkFuture);
+    chunkFuture.addListener(new Runnable() {
+      public void run() {
+        onChunkDone(chunk, chunkFuture);
+      }
+    }, Sender.SAME_THREAD_EXECUTOR);
+    return true;
+  }
+
+  private void onChunkDone(Chunk chunk, SendFuture<MulticastResult> future) {
+    Request request = chunk.request;
+    request.removeChunkFuture(future);
+    try {
+      request.setResult(chunk.index, future.get());
+    } catch (ExecutionException e) {
+      request.setException(e.getCause());
+    } catch (Exception e) {
+      // chunk was cancelled, or interrupted (which should not happen)
+      request.setException(e);
+    }
+    release(chunk);
+  }
+
+  /**
+   * Frees the slot of a chunk that is done, and starts the next one.
+   */
+  private void release(Chunk chunk) {
+    freeSlot(chunk);
+    dispatch();
+  }
+
+  private synchronized void freeSlot(Chunk chunk) {
+    chunksInFlight--;
+    chunk.queue.chunksInFlight--;
+  }
+
+  /**
+   * Removes the queued chunks of a request, all at once.
+   */
+  private synchronized void removeChunks(Request request) {
+    Iterator<Chunk> chunks = request.queue.chunks.iterator();
+    while (chunks.hasNext()) {
+      if (chunks.next().request == request) {
+        chunks.remove();
+      }
+    }
+  }
+
+  /**
+   * Queue of chunks sent by the same sender.
+   */
+  final class ChunkQueue {
+
+    final Sender sender;
+    final int priority;
+    final int weight;
+    final int maxChunksInFlight;
+    final Histogram latencies = new Histogram();
+    final Histogram queueTimes = new Histogram();
+    // guarded by ChunkDispatcher.this
+    private final LinkedList<Chunk> chunks = new LinkedList<Chunk>();
+    private int chunksInFlight;
+    private double lastFinish;
+
+    ChunkQueue(Sender sender, int priority, int weight,
+        int maxChunksInFlight) {
+      this.sender = sender;
+      this.priority = priority;
+      this.weight = weight;
+      this.maxChunksInFlight = maxChunksInFlight;
+    }
+
+    /**
+     * Gets the number of chunks of this queue waiting to be sent.
+     */
+    int getQueuedChunks() {
+      synchronized (ChunkDispatcher.this) {
+        return chunks.size();
+      }
+    }
+
+    /**
+     * Gets the number of chunks of this queue being sent.
+     */
+    int getChunksInFlight() {
+      synchronized (ChunkDispatcher.this) {
+        return chunksInFlight;
+      }
+    }
+
+    private void enqueue(Chunk chunk) {
+      chunk.start = Math.max(virtualTimes[priority], lastFinish);
+      lastFinish = chunk.start + (double) chunk.regIds.size() / weight;
+      chunks.add(chunk);
+    }
+  }
+
+  /**
+   * Part of a request, sent to up to {@link Constants#MULTICAST_SIZE}
+   * devices.
+   */
+  private static final class Chunk {
+
+    final ChunkQueue queue;
+    final Request request;
+    final int index;
+    final List<String> regIds;
+    final long queuedAt = System.nanoTime();
+    double start;
+
+    Chunk(ChunkQueue queue, Request request, int index, List<String> regIds) {
+      this.queue = queue;
+      this.request = request;
+      this.index = index;
+      this.regIds = regIds;
+    }
+  }
+
+  /**
+   * Message sent to many devices, whose chunks are combined once all of
+   * them are done.
+   */
+  private static final class Request {
+
+    final ChunkQueue queue;
+    final Message message;
+    final int retries;
+    final long queuedAt = System.nanoTime();
+    final SendFuture<MulticastResult> future =
+        new SendFuture<MulticastResult>();
+    final MulticastResult[] results;
+    // guarded by this
+    private int pending;
+    private final List<SendFuture<MulticastResult>> chunkFutures =
+        new ArrayList<SendFuture<MulticastResult>>();
+    private boolean chunksCancelled;
+
+    Request(ChunkQueue queue, Message message, int retries, int chunks) {
+      this.queue = queue;
+      this.message = message;
+      this.retries = retries;
+      results = new MulticastResult[chunks];
+      pending = chunks;
+    }
+
+    void setResult(int index, MulticastResult result) {
+      boolean last;
+      synchronized (this) {
+        results[index] = result;
+        last = --pending == 0;
+      }
+      if (last && future.set(results.length == 1 ? results[0]
+          : Sender.mergeChunks(results))) {
+        queue.latencies.record(System.nanoTime() - queuedAt);
+      }
+    }
+
+    /**
+     * Keeps track of the future of a chunk in flight, cancelling it right
+     * away if the chunks of the request were already cancelled.
+     */
+    void addChunkFuture(SendFuture<MulticastResult> future) {
+      synchronized (this) {
+        if (!chunksCancelled) {
+          chunkFutures.add(future);
+          return;
+        }
+      }
+      future.cancel(false);
+    }
+
+    synchronized void removeChunkFuture(SendFuture<MulticastResult> future) {
+      chunkFutures.remove(future);
+    }
+
+    /**
+     * Cancels the chunks in flight, and the ones started from now on.
+     */
+    void cancelChunks() {
+      List<SendFuture<MulticastResult>> futures;
+      synchronized (this) {
+        chunksCancelled = true;
+        futures = new ArrayList<SendFuture<MulticastResult>>(chunkFutures);
+        chunkFutures.clear();
+      }
+      // outside the lock, as their listeners complete the chunks
+      for (SendFuture<MulticastResult> future : futures) {
+        future.cancel(false);
+      }
+    }
+
+    /**
+     * Tells whether the results of all chunks were set.
+     */
+    synchronized boolean isComplete() {
+      return pending == 0;
+    }
+
+    void setException(Throwable exception) {
+      if (future.setException(exception)) {
+        queue.latencies.record(System.nanoTime() - queuedAt);
+      }
+    }
+  }
+
+}
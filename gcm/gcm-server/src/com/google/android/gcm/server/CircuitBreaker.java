@@ -0,0 +1,305 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker that stops a {@link Sender} from making requests while GCM
+ * is failing.
+ *
+ * <p>
+ * The breaker tracks the outcome of the last requests; a request fails when
+ * it could not be made or when GCM returned a 5xx status. While
+ * {@link State#CLOSED}, requests are made normally, until the failure rate of
+ * a full window of requests reaches the threshold. The breaker then becomes
+ * {@link State#OPEN} and requests fail right away with a
+ * {@link CircuitOpenException}, without reaching GCM (or waiting for
+ * retries). Once the open timeout elapses the breaker becomes
+ * {@link State#HALF_OPEN}, letting one probe request through: if it
+ * succeeds, the breaker closes; otherwise it opens again. Only the outcome of
+ * the probe counts while half-open, and the next request becomes the probe
+ * if the probe was not made after all.
+ *
+ * <p>
+ * The same breaker can be shared by many senders.
+ */
+public final class CircuitBreaker {
+
+  private static final Logger logger =
+      Logger.getLogger(CircuitBreaker.class.getName());
+
+  /**
+   * State of the breaker.
+   */
+  public enum State {
+    /**
+     * Requests are made normally.
+     */
+    CLOSED,
+    /**
+     * Requests fail right away.
+     */
+    OPEN,
+    /**
+     * One request is made to probe whether GCM recovered.
+     */
+    HALF_OPEN
+  }
+
+  /**
+   * Token of the requests that are not probes.
+   */
+  static final long NO_PROBE = 0;
+
+  /**
+   * Token returned by {@link #allowRequest(long)} when a request cannot be
+   * made.
+   */
+  static final long REJECTED = -1;
+
+  private final int windowSize;
+  private final double failureRateThreshold;
+  private final long openTimeout;
+
+  // guarded by this
+  private final boolean[] failed;
+  private int count;
+  private int next;
+  private int failures;
+  private State state = State.CLOSED;
+  private long openedAt;
+  private long probe = NO_PROBE;
+  private long lastProbe;
+  private long probeStartedAt;
+  private long trips;
+  private long rejectedRequests;
+
+  /**
+   * Default constructor.
+   *
+   * @param windowSize number of requests whose outcome is tracked; the
+   *        breaker can only open after that many requests.
+   * @param failureRateThreshold fraction of failed requests (in the window)
+   *        that opens the breaker, between {@literal 0} (exclusive) and
+   *        {@literal 1} (inclusive).
+   * @param openTimeout time (in milliseconds) the breaker stays open before
+   *        probing GCM again.
+   *
+   * @throws IllegalArgumentException if any argument is out of range.
+   */
+  public CircuitBreaker(int windowSize, double failureRateThreshold,
+      long openTimeout) {
+    if (windowSize <= 0) {
+      throw new IllegalArgumentException("windowSize must be positive");
+    }
+    if (!(failureRateThreshold > 0 && failureRateThreshold <= 1)) {
+      throw new IllegalArgumentException(
+          "failureRateThreshold must be in (0, 1]");
+    }
+    if (openTimeout <= 0) {
+      throw new IllegalArgumentException("openTimeout must be positive");
+    }
+    this.windowSize = windowSize;
+    this.failureRateThreshold = failureRateThreshold;
+    this.openTimeout = openTimeout;
+    failed = new boolean[windowSize];
+  }
+
+  /**
+   * Checks whether a request can be made, which must then be followed by a
+   * call to {@link #onSuccess(long)} or {@link #onFailure(long)} once GCM
+   * answered (or failed to), and by a call to {@link #release(long)} in any
+   * case.
+   *
+   * @return token of the request, to be passed to the calls above.
+   *
+   * @throws CircuitOpenException if the breaker is open.
+   */
+  long beforeRequest() throws CircuitOpenException {
+    long token = allowRequest(System.currentTimeMillis());
+    if (token == REJECTED) {
+      throw new CircuitOpenException("Circuit breaker is open, " +
+          "not sending request to GCM");
+    }
+    return token;
+  }
+
+  /**
+   * Records the success of a request.
+   *
+   * @param token token of the request, as returned by
+   *        {@link #beforeRequest()}.
+   */
+  void onSuccess(long token) {
+    record(token, true, System.currentTimeMillis());
+  }
+
+  /**
+   * Records the failure of a request.
+   *
+   * @param token token of the request, as returned by
+   *        {@link #beforeRequest()}.
+   */
+  void onFailure(long token) {
+    record(token, false, System.currentTimeMillis());
+  }
+
+  /**
+   * Ends a request: if it was the probe and its outcome was not recorded
+   * (because the request was not made after all), the next request becomes
+   * the probe.
+   *
+   * @param token token of the request, as returned by
+   *        {@link #beforeRequest()}.
+   */
+  synchronized void release(long token) {
+    if (token != NO_PROBE && token == probe) {
+      probe = NO_PROBE;
+    }
+  }
+
+  /**
+   * Checks whether a request can be made at the given time.
+   *
+   * @return token of the request, {@link #NO_PROBE} if it's not a probe, or
+   *         {@link #REJECTED} if it cannot be made.
+   */
+  synchronized long allowRequest(long now) {
+    if (state == State.CLOSED) {
+      return NO_PROBE;
+    }
+    if (state == State.OPEN) {
+      if (now - openedAt < openTimeout) {
+        rejectedRequests++;
+        return REJECTED;
+      }
+      logger.info("Circuit breaker is half-open, probing GCM");
+      state = State.HALF_OPEN;
+      probe = NO_PROBE;
+    }
+    // a probe that never reported its outcome is given up after the open
+    // timeout
+    if (probe != NO_PROBE && now - probeStartedAt < openTimeout) {
+      rejectedRequests++;
+      return REJECTED;
+    }
+    probe = ++lastProbe;
+    probeStartedAt = now;
+    return probe;
+  }
+
+  /**
+   * Records the outcome of a request at the given time.
+   */
+  synchronized void record(long token, boolean success, long now) {
+    switch (state) {
+      case CLOSED:
+        if (count == windowSize) {
+          if (failed[next]) {
+            failures--;
+          }
+        } else {
+          count++;
+        }
+        failed[next] = !success;
+        if (!success) {
+          failures++;
+        }
+        next = (next + 1) % windowSize;
+        if (count == windowSize && failures >= failureRateThreshold * count) {
+          open(now);
+        }
+        break;
+      case HALF_OPEN:
+        if (token == NO_PROBE || token != probe) {
+          // outcome of a request made before the breaker opened, or of a
+          // probe that was given up
+          break;
+        }
+        probe = NO_PROBE;
+        if (success) {
+          close();
+        } else {
+          open(now);
+        }
+        break;
+      default:
+        // outcome of a request made before the breaker opened
+        break;
+    }
+  }
+
+  private void open(long now) {
+    if (state == State.HALF_OPEN) {
+      logger.warning("Circuit breaker is open again, as the probe failed");
+    } else {
+      logger.warning("Circuit breaker is open after " + failures +
+          " failures in the last " + count + " requests");
+    }
+    state = State.OPEN;
+    openedAt = now;
+    trips++;
+  }
+
+  private void close() {
+    logger.info("Circuit breaker is closed");
+    state = State.CLOSED;
+    count = 0;
+    next = 0;
+    failures = 0;
+  }
+
+  /**
+   * Gets the current state of the breaker.
+   */
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * Gets the fraction of failed requests in the current window, or
+   * {@literal 0} if no requests were tracked since the breaker last closed.
+   */
+  public synchronized double getFailureRate() {
+    return count == 0 ? 0 : (double) failures / count;
+  }
+
+  /**
+   * Gets how many times the breaker opened.
+   */
+  public synchronized long getTrips() {
+    return trips;
+  }
+
+  /**
+   * Gets how many requests failed right away because the breaker was open.
+   */
+  public synchronized long getRejectedRequests() {
+    return rejectedRequests;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return new StringBuilder("CircuitBreaker(")
+        .append("state=").append(state).append(",")
+        .append("failureRate=").append(getFailureRate()).append(",")
+        .append("trips=").append(trips).append(",")
+        .append("rejectedRequests=").append(rejectedRequests).append(")")
+        .toString();
+  }
+
+}
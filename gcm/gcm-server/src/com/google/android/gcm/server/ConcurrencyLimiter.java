@@ -0,0 +1,349 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.ERROR_INTERNAL_SERVER_ERROR;
+import static com.google.android.gcm.server.Constants.ERROR_UNAVAILABLE;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of requests a {@link Sender} makes to GCM at the same
+ * time, adapting the limit to how GCM copes with the load.
+ *
+ * <p>
+ * The limit follows an additive-increase, multiplicative-decrease (AIMD)
+ * scheme:
+ * <ul>
+ *   <li>each successful request made while at least half of the limit was
+ *       used raises it by {@code 1 / limit}, that is, by one for every round
+ *       of {@code limit} requests;
+ *   <li>a request that failed without a response, that got a 5xx status, or
+ *       whose results have too many {@link Constants#ERROR_UNAVAILABLE} (or
+ *       {@link Constants#ERROR_INTERNAL_SERVER_ERROR}) errors halves it;
+ *   <li>a request whose latency is more than twice the baseline (the lowest
+ *       latency seen, which slowly drifts towards the recent latencies) lowers
+ *       it by 10%, so the limit stops growing once GCM starts queueing
+ *       requests, before it starts rejecting them.
+ * </ul>
+ * The limit is lowered at most once per round trip: requests that started
+ * before the last decrease don't lower it again, as they were made under the
+ * old limit.
+ *
+ * <p>
+ * Synchronous callers wait (blocking their thread) while the limit is
+ * reached. Asynchronous requests (of a {@link Sender} created with an
+ * executor) are queued instead, and resumed once a request ends, so they
+ * don't hold executor threads while waiting. The same limiter can be shared
+ * by many senders.
+ */
+public final class ConcurrencyLimiter {
+
+  private static final Logger logger =
+      Logger.getLogger(ConcurrencyLimiter.class.getName());
+
+  /**
+   * Factor applied to the limit when GCM is overloaded.
+   */
+  private static final double OVERLOAD_BACKOFF = 0.5;
+
+  /**
+   * Factor applied to the limit when the latency goes up.
+   */
+  private static final double LATENCY_BACKOFF = 0.9;
+
+  /**
+   * How many times the baseline latency a request can take before it lowers
+   * the limit.
+   */
+  private static final double LATENCY_TOLERANCE = 2;
+
+  /**
+   * Fraction of the devices of a request that can be unavailable before it
+   * lowers the limit.
+   */
+  private static final double UNAVAILABLE_THRESHOLD = 0.1;
+
+  /**
+   * Inverse of how fast the baseline latency moves towards higher latencies.
+   */
+  private static final int BASELINE_DRIFT = 64;
+
+  private final int minLimit;
+  private final int maxLimit;
+
+  // guarded by this
+  private double limit;
+  private int inFlight;
+  private long baseline = -1;
+  private boolean decreased;
+  private long lastDecrease;
+  private long decreases;
+  private final Queue<Runnable> waiters = new LinkedList<Runnable>();
+
+  /**
+   * Default constructor.
+   *
+   * @param initialLimit limit used until GCM responses are seen.
+   * @param minLimit lowest limit, no matter how overloaded GCM is.
+   * @param maxLimit highest limit, no matter how well GCM copes.
+   *
+   * @throws IllegalArgumentException if minLimit is not positive, or if
+   *         initialLimit is not between minLimit and maxLimit.
+   */
+  public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+    if (minLimit <= 0) {
+      throw new IllegalArgumentException("minLimit must be positive");
+    }
+    if (initialLimit < minLimit || initialLimit > maxLimit) {
+      throw new IllegalArgumentException(
+          "initialLimit must be between minLimit and maxLimit");
+    }
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    limit = initialLimit;
+  }
+
+  /**
+   * Waits until a request can be made, which must then be followed by a call
+   * to {@link #release(long, int, List)}.
+   *
+   * @return the time the request started, in nanoseconds.
+   *
+   * @throws InterruptedIOException if the thread was interrupted while
+   *         waiting.
+   */
+  long acquire() throws IOException {
+    return acquire(Long.MAX_VALUE);
+  }
+
+  /**
+   * Waits until a request can be made or a deadline expires.
+   *
+   * @param deadline time (as returned by {@link System#currentTimeMillis()})
+   *        to stop waiting at.
+   *
+   * @return the time the request started, in nanoseconds.
+   *
+   * @throws DeadlineExceededException if the deadline expired.
+   * @throws InterruptedIOException if the thread was interrupted while
+   *         waiting.
+   */
+  long acquire(long deadline) throws IOException {
+    synchronized (this) {
+      try {
+        while (inFlight >= (int) limit) {
+          if (deadline == Long.MAX_VALUE) {
+            wait();
+          } else {
+            long timeout = deadline - System.currentTimeMillis();
+            if (timeout <= 0) {
+              throw new DeadlineExceededException(
+                  "Deadline expired waiting for a request slot");
+            }
+            wait(timeout);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for a request " +
+            "slot");
+      }
+      inFlight++;
+    }
+    return System.nanoTime();
+  }
+
+  /**
+   * Takes a request slot if one is free, or queues a waiter otherwise,
+   * without blocking.
+   *
+   * @param waiter task run once a slot was taken for it, by the thread
+   *        ending another request; it should not block, and the slot it gets
+   *        must then be ended by {@link #release(long, int, List)} or
+   *        {@link #cancel()}.
+   *
+   * @return whether a slot was taken right away, in which case the waiter is
+   *         not run.
+   */
+  boolean acquireOrQueue(Runnable waiter) {
+    synchronized (this) {
+      if (waiters.isEmpty() && inFlight < (int) limit) {
+        inFlight++;
+        return true;
+      }
+      waiters.add(waiter);
+      return false;
+    }
+  }
+
+  /**
+   * Gives back a slot whose request was not made, leaving the limit as is.
+   */
+  void cancel() {
+    List<Runnable> resumed;
+    synchronized (this) {
+      inFlight--;
+      notifyAll();
+      resumed = pollWaiters();
+    }
+    resume(resumed);
+  }
+
+  /**
+   * Records the outcome of a request, adapting the limit.
+   *
+   * @param start time the request started, as returned by
+   *        {@link #acquire()}.
+   * @param status HTTP status of the response, or {@literal -1} if there was
+   *        no response.
+   * @param results results of the devices, or {@literal null} if the
+   *        response could not be parsed.
+   */
+  void release(long start, int status, List<Result> results) {
+    release(start, status, results, System.nanoTime());
+  }
+
+  void release(long start, int status, List<Result> results, long now) {
+    List<Runnable> resumed;
+    synchronized (this) {
+      adapt(start, status, results, now);
+      resumed = pollWaiters();
+    }
+    resume(resumed);
+  }
+
+  /**
+   * Takes the slots freed for the queued waiters, which must then be
+   * resumed (outside of the lock).
+   */
+  private List<Runnable> pollWaiters() {
+    List<Runnable> resumed = null;
+    while (!waiters.isEmpty() && inFlight < (int) limit) {
+      inFlight++;
+      if (resumed == null) {
+        resumed = new ArrayList<Runnable>();
+      }
+      resumed.add(waiters.poll());
+    }
+    return resumed;
+  }
+
+  private static void resume(List<Runnable> resumed) {
+    if (resumed != null) {
+      for (Runnable waiter : resumed) {
+        waiter.run();
+      }
+    }
+  }
+
+  private void adapt(long start, int status, List<Result> results,
+      long now) {
+    // at least half of the limit was used
+    boolean limited = inFlight * 2 >= (int) limit;
+    inFlight--;
+    notifyAll();
+    if (status == -1 || status >= 500 || isUnavailable(results)) {
+      decrease(start, now, OVERLOAD_BACKOFF);
+      return;
+    }
+    if (status != 200 || results == null) {
+      // the request was invalid, which says nothing about the load
+      return;
+    }
+    long latency = now - start;
+    if (baseline < 0 || latency < baseline) {
+      baseline = latency;
+    } else {
+      baseline += (latency - baseline) / BASELINE_DRIFT;
+    }
+    if (latency > LATENCY_TOLERANCE * baseline) {
+      decrease(start, now, LATENCY_BACKOFF);
+    } else if (limited) {
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+  }
+
+  private static boolean isUnavailable(List<Result> results) {
+    if (results == null || results.isEmpty()) {
+      return false;
+    }
+    int unavailable = 0;
+    for (Result result : results) {
+      String error = result.getErrorCodeName();
+      if (ERROR_UNAVAILABLE.equals(error)
+          || ERROR_INTERNAL_SERVER_ERROR.equals(error)) {
+        unavailable++;
+      }
+    }
+    return unavailable > UNAVAILABLE_THRESHOLD * results.size();
+  }
+
+  private void decrease(long start, long now, double factor) {
+    if (decreased && start - lastDecrease < 0) {
+      // made under the old limit
+      return;
+    }
+    double previous = limit;
+    limit = Math.max(minLimit, limit * factor);
+    decreased = true;
+    lastDecrease = now;
+    decreases++;
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Lowered concurrency limit from " + (int) previous + " to " +
+          (int) limit);
+    }
+  }
+
+  /**
+   * Gets the current limit.
+   */
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  /**
+   * Gets the number of requests being made.
+   */
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  /**
+   * Gets the number of times the limit was lowered.
+   */
+  public synchronized long getDecreases() {
+    return decreases;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return new StringBuilder("ConcurrencyLimiter(")
+        .append("limit=").append((int) limit).append(",")
+        .append("inFlight=").append(inFlight).append(",")
+        .append("minLimit=").append(minLimit).append(",")
+        .append("maxLimit=").append(maxLimit).append(")")
+        .toString();
+  }
+
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * Pool of persistent (keep-alive) HTTP connections used by {@link Sender}.
+ *
+ * <p>
+ * The underlying sockets are kept by the keep-alive cache of the
+ * {@link HttpURLConnection} implementation: a socket is reused only when the
+ * response is fully read and its stream closed, and it is discarded when
+ * {@link HttpURLConnection#disconnect()} is called. This class makes sure
+ * connections are released the former way, limits how many of them can be
+ * open at the same time, and sets their timeouts.
+ *
+ * <p>
+ * The keep-alive cache evicts idle sockets once the idle time announced by
+ * the server elapses (5 seconds if it announces none). A shorter idle
+ * timeout can be set through {@link #setIdleTimeout(int)}: the pool records
+ * when each connection was released, and evicts the sockets of a host that
+ * are idle for longer before leasing a new connection to it, by taking them
+ * out of the cache and closing them.
+ *
+ * <p>
+ * The number of idle sockets the keep-alive cache keeps per host is given
+ * by the {@code http.maxConnections} system property (5 by default), which
+ * the JDK reads once; sockets released beyond that are closed. A warning is
+ * logged if a pool has more connections than that, as the application must
+ * raise the property at startup for all of them to be reused.
+ */
+public final class ConnectionPool {
+
+  /**
+   * System property read by the keep-alive cache for the number of idle
+   * sockets it keeps per host.
+   */
+  static final String KEEP_ALIVE_CAPACITY_PROPERTY = "http.maxConnections";
+  /**
+   * Number of idle sockets kept per host when
+   * {@link #KEEP_ALIVE_CAPACITY_PROPERTY} is not set.
+   */
+  static final int DEFAULT_KEEP_ALIVE_CAPACITY = 5;
+  /**
+   * Time (in seconds) the keep-alive cache keeps an idle socket when the
+   * server does not announce one.
+   */
+  static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 5;
+
+  private static final Logger logger =
+      Logger.getLogger(ConnectionPool.class.getName());
+
+  private final int maxConnections;
+  private final int connectTimeout;
+  private final int readTimeout;
+  private final Semaphore permits;
+  private final Map<HttpURLConnection, Boolean> leased =
+      new ConcurrentHashMap<HttpURLConnection, Boolean>();
+  private final AtomicLong discarded = new AtomicLong();
+  private final AtomicLong evicted = new AtomicLong();
+  private volatile int idleTimeout;
+  // connections whose socket was released to the keep-alive cache, by host,
+  // most recent first; guarded by itself
+  private final Map<String, LinkedList<IdleConnection>> idleConnections =
+      new HashMap<String, LinkedList<IdleConnection>>();
+
+  /**
+   * Default constructor.
+   *
+   * @param maxConnections maximum number of connections in use at the same
+   *        time; callers block until a connection is released.
+   * @param connectTimeout timeout (in milliseconds) to establish a
+   *        connection, or {@literal 0} for no timeout.
+   * @param readTimeout timeout (in milliseconds) to read from a connection,
+   *        or {@literal 0} for no timeout.
+   *
+   * @throws IllegalArgumentException if maxConnections is not positive or a
+   *         timeout is negative.
+   */
+  public ConnectionPool(int maxConnections, int connectTimeout,
+      int readTimeout) {
+    if (maxConnections <= 0) {
+      throw new IllegalArgumentException("maxConnections must be positive");
+    }
+    if (connectTimeout < 0 || readTimeout < 0) {
+      throw new IllegalArgumentException("timeouts cannot be negative");
+    }
+    this.maxConnections = maxConnections;
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    permits = new Semaphore(maxConnections, true);
+    int capacity = getKeepAliveCapacity();
+    if (maxConnections > capacity) {
+      logger.warning("The keep-alive cache only keeps " + capacity
+          + " idle sockets per host, so some of the " + maxConnections
+          + " connections of the pool won't be reused; set the "
+          + KEEP_ALIVE_CAPACITY_PROPERTY + " system property at startup");
+    }
+  }
+
+  /**
+   * Gets the number of idle sockets the keep-alive cache keeps per host.
+   */
+  static int getKeepAliveCapacity() {
+    Integer capacity = Integer.getInteger(KEEP_ALIVE_CAPACITY_PROPERTY);
+    return capacity == null || capacity <= 0 ? DEFAULT_KEEP_ALIVE_CAPACITY
+        : capacity;
+  }
+
+  /**
+   * Sets how long (in milliseconds) a socket can stay idle and still be
+   * reused; staler ones are evicted from the keep-alive cache before a new
+   * connection to their host is made. It should be shorter than the time the
+   * server keeps idle connections open, so a request is never sent on a
+   * socket the server is closing.
+   *
+   * @param idleTimeout idle timeout, or {@literal 0} to leave idle sockets to
+   *        the keep-alive cache (the default).
+   *
+   * @throws IllegalArgumentException if the value is negative.
+   */
+  public void setIdleTimeout(int idleTimeout) {
+    if (idleTimeout < 0) {
+      throw new IllegalArgumentException("idle timeout cannot be negative");
+    }
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Gets the idle timeout, in milliseconds.
+   */
+  public int getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * Gets a connection to the given URL, waiting if the maximum number of
+   * connections are in use.
+   *
+   * <p>
+   * The connection must be released through {@link #release(HttpURLConnection)}
+   * once its response has been read.
+   */
+  HttpURLConnection getConnection(String url) throws IOException {
+    return getConnection(url, 0);
+  }
+
+  /**
+   * Gets a connection to the given URL, waiting at most the given time if
+   * the maximum number of connections are in use.
+   *
+   * @param timeout maximum time (in milliseconds) to wait, or {@literal 0}
+   *        to wait as long as needed.
+   *
+   * @throws DeadlineExceededException if no connection was released in time.
+   */
+  HttpURLConnection getConnection(String url, long timeout)
+      throws IOException {
+    return lease((HttpURLConnection) new URL(url).openConnection(), timeout);
+  }
+
+  /**
+   * Configures a connection that is not connected yet and keeps track of it,
+   * waiting if the maximum number of connections are in use.
+   */
+  HttpURLConnection lease(HttpURLConnection conn) throws IOException {
+    return lease(conn, 0);
+  }
+
+  /**
+   * Configures a connection that is not connected yet and keeps track of it,
+   * waiting at most the given time (in milliseconds, or {@literal 0} for no
+   * limit) if the maximum number of connections are in use.
+   *
+   * @throws DeadlineExceededException if no connection was released in time.
+   */
+  HttpURLConnection lease(HttpURLConnection conn, long timeout)
+      throws IOException {
+    try {
+      if (timeout <= 0) {
+        permits.acquire();
+      } else if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+        throw new DeadlineExceededException(
+            "Deadline expired waiting for a connection");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for a connection");
+    }
+    conn.setConnectTimeout(connectTimeout);
+    conn.setReadTimeout(readTimeout);
+    leased.put(conn, Boolean.TRUE);
+    evictIdle(conn.getURL());
+    return conn;
+  }
+
+  /**
+   * Evicts the idle sockets of the host of a connection about to be made
+   * if they are stale. The keep-alive cache hands out the socket released
+   * last first: either it's fresh and is the one the connection will reuse,
+   * or all of them are stale.
+   */
+  private void evictIdle(URL url) {
+    String host = getHost(url);
+    if (host == null) {
+      return;
+    }
+    List<IdleConnection> stale = new ArrayList<IdleConnection>();
+    synchronized (idleConnections) {
+      LinkedList<IdleConnection> idle = idleConnections.get(host);
+      if (idle == null) {
+        return;
+      }
+      IdleConnection last = idle.removeFirst();
+      long now = System.nanoTime();
+      long timeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+      if (timeout > 0 && now - last.releasedAt > timeout) {
+        idle.addFirst(last);
+        for (IdleConnection connection : idle) {
+          // the keep-alive cache closes the expired ones itself
+          if (now - connection.expiresAt < 0) {
+            stale.add(connection);
+          }
+        }
+        idle.clear();
+      }
+      if (idle.isEmpty()) {
+        idleConnections.remove(host);
+      }
+    }
+    for (IdleConnection connection : stale) {
+      evict(connection.conn);
+    }
+  }
+
+  /**
+   * Closes the socket the keep-alive cache would hand out next for the host
+   * of a connection, without sending anything on it: a connection to the
+   * same host takes the socket from the cache when connected, and closes it
+   * when disconnected before a request is written.
+   */
+  private void evict(HttpURLConnection idle) {
+    try {
+      HttpURLConnection conn =
+          (HttpURLConnection) idle.getURL().openConnection();
+      if (idle instanceof HttpsURLConnection
+          && conn instanceof HttpsURLConnection) {
+        // sockets are cached by socket factory too
+        HttpsURLConnection https = (HttpsURLConnection) idle;
+        ((HttpsURLConnection) conn).setSSLSocketFactory(
+            https.getSSLSocketFactory());
+        ((HttpsURLConnection) conn).setHostnameVerifier(
+            https.getHostnameVerifier());
+      }
+      conn.setConnectTimeout(connectTimeout);
+      conn.setReadTimeout(readTimeout);
+      conn.connect();
+      conn.disconnect();
+      evicted.incrementAndGet();
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Could not evict idle connection", e);
+    }
+  }
+
+  /**
+   * Records a connection whose socket was released to the keep-alive cache.
+   */
+  private void addIdle(HttpURLConnection conn) {
+    String host = getHost(conn.getURL());
+    if (host == null
+        || "close".equalsIgnoreCase(conn.getHeaderField("Connection"))) {
+      return;
+    }
+    long releasedAt = System.nanoTime();
+    long expiresAt = releasedAt + TimeUnit.SECONDS.toNanos(
+        getKeepAliveTimeout(conn.getHeaderField("Keep-Alive")));
+    synchronized (idleConnections) {
+      LinkedList<IdleConnection> idle = idleConnections.get(host);
+      if (idle == null) {
+        idle = new LinkedList<IdleConnection>();
+        idleConnections.put(host, idle);
+      }
+      // the keep-alive cache closes the sockets released beyond its capacity
+      if (idle.size() < getKeepAliveCapacity()) {
+        idle.addFirst(new IdleConnection(conn, releasedAt, expiresAt));
+      }
+    }
+  }
+
+  /**
+   * Gets how long (in seconds) the keep-alive cache keeps an idle socket,
+   * given the {@code Keep-Alive} header of the response read from it.
+   */
+  static int getKeepAliveTimeout(String header) {
+    if (header != null) {
+      for (String param : header.split(",")) {
+        String[] pair = param.trim().split("=", 2);
+        if (pair.length == 2 && "timeout".equalsIgnoreCase(pair[0].trim())) {
+          try {
+            return Integer.parseInt(pair[1].trim());
+          } catch (NumberFormatException e) {
+            break;
+          }
+        }
+      }
+    }
+    return DEFAULT_KEEP_ALIVE_TIMEOUT;
+  }
+
+  private static String getHost(URL url) {
+    return url == null ? null : url.getProtocol() + "://" + url.getAuthority();
+  }
+
+  /**
+   * Releases a connection, so its socket can be reused by the next request.
+   *
+   * <p>
+   * The response stream is closed (if the caller did not do it already),
+   * which lets the keep-alive cache reclaim the socket. Connections not
+   * obtained from this pool are disconnected. Connections whose request
+   * failed must be given to {@link #discard(HttpURLConnection)} instead.
+   */
+  void release(HttpURLConnection conn) {
+    if (leased.remove(conn) == null) {
+      conn.disconnect();
+      return;
+    }
+    try {
+      // HTTP errors are returned on the error stream
+      InputStream stream = conn.getErrorStream();
+      boolean success = false;
+      if (stream == null && conn.getResponseCode() < 400) {
+        stream = conn.getInputStream();
+        success = true;
+      }
+      // error responses without a body have nothing left to read
+      if (stream != null) {
+        stream.close();
+        if (success) {
+          // only evicted through connections whose input stream was read
+          addIdle(conn);
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Discarding connection", e);
+      discarded.incrementAndGet();
+      conn.disconnect();
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Discards a connection that failed before its response was read (for
+   * instance, because it could not connect or send the request), freeing
+   * its slot in the pool.
+   *
+   * <p>
+   * The connection is only disconnected: reading its response, like
+   * {@link #release(HttpURLConnection)} does, would make
+   * {@link HttpURLConnection} connect and send the request again.
+   */
+  void discard(HttpURLConnection conn) {
+    conn.disconnect();
+    if (leased.remove(conn) != null) {
+      discarded.incrementAndGet();
+      permits.release();
+    }
+  }
+
+  /**
+   * Gets the maximum number of connections in use at the same time.
+   */
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /**
+   * Gets the connect timeout, in milliseconds.
+   */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Gets the read timeout, in milliseconds.
+   */
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  /**
+   * Gets the number of connections currently in use.
+   */
+  public int getLeasedConnections() {
+    return maxConnections - permits.availablePermits();
+  }
+
+  /**
+   * Gets the number of connections whose socket could not be reused.
+   */
+  public long getDiscardedConnections() {
+    return discarded.get();
+  }
+
+  /**
+   * Gets the number of idle sockets evicted because they were idle for
+   * longer than the idle timeout.
+   */
+  public long getEvictedConnections() {
+    return evicted.get();
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("ConnectionPool(")
+        .append("maxConnections=").append(maxConnections).append(",")
+        .append("connectTimeout=").append(connectTimeout).append(",")
+        .append("readTimeout=").append(readTimeout).append(",")
+        .append("idleTimeout=").append(idleTimeout).append(",")
+        .append("leased=").append(getLeasedConnections()).append(")")
+        .toString();
+  }
+
+  /**
+   * Connection whose socket was released to the keep-alive cache.
+   */
+  private static final class IdleConnection {
+
+    final HttpURLConnection conn;
+    final long releasedAt;
+    final long expiresAt;
+
+    IdleConnection(HttpURLConnection conn, long releasedAt, long expiresAt) {
+      this.conn = conn;
+      this.releasedAt = releasedAt;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+}
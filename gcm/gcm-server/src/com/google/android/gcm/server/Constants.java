@@ -26,6 +26,11 @@ public final class Constants {
   public static final String GCM_SEND_ENDPOINT =
       "https://android.googleapis.com/gcm/send";
 
+  /**
+   * Maximum number of registration ids in a multicast request.
+   */
+  public static final int MULTICAST_SIZE = 1000;
+
   /**
    * HTTP parameter for registration id.
    */
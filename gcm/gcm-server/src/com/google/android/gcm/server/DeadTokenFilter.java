@@ -0,0 +1,352 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact set of registration ids that GCM reported as
+ * {@link Constants#ERROR_NOT_REGISTERED} or
+ * {@link Constants#ERROR_INVALID_REGISTRATION}, so they are not sent to
+ * again before they are removed from the application's storage.
+ * {@link Constants#ERROR_MISMATCH_SENDER_ID} is left out: it means the id
+ * belongs to another sender, and it is still valid for that sender's API
+ * key, so a filter shared by senders with different keys (such as the ones
+ * of a {@link SenderPool}) must not drop it.
+ *
+ * <p>
+ * The set is a Bloom filter: it takes a fixed amount of memory, regardless of
+ * the length of the ids, but it might report ids that were never added (false
+ * positives), which means a small fraction of valid devices could be skipped.
+ * That fraction and the memory used are set by the constructor, and they
+ * hold as long as no more ids than expected are added. Ids can't be removed,
+ * which is not a problem for dead ids, as GCM never makes an unregistered
+ * or malformed id valid again.
+ *
+ * <p>
+ * The filter is fed by the results of the messages sent: it's a
+ * {@link RegistrationSink}, so it can be set on a {@link Sender} (see
+ * {@link Sender#setRegistrationSink(RegistrationSink)}), and it's fed by a
+ * {@link Broadcast} that uses it (see
+ * {@link Broadcast#setDeadTokenFilter(DeadTokenFilter)}). It can be saved to
+ * a file and loaded back, so it survives restarts. This class is thread-safe.
+ */
+public final class DeadTokenFilter implements RegistrationSink {
+
+  private static final int FILE_VERSION = 1;
+  private static final double LN2 = Math.log(2);
+
+  private final long bits;
+  private final int hashes;
+  private final AtomicLongArray words;
+  private final AtomicLong count = new AtomicLong();
+
+  /**
+   * Default constructor.
+   *
+   * @param expectedIds number of dead registration ids the filter is expected
+   *        to hold.
+   * @param falsePositiveRate fraction of the ids not added that the filter
+   *        reports anyway, once it holds expectedIds ids; each id takes about
+   *        {@code -1.44 * log2(falsePositiveRate)} bits (for instance, 1.2
+   *        bytes for 1%, and 1.8 bytes for 0.1%).
+   *
+   * @throws IllegalArgumentException if expectedIds is not positive, if
+   *         falsePositiveRate is not between 0 and 1 (exclusive), or if the
+   *         filter would take more than 16 GB.
+   */
+  public DeadTokenFilter(long expectedIds, double falsePositiveRate) {
+    if (expectedIds <= 0) {
+      throw new IllegalArgumentException("expectedIds must be positive");
+    }
+    if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+      throw new IllegalArgumentException(
+          "falsePositiveRate must be between 0 and 1");
+    }
+    long bits = (long) Math.ceil(
+        -expectedIds * Math.log(falsePositiveRate) / (LN2 * LN2));
+    if (bits > (long) Integer.MAX_VALUE * Long.SIZE) {
+      throw new IllegalArgumentException("Filter would be too big");
+    }
+    this.bits = Math.max(bits, Long.SIZE);
+    hashes = (int) Math.max(1,
+        Math.round((double) this.bits / expectedIds * LN2));
+    words = newWords(this.bits);
+  }
+
+  private DeadTokenFilter(long bits, int hashes, long count) {
+    this.bits = bits;
+    this.hashes = hashes;
+    words = newWords(bits);
+    this.count.set(count);
+  }
+
+  private static AtomicLongArray newWords(long bits) {
+    return new AtomicLongArray((int) ((bits + Long.SIZE - 1) / Long.SIZE));
+  }
+
+  /**
+   * Adds a dead registration id.
+   *
+   * @return {@literal false} if the filter already reported the id.
+   */
+  public boolean add(String registrationId) {
+    long hash = hash(Sender.nonNull(registrationId));
+    long hash2 = mix(hash);
+    boolean added = false;
+    for (int i = 0; i < hashes; i++) {
+      if (setBit(getBit(hash, hash2, i))) {
+        added = true;
+      }
+    }
+    if (added) {
+      count.incrementAndGet();
+    }
+    return added;
+  }
+
+  /**
+   * Checks whether a registration id might be dead.
+   *
+   * @return {@literal true} if the id was added or if it's a false positive,
+   *         {@literal false} if it was not added.
+   */
+  public boolean mightContain(String registrationId) {
+    long hash = hash(Sender.nonNull(registrationId));
+    long hash2 = mix(hash);
+    for (int i = 0; i < hashes; i++) {
+      long bit = getBit(hash, hash2, i);
+      if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds the registration ids that are no longer registered or are invalid;
+   * other updates (including ids that belong to another sender) are ignored.
+   */
+  public void apply(List<RegistrationUpdate> updates) {
+    for (RegistrationUpdate update : updates) {
+      if (isDead(update)) {
+        add(update.getRegistrationId());
+      }
+    }
+  }
+
+  /**
+   * Adds the dead registration ids found in the results of a request.
+   *
+   * @param regIds registration ids the request was sent to.
+   * @param results results of the request, in the same order.
+   */
+  void addResults(List<String> regIds, List<Result> results) {
+    int size = Math.min(regIds.size(), results.size());
+    for (int i = 0; i < size; i++) {
+      RegistrationUpdate update =
+          RegistrationUpdate.fromResult(regIds.get(i), results.get(i));
+      if (update != null && isDead(update)) {
+        add(regIds.get(i));
+      }
+    }
+  }
+
+  /**
+   * Tells whether an update reports an id that is dead for every sender.
+   */
+  private static boolean isDead(RegistrationUpdate update) {
+    return update.getType() != RegistrationUpdate.Type.CANONICAL_ID
+        && !Constants.ERROR_MISMATCH_SENDER_ID.equals(update.getErrorCode());
+  }
+
+  /**
+   * Gets the approximate number of ids added (ids that were already reported
+   * by the filter are not counted).
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Gets the size of the filter, in bytes.
+   */
+  public long getSizeInBytes() {
+    return (long) words.length() * Long.SIZE / Byte.SIZE;
+  }
+
+  /**
+   * Gets the number of hash functions (that is, bits per id).
+   */
+  public int getHashCount() {
+    return hashes;
+  }
+
+  /**
+   * Estimates the current false positive rate, from the number of ids
+   * added.
+   */
+  public double getFalsePositiveRate() {
+    return Math.pow(1 - Math.exp(-hashes * (double) count.get() / bits),
+        hashes);
+  }
+
+  /**
+   * Saves the filter to a file, through a temporary file that is synced and
+   * then renamed, so the file is either the previous or the new one.
+   *
+   * <p>
+   * Ids added while the filter is being saved might not be saved.
+   *
+   * @throws IOException if the file could not be written.
+   */
+  public void save(File file) throws IOException {
+    File temporary = new File(file.getPath() + ".tmp");
+    FileOutputStream stream = new FileOutputStream(temporary);
+    try {
+      CheckedOutputStream checked = new CheckedOutputStream(
+          new BufferedOutputStream(stream), new CRC32());
+      DataOutputStream out = new DataOutputStream(checked);
+      out.writeInt(FILE_VERSION);
+      out.writeLong(bits);
+      out.writeInt(hashes);
+      out.writeLong(count.get());
+      for (int i = 0; i < words.length(); i++) {
+        out.writeLong(words.get(i));
+      }
+      out.writeLong(checked.getChecksum().getValue());
+      out.flush();
+      stream.getFD().sync();
+    } finally {
+      stream.close();
+    }
+    // renameTo() does not replace an existing file on every platform
+    if (!temporary.renameTo(file)
+        && !(file.delete() && temporary.renameTo(file))) {
+      throw new IOException("Could not rename " + temporary + " to " + file);
+    }
+  }
+
+  /**
+   * Loads a filter saved by {@link #save(File)}.
+   *
+   * @throws IOException if the file could not be read, or is not valid.
+   */
+  public static DeadTokenFilter load(File file) throws IOException {
+    CheckedInputStream checked = new CheckedInputStream(
+        new BufferedInputStream(new FileInputStream(file)), new CRC32());
+    DataInputStream in = new DataInputStream(checked);
+    try {
+      if (in.readInt() != FILE_VERSION) {
+        throw new IOException("Unknown filter version in " + file);
+      }
+      long bits = in.readLong();
+      int hashes = in.readInt();
+      long count = in.readLong();
+      if (bits < Long.SIZE || bits > (long) Integer.MAX_VALUE * Long.SIZE
+          || hashes <= 0 || count < 0) {
+        throw new IOException("Corrupt filter " + file);
+      }
+      DeadTokenFilter filter = new DeadTokenFilter(bits, hashes, count);
+      for (int i = 0; i < filter.words.length(); i++) {
+        filter.words.set(i, in.readLong());
+      }
+      long checksum = checked.getChecksum().getValue();
+      if (in.readLong() != checksum) {
+        throw new IOException("Corrupt filter " + file);
+      }
+      return filter;
+    } catch (EOFException e) {
+      throw new IOException("Truncated filter " + file);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("DeadTokenFilter(")
+        .append("bytes=").append(getSizeInBytes()).append(",")
+        .append("hashes=").append(hashes).append(",")
+        .append("count=").append(count.get()).append(")")
+        .toString();
+  }
+
+  /**
+   * Gets the i-th bit of an id, from its two hashes.
+   */
+  private long getBit(long hash, long hash2, int i) {
+    return ((hash + i * hash2) & Long.MAX_VALUE) % bits;
+  }
+
+  /**
+   * Sets a bit.
+   *
+   * @return {@literal false} if it was already set.
+   */
+  private boolean setBit(long bit) {
+    int index = (int) (bit >>> 6);
+    long mask = 1L << bit;
+    while (true) {
+      long word = words.get(index);
+      if ((word & mask) != 0) {
+        return false;
+      }
+      if (words.compareAndSet(index, word, word | mask)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Hashes the chars of a string (FNV-1a), without creating its bytes.
+   */
+  private static long hash(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+    }
+    return mix(hash);
+  }
+
+  /**
+   * Spreads the bits of a hash (the finalizer of MurmurHash3), which also
+   * gives the second hash of the double hashing used to pick the bits.
+   */
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when a request is not made (or its result is not waited
+ * for) because the deadline of the call expired; see
+ * {@link Sender#send(Message, java.util.List, int, long,
+ * java.util.concurrent.TimeUnit)}.
+ */
+public final class DeadlineExceededException extends IOException {
+
+  public DeadlineExceededException(String message) {
+    super(message);
+  }
+
+}
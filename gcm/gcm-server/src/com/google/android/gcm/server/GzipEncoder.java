@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses request bodies in the gzip format into a reusable buffer.
+ *
+ * <p>
+ * Unlike {@link java.util.zip.GZIPOutputStream}, which allocates a new
+ * {@link Deflater} (and its native memory) for each stream, an encoder keeps
+ * its deflater and its buffer between bodies, so compressing a request does
+ * not allocate. Instances are not thread safe; {@link Sender} keeps one per
+ * thread.
+ */
+final class GzipEncoder {
+
+  private static final byte[] HEADER = {
+      0x1f, (byte) 0x8b, // magic number
+      Deflater.DEFLATED, // compression method
+      0, // flags
+      0, 0, 0, 0, // modification time
+      0, // extra flags
+      (byte) 0xff // operating system (unknown)
+  };
+  private static final int TRAILER_SIZE = 8;
+
+  private final Deflater deflater;
+  private final CRC32 crc = new CRC32();
+  private byte[] buf;
+  private int count;
+
+  /**
+   * Default constructor.
+   *
+   * @param level compression level, from {@link Deflater#BEST_SPEED} to
+   *        {@link Deflater#BEST_COMPRESSION}.
+   * @param initialCapacity initial size of the buffer.
+   */
+  GzipEncoder(int level, int initialCapacity) {
+    deflater = new Deflater(level, true);
+    buf = new byte[Math.max(initialCapacity, HEADER.length + TRAILER_SIZE)];
+  }
+
+  /**
+   * Compresses the first {@code length} bytes of an array, replacing the
+   * previous content of the buffer.
+   */
+  GzipEncoder encode(byte[] input, int length) {
+    System.arraycopy(HEADER, 0, buf, 0, HEADER.length);
+    count = HEADER.length;
+    deflater.reset();
+    deflater.setInput(input, 0, length);
+    deflater.finish();
+    while (!deflater.finished()) {
+      if (count == buf.length) {
+        grow(buf.length * 2);
+      }
+      count += deflater.deflate(buf, count, buf.length - count);
+    }
+    crc.reset();
+    crc.update(input, 0, length);
+    if (count + TRAILER_SIZE > buf.length) {
+      grow(count + TRAILER_SIZE);
+    }
+    writeInt((int) crc.getValue());
+    writeInt(length);
+    return this;
+  }
+
+  /**
+   * Gets the number of bytes of the compressed content.
+   */
+  int size() {
+    return count;
+  }
+
+  /**
+   * Gets the internal buffer, whose first {@link #size()} bytes hold the
+   * compressed content.
+   */
+  byte[] getBuffer() {
+    return buf;
+  }
+
+  /**
+   * Frees the native memory of the deflater; the encoder can't be used
+   * afterwards.
+   */
+  void close() {
+    deflater.end();
+  }
+
+  private void grow(int capacity) {
+    byte[] newBuf = new byte[capacity];
+    System.arraycopy(buf, 0, newBuf, 0, count);
+    buf = newBuf;
+  }
+
+  /**
+   * Writes an int in little-endian order, as gzip requires.
+   */
+  private void writeInt(int value) {
+    for (int i = 0; i < 4; i++) {
+      buf[count++] = (byte) (value >>> (8 * i));
+    }
+  }
+
+}
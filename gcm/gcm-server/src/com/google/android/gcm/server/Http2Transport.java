@@ -0,0 +1,328 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * {@link Transport} that makes its requests through the HTTP/2 client of
+ * the {@code java.net.http} module, available since Java 11.
+ *
+ * <p>
+ * Over HTTP/2, concurrent requests are multiplexed on a single connection
+ * per host, so a sender sending many multicast chunks at the same time (see
+ * {@link Sender#setMaxChunksInFlight(int)}) needs neither a
+ * {@link ConnectionPool} nor one socket per chunk in flight. Requests fall
+ * back to HTTP/1.1 if the server does not support HTTP/2.
+ *
+ * <p>
+ * As this library still runs on older JVMs, the client is reached through
+ * reflection; {@link #isAvailable()} tells whether it can be used. Typical
+ * usage:
+ *
+ * <pre><code>
+ * Sender sender = new Sender(apiKey, executor);
+ * sender.setTransport(new Http2Transport());
+ * sender.setMaxChunksInFlight(16);
+ * </code></pre>
+ *
+ * <p>
+ * The timeouts of the {@link Sender} (and of its {@link ConnectionPool}, if
+ * any) do not apply to this transport, which has its own; the request
+ * timeout is shortened to the time left before the deadline of the call, if
+ * any.
+ */
+public final class Http2Transport implements Transport {
+
+  /**
+   * Default timeout (in milliseconds) to establish a connection.
+   */
+  public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+  /**
+   * Default timeout (in milliseconds) to get the response of a request.
+   */
+  public static final int DEFAULT_REQUEST_TIMEOUT = 60000;
+
+  private static final Api API = Api.load();
+
+  private final Object client;
+  private final int connectTimeout;
+  private final int requestTimeout;
+
+  /**
+   * Default constructor, using the default timeouts.
+   *
+   * @throws UnsupportedOperationException if the HTTP/2 client is not
+   *         available on this JVM.
+   */
+  public Http2Transport() {
+    this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_REQUEST_TIMEOUT);
+  }
+
+  /**
+   * Constructor with custom timeouts.
+   *
+   * @param connectTimeout timeout (in milliseconds) to establish a
+   *        connection, or {@literal 0} for no timeout.
+   * @param requestTimeout timeout (in milliseconds) to get the response of
+   *        a request, once the request is sent, or {@literal 0} for no
+   *        timeout.
+   *
+   * @throws IllegalArgumentException if a timeout is negative.
+   * @throws UnsupportedOperationException if the HTTP/2 client is not
+   *         available on this JVM.
+   */
+  public Http2Transport(int connectTimeout, int requestTimeout) {
+    if (connectTimeout < 0 || requestTimeout < 0) {
+      throw new IllegalArgumentException("timeouts cannot be negative");
+    }
+    if (API == null) {
+      throw new UnsupportedOperationException(
+          "java.net.http is not available on this JVM");
+    }
+    this.connectTimeout = connectTimeout;
+    this.requestTimeout = requestTimeout;
+    try {
+      Object builder = API.newClientBuilder.invoke(null);
+      builder = API.clientVersion.invoke(builder, API.http2);
+      if (connectTimeout > 0) {
+        builder = API.clientConnectTimeout.invoke(builder,
+            API.ofMillis.invoke(null, (long) connectTimeout));
+      }
+      client = API.buildClient.invoke(builder);
+    } catch (Exception e) {
+      throw unexpected(e);
+    }
+  }
+
+  /**
+   * Tells whether the HTTP/2 client is available on this JVM.
+   */
+  public static boolean isAvailable() {
+    return API != null;
+  }
+
+  public Response post(String url, String contentType, String apiKey,
+      byte[] body, int length, int timeout) throws IOException {
+    URI uri;
+    try {
+      uri = new URI(url);
+    } catch (URISyntaxException e) {
+      throw (IOException) new IOException("Invalid URL: " + url).initCause(e);
+    }
+    if (requestTimeout > 0 && (timeout == 0 || requestTimeout < timeout)) {
+      timeout = requestTimeout;
+    }
+    // the client might still read the body after the response is returned
+    // (if the server answers early), while the caller can reuse the array
+    byte[] copy = new byte[length];
+    System.arraycopy(body, 0, copy, 0, length);
+    Object response;
+    try {
+      Object builder = API.newRequestBuilder.invoke(null, uri);
+      API.requestHeader.invoke(builder, "Content-Type", contentType);
+      API.requestHeader.invoke(builder, "Authorization", "key=" + apiKey);
+      if (timeout > 0) {
+        API.requestTimeout.invoke(builder,
+            API.ofMillis.invoke(null, (long) timeout));
+      }
+      API.requestPost.invoke(builder, API.ofByteArray.invoke(null, copy));
+      Object request = API.buildRequest.invoke(builder);
+      response = API.send.invoke(client, request, API.ofInputStream);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+        throw (IOException) new InterruptedIOException(
+            "Interrupted waiting for a response").initCause(cause);
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw unexpected(e);
+    } catch (IllegalAccessException e) {
+      throw unexpected(e);
+    }
+    return new Http2Response(response);
+  }
+
+  /**
+   * Gets the timeout (in milliseconds) to establish a connection.
+   */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Gets the timeout (in milliseconds) to get the response of a request.
+   */
+  public int getRequestTimeout() {
+    return requestTimeout;
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("Http2Transport(")
+        .append("connectTimeout=").append(connectTimeout).append(",")
+        .append("requestTimeout=").append(requestTimeout).append(")")
+        .toString();
+  }
+
+  private static IllegalStateException unexpected(Exception e) {
+    Throwable cause = e instanceof InvocationTargetException
+        ? e.getCause() : e;
+    return (IllegalStateException) new IllegalStateException(
+        "Unexpected failure of the HTTP/2 client").initCause(cause);
+  }
+
+  /**
+   * Response of a request, wrapping a {@code java.net.http.HttpResponse}.
+   */
+  private static final class Http2Response implements Response {
+
+    private final Object response;
+    private final InputStream body;
+
+    Http2Response(Object response) throws IOException {
+      this.response = response;
+      try {
+        body = (InputStream) API.responseBody.invoke(response);
+      } catch (Exception e) {
+        throw unexpected(e);
+      }
+    }
+
+    public int getStatus() {
+      try {
+        return (Integer) API.statusCode.invoke(response);
+      } catch (Exception e) {
+        throw unexpected(e);
+      }
+    }
+
+    public String getHeader(String name) {
+      try {
+        Object headers = API.headers.invoke(response);
+        Object value = API.firstValue.invoke(headers, name);
+        return (String) API.orElse.invoke(value, (Object) null);
+      } catch (Exception e) {
+        throw unexpected(e);
+      }
+    }
+
+    public InputStream getBody() {
+      return body;
+    }
+
+    public void close() {
+      try {
+        body.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  /**
+   * Methods of the {@code java.net.http} API, looked up once.
+   */
+  private static final class Api {
+
+    Method newClientBuilder;
+    Method clientVersion;
+    Method clientConnectTimeout;
+    Method buildClient;
+    Method newRequestBuilder;
+    Method requestHeader;
+    Method requestTimeout;
+    Method requestPost;
+    Method buildRequest;
+    Method ofByteArray;
+    Method send;
+    Method statusCode;
+    Method headers;
+    Method firstValue;
+    Method responseBody;
+    Method orElse;
+    Method ofMillis;
+    Object http2;
+    Object ofInputStream;
+
+    /**
+     * Looks up the API, returning {@literal null} if it is not available.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Api load() {
+      try {
+        Class<?> client = Class.forName("java.net.http.HttpClient");
+        Class<?> clientBuilder =
+            Class.forName("java.net.http.HttpClient$Builder");
+        Class<?> version = Class.forName("java.net.http.HttpClient$Version");
+        Class<?> request = Class.forName("java.net.http.HttpRequest");
+        Class<?> requestBuilder =
+            Class.forName("java.net.http.HttpRequest$Builder");
+        Class<?> publisher =
+            Class.forName("java.net.http.HttpRequest$BodyPublisher");
+        Class<?> publishers =
+            Class.forName("java.net.http.HttpRequest$BodyPublishers");
+        Class<?> response = Class.forName("java.net.http.HttpResponse");
+        Class<?> handler =
+            Class.forName("java.net.http.HttpResponse$BodyHandler");
+        Class<?> handlers =
+            Class.forName("java.net.http.HttpResponse$BodyHandlers");
+        Class<?> headers = Class.forName("java.net.http.HttpHeaders");
+        Class<?> optional = Class.forName("java.util.Optional");
+        Class<?> duration = Class.forName("java.time.Duration");
+        Api api = new Api();
+        api.newClientBuilder = client.getMethod("newBuilder");
+        api.clientVersion = clientBuilder.getMethod("version", version);
+        api.clientConnectTimeout =
+            clientBuilder.getMethod("connectTimeout", duration);
+        api.buildClient = clientBuilder.getMethod("build");
+        api.newRequestBuilder = request.getMethod("newBuilder", URI.class);
+        api.requestHeader =
+            requestBuilder.getMethod("header", String.class, String.class);
+        api.requestTimeout = requestBuilder.getMethod("timeout", duration);
+        api.requestPost = requestBuilder.getMethod("POST", publisher);
+        api.buildRequest = requestBuilder.getMethod("build");
+        api.ofByteArray = publishers.getMethod("ofByteArray", byte[].class);
+        api.send = client.getMethod("send", request, handler);
+        api.statusCode = response.getMethod("statusCode");
+        api.headers = response.getMethod("headers");
+        api.firstValue = headers.getMethod("firstValue", String.class);
+        api.responseBody = response.getMethod("body");
+        api.orElse = optional.getMethod("orElse", Object.class);
+        api.ofMillis = duration.getMethod("ofMillis", long.class);
+        api.http2 = Enum.valueOf((Class) version, "HTTP_2");
+        api.ofInputStream = handlers.getMethod("ofInputStream").invoke(null);
+        return api;
+      } catch (Exception e) {
+        return null;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Pull parser that reads a JSON document token by token, in one pass.
+ *
+ * <p>
+ * Unlike a tree parser, it doesn't create objects for the structure of the
+ * document: field names are matched against the names the caller expects,
+ * and only the values the caller asks for are turned into objects.
+ */
+final class JsonReader {
+
+  private static final int MAX_DEPTH = 32;
+
+  private final Reader in;
+  private final char[] buf = new char[8192];
+  private int pos;
+  private int limit;
+  private int consumed;
+
+  // holds the current string or number, so it can be matched without
+  // creating a String
+  private char[] scratch = new char[128];
+  private int scratchLength;
+
+  private int depth;
+  // whether the current object or array already has an element
+  private final boolean[] hasElement = new boolean[MAX_DEPTH];
+  // whether a field name was read and its value is pending
+  private boolean expectingValue;
+
+  JsonReader(Reader in) {
+    this.in = Sender.nonNull(in);
+  }
+
+  void beginObject() throws IOException {
+    beforeValue();
+    expect('{');
+    push();
+  }
+
+  void endObject() throws IOException {
+    expect('}');
+    depth--;
+  }
+
+  void beginArray() throws IOException {
+    beforeValue();
+    expect('[');
+    push();
+  }
+
+  void endArray() throws IOException {
+    expect(']');
+    depth--;
+  }
+
+  /**
+   * Checks whether the current object or array has more elements.
+   */
+  boolean hasNext() throws IOException {
+    char c = peekNonWhitespace();
+    return c != '}' && c != ']';
+  }
+
+  /**
+   * Reads the name of the next field of the current object, which must be
+   * followed by a call to read or skip its value.
+   *
+   * @param names names the caller is interested on.
+   * @return index of the name in the array, or {@literal -1} if it is not
+   *         there.
+   */
+  int nextName(String[] names) throws IOException {
+    beforeElement();
+    readString();
+    expect(':');
+    expectingValue = true;
+    for (int i = 0; i < names.length; i++) {
+      if (scratchEquals(names[i])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Reads a string value, which might be {@literal null}.
+   */
+  String nextString() throws IOException {
+    beforeValue();
+    if (peekNonWhitespace() == 'n') {
+      readLiteral("null");
+      return null;
+    }
+    readString();
+    return new String(scratch, 0, scratchLength);
+  }
+
+  /**
+   * Reads a numeric value.
+   */
+  long nextLong() throws IOException {
+    beforeValue();
+    char c = peekNonWhitespace();
+    if (c != '-' && (c < '0' || c > '9')) {
+      throw syntaxError("Expected a number but found '" + c + "'");
+    }
+    scratchLength = 0;
+    boolean integral = true;
+    while (fill()) {
+      c = buf[pos];
+      if ((c >= '0' && c <= '9') || c == '-' || c == '+') {
+        // just a digit or sign
+      } else if (c == '.' || c == 'e' || c == 'E') {
+        integral = false;
+      } else {
+        break;
+      }
+      appendScratch(c);
+      pos++;
+    }
+    if (!integral) {
+      return (long) Double.parseDouble(new String(scratch, 0, scratchLength));
+    }
+    boolean negative = scratch[0] == '-';
+    long value = 0;
+    for (int i = negative ? 1 : 0; i < scratchLength; i++) {
+      char digit = scratch[i];
+      if (digit < '0' || digit > '9') {
+        throw syntaxError("Invalid number");
+      }
+      value = value * 10 + (digit - '0');
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Skips the next value, including nested objects and arrays.
+   */
+  void skipValue() throws IOException {
+    beforeValue();
+    char c = peekNonWhitespace();
+    if (c == '"') {
+      readString();
+    } else if (c == '{' || c == '[') {
+      int nested = 0;
+      do {
+        c = read();
+        if (c == '"') {
+          pos--;
+          readString();
+        } else if (c == '{' || c == '[') {
+          nested++;
+        } else if (c == '}' || c == ']') {
+          nested--;
+        }
+      } while (nested > 0);
+    } else {
+      // number or literal
+      while (fill()) {
+        c = buf[pos];
+        if (c == ',' || c == '}' || c == ']' || isWhitespace(c)) {
+          break;
+        }
+        pos++;
+      }
+    }
+  }
+
+  /**
+   * Closes the underlying reader.
+   */
+  void close() throws IOException {
+    in.close();
+  }
+
+  private void push() throws IOException {
+    if (depth == MAX_DEPTH) {
+      throw syntaxError("JSON nested too deep");
+    }
+    hasElement[depth++] = false;
+  }
+
+  private void beforeValue() throws IOException {
+    if (expectingValue) {
+      expectingValue = false;
+    } else {
+      beforeElement();
+    }
+  }
+
+  private void beforeElement() throws IOException {
+    if (depth > 0) {
+      if (hasElement[depth - 1]) {
+        expect(',');
+      }
+      hasElement[depth - 1] = true;
+    }
+  }
+
+  private void readString() throws IOException {
+    expect('"');
+    scratchLength = 0;
+    while (true) {
+      char c = read();
+      if (c == '"') {
+        return;
+      }
+      if (c == '\\') {
+        c = read();
+        switch (c) {
+          case 'n':
+            c = '\n';
+            break;
+          case 'r':
+            c = '\r';
+            break;
+          case 't':
+            c = '\t';
+            break;
+          case 'b':
+            c = '\b';
+            break;
+          case 'f':
+            c = '\f';
+            break;
+          case 'u':
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+              int digit = Character.digit(read(), 16);
+              if (digit == -1) {
+                throw syntaxError("Invalid unicode escape");
+              }
+              value = (value << 4) | digit;
+            }
+            c = (char) value;
+            break;
+          default:
+            // \" \\ \/ stand for themselves
+        }
+      }
+      appendScratch(c);
+    }
+  }
+
+  private void readLiteral(String literal) throws IOException {
+    for (int i = 0; i < literal.length(); i++) {
+      if (read() != literal.charAt(i)) {
+        throw syntaxError("Expected " + literal);
+      }
+    }
+  }
+
+  private boolean scratchEquals(String value) {
+    if (value.length() != scratchLength) {
+      return false;
+    }
+    for (int i = 0; i < scratchLength; i++) {
+      if (scratch[i] != value.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void appendScratch(char c) {
+    if (scratchLength == scratch.length) {
+      char[] newScratch = new char[scratch.length * 2];
+      System.arraycopy(scratch, 0, newScratch, 0, scratchLength);
+      scratch = newScratch;
+    }
+    scratch[scratchLength++] = c;
+  }
+
+  private void expect(char expected) throws IOException {
+    char c = peekNonWhitespace();
+    if (c != expected) {
+      throw syntaxError("Expected '" + expected + "' but found '" + c + "'");
+    }
+    pos++;
+  }
+
+  private char peekNonWhitespace() throws IOException {
+    while (true) {
+      if (!fill()) {
+        throw syntaxError("Unexpected end of input");
+      }
+      char c = buf[pos];
+      if (!isWhitespace(c)) {
+        return c;
+      }
+      pos++;
+    }
+  }
+
+  private char read() throws IOException {
+    if (!fill()) {
+      throw syntaxError("Unexpected end of input");
+    }
+    return buf[pos++];
+  }
+
+  /**
+   * Makes sure there is at least one char in the buffer.
+   *
+   * @return {@literal false} if the end of the input was reached.
+   */
+  private boolean fill() throws IOException {
+    if (pos < limit) {
+      return true;
+    }
+    consumed += limit;
+    pos = 0;
+    limit = 0;
+    int count;
+    do {
+      count = in.read(buf, 0, buf.length);
+    } while (count == 0);
+    if (count == -1) {
+      return false;
+    }
+    limit = count;
+    return true;
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+  }
+
+  private IOException syntaxError(String message) {
+    return new IOException(message + " at position " + (consumed + pos));
+  }
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes JSON as UTF-8 bytes into a growable buffer, without creating
+ * intermediate objects or strings.
+ *
+ * <p>
+ * The buffer (see {@link #getBuffer()}) can be posted and then reused (see
+ * {@link #reset()}), so a sender thread can build all its requests on the
+ * same memory. This class does not validate the structure of the document;
+ * callers are expected to pair the begin and end calls.
+ */
+final class JsonWriter {
+
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+  private static final int MAX_DEPTH = 32;
+
+  private byte[] buf;
+  private int count;
+  private int depth;
+  // whether the current object or array already has an element
+  private final boolean[] hasElement = new boolean[MAX_DEPTH];
+
+  JsonWriter() {
+    this(1024);
+  }
+
+  JsonWriter(int initialCapacity) {
+    buf = new byte[initialCapacity];
+  }
+
+  /**
+   * Discards the written content, so the buffer can be reused.
+   */
+  JsonWriter reset() {
+    count = 0;
+    depth = 0;
+    return this;
+  }
+
+  JsonWriter beginObject() {
+    beforeValue();
+    return push('{');
+  }
+
+  JsonWriter endObject() {
+    return pop('}');
+  }
+
+  JsonWriter beginArray() {
+    beforeValue();
+    return push('[');
+  }
+
+  JsonWriter endArray() {
+    return pop(']');
+  }
+
+  /**
+   * Writes the name of an object field; it must be followed by a value.
+   */
+  JsonWriter name(String name) {
+    beforeValue();
+    writeString(name);
+    write(':');
+    // the value that follows is not a new element
+    hasElement[depth - 1] = false;
+    return this;
+  }
+
+  JsonWriter value(String value) {
+    beforeValue();
+    writeString(value);
+    return this;
+  }
+
+  /**
+   * Writes a string value from the next bytes of a buffer, which must be
+   * UTF-8 that doesn't need to be escaped.
+   */
+  JsonWriter value(ByteBuffer utf8, int length) {
+    beforeValue();
+    ensureCapacity(length + 2);
+    buf[count++] = '"';
+    utf8.get(buf, count, length);
+    count += length;
+    buf[count++] = '"';
+    return this;
+  }
+
+  JsonWriter value(long value) {
+    beforeValue();
+    writeAscii(Long.toString(value));
+    return this;
+  }
+
+  JsonWriter value(boolean value) {
+    beforeValue();
+    writeAscii(value ? "true" : "false");
+    return this;
+  }
+
+  /**
+   * Writes fields of an object that were already encoded, such as
+   * {@code "a":1,"b":2} (i.e., without the braces).
+   */
+  JsonWriter fields(byte[] fields) {
+    if (fields.length > 0) {
+      beforeValue();
+      ensureCapacity(fields.length);
+      System.arraycopy(fields, 0, buf, count, fields.length);
+      count += fields.length;
+    }
+    return this;
+  }
+
+  /**
+   * Gets the number of bytes written so far.
+   */
+  int size() {
+    return count;
+  }
+
+  /**
+   * Gets the internal buffer, whose first {@link #size()} bytes hold the
+   * content written so far.
+   */
+  byte[] getBuffer() {
+    return buf;
+  }
+
+  @Override
+  public String toString() {
+    try {
+      return new String(buf, 0, count, Sender.UTF8);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.toString());
+    }
+  }
+
+  private JsonWriter push(char c) {
+    if (depth == MAX_DEPTH) {
+      throw new IllegalStateException("JSON nested too deep");
+    }
+    write(c);
+    hasElement[depth++] = false;
+    return this;
+  }
+
+  private JsonWriter pop(char c) {
+    depth--;
+    write(c);
+    return this;
+  }
+
+  private void beforeValue() {
+    if (depth > 0) {
+      if (hasElement[depth - 1]) {
+        write(',');
+      }
+      hasElement[depth - 1] = true;
+    }
+  }
+
+  private void writeAscii(String value) {
+    int length = value.length();
+    ensureCapacity(length);
+    for (int i = 0; i < length; i++) {
+      buf[count++] = (byte) value.charAt(i);
+    }
+  }
+
+  private void writeString(String value) {
+    int length = value.length();
+    // worst case is 6 bytes per char (\\uXXXX), plus the quotes
+    ensureCapacity(length * 6 + 2);
+    byte[] b = buf;
+    int pos = count;
+    b[pos++] = '"';
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c >= 0x20 && c < 0x80) {
+        if (c == '"' || c == '\\') {
+          b[pos++] = '\\';
+        }
+        b[pos++] = (byte) c;
+      } else if (c < 0x20) {
+        b[pos++] = '\\';
+        switch (c) {
+          case '\n':
+            b[pos++] = 'n';
+            break;
+          case '\r':
+            b[pos++] = 'r';
+            break;
+          case '\t':
+            b[pos++] = 't';
+            break;
+          case '\b':
+            b[pos++] = 'b';
+            break;
+          case '\f':
+            b[pos++] = 'f';
+            break;
+          default:
+            b[pos++] = 'u';
+            b[pos++] = '0';
+            b[pos++] = '0';
+            b[pos++] = HEX[c >> 4];
+            b[pos++] = HEX[c & 0xf];
+        }
+      } else if (c < 0x800) {
+        b[pos++] = (byte) (0xc0 | (c >> 6));
+        b[pos++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        b[pos++] = (byte) (0xf0 | (codePoint >> 18));
+        b[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        b[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        b[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (c >= Character.MIN_SURROGATE
+          && c <= Character.MAX_SURROGATE) {
+        // unpaired surrogate, which can't be encoded in UTF-8
+        b[pos++] = '?';
+      } else {
+        b[pos++] = (byte) (0xe0 | (c >> 12));
+        b[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        b[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    b[pos++] = '"';
+    count = pos;
+  }
+
+  private void write(char c) {
+    ensureCapacity(1);
+    buf[count++] = (byte) c;
+  }
+
+  private void ensureCapacity(int extra) {
+    int required = count + extra;
+    if (required > buf.length) {
+      byte[] newBuf = new byte[Math.max(required, buf.length * 2)];
+      System.arraycopy(buf, 0, newBuf, 0, count);
+      buf = newBuf;
+    }
+  }
+
+}
@@ -15,7 +15,15 @@
  */
 package com.google.android.gcm.server;
 
+import static com.google.android.gcm.server.Constants.JSON_PAYLOAD;
+import static com.google.android.gcm.server.Constants.PARAM_COLLAPSE_KEY;
+import static com.google.android.gcm.server.Constants.PARAM_DELAY_WHILE_IDLE;
+import static com.google.android.gcm.server.Constants.PARAM_PAYLOAD_PREFIX;
+import static com.google.android.gcm.server.Constants.PARAM_TIME_TO_LIVE;
+
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -59,6 +67,10 @@ public final class Message implements Serializable {
   private final Integer timeToLive;
   private final Map<String, String> data;
 
+  // encoded forms of the message, computed once and reused by every request
+  private transient volatile String formParameters;
+  private transient volatile byte[] jsonFields;
+
   public static final class Builder {
 
     private final Map<String, String> data;
@@ -113,7 +125,9 @@ public final class Message implements Serializable {
   private Message(Builder builder) {
     collapseKey = builder.collapseKey;
     delayWhileIdle = builder.delayWhileIdle;
-    data = Collections.unmodifiableMap(builder.data);
+    // copied, as the builder can still be changed after the message is built
+    data = Collections.unmodifiableMap(
+        new LinkedHashMap<String, String>(builder.data));
     timeToLive = builder.timeToLive;
   }
 
@@ -145,6 +159,106 @@ public final class Message implements Serializable {
     return data;
   }
 
+  /**
+   * Gets the message attributes encoded as parameters of a plain-text
+   * request, each one preceded by {@literal &}, so they can be appended to
+   * the registration id parameter.
+   */
+  String getFormParameters() throws UnsupportedEncodingException {
+    String parameters = formParameters;
+    if (parameters == null) {
+      StringBuilder body = new StringBuilder();
+      if (delayWhileIdle != null) {
+        Sender.addParameter(body, PARAM_DELAY_WHILE_IDLE,
+            delayWhileIdle ? "1" : "0");
+      }
+      if (collapseKey != null) {
+        Sender.addParameter(body, PARAM_COLLAPSE_KEY, collapseKey);
+      }
+      if (timeToLive != null) {
+        Sender.addParameter(body, PARAM_TIME_TO_LIVE,
+            Integer.toString(timeToLive));
+      }
+      for (Map.Entry<String, String> entry : data.entrySet()) {
+        String key = PARAM_PAYLOAD_PREFIX + entry.getKey();
+        String value = entry.getValue();
+        Sender.addParameter(body, key, URLEncoder.encode(value, Sender.UTF8));
+      }
+      parameters = body.toString();
+      formParameters = parameters;
+    }
+    return parameters;
+  }
+
+  /**
+   * Gets the message attributes encoded as the UTF-8 bytes of the fields of
+   * a JSON request, without the enclosing braces.
+   *
+   * <p>
+   * The returned array is shared and must not be modified.
+   */
+  byte[] getJsonFields() {
+    byte[] fields = jsonFields;
+    if (fields == null) {
+      JsonWriter json = new JsonWriter();
+      json.beginObject();
+      if (timeToLive != null) {
+        json.name(PARAM_TIME_TO_LIVE).value(timeToLive);
+      }
+      if (collapseKey != null) {
+        json.name(PARAM_COLLAPSE_KEY).value(collapseKey);
+      }
+      if (delayWhileIdle != null) {
+        json.name(PARAM_DELAY_WHILE_IDLE).value(delayWhileIdle);
+      }
+      if (!data.isEmpty()) {
+        json.name(JSON_PAYLOAD).beginObject();
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+          json.name(entry.getKey()).value(entry.getValue());
+        }
+        json.endObject();
+      }
+      json.endObject();
+      // strips the braces
+      fields = new byte[json.size() - 2];
+      System.arraycopy(json.getBuffer(), 1, fields, 0, fields.length);
+      jsonFields = fields;
+    }
+    return fields;
+  }
+
+  /**
+   * Compares the attributes and payload data of two messages.
+   */
+  @Override
+  public boolean equals(Object object) {
+    if (object == this) {
+      return true;
+    }
+    if (!(object instanceof Message)) {
+      return false;
+    }
+    Message other = (Message) object;
+    return equal(collapseKey, other.collapseKey)
+        && equal(delayWhileIdle, other.delayWhileIdle)
+        && equal(timeToLive, other.timeToLive)
+        && data.equals(other.data);
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = data.hashCode();
+    hash = 31 * hash + (collapseKey == null ? 0 : collapseKey.hashCode());
+    hash = 31 * hash +
+        (delayWhileIdle == null ? 0 : delayWhileIdle.hashCode());
+    hash = 31 * hash + (timeToLive == null ? 0 : timeToLive.hashCode());
+    return hash;
+  }
+
+  private static boolean equal(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
   @Override
   public String toString() {
     StringBuilder builder = new StringBuilder("Message(");
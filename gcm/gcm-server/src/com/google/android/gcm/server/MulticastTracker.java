@@ -0,0 +1,175 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Keeps the results of a multicast across its attempts, and which devices
+ * should be retried.
+ *
+ * <p>
+ * Devices are tracked by their position in the original request, so
+ * registration ids are neither hashed nor copied, and duplicate ids each get
+ * their own result. Each retry only allocates an array with the positions of
+ * the devices still pending.
+ */
+final class MulticastTracker {
+
+  private static final int[] NONE = new int[0];
+
+  private final List<String> regIds;
+  private final Result[] results;
+  private final List<Long> multicastIds = new ArrayList<Long>();
+  // positions of the devices that are still pending, in order
+  private int[] pending;
+
+  MulticastTracker(List<String> regIds) {
+    this.regIds = regIds;
+    results = new Result[regIds.size()];
+    pending = new int[regIds.size()];
+    for (int i = 0; i < pending.length; i++) {
+      pending[i] = i;
+    }
+  }
+
+  /**
+   * Gets the registration ids of the devices that are still pending, in
+   * the same order as the original request.
+   *
+   * <p>
+   * The returned list is not affected by later updates.
+   */
+  List<String> getPendingRegIds() {
+    if (pending.length == regIds.size()) {
+      return regIds;
+    }
+    return new PendingRegIds(regIds, pending);
+  }
+
+  /**
+   * Gets how many devices are still pending.
+   */
+  int getPendingCount() {
+    return pending.length;
+  }
+
+  /**
+   * Checks whether any attempt got a response.
+   */
+  boolean hasResults() {
+    return !multicastIds.isEmpty();
+  }
+
+  /**
+   * Updates the results of the pending devices with the response of an
+   * attempt sent to them, keeping as pending only those whose result was
+   * {@link Constants#ERROR_UNAVAILABLE}.
+   */
+  void update(MulticastResult multicastResult) {
+    List<Result> attemptResults = multicastResult.getResults();
+    if (attemptResults.size() != pending.length) {
+      // should never happen, unless there is a flaw in the algorithm
+      throw new RuntimeException("Internal error: sizes do not match. " +
+          "currentResults: " + attemptResults + "; unsentRegIds: " +
+          getPendingRegIds());
+    }
+    multicastIds.add(multicastResult.getMulticastId());
+    int unavailable = 0;
+    for (int i = 0; i < pending.length; i++) {
+      Result result = attemptResults.get(i);
+      results[pending[i]] = result;
+      if (isUnavailable(result)) {
+        unavailable++;
+      }
+    }
+    if (unavailable == 0) {
+      pending = NONE;
+      return;
+    }
+    int[] stillPending = new int[unavailable];
+    int next = 0;
+    for (int i = 0; i < pending.length; i++) {
+      if (isUnavailable(attemptResults.get(i))) {
+        stillPending[next++] = pending[i];
+      }
+    }
+    pending = stillPending;
+  }
+
+  /**
+   * Builds the overall result of the multicast, with the results in the same
+   * order as the original request.
+   *
+   * @throws IllegalStateException if no attempt got a response.
+   */
+  MulticastResult build() {
+    if (!hasResults()) {
+      throw new IllegalStateException("No results yet");
+    }
+    int success = 0, failure = 0, canonicalIds = 0;
+    for (Result result : results) {
+      if (result.getMessageId() != null) {
+        success++;
+        if (result.getCanonicalRegistrationId() != null) {
+          canonicalIds++;
+        }
+      } else {
+        failure++;
+      }
+    }
+    MulticastResult.Builder builder = new MulticastResult.Builder(success,
+        failure, canonicalIds, multicastIds.get(0)).retryMulticastIds(
+            new ArrayList<Long>(multicastIds.subList(1, multicastIds.size())));
+    for (Result result : results) {
+      builder.addResult(result);
+    }
+    return builder.build();
+  }
+
+  private static boolean isUnavailable(Result result) {
+    return Constants.ERROR_UNAVAILABLE.equals(result.getErrorCodeName());
+  }
+
+  /**
+   * Registration ids at some positions of a list.
+   */
+  private static final class PendingRegIds extends AbstractList<String>
+      implements RandomAccess {
+
+    private final List<String> regIds;
+    private final int[] positions;
+
+    PendingRegIds(List<String> regIds, int[] positions) {
+      this.regIds = regIds;
+      this.positions = positions;
+    }
+
+    @Override
+    public String get(int index) {
+      return regIds.get(positions[index]);
+    }
+
+    @Override
+    public int size() {
+      return positions.length;
+    }
+  }
+
+}
@@ -0,0 +1,747 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.MULTICAST_SIZE;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Durable queue of messages to be sent, so they survive a restart of the
+ * process sending them.
+ *
+ * <p>
+ * Messages are appended to a write-ahead log of segment files in a
+ * directory, and {@link #add(Message, List)} only returns once they are
+ * synced to disk; concurrent adds share the same sync. Each message is
+ * stored as entries of up to {@link Constants#MULTICAST_SIZE} devices, which
+ * are taken from the queue through {@link #poll()} and, once sent, removed
+ * through {@link #acknowledge(Entry)}; {@link Sender#drain(OutboundQueue,
+ * int)} does both. The queue keeps a checkpoint of the acknowledged entries,
+ * deletes the segments whose entries were all acknowledged, and when opened
+ * again it returns the entries that were not acknowledged. Delivery is thus
+ * at least once: an entry is sent again if the process stopped after sending
+ * it but before its checkpoint.
+ *
+ * <p>
+ * Instances of this class are thread safe, but a directory must not be
+ * used by more than one queue at the same time.
+ */
+public final class OutboundQueue {
+
+  private static final Logger logger =
+      Logger.getLogger(OutboundQueue.class.getName());
+
+  /**
+   * Default size of a segment file, after which a new one is started.
+   */
+  public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String CHECKPOINT_FILE = "checkpoint";
+  // length, sequence and checksum of each record
+  private static final int HEADER_SIZE = 4 + 8;
+  private static final int TRAILER_SIZE = 4;
+  private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+  private static final int FLAG_COLLAPSE_KEY = 1;
+  private static final int FLAG_DELAY_WHILE_IDLE = 2;
+  private static final int FLAG_DELAY_WHILE_IDLE_VALUE = 4;
+  private static final int FLAG_TIME_TO_LIVE = 8;
+
+  private final File directory;
+  private final long segmentSize;
+  private final RandomAccessFile checkpoint;
+
+  // guarded by writeLock
+  private final Object writeLock = new Object();
+  private Segment current;
+  private boolean closed;
+  // only written with writeLock held
+  private volatile long nextSequence;
+
+  // guarded by syncLock
+  private final Object syncLock = new Object();
+  private long syncedSequence = -1;
+
+  // guarded by this
+  private final List<Segment> segments = new ArrayList<Segment>();
+  private final LinkedList<Position> pending = new LinkedList<Position>();
+  private final TreeSet<Long> unacknowledged = new TreeSet<Long>();
+  private long checkpointed;
+
+  /**
+   * Opens a queue with segments of {@link #DEFAULT_SEGMENT_SIZE} bytes.
+   *
+   * @see #OutboundQueue(File, long)
+   */
+  public OutboundQueue(File directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Opens a queue, recovering the entries that were not acknowledged when it
+   * was last used.
+   *
+   * @param directory directory of the queue files, which is created if it
+   *        does not exist.
+   * @param segmentSize size (in bytes) after which a segment file is closed
+   *        and a new one is started.
+   *
+   * @throws IllegalArgumentException if segmentSize is not positive.
+   * @throws IOException if the queue files could not be read or created.
+   */
+  public OutboundQueue(File directory, long segmentSize) throws IOException {
+    if (segmentSize <= 0) {
+      throw new IllegalArgumentException("segmentSize must be positive");
+    }
+    this.directory = Sender.nonNull(directory);
+    this.segmentSize = segmentSize;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create directory " + directory);
+    }
+    checkpoint = new RandomAccessFile(
+        new File(directory, CHECKPOINT_FILE), "rw");
+    boolean opened = false;
+    try {
+      recover(readCheckpoint());
+      opened = true;
+    } finally {
+      if (!opened) {
+        closeFiles();
+      }
+    }
+  }
+
+  /**
+   * Adds a message to the queue, returning once it is synced to disk.
+   *
+   * @param message message to be sent.
+   * @param registrationIds devices the message will be sent to.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty.
+   * @throws IllegalStateException if the queue is closed.
+   * @throws IOException if the message could not be written.
+   */
+  public void add(Message message, List<String> registrationIds)
+      throws IOException {
+    Sender.nonNull(message);
+    if (Sender.nonNull(registrationIds).isEmpty()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
+    }
+    List<byte[]> payloads = new ArrayList<byte[]>();
+    for (List<String> chunk : Sender.split(registrationIds)) {
+      payloads.add(encode(message, chunk));
+    }
+    List<Position> positions = new ArrayList<Position>(payloads.size());
+    try {
+      long last;
+      synchronized (writeLock) {
+        checkOpen();
+        for (byte[] payload : payloads) {
+          positions.add(append(payload));
+        }
+        last = nextSequence - 1;
+      }
+      sync(last);
+    } finally {
+      // entries written are sent even if the add failed, as they might
+      // have been synced anyway (and are tracked until acknowledged)
+      synchronized (this) {
+        pending.addAll(positions);
+      }
+    }
+  }
+
+  /**
+   * Takes the next entry to be sent, which must then be either acknowledged
+   * (see {@link #acknowledge(Entry)}) or returned to the queue (see
+   * {@link #release(Entry)}).
+   *
+   * @return the entry, or {@literal null} if there are no entries to be
+   *         sent.
+   *
+   * @throws IOException if the entry could not be read.
+   */
+  public Entry poll() throws IOException {
+    Position position;
+    synchronized (this) {
+      position = pending.poll();
+    }
+    if (position == null) {
+      return null;
+    }
+    try {
+      return position.read();
+    } catch (IOException e) {
+      synchronized (this) {
+        pending.addFirst(position);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Removes an entry that was sent, so it is not sent again when the queue
+   * is opened next time.
+   *
+   * @throws IOException if the checkpoint could not be written.
+   */
+  public void acknowledge(Entry entry) throws IOException {
+    List<Segment> obsolete = new ArrayList<Segment>();
+    synchronized (this) {
+      if (!unacknowledged.remove(entry.position.sequence)) {
+        return;
+      }
+      long watermark = getWatermark();
+      if (watermark == checkpointed) {
+        return;
+      }
+      writeCheckpoint(watermark);
+      // the current segment is never deleted
+      while (segments.size() > 1
+          && segments.get(0).lastSequence < watermark) {
+        obsolete.add(segments.remove(0));
+      }
+    }
+    for (Segment segment : obsolete) {
+      segment.delete();
+    }
+  }
+
+  /**
+   * Returns an entry that could not be sent to the head of the queue, so
+   * that it is polled again.
+   */
+  public void release(Entry entry) {
+    synchronized (this) {
+      if (unacknowledged.contains(entry.position.sequence)) {
+        pending.addFirst(entry.position);
+      }
+    }
+  }
+
+  /**
+   * Gets the number of entries waiting to be polled.
+   */
+  public synchronized int getPendingEntries() {
+    return pending.size();
+  }
+
+  /**
+   * Gets the number of entries not acknowledged yet, be them polled or not.
+   */
+  public synchronized int getUnacknowledgedEntries() {
+    return unacknowledged.size();
+  }
+
+  /**
+   * Gets the number of segment files.
+   */
+  public synchronized int getSegments() {
+    return segments.size();
+  }
+
+  /**
+   * Closes the queue files; entries that were not acknowledged are kept for
+   * the next time the queue is opened.
+   */
+  public void close() throws IOException {
+    synchronized (syncLock) {
+      synchronized (writeLock) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        current.channel.force(false);
+      }
+    }
+    synchronized (this) {
+      checkpoint.getChannel().force(false);
+    }
+    closeFiles();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return new StringBuilder("OutboundQueue(")
+        .append("directory=").append(directory).append(",")
+        .append("pending=").append(pending.size()).append(",")
+        .append("unacknowledged=").append(unacknowledged.size()).append(",")
+        .append("segments=").append(segments.size()).append(")")
+        .toString();
+  }
+
+  /**
+   * Appends a record to the current segment, starting a new segment first
+   * if the current one is full.
+   */
+  private Position append(byte[] payload) throws IOException {
+    if (current.size >= segmentSize) {
+      // later syncs only force the new segment
+      current.channel.force(false);
+      Segment segment = Segment.create(directory, nextSequence);
+      synchronized (this) {
+        segments.add(segment);
+      }
+      current = segment;
+    }
+    long sequence = nextSequence;
+    ByteBuffer record =
+        ByteBuffer.allocate(HEADER_SIZE + payload.length + TRAILER_SIZE);
+    record.putInt(payload.length).putLong(sequence).put(payload)
+        .putInt(checksum(sequence, payload, payload.length));
+    record.flip();
+    long offset = current.size;
+    while (record.hasRemaining()) {
+      current.channel.write(record, offset + record.position());
+    }
+    current.size += record.capacity();
+    current.lastSequence = sequence;
+    synchronized (this) {
+      // must be tracked before the watermark can move past it
+      unacknowledged.add(sequence);
+    }
+    nextSequence++;
+    return new Position(current, sequence, offset, payload.length);
+  }
+
+  /**
+   * Syncs the records written so far, unless a concurrent sync already
+   * synced the record with the given sequence.
+   */
+  private void sync(long sequence) throws IOException {
+    synchronized (syncLock) {
+      if (syncedSequence >= sequence) {
+        return;
+      }
+      Segment segment;
+      long last;
+      synchronized (writeLock) {
+        checkOpen();
+        segment = current;
+        last = nextSequence - 1;
+      }
+      segment.channel.force(false);
+      syncedSequence = last;
+    }
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Queue is closed");
+    }
+  }
+
+  /**
+   * Gets the sequence of the first entry that was not acknowledged, or of
+   * the next entry to be added if all were.
+   */
+  private long getWatermark() {
+    return unacknowledged.isEmpty() ? nextSequence : unacknowledged.first();
+  }
+
+  /**
+   * Reads the segments, truncating records that were not fully written, and
+   * keeps the entries that were not acknowledged.
+   */
+  private void recover(long watermark) throws IOException {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    // names have a fixed width, so they sort by sequence
+    Arrays.sort(files);
+    nextSequence = watermark;
+    for (File file : files) {
+      Segment segment = Segment.open(file);
+      segments.add(segment);
+      recover(segment, watermark);
+      if (segment.lastSequence >= nextSequence) {
+        nextSequence = segment.lastSequence + 1;
+      }
+    }
+    while (segments.size() > 1 && segments.get(0).lastSequence < watermark) {
+      segments.remove(0).delete();
+    }
+    if (segments.isEmpty()) {
+      segments.add(Segment.create(directory, nextSequence));
+    }
+    current = segments.get(segments.size() - 1);
+    checkpointed = watermark;
+    if (!pending.isEmpty()) {
+      logger.info("Recovered " + pending.size() +
+          " unacknowledged entries from " + directory);
+    }
+  }
+
+  private void recover(Segment segment, long watermark) throws IOException {
+    long fileSize = segment.channel.size();
+    long offset = 0;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while (offset < fileSize) {
+      header.clear();
+      if (!segment.readFully(header, offset)) {
+        break;
+      }
+      header.flip();
+      int length = header.getInt();
+      long sequence = header.getLong();
+      if (length < 0 || length > MAX_RECORD_SIZE
+          || offset + HEADER_SIZE + length + TRAILER_SIZE > fileSize) {
+        break;
+      }
+      Position position = new Position(segment, sequence, offset, length);
+      if (position.readPayload() == null) {
+        break;
+      }
+      if (sequence >= watermark) {
+        pending.add(position);
+        unacknowledged.add(sequence);
+      }
+      segment.lastSequence = sequence;
+      offset += HEADER_SIZE + length + TRAILER_SIZE;
+    }
+    if (offset < fileSize) {
+      logger.warning("Truncating " + segment.file + " at offset " + offset +
+          ", as the record there is incomplete or corrupt");
+      segment.channel.truncate(offset);
+    }
+    segment.size = offset;
+  }
+
+  /**
+   * Reads the checkpoint, which is {@literal 0} if the queue is new or the
+   * checkpoint is corrupt.
+   */
+  private long readCheckpoint() throws IOException {
+    if (checkpoint.length() < 16) {
+      return 0;
+    }
+    checkpoint.seek(0);
+    long watermark = checkpoint.readLong();
+    if (checkpoint.readLong() != ~watermark) {
+      logger.warning("Ignoring corrupt checkpoint in " + directory);
+      return 0;
+    }
+    return watermark;
+  }
+
+  /**
+   * Writes the checkpoint, which is synced when the queue is closed: if the
+   * process stops before, the entries acknowledged since the last sync are
+   * sent again.
+   */
+  private void writeCheckpoint(long watermark) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(16);
+    buffer.putLong(watermark).putLong(~watermark).flip();
+    while (buffer.hasRemaining()) {
+      checkpoint.getChannel().write(buffer, buffer.position());
+    }
+    checkpointed = watermark;
+  }
+
+  private void closeFiles() throws IOException {
+    synchronized (this) {
+      for (Segment segment : segments) {
+        segment.close();
+      }
+    }
+    checkpoint.close();
+  }
+
+  private static int checksum(long sequence, byte[] payload, int length) {
+    CRC32 crc = new CRC32();
+    for (int i = 0; i < 8; i++) {
+      crc.update((int) (sequence >>> (56 - 8 * i)));
+    }
+    crc.update(payload, 0, length);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Encodes an entry: the message attributes, its payload data and the
+   * devices it will be sent to.
+   */
+  private static byte[] encode(Message message, List<String> registrationIds)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+        256 + 200 * registrationIds.size());
+    DataOutputStream out = new DataOutputStream(bytes);
+    int flags = 0;
+    if (message.getCollapseKey() != null) {
+      flags |= FLAG_COLLAPSE_KEY;
+    }
+    Boolean delayWhileIdle = message.isDelayWhileIdle();
+    if (delayWhileIdle != null) {
+      flags |= FLAG_DELAY_WHILE_IDLE;
+      if (delayWhileIdle) {
+        flags |= FLAG_DELAY_WHILE_IDLE_VALUE;
+      }
+    }
+    if (message.getTimeToLive() != null) {
+      flags |= FLAG_TIME_TO_LIVE;
+    }
+    out.writeByte(flags);
+    if (message.getCollapseKey() != null) {
+      writeString(out, message.getCollapseKey());
+    }
+    if (message.getTimeToLive() != null) {
+      out.writeInt(message.getTimeToLive());
+    }
+    Map<String, String> data = message.getData();
+    out.writeInt(data.size());
+    for (Map.Entry<String, String> entry : data.entrySet()) {
+      writeString(out, entry.getKey());
+      writeString(out, entry.getValue());
+    }
+    out.writeInt(registrationIds.size());
+    for (String registrationId : registrationIds) {
+      writeString(out, registrationId);
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decodes an entry written by {@link #encode(Message, List)}.
+   */
+  private static Entry decode(Position position, DataInputStream in)
+      throws IOException {
+    int flags = in.readByte();
+    Message.Builder builder = new Message.Builder();
+    if ((flags & FLAG_COLLAPSE_KEY) != 0) {
+      builder.collapseKey(readString(in));
+    }
+    if ((flags & FLAG_DELAY_WHILE_IDLE) != 0) {
+      builder.delayWhileIdle((flags & FLAG_DELAY_WHILE_IDLE_VALUE) != 0);
+    }
+    if ((flags & FLAG_TIME_TO_LIVE) != 0) {
+      builder.timeToLive(in.readInt());
+    }
+    int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      builder.addData(readString(in), readString(in));
+    }
+    int count = in.readInt();
+    if (count <= 0 || count > MULTICAST_SIZE) {
+      throw new IOException("Invalid number of devices: " + count);
+    }
+    List<String> registrationIds = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      registrationIds.add(readString(in));
+    }
+    return new Entry(position, builder.build(),
+        Collections.unmodifiableList(registrationIds));
+  }
+
+  private static void writeString(DataOutputStream out, String value)
+      throws IOException {
+    byte[] bytes = value.getBytes(Sender.UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_RECORD_SIZE) {
+      throw new IOException("Invalid string length: " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, Sender.UTF8);
+  }
+
+  /**
+   * Message to be sent to up to {@link Constants#MULTICAST_SIZE} devices,
+   * taken from the queue.
+   */
+  public static final class Entry {
+
+    private final Position position;
+    private final Message message;
+    private final List<String> registrationIds;
+
+    Entry(Position position, Message message, List<String> registrationIds) {
+      this.position = position;
+      this.message = message;
+      this.registrationIds = registrationIds;
+    }
+
+    /**
+     * Gets the sequence number of the entry, which increases with each entry
+     * added to the queue.
+     */
+    public long getSequence() {
+      return position.sequence;
+    }
+
+    /**
+     * Gets the message to be sent.
+     */
+    public Message getMessage() {
+      return message;
+    }
+
+    /**
+     * Gets the devices the message will be sent to, which are immutable.
+     */
+    public List<String> getRegistrationIds() {
+      return registrationIds;
+    }
+
+    @Override
+    public String toString() {
+      return "Entry(sequence=" + position.sequence + ", message=" + message +
+          ", devices=" + registrationIds.size() + ")";
+    }
+  }
+
+  /**
+   * Location of a record in a segment.
+   */
+  private static final class Position {
+
+    final Segment segment;
+    final long sequence;
+    final long offset;
+    final int length;
+
+    Position(Segment segment, long sequence, long offset, int length) {
+      this.segment = segment;
+      this.sequence = sequence;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    Entry read() throws IOException {
+      byte[] payload = readPayload();
+      if (payload == null) {
+        throw new IOException("Corrupt record " + sequence + " in " +
+            segment.file);
+      }
+      DataInputStream in =
+          new DataInputStream(new ByteArrayInputStream(payload));
+      try {
+        return decode(this, in);
+      } catch (EOFException e) {
+        throw new IOException("Truncated record " + sequence + " in " +
+            segment.file);
+      }
+    }
+
+    /**
+     * Reads the payload of the record, checking its checksum.
+     *
+     * @return the payload, or {@literal null} if it is incomplete or corrupt.
+     */
+    byte[] readPayload() throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(length + TRAILER_SIZE);
+      if (!segment.readFully(buffer, offset + HEADER_SIZE)) {
+        return null;
+      }
+      buffer.flip();
+      byte[] payload = new byte[length];
+      buffer.get(payload);
+      if (buffer.getInt() != checksum(sequence, payload, length)) {
+        return null;
+      }
+      return payload;
+    }
+  }
+
+  /**
+   * Segment file, named after the sequence of its first record.
+   */
+  private static final class Segment {
+
+    final File file;
+    final RandomAccessFile raf;
+    final FileChannel channel;
+    // guarded by the writeLock of the queue (once recovered)
+    long size;
+    volatile long lastSequence = -1;
+
+    private Segment(File file) throws IOException {
+      this.file = file;
+      raf = new RandomAccessFile(file, "rw");
+      channel = raf.getChannel();
+    }
+
+    static Segment open(File file) throws IOException {
+      return new Segment(file);
+    }
+
+    static Segment create(File directory, long firstSequence)
+        throws IOException {
+      return new Segment(new File(directory,
+          String.format("%020d%s", firstSequence, SEGMENT_SUFFIX)));
+    }
+
+    /**
+     * Reads bytes at a given offset until the buffer is full.
+     *
+     * @return {@literal false} if the end of the file was reached first.
+     */
+    boolean readFully(ByteBuffer buffer, long offset) throws IOException {
+      while (buffer.hasRemaining()) {
+        int read = channel.read(buffer, offset + buffer.position());
+        if (read < 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    void close() throws IOException {
+      raf.close();
+    }
+
+    void delete() {
+      try {
+        close();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Could not close " + file, e);
+      }
+      if (!file.delete()) {
+        logger.warning("Could not delete " + file);
+      }
+    }
+  }
+
+}
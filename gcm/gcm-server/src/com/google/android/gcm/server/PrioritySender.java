@@ -0,0 +1,199 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import com.google.android.gcm.server.ChunkDispatcher.ChunkQueue;
+import com.google.android.gcm.server.SendMetrics.Histogram;
+
+import java.util.List;
+
+/**
+ * Sends messages through a {@link Sender} in separate lanes, so urgent
+ * messages (such as a chat notification) don't wait behind bulk ones (such as
+ * a marketing campaign).
+ *
+ * <p>
+ * Messages are split in chunks of up to {@link Constants#MULTICAST_SIZE}
+ * devices, and at most a given number of chunks are sent at the same time.
+ * When a slot is free, the next chunk is picked either:
+ * <ul>
+ *   <li>strictly by priority (the default): a lane only sends when the lanes
+ *       above it have nothing waiting;
+ *   <li>or by weight, if any is given: each lane with messages waiting gets a
+ *       share of the devices sent to proportional to its weight, so bulk
+ *       messages still make progress under a constant flow of urgent ones.
+ * </ul>
+ * A chunk being sent is not preempted, so a lane can also be limited to fewer
+ * chunks in flight, keeping slots free for the others.
+ *
+ * <p>
+ * Instances are created using a {@link Builder}:
+ * <pre><code>
+ * PrioritySender prioritySender = new PrioritySender.Builder(sender, 8)
+ *    .maxChunksInFlight(Lane.BULK, 6)
+ *    .build();
+ * </pre></code>
+ *
+ * <p>
+ * Instances of this class are thread safe.
+ */
+public final class PrioritySender {
+
+  /**
+   * Lanes, from the highest to the lowest priority.
+   */
+  public enum Lane {
+
+    /**
+     * Messages a user is waiting for, such as chat messages.
+     */
+    INTERACTIVE,
+
+    /**
+     * Regular messages.
+     */
+    NORMAL,
+
+    /**
+     * Messages sent to many devices at once, such as campaigns.
+     */
+    BULK
+  }
+
+  private static final Lane[] LANES = Lane.values();
+
+  private final ChunkDispatcher dispatcher;
+  private final ChunkQueue[] queues = new ChunkQueue[LANES.length];
+
+  public static final class Builder {
+
+    private final Sender sender;
+    private final int maxChunksInFlight;
+    private final int[] laneMaxChunksInFlight = new int[LANES.length];
+    private final int[] weights = new int[LANES.length];
+    private boolean weighted;
+
+    /**
+     * Default constructor.
+     *
+     * @param sender sender of the messages; it must have been created with an
+     *        executor.
+     * @param maxChunksInFlight maximum number of chunks (of any lane) being
+     *        sent at the same time.
+     *
+     * @throws IllegalArgumentException if sender is {@literal null} or
+     *         maxChunksInFlight is not positive.
+     */
+    public Builder(Sender sender, int maxChunksInFlight) {
+      this.sender = Sender.nonNull(sender);
+      this.maxChunksInFlight = checkPositive(maxChunksInFlight);
+      for (int i = 0; i < LANES.length; i++) {
+        laneMaxChunksInFlight[i] = maxChunksInFlight;
+        weights[i] = 1;
+      }
+    }
+
+    /**
+     * Sets the maximum number of chunks of a lane being sent at the same
+     * time (by default, the overall maximum).
+     */
+    public Builder maxChunksInFlight(Lane lane, int value) {
+      laneMaxChunksInFlight[lane.ordinal()] = checkPositive(value);
+      return this;
+    }
+
+    /**
+     * Sets the weight of a lane, switching to weighted scheduling; lanes
+     * without a weight have a weight of {@literal 1}.
+     */
+    public Builder weight(Lane lane, int value) {
+      weights[lane.ordinal()] = checkPositive(value);
+      weighted = true;
+      return this;
+    }
+
+    public PrioritySender build() {
+      return new PrioritySender(this);
+    }
+
+    private static int checkPositive(int value) {
+      if (value <= 0) {
+        throw new IllegalArgumentException("value must be positive");
+      }
+      return value;
+    }
+  }
+
+  private PrioritySender(Builder builder) {
+    dispatcher = new ChunkDispatcher(builder.maxChunksInFlight,
+        builder.weighted ? 1 : LANES.length);
+    for (int i = 0; i < LANES.length; i++) {
+      queues[i] = dispatcher.addQueue(builder.sender,
+          builder.weighted ? 0 : i, builder.weights[i],
+          builder.laneMaxChunksInFlight[i]);
+    }
+  }
+
+  /**
+   * Sends a message to many devices asynchronously through a lane; see
+   * {@link Sender#sendAsync(Message, List, int)} for more info.
+   *
+   * @param lane lane of the message.
+   * @param message message to be sent.
+   * @param regIds registration id of the devices that will receive
+   *        the message.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return future holding the combined result of all requests made.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty.
+   */
+  public SendFuture<MulticastResult> send(Lane lane, Message message,
+      List<String> regIds, int retries) {
+    return dispatcher.send(queues[lane.ordinal()], message, regIds, retries);
+  }
+
+  /**
+   * Gets the number of chunks of a lane waiting to be sent.
+   */
+  public int getQueuedChunks(Lane lane) {
+    return queues[lane.ordinal()].getQueuedChunks();
+  }
+
+  /**
+   * Gets the number of chunks of a lane being sent.
+   */
+  public int getChunksInFlight(Lane lane) {
+    return queues[lane.ordinal()].getChunksInFlight();
+  }
+
+  /**
+   * Gets the latencies of the messages of a lane, from the moment they are
+   * queued until all their chunks are done.
+   */
+  public Histogram getLatencies(Lane lane) {
+    return queues[lane.ordinal()].latencies;
+  }
+
+  /**
+   * Gets the time the chunks of a lane waited for a free slot.
+   */
+  public Histogram getQueueTimes(Lane lane) {
+    return queues[lane.ordinal()].queueTimes;
+  }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.List;
+
+/**
+ * Limits the rate of messages sent to GCM.
+ *
+ * <p>
+ * A {@link Sender} with a rate limiter (see
+ * {@link Sender#setRateLimiter(RateLimiter)}) reserves capacity before each
+ * request, waits as long as told to, and reports the results of the request
+ * back, so the limiter can adapt to quota errors. If the request is not made
+ * after all (for instance, because the wait would exceed the deadline of the
+ * call), the reservation is cancelled instead. Implementations must be
+ * thread safe, as the same limiter can be shared by many senders.
+ */
+public interface RateLimiter {
+
+  /**
+   * Reserves capacity for a request.
+   *
+   * @param apiKey API key used by the request.
+   * @param registrationIds devices the message will be sent to.
+   *
+   * @return how long (in milliseconds) the caller must wait before sending
+   *         the request, or {@literal 0} if it can be sent right away.
+   */
+  long reserve(String apiKey, List<String> registrationIds);
+
+  /**
+   * Gives back the capacity reserved for a request that was not made.
+   *
+   * @param apiKey API key of the reservation.
+   * @param registrationIds devices of the reservation.
+   */
+  void cancel(String apiKey, List<String> registrationIds);
+
+  /**
+   * Notifies the results of a request.
+   *
+   * @param apiKey API key used by the request.
+   * @param registrationIds devices the message was sent to.
+   * @param results result of each device, in the same order.
+   */
+  void onResults(String apiKey, List<String> registrationIds,
+      List<Result> results);
+
+}
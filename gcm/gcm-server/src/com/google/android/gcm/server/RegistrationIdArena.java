@@ -0,0 +1,499 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Compact, append-only store of registration ids, meant for audiences of
+ * millions of devices.
+ *
+ * <p>
+ * A registration id held as a {@link String} takes 200 to 400 bytes of heap
+ * (depending on whether the JVM stores its chars as UTF-16), and millions of
+ * them put a lot of pressure on the garbage collector. This class keeps the
+ * ids as UTF-8 bytes in large direct buffers (segments) allocated outside the
+ * heap, and only keeps an int offset per id on the heap.
+ *
+ * <p>
+ * The ids are accessed through the lists returned by {@link #asList()} and
+ * {@link #subList(int, int)}, which can be given to the send methods of
+ * {@link Sender}: the JSON request bodies are written straight from the
+ * buffers, and a {@link String} is only created when an id is read through
+ * {@link List#get(int)} (for instance, to report a
+ * {@link RegistrationUpdate}).
+ *
+ * <p>
+ * The direct memory of the segments is not part of the heap: it's limited by
+ * {@code -XX:MaxDirectMemorySize} (which defaults to the maximum heap size),
+ * and is only given back when the garbage collector finds the segments
+ * unreachable, which can take long if the heap is not under pressure.
+ * Applications that create arenas over and over should call
+ * {@link #release()} once the ids are sent, and size the direct memory for
+ * the arenas in use at the same time (each one takes
+ * {@link #getAllocatedBytes()}).
+ *
+ * <p>
+ * This class is not thread-safe: all ids should be added before its lists
+ * are shared with other threads. The lists never change once created, as
+ * ids added later are not part of them. {@link #release()} can be called
+ * while other threads read the lists.
+ */
+public final class RegistrationIdArena {
+
+  /**
+   * Default size of each segment, in bytes.
+   */
+  public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private static final Deallocator DEALLOCATOR = Deallocator.load();
+
+  private final int segmentSize;
+  private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+  // index of the first id of each segment
+  private int[] segmentFirstIds = new int[4];
+  // offset of each id in its segment
+  private int[] offsets;
+  private int size;
+  // read while reading the segments, written to release them
+  private final ReadWriteLock releaseLock = new ReentrantReadWriteLock();
+  // guarded by releaseLock
+  private boolean released;
+
+  /**
+   * Creates an arena with segments of {@link #DEFAULT_SEGMENT_SIZE} bytes.
+   */
+  public RegistrationIdArena() {
+    this(INITIAL_CAPACITY, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Full-fledged constructor.
+   *
+   * @param expectedIds number of ids the arena is expected to hold, so its
+   *        index doesn't need to grow.
+   * @param segmentSize size of each direct buffer, in bytes; it limits the
+   *        length of the ids.
+   *
+   * @throws IllegalArgumentException if expectedIds is negative or
+   *         segmentSize is not positive.
+   */
+  public RegistrationIdArena(int expectedIds, int segmentSize) {
+    if (expectedIds < 0) {
+      throw new IllegalArgumentException("expectedIds cannot be negative");
+    }
+    if (segmentSize <= 0) {
+      throw new IllegalArgumentException("segmentSize must be positive");
+    }
+    this.segmentSize = segmentSize;
+    offsets = new int[expectedIds];
+  }
+
+  /**
+   * Adds a registration id.
+   *
+   * @return the index of the id.
+   *
+   * @throws IllegalArgumentException if the id is empty, longer than a
+   *         segment, or has characters that would need to be escaped in JSON
+   *         (quotes, backslashes or control characters).
+   * @throws IllegalStateException if the arena was released.
+   */
+  public int add(String registrationId) {
+    lockSegments();
+    try {
+      return append(registrationId);
+    } finally {
+      releaseLock.readLock().unlock();
+    }
+  }
+
+  private int append(String registrationId) {
+    int length = Sender.nonNull(registrationId).length();
+    if (length == 0) {
+      throw new IllegalArgumentException("registrationId cannot be empty");
+    }
+    byte[] utf8 = null;
+    for (int i = 0; i < length; i++) {
+      char c = registrationId.charAt(i);
+      if (c < 0x20 || c == '"' || c == '\\') {
+        throw new IllegalArgumentException(
+            "Invalid registrationId: " + registrationId);
+      }
+      if (c >= 0x80 && utf8 == null) {
+        utf8 = getBytes(registrationId);
+      }
+    }
+    int byteLength = utf8 == null ? length : utf8.length;
+    if (byteLength > segmentSize) {
+      throw new IllegalArgumentException("registrationId is longer than " +
+          segmentSize + " bytes");
+    }
+    ByteBuffer segment = segments.isEmpty() ? null
+        : segments.get(segments.size() - 1);
+    if (segment == null || segment.remaining() < byteLength) {
+      segment = newSegment();
+    }
+    if (size == offsets.length) {
+      offsets = grow(offsets, size + 1);
+    }
+    offsets[size] = segment.position();
+    if (utf8 == null) {
+      for (int i = 0; i < length; i++) {
+        segment.put((byte) registrationId.charAt(i));
+      }
+    } else {
+      segment.put(utf8);
+    }
+    return size++;
+  }
+
+  /**
+   * Adds many registration ids.
+   *
+   * @throws IllegalArgumentException if an id is not valid (see
+   *         {@link #add(String)}); the previous ids are still added.
+   */
+  public void addAll(Iterable<String> registrationIds) {
+    for (String registrationId : Sender.nonNull(registrationIds)) {
+      add(registrationId);
+    }
+  }
+
+  /**
+   * Gets the number of ids in the arena.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Gets a read-only list of all the ids added so far.
+   */
+  public List<String> asList() {
+    return new Ids(0, size);
+  }
+
+  /**
+   * Gets a read-only list of the ids between the given indexes.
+   *
+   * @param from index of the first id (inclusive).
+   * @param to index of the last id (exclusive).
+   *
+   * @throws IndexOutOfBoundsException if the indexes are out of range.
+   */
+  public List<String> subList(int from, int to) {
+    checkRange(from, to, size);
+    return new Ids(from, to);
+  }
+
+  /**
+   * Frees the direct memory of the arena right away, instead of waiting for
+   * the garbage collector to do it.
+   *
+   * <p>
+   * The lists of the arena should no longer be in use: this method waits for
+   * the ids being read (for instance, by a request of a {@link Sender} still
+   * in progress) and then reading them throws an
+   * {@link IllegalStateException}, as does adding ids to the arena.
+   * Releasing an arena twice has no effect.
+   */
+  public void release() {
+    releaseLock.writeLock().lock();
+    try {
+      if (released) {
+        return;
+      }
+      released = true;
+      for (ByteBuffer segment : segments) {
+        DEALLOCATOR.free(segment);
+      }
+      segments.clear();
+    } finally {
+      releaseLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Gets the number of bytes of direct memory allocated by this arena (or
+   * {@literal 0} once released); the index takes another 4 bytes of heap per
+   * id.
+   */
+  public long getAllocatedBytes() {
+    return (long) segments.size() * segmentSize;
+  }
+
+  /**
+   * Gets the number of bytes taken by the ids themselves.
+   */
+  public long getUsedBytes() {
+    long used = 0;
+    for (ByteBuffer segment : segments) {
+      used += segment.position();
+    }
+    return used;
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("RegistrationIdArena(")
+        .append("size=").append(size).append(",")
+        .append("segments=").append(segments.size()).append(",")
+        .append("usedBytes=").append(getUsedBytes()).append(")")
+        .toString();
+  }
+
+  private ByteBuffer newSegment() {
+    int segment = segments.size();
+    if (segment == segmentFirstIds.length) {
+      segmentFirstIds = grow(segmentFirstIds, segment + 1);
+    }
+    segmentFirstIds[segment] = size;
+    ByteBuffer buffer = ByteBuffer.allocateDirect(segmentSize);
+    segments.add(buffer);
+    return buffer;
+  }
+
+  /**
+   * Gets the segment holding the id at the given index.
+   */
+  private int segmentOf(int index) {
+    int low = 0;
+    int high = segments.size() - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (segmentFirstIds[mid] <= index) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Gets the offset right after the id at the given index, which is in the
+   * given segment.
+   */
+  private int endOf(int index, int segment) {
+    int next = index + 1;
+    if (next < size && (segment + 1 == segments.size()
+        || next < segmentFirstIds[segment + 1])) {
+      return offsets[next];
+    }
+    return segments.get(segment).position();
+  }
+
+  /**
+   * Locks the segments while they are used, so they can't be released
+   * meanwhile.
+   *
+   * @throws IllegalStateException if the arena was released.
+   */
+  private void lockSegments() {
+    releaseLock.readLock().lock();
+    if (released) {
+      releaseLock.readLock().unlock();
+      throw new IllegalStateException("Arena was released");
+    }
+  }
+
+  private String get(int index) {
+    lockSegments();
+    try {
+      return read(index);
+    } finally {
+      releaseLock.readLock().unlock();
+    }
+  }
+
+  private String read(int index) {
+    int segment = segmentOf(index);
+    int offset = offsets[index];
+    byte[] bytes = new byte[endOf(index, segment) - offset];
+    ByteBuffer buffer = segments.get(segment).duplicate();
+    buffer.position(offset);
+    buffer.get(bytes);
+    try {
+      return new String(bytes, Sender.UTF8);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.toString());
+    }
+  }
+
+  /**
+   * Writes the ids between the given indexes as JSON string values.
+   */
+  private void writeJsonValues(JsonWriter json, int from, int to) {
+    lockSegments();
+    try {
+      writeSegments(json, from, to);
+    } finally {
+      releaseLock.readLock().unlock();
+    }
+  }
+
+  private void writeSegments(JsonWriter json, int from, int to) {
+    if (from == to) {
+      return;
+    }
+    int segment = segmentOf(from);
+    ByteBuffer buffer = null;
+    for (int i = from; i < to; i++) {
+      if (buffer == null || segment + 1 < segments.size()
+          && i == segmentFirstIds[segment + 1]) {
+        if (buffer != null) {
+          segment++;
+        }
+        // ids of a segment are contiguous, so it's read sequentially
+        buffer = segments.get(segment).duplicate();
+        buffer.position(offsets[i]);
+      }
+      json.value(buffer, endOf(i, segment) - offsets[i]);
+    }
+  }
+
+  private static byte[] getBytes(String value) {
+    try {
+      return value.getBytes(Sender.UTF8);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.toString());
+    }
+  }
+
+  private static int[] grow(int[] array, int required) {
+    int[] newArray = new int[Math.max(required, array.length * 2)];
+    System.arraycopy(array, 0, newArray, 0, array.length);
+    return newArray;
+  }
+
+  private static void checkRange(int from, int to, int size) {
+    if (from < 0 || to > size || from > to) {
+      throw new IndexOutOfBoundsException("from=" + from + ", to=" + to +
+          ", size=" + size);
+    }
+  }
+
+  /**
+   * Read-only view of a range of ids.
+   */
+  final class Ids extends AbstractList<String> implements RandomAccess {
+
+    private final int from;
+    private final int to;
+
+    Ids(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public String get(int index) {
+      if (index < 0 || index >= to - from) {
+        throw new IndexOutOfBoundsException("index=" + index + ", size=" +
+            (to - from));
+      }
+      return RegistrationIdArena.this.get(from + index);
+    }
+
+    @Override
+    public int size() {
+      return to - from;
+    }
+
+    @Override
+    public List<String> subList(int fromIndex, int toIndex) {
+      checkRange(fromIndex, toIndex, to - from);
+      return new Ids(from + fromIndex, from + toIndex);
+    }
+
+    /**
+     * Writes the ids as JSON string values, without creating strings.
+     */
+    void writeJsonValues(JsonWriter json) {
+      RegistrationIdArena.this.writeJsonValues(json, from, to);
+    }
+  }
+
+  /**
+   * Frees direct buffers through the JDK internals, as there is no public API
+   * for it: {@code sun.misc.Unsafe.invokeCleaner()} since Java 9, and the
+   * cleaner of the buffer before. If neither is reachable, buffers are left
+   * to the garbage collector.
+   */
+  private static final class Deallocator {
+
+    private Object unsafe;
+    private Method invokeCleaner;
+    private Method cleaner;
+    private Method clean;
+
+    static Deallocator load() {
+      Deallocator deallocator = new Deallocator();
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        deallocator.invokeCleaner =
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        deallocator.unsafe = theUnsafe.get(null);
+        return deallocator;
+      } catch (Exception e) {
+        deallocator.invokeCleaner = null;
+      }
+      try {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1);
+        deallocator.cleaner = buffer.getClass().getMethod("cleaner");
+        deallocator.cleaner.setAccessible(true);
+        Object cleaner = deallocator.cleaner.invoke(buffer);
+        deallocator.clean = cleaner.getClass().getMethod("clean");
+        deallocator.clean.setAccessible(true);
+        deallocator.clean.invoke(cleaner);
+      } catch (Exception e) {
+        deallocator.cleaner = null;
+        deallocator.clean = null;
+      }
+      return deallocator;
+    }
+
+    void free(ByteBuffer buffer) {
+      try {
+        if (invokeCleaner != null) {
+          invokeCleaner.invoke(unsafe, buffer);
+        } else if (clean != null) {
+          Object bufferCleaner = cleaner.invoke(buffer);
+          if (bufferCleaner != null) {
+            clean.invoke(bufferCleaner);
+          }
+        }
+      } catch (Exception e) {
+        // left to the garbage collector
+      }
+    }
+  }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.List;
+
+/**
+ * Receives the changes to be made to stored registrations, as found by the
+ * results of the messages sent.
+ *
+ * <p>
+ * A {@link Sender} with a sink (see
+ * {@link Sender#setRegistrationSink(RegistrationSink)}) passes it the changes
+ * found in each response, so callers don't need to go through the results
+ * themselves. Changes come in batches (up to one per device of a multicast),
+ * so they can be applied in bulk; {@link RegistrationUpdateBuffer} makes
+ * bigger batches out of many responses. Implementations must be thread safe,
+ * as the same sink can be shared by many senders.
+ */
+public interface RegistrationSink {
+
+  /**
+   * Applies a batch of changes.
+   *
+   * <p>
+   * Exceptions thrown by this method are logged by the sender, but do not
+   * fail the message that was sent.
+   *
+   * @param updates changes to be applied, which is not empty; the list must
+   *        not be kept after this method returns.
+   */
+  void apply(List<RegistrationUpdate> updates);
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+/**
+ * Change to be made to the stored registration of a device, based on the
+ * result of a message sent to it.
+ *
+ * <p>
+ * Instances of this class are immutable.
+ */
+public final class RegistrationUpdate {
+
+  /**
+   * Type of change.
+   */
+  public enum Type {
+    /**
+     * The device has a newer registration id, which should replace the one
+     * used (see {@link Result#getCanonicalRegistrationId()}).
+     */
+    CANONICAL_ID,
+    /**
+     * The application was removed from the device, so its registration id
+     * should be removed (see {@link Constants#ERROR_NOT_REGISTERED}).
+     */
+    NOT_REGISTERED,
+    /**
+     * The registration id is not valid for the sender, so it should be
+     * removed (see {@link Constants#ERROR_INVALID_REGISTRATION} and
+     * {@link Constants#ERROR_MISMATCH_SENDER_ID}).
+     */
+    INVALID_REGISTRATION
+  }
+
+  private final Type type;
+  private final String registrationId;
+  private final String canonicalRegistrationId;
+  private final String errorCode;
+
+  private RegistrationUpdate(Type type, String registrationId,
+      String canonicalRegistrationId, String errorCode) {
+    this.type = type;
+    this.registrationId = registrationId;
+    this.canonicalRegistrationId = canonicalRegistrationId;
+    this.errorCode = errorCode;
+  }
+
+  /**
+   * Gets the change to be made to the registration of a device, if any.
+   *
+   * @param registrationId registration id the message was sent to.
+   * @param result result of the message.
+   *
+   * @return the change, or {@literal null} if the registration is fine.
+   */
+  static RegistrationUpdate fromResult(String registrationId, Result result) {
+    if (result.getMessageId() != null) {
+      String canonicalRegistrationId = result.getCanonicalRegistrationId();
+      if (canonicalRegistrationId == null
+          || canonicalRegistrationId.equals(registrationId)) {
+        return null;
+      }
+      return new RegistrationUpdate(Type.CANONICAL_ID, registrationId,
+          canonicalRegistrationId, null);
+    }
+    String error = result.getErrorCodeName();
+    if (Constants.ERROR_NOT_REGISTERED.equals(error)) {
+      return new RegistrationUpdate(Type.NOT_REGISTERED, registrationId, null,
+          error);
+    }
+    if (Constants.ERROR_INVALID_REGISTRATION.equals(error)
+        || Constants.ERROR_MISMATCH_SENDER_ID.equals(error)) {
+      return new RegistrationUpdate(Type.INVALID_REGISTRATION, registrationId,
+          null, error);
+    }
+    return null;
+  }
+
+  /**
+   * Gets the type of change.
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Gets the registration id the message was sent to.
+   */
+  public String getRegistrationId() {
+    return registrationId;
+  }
+
+  /**
+   * Gets the registration id that replaces it, for
+   * {@link Type#CANONICAL_ID} changes; {@literal null} otherwise.
+   */
+  public String getCanonicalRegistrationId() {
+    return canonicalRegistrationId;
+  }
+
+  /**
+   * Gets the error returned by GCM (see the {@code ERROR_} values of
+   * {@link Constants}), for {@link Type#NOT_REGISTERED} and
+   * {@link Type#INVALID_REGISTRATION} changes; {@literal null} otherwise.
+   */
+  public String getErrorCode() {
+    return errorCode;
+  }
+
+  @Override
+  public boolean equals(Object object) {
+    if (!(object instanceof RegistrationUpdate)) {
+      return false;
+    }
+    RegistrationUpdate other = (RegistrationUpdate) object;
+    return type == other.type && registrationId.equals(other.registrationId)
+        && (canonicalRegistrationId == null
+            ? other.canonicalRegistrationId == null
+            : canonicalRegistrationId.equals(other.canonicalRegistrationId))
+        && (errorCode == null ? other.errorCode == null
+            : errorCode.equals(other.errorCode));
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * type.hashCode() + registrationId.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("RegistrationUpdate(")
+        .append(type).append(", ").append(registrationId);
+    if (canonicalRegistrationId != null) {
+      builder.append(" -> ").append(canonicalRegistrationId);
+    }
+    return builder.append(")").toString();
+  }
+
+}
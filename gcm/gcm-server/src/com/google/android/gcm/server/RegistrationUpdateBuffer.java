@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link RegistrationSink} that buffers changes and passes them in bulk to
+ * another sink, so that the storage layer can apply thousands of them in one
+ * transaction.
+ *
+ * <p>
+ * Changes are passed on once the buffer holds a given number of them, or
+ * when {@link #flush()} is called, typically on a schedule and at the end of
+ * a broadcast. Buffered changes to the same registration id are coalesced,
+ * the last one winning. Instances of this class are thread safe; the
+ * downstream sink is called by one thread at a time.
+ */
+public final class RegistrationUpdateBuffer implements RegistrationSink {
+
+  private final RegistrationSink sink;
+  private final int maxBatchSize;
+  // held while a batch is taken and delivered, so batches are in order
+  private final Object flushLock = new Object();
+
+  // guarded by this
+  private Map<String, RegistrationUpdate> buffer =
+      new LinkedHashMap<String, RegistrationUpdate>();
+
+  /**
+   * Default constructor.
+   *
+   * @param sink sink the batches are passed to.
+   * @param maxBatchSize number of buffered changes that triggers a flush.
+   *
+   * @throws IllegalArgumentException if sink is {@literal null} or
+   *         maxBatchSize is not positive.
+   */
+  public RegistrationUpdateBuffer(RegistrationSink sink, int maxBatchSize) {
+    if (maxBatchSize <= 0) {
+      throw new IllegalArgumentException("maxBatchSize must be positive");
+    }
+    this.sink = Sender.nonNull(sink);
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  public void apply(List<RegistrationUpdate> updates) {
+    boolean full;
+    synchronized (this) {
+      for (RegistrationUpdate update : updates) {
+        buffer.put(update.getRegistrationId(), update);
+      }
+      full = buffer.size() >= maxBatchSize;
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+  /**
+   * Passes the buffered changes (if any) to the sink.
+   *
+   * <p>
+   * If the sink fails, the changes are buffered again (unless newer changes
+   * to the same registration ids were buffered since) and its exception is
+   * rethrown.
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      List<RegistrationUpdate> batch;
+      synchronized (this) {
+        if (buffer.isEmpty()) {
+          return;
+        }
+        batch = new ArrayList<RegistrationUpdate>(buffer.values());
+        buffer = new LinkedHashMap<String, RegistrationUpdate>();
+      }
+      boolean applied = false;
+      try {
+        sink.apply(batch);
+        applied = true;
+      } finally {
+        if (!applied) {
+          restore(batch);
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the number of changes buffered.
+   */
+  public synchronized int getBufferedUpdates() {
+    return buffer.size();
+  }
+
+  private synchronized void restore(List<RegistrationUpdate> batch) {
+    Map<String, RegistrationUpdate> restored =
+        new LinkedHashMap<String, RegistrationUpdate>();
+    for (RegistrationUpdate update : batch) {
+      restored.put(update.getRegistrationId(), update);
+    }
+    restored.putAll(buffer);
+    buffer = restored;
+  }
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.MULTICAST_SIZE;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Front-end of a {@link Sender} that batches messages sent to one device at
+ * a time into multicast requests.
+ *
+ * <p>
+ * Messages sent through {@link #send(Message, String)} are not sent right
+ * away: they are held for a short linger time, during which other sends of an
+ * equal {@link Message} join the same batch. The batch is then sent as one
+ * JSON multicast (through {@link Sender#sendAsync(Message, List, int)}),
+ * and the future of each send gets the result of its device. A batch is sent
+ * before the linger time elapses once it reaches
+ * {@link Constants#MULTICAST_SIZE} devices.
+ *
+ * <p>
+ * Batches are started by the executor given to the constructor, and sent
+ * asynchronously by the sender, which must have been created with an
+ * executor (see {@link Sender#Sender(String, ScheduledExecutorService)}):
+ * no thread is blocked while a batch is in flight or backing off between
+ * its retries. Instances of this class are thread safe.
+ */
+public final class SendBatcher {
+
+  private final Sender sender;
+  private final ScheduledExecutorService executor;
+  private final long lingerMillis;
+  private final int retries;
+
+  // guarded by this
+  private final Map<Message, Batch> batches = new HashMap<Message, Batch>();
+
+  /**
+   * Default constructor.
+   *
+   * @param sender sender used to send the batches, created with an
+   *        executor.
+   * @param executor executor used to send the batches, and to schedule them
+   *        once their linger time elapses.
+   * @param lingerMillis how long (in milliseconds) a batch waits for more
+   *        devices before being sent.
+   * @param retries number of retries of each batch in case of service
+   *        unavailability errors.
+   *
+   * @throws IllegalArgumentException if sender or executor are
+   *         {@literal null}, or lingerMillis or retries are negative.
+   */
+  public SendBatcher(Sender sender, ScheduledExecutorService executor,
+      long lingerMillis, int retries) {
+    if (lingerMillis < 0) {
+      throw new IllegalArgumentException("lingerMillis cannot be negative");
+    }
+    if (retries < 0) {
+      throw new IllegalArgumentException("retries cannot be negative");
+    }
+    this.sender = Sender.nonNull(sender);
+    this.executor = Sender.nonNull(executor);
+    this.lingerMillis = lingerMillis;
+    this.retries = retries;
+  }
+
+  /**
+   * Sends a message to one device, as part of the next batch of that
+   * message.
+   *
+   * <p>
+   * Cancelling the future before its batch is sent removes the device from
+   * the batch.
+   *
+   * @param message message to be sent.
+   * @param registrationId device where the message will be sent.
+   *
+   * @return future holding the result of the device; it fails with the
+   *         exception of the multicast if the batch could not be sent.
+   *
+   * @throws IllegalArgumentException if message or registrationId are
+   *         {@literal null}.
+   */
+  public SendFuture<Result> send(Message message, String registrationId) {
+    Sender.nonNull(message);
+    Sender.nonNull(registrationId);
+    SendFuture<Result> future = new SendFuture<Result>();
+    Batch batch;
+    boolean created = false;
+    boolean full = false;
+    synchronized (this) {
+      batch = batches.get(message);
+      if (batch == null) {
+        batch = new Batch(message);
+        batches.put(message, batch);
+        created = true;
+      }
+      batch.add(registrationId, future);
+      if (batch.size() == MULTICAST_SIZE) {
+        batches.remove(message);
+        full = true;
+      }
+    }
+    if (full) {
+      dispatch(batch);
+    } else if (created) {
+      schedule(batch);
+    }
+    return future;
+  }
+
+  /**
+   * Sends all pending batches right away, without waiting for their linger
+   * time to elapse.
+   */
+  public void flush() {
+    List<Batch> pending;
+    synchronized (this) {
+      pending = new ArrayList<Batch>(batches.values());
+      batches.clear();
+    }
+    for (Batch batch : pending) {
+      dispatch(batch);
+    }
+  }
+
+  /**
+   * Gets the number of devices waiting for their batch to be sent.
+   */
+  public synchronized int getPendingDevices() {
+    int pending = 0;
+    for (Batch batch : batches.values()) {
+      pending += batch.size();
+    }
+    return pending;
+  }
+
+  /**
+   * Schedules a new batch to be sent once its linger time elapses, unless it
+   * was already sent by then.
+   */
+  private void schedule(final Batch batch) {
+    Runnable linger = new Runnable() {
+      public void run() {
+        synchronized (SendBatcher.this) {
+          if (batches.get(batch.message) != batch) {
+            // already full or flushed
+            return;
+          }
+          batches.remove(batch.message);
+        }
+        batch.run();
+      }
+    };
+    try {
+      executor.schedule(linger, lingerMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      synchronized (this) {
+        if (batches.get(batch.message) == batch) {
+          batches.remove(batch.message);
+        }
+      }
+      batch.fail(e);
+    }
+  }
+
+  private void dispatch(Batch batch) {
+    try {
+      executor.execute(batch);
+    } catch (RejectedExecutionException e) {
+      batch.fail(e);
+    }
+  }
+
+  /**
+   * Devices a message will be sent to, with the future of each one.
+   */
+  private final class Batch implements Runnable {
+
+    private final Message message;
+    private final List<String> registrationIds = new ArrayList<String>();
+    private final List<SendFuture<Result>> futures =
+        new ArrayList<SendFuture<Result>>();
+
+    Batch(Message message) {
+      this.message = message;
+    }
+
+    void add(String registrationId, SendFuture<Result> future) {
+      registrationIds.add(registrationId);
+      futures.add(future);
+    }
+
+    int size() {
+      return futures.size();
+    }
+
+    public void run() {
+      // skips the sends cancelled while the batch was pending
+      List<String> regIds = new ArrayList<String>(registrationIds.size());
+      final List<SendFuture<Result>> pending =
+          new ArrayList<SendFuture<Result>>(futures.size());
+      for (int i = 0; i < futures.size(); i++) {
+        if (!futures.get(i).isDone()) {
+          regIds.add(registrationIds.get(i));
+          pending.add(futures.get(i));
+        }
+      }
+      if (regIds.isEmpty()) {
+        return;
+      }
+      final SendFuture<MulticastResult> multicast;
+      try {
+        multicast = sender.sendAsync(message, regIds, retries);
+      } catch (RuntimeException e) {
+        fail(e);
+        return;
+      }
+      multicast.addListener(new Runnable() {
+        public void run() {
+          List<Result> results;
+          try {
+            results = multicast.get().getResults();
+          } catch (ExecutionException e) {
+            fail(e.getCause());
+            return;
+          } catch (Exception e) {
+            // multicast was cancelled, or interrupted (which should not
+            // happen)
+            fail(e);
+            return;
+          }
+          for (int i = 0; i < pending.size(); i++) {
+            pending.get(i).set(results.get(i));
+          }
+        }
+      }, Sender.SAME_THREAD_EXECUTOR);
+    }
+
+    void fail(Throwable e) {
+      for (SendFuture<Result> future : futures) {
+        future.setException(e);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Result of an asynchronous send operation.
+ *
+ * <p>
+ * Besides the blocking methods defined by {@link Future}, listeners can be
+ * registered to be notified once the operation completes, so callers don't
+ * need to park a thread per request.
+ */
+public final class SendFuture<V> implements Future<V> {
+
+  private static final Logger logger =
+      Logger.getLogger(SendFuture.class.getName());
+
+  private final CountDownLatch latch = new CountDownLatch(1);
+  private final List<Listener> listeners = new ArrayList<Listener>();
+
+  // guarded by this
+  private boolean done;
+  private boolean cancelled;
+  private V value;
+  private Throwable exception;
+
+  SendFuture() {
+  }
+
+  /**
+   * Registers a listener that will be executed once this future is done.
+   *
+   * <p>
+   * If the future is already done, the listener is executed right away.
+   *
+   * @param listener listener to be executed.
+   * @param executor executor used to run the listener.
+   */
+  public void addListener(Runnable listener, Executor executor) {
+    Listener entry =
+        new Listener(Sender.nonNull(listener), Sender.nonNull(executor));
+    synchronized (this) {
+      if (!done) {
+        listeners.add(entry);
+        return;
+      }
+    }
+    entry.execute();
+  }
+
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    synchronized (this) {
+      if (done) {
+        return false;
+      }
+      cancelled = true;
+    }
+    complete();
+    return true;
+  }
+
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  public synchronized boolean isDone() {
+    return done || cancelled;
+  }
+
+  public V get() throws InterruptedException, ExecutionException {
+    latch.await();
+    return getValue();
+  }
+
+  public V get(long timeout, TimeUnit unit) throws InterruptedException,
+      ExecutionException, TimeoutException {
+    if (!latch.await(timeout, unit)) {
+      throw new TimeoutException();
+    }
+    return getValue();
+  }
+
+  /**
+   * Sets the value of this future.
+   *
+   * @return {@literal false} if the future was already done.
+   */
+  boolean set(V value) {
+    synchronized (this) {
+      if (done || cancelled) {
+        return false;
+      }
+      this.value = value;
+      done = true;
+    }
+    complete();
+    return true;
+  }
+
+  /**
+   * Sets the exception that caused this future to fail.
+   *
+   * @return {@literal false} if the future was already done.
+   */
+  boolean setException(Throwable exception) {
+    synchronized (this) {
+      if (done || cancelled) {
+        return false;
+      }
+      this.exception = Sender.nonNull(exception);
+      done = true;
+    }
+    complete();
+    return true;
+  }
+
+  private synchronized V getValue() throws ExecutionException {
+    if (cancelled) {
+      throw new CancellationException();
+    }
+    if (exception != null) {
+      throw new ExecutionException(exception);
+    }
+    return value;
+  }
+
+  private void complete() {
+    List<Listener> toNotify;
+    synchronized (this) {
+      done = true;
+      toNotify = new ArrayList<Listener>(listeners);
+      listeners.clear();
+    }
+    latch.countDown();
+    for (Listener listener : toNotify) {
+      listener.execute();
+    }
+  }
+
+  private static final class Listener {
+
+    private final Runnable runnable;
+    private final Executor executor;
+
+    Listener(Runnable runnable, Executor executor) {
+      this.runnable = runnable;
+      this.executor = executor;
+    }
+
+    void execute() {
+      try {
+        executor.execute(runnable);
+      } catch (RuntimeException e) {
+        logger.log(Level.SEVERE, "Failed to execute listener " + runnable, e);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+
+/**
+ * Listener notified of the requests made by a {@link Sender}, typically to
+ * feed a metrics backend (see {@link SendMetrics}).
+ *
+ * <p>
+ * A sender with a listener (see {@link Sender#setSendListener(SendListener)})
+ * notifies it of each attempt it makes: every call to
+ * {@link #onRequest(int, int)} is followed by exactly one call to either
+ * {@link #onResponse(int, long, long)} or {@link #onFailure(IOException,
+ * long)}. Methods are called by the threads making the requests, so
+ * implementations must be thread safe and return quickly; the same listener
+ * can be shared by many senders.
+ */
+public interface SendListener {
+
+  /**
+   * Notifies that a request is made.
+   *
+   * @param devices number of devices the request is sent to.
+   * @param bytes size of the request body, as sent (that is, compressed if
+   *        the sender compressed it; see
+   *        {@link Sender#setCompressionThreshold(int)}), or {@literal 0} if
+   *        the request failed before its body was sent, for instance while
+   *        waiting for a connection of a {@link ConnectionPool}.
+   */
+  void onRequest(int devices, int bytes);
+
+  /**
+   * Notifies that GCM responded to a request.
+   *
+   * @param status HTTP status of the response.
+   * @param latencyNanos time elapsed (in nanoseconds) between the request and
+   *        its response.
+   * @param bytes size of the response body, as announced by GCM, or
+   *        {@literal -1} if unknown.
+   */
+  void onResponse(int status, long latencyNanos, long bytes);
+
+  /**
+   * Notifies that a request failed without a response.
+   *
+   * @param exception cause of the failure.
+   * @param latencyNanos time elapsed (in nanoseconds) between the request and
+   *        its failure.
+   */
+  void onFailure(IOException exception, long latencyNanos);
+
+  /**
+   * Notifies the results of a successful response.
+   *
+   * <p>
+   * Devices retried after an {@link Constants#ERROR_UNAVAILABLE} error are
+   * counted as failures on each attempt they fail.
+   *
+   * @param success number of messages sent.
+   * @param failure number of messages that failed.
+   * @param canonicalIds number of messages sent to devices with a canonical
+   *        registration id.
+   */
+  void onResults(int success, int failure, int canonicalIds);
+
+  /**
+   * Notifies that a request will be retried.
+   *
+   * @param attempt number of the attempt that will be made, starting at
+   *        {@literal 2}.
+   * @param delayMillis delay (in milliseconds) before that attempt.
+   */
+  void onRetry(int attempt, long delayMillis);
+
+}
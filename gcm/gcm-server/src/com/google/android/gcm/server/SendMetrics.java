@@ -0,0 +1,326 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link SendListener} that keeps metrics of the requests made by
+ * {@link Sender}s: latencies, HTTP status codes, results, retries, bytes sent
+ * and received, and requests in flight.
+ *
+ * <p>
+ * Metrics are kept in atomic counters (no locks nor allocations on the send
+ * path), so they are cheap enough to be always on; they can be polled and
+ * exported to a metrics backend at any time. The same instance can be shared
+ * by many senders.
+ */
+public final class SendMetrics implements SendListener {
+
+  private static final int MAX_STATUS = 600;
+
+  private final Histogram latencies = new Histogram();
+  private final AtomicLongArray statuses = new AtomicLongArray(MAX_STATUS);
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong failedRequests = new AtomicLong();
+  private final AtomicLong devices = new AtomicLong();
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final AtomicLong success = new AtomicLong();
+  private final AtomicLong failure = new AtomicLong();
+  private final AtomicLong canonicalIds = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+
+  public void onRequest(int devices, int bytes) {
+    inFlight.incrementAndGet();
+    requests.incrementAndGet();
+    this.devices.addAndGet(devices);
+    bytesSent.addAndGet(bytes);
+  }
+
+  public void onResponse(int status, long latencyNanos, long bytes) {
+    inFlight.decrementAndGet();
+    latencies.record(latencyNanos);
+    if (status >= 0 && status < MAX_STATUS) {
+      statuses.incrementAndGet(status);
+    }
+    if (bytes > 0) {
+      bytesReceived.addAndGet(bytes);
+    }
+  }
+
+  public void onFailure(IOException exception, long latencyNanos) {
+    inFlight.decrementAndGet();
+    latencies.record(latencyNanos);
+    failedRequests.incrementAndGet();
+  }
+
+  public void onResults(int success, int failure, int canonicalIds) {
+    this.success.addAndGet(success);
+    this.failure.addAndGet(failure);
+    this.canonicalIds.addAndGet(canonicalIds);
+  }
+
+  public void onRetry(int attempt, long delayMillis) {
+    retries.incrementAndGet();
+  }
+
+  /**
+   * Gets the latencies of all requests, be them answered or failed.
+   */
+  public Histogram getLatencies() {
+    return latencies;
+  }
+
+  /**
+   * Gets how many responses had a given HTTP status.
+   */
+  public long getStatusCount(int status) {
+    return status >= 0 && status < MAX_STATUS ? statuses.get(status) : 0;
+  }
+
+  /**
+   * Gets the number of requests currently waiting for a response.
+   */
+  public int getInFlightRequests() {
+    return inFlight.get();
+  }
+
+  /**
+   * Gets the number of requests made, including retries.
+   */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * Gets the number of requests that failed without a response.
+   */
+  public long getFailedRequests() {
+    return failedRequests.get();
+  }
+
+  /**
+   * Gets the number of devices messages were sent to, including retries.
+   */
+  public long getDevices() {
+    return devices.get();
+  }
+
+  /**
+   * Gets the number of bytes sent, counting request bodies only.
+   */
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  /**
+   * Gets the number of bytes received, counting the response bodies whose
+   * size was announced.
+   */
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  /**
+   * Gets the number of messages sent successfully.
+   */
+  public long getSuccess() {
+    return success.get();
+  }
+
+  /**
+   * Gets the number of messages that failed, including the attempts that
+   * were retried.
+   */
+  public long getFailure() {
+    return failure.get();
+  }
+
+  /**
+   * Gets the number of messages sent to devices with a canonical
+   * registration id.
+   */
+  public long getCanonicalIds() {
+    return canonicalIds.get();
+  }
+
+  /**
+   * Gets the number of retries.
+   */
+  public long getRetries() {
+    return retries.get();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("SendMetrics(")
+        .append("requests=").append(getRequests()).append(",")
+        .append("inFlight=").append(getInFlightRequests()).append(",")
+        .append("failedRequests=").append(getFailedRequests()).append(",")
+        .append("statuses={");
+    boolean first = true;
+    for (int status = 0; status < MAX_STATUS; status++) {
+      long count = statuses.get(status);
+      if (count > 0) {
+        if (!first) {
+          builder.append(",");
+        }
+        builder.append(status).append("=").append(count);
+        first = false;
+      }
+    }
+    return builder.append("},")
+        .append("success=").append(getSuccess()).append(",")
+        .append("failure=").append(getFailure()).append(",")
+        .append("canonicalIds=").append(getCanonicalIds()).append(",")
+        .append("retries=").append(getRetries()).append(",")
+        .append("bytesSent=").append(getBytesSent()).append(",")
+        .append("bytesReceived=").append(getBytesReceived()).append(",")
+        .append("latencies=").append(latencies).append(")")
+        .toString();
+  }
+
+  /**
+   * Histogram of latencies, with microsecond resolution.
+   *
+   * <p>
+   * Values are counted in buckets whose width grows with their value (four
+   * buckets per power of two), so percentiles are at most 25% above the
+   * actual value while the histogram has a fixed, small size.
+   */
+  public static final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BUCKET_BITS);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram() {
+    }
+
+    /**
+     * Records a value, in nanoseconds.
+     */
+    void record(long nanos) {
+      long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+      counts.incrementAndGet(bucket(micros));
+      count.incrementAndGet();
+      sum.addAndGet(micros);
+      long current;
+      while (micros > (current = max.get())) {
+        if (max.compareAndSet(current, micros)) {
+          break;
+        }
+      }
+    }
+
+    /**
+     * Gets the number of values recorded.
+     */
+    public long getCount() {
+      return count.get();
+    }
+
+    /**
+     * Gets the mean of the values recorded, in microseconds.
+     */
+    public double getMean() {
+      long n = count.get();
+      return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Gets the highest value recorded, in microseconds.
+     */
+    public long getMax() {
+      return max.get();
+    }
+
+    /**
+     * Gets the value (in microseconds) below which a given percentage of the
+     * values fall, or {@literal 0} if there are no values.
+     *
+     * @param percentile percentage, between {@literal 0} and {@literal 100}.
+     *
+     * @throws IllegalArgumentException if the percentile is out of range.
+     */
+    public long getPercentile(double percentile) {
+      if (!(percentile >= 0 && percentile <= 100)) {
+        throw new IllegalArgumentException("percentile must be in [0, 100]");
+      }
+      long n = count.get();
+      if (n == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts.get(i);
+        if (seen >= rank) {
+          return Math.min(upperBound(i), getMax());
+        }
+      }
+      return getMax();
+    }
+
+    /**
+     * Gets the bucket of a value: values below {@link #SUB_BUCKETS} have
+     * their own bucket, the others share it with the values that have the
+     * same highest bits.
+     */
+    static int bucket(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+      return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Gets the highest value of a bucket.
+     */
+    static long upperBound(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int shift = bucket / SUB_BUCKETS - 1;
+      long lowest = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+      return lowest + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+      return new StringBuilder("Histogram(")
+          .append("count=").append(getCount()).append(",")
+          .append("mean=").append((long) getMean()).append("us,")
+          .append("p50=").append(getPercentile(50)).append("us,")
+          .append("p99=").append(getPercentile(99)).append("us,")
+          .append("max=").append(getMax()).append("us)")
+          .toString();
+    }
+  }
+
+}
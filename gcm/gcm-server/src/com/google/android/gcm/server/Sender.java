@@ -15,48 +15,57 @@
  */
 package com.google.android.gcm.server;
 
+import static com.google.android.gcm.server.Constants.ERROR_UNAVAILABLE;
 import static com.google.android.gcm.server.Constants.GCM_SEND_ENDPOINT;
 import static com.google.android.gcm.server.Constants.JSON_CANONICAL_IDS;
 import static com.google.android.gcm.server.Constants.JSON_ERROR;
 import static com.google.android.gcm.server.Constants.JSON_FAILURE;
 import static com.google.android.gcm.server.Constants.JSON_MESSAGE_ID;
 import static com.google.android.gcm.server.Constants.JSON_MULTICAST_ID;
-import static com.google.android.gcm.server.Constants.JSON_PAYLOAD;
 import static com.google.android.gcm.server.Constants.JSON_REGISTRATION_IDS;
 import static com.google.android.gcm.server.Constants.JSON_RESULTS;
 import static com.google.android.gcm.server.Constants.JSON_SUCCESS;
-import static com.google.android.gcm.server.Constants.PARAM_COLLAPSE_KEY;
-import static com.google.android.gcm.server.Constants.PARAM_DELAY_WHILE_IDLE;
-import static com.google.android.gcm.server.Constants.PARAM_PAYLOAD_PREFIX;
+import static com.google.android.gcm.server.Constants.MULTICAST_SIZE;
 import static com.google.android.gcm.server.Constants.PARAM_REGISTRATION_ID;
-import static com.google.android.gcm.server.Constants.PARAM_TIME_TO_LIVE;
 import static com.google.android.gcm.server.Constants.TOKEN_CANONICAL_REG_ID;
 import static com.google.android.gcm.server.Constants.TOKEN_ERROR;
 import static com.google.android.gcm.server.Constants.TOKEN_MESSAGE_ID;
 
 import com.google.android.gcm.server.Result.Builder;
 
-import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
-
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.net.URLEncoder;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Helper class to send messages to the GCM service using an API Key.
@@ -66,378 +75,2408 @@ public class Sender {
   protected static final String UTF8 = "UTF-8";
 
   /**
-   * Initial delay before first retry, without jitter.
+   * Initial delay before first retry, without jitter.
+   */
+  protected static final int BACKOFF_INITIAL_DELAY = 1000;
+  /**
+   * Maximum delay before a retry.
+   */
+  protected static final int MAX_BACKOFF_DELAY = 1024000;
+  /**
+   * HTTP header GCM uses to tell how long to wait before retrying.
+   */
+  private static final String HEADER_RETRY_AFTER = "Retry-After";
+  private static final String FORM_CONTENT_TYPE =
+      "application/x-www-form-urlencoded;charset=UTF-8";
+  private static final String JSON_CONTENT_TYPE = "application/json";
+  private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+  private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+  private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+  private static final String GZIP_ENCODING = "gzip";
+  /**
+   * Default maximum number of multicast requests made at the same time when
+   * a message is sent to more than {@link Constants#MULTICAST_SIZE} devices.
+   */
+  protected static final int DEFAULT_MAX_CHUNKS_IN_FLIGHT = 4;
+  /**
+   * Default timeout (in milliseconds) to establish a connection to GCM.
+   */
+  protected static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+  /**
+   * Default timeout (in milliseconds) to read the response of GCM.
+   */
+  protected static final int DEFAULT_READ_TIMEOUT = 60000;
+  /**
+   * Initial size of the buffer used to build JSON requests, which is enough
+   * for a full multicast with typical registration ids.
+   */
+  private static final int INITIAL_REQUEST_BUFFER_SIZE = 256 * 1024;
+  /**
+   * Maximum size of a request buffer that is kept for reuse.
+   */
+  private static final int MAX_REQUEST_BUFFER_SIZE = 1024 * 1024;
+  /**
+   * Initial size of the buffer used to compress requests; registration ids
+   * are mostly random, so a full multicast request only shrinks by a quarter.
+   */
+  private static final int INITIAL_GZIP_BUFFER_SIZE = 128 * 1024;
+
+  /**
+   * Top-level fields of a multicast response; the first ones are required.
+   */
+  private static final String[] MULTICAST_FIELDS = {JSON_SUCCESS,
+      JSON_FAILURE, JSON_CANONICAL_IDS, JSON_MULTICAST_ID, JSON_RESULTS};
+  private static final int FIELD_SUCCESS = 0;
+  private static final int FIELD_FAILURE = 1;
+  private static final int FIELD_CANONICAL_IDS = 2;
+  private static final int FIELD_MULTICAST_ID = 3;
+  private static final int FIELD_RESULTS = 4;
+  /**
+   * Fields of each result of a multicast response.
+   */
+  private static final String[] RESULT_FIELDS =
+      {JSON_MESSAGE_ID, TOKEN_CANONICAL_REG_ID, JSON_ERROR};
+
+  /**
+   * Executor that runs tasks in the calling thread, shared by the classes of
+   * this package to run listeners of a {@link SendFuture}.
+   */
+  static final Executor SAME_THREAD_EXECUTOR = new Executor() {
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  protected final Random random = new Random();
+  protected final Logger logger = Logger.getLogger(getClass().getName());
+
+  private final String key;
+  private final ScheduledExecutorService executor;
+  private final ThreadLocal<JsonWriter> jsonWriters =
+      new ThreadLocal<JsonWriter>();
+  private final ThreadLocal<GzipEncoder> gzipEncoders =
+      new ThreadLocal<GzipEncoder>();
+  private volatile ConnectionPool connectionPool;
+  private volatile int maxChunksInFlight = DEFAULT_MAX_CHUNKS_IN_FLIGHT;
+  private volatile long retryDeadline;
+  private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+  private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+  private volatile int compressionThreshold;
+  private volatile RateLimiter rateLimiter;
+  private volatile CircuitBreaker circuitBreaker;
+  private volatile ConcurrencyLimiter concurrencyLimiter;
+  private volatile Transport transport;
+  private volatile SendListener sendListener;
+  private volatile RegistrationSink registrationSink;
+  // attempt being made by each thread, bound only while the overridable
+  // methods making it (sendNoRetry(), post() and getConnection()) run
+  private final ThreadLocal<Attempt> attempts = new ThreadLocal<Attempt>();
+
+  /**
+   * Default constructor.
+   *
+   * @param key API key obtained through the Google API Console.
+   */
+  public Sender(String key) {
+    this.key = nonNull(key);
+    this.executor = null;
+  }
+
+  /**
+   * Constructor used to support asynchronous requests.
+   *
+   * <p>
+   * The executor also lends threads to the synchronous {@code send()}
+   * methods, to send the chunks of a large multicast concurrently; those
+   * can be called from a thread of the executor. Its threads must not
+   * block waiting for the futures returned by {@code sendAsync()} though,
+   * as they may be the ones needed to complete them.
+   *
+   * @param key API key obtained through the Google API Console.
+   * @param executor executor used to run the requests made by the
+   *        {@code sendAsync()} methods and to schedule their retries.
+   */
+  public Sender(String key, ScheduledExecutorService executor) {
+    this.key = nonNull(key);
+    this.executor = nonNull(executor);
+  }
+
+  /**
+   * Sets the pool of persistent connections used to reach GCM.
+   *
+   * <p>
+   * By default, a new connection is opened (and then closed) for each request.
+   *
+   * @param connectionPool pool to be used, or {@literal null} to not pool
+   *        connections.
+   */
+  public void setConnectionPool(ConnectionPool connectionPool) {
+    this.connectionPool = connectionPool;
+  }
+
+  /**
+   * Gets the pool of persistent connections, if any.
+   */
+  public ConnectionPool getConnectionPool() {
+    return connectionPool;
+  }
+
+  /**
+   * Sets the transport used to make requests to GCM.
+   *
+   * <p>
+   * By default, requests are made through {@link #post(String, String,
+   * byte[], int)}, using the {@link ConnectionPool} (if any); a transport
+   * replaces both.
+   *
+   * @param transport transport to be used, or {@literal null} to use the
+   *        default one.
+   */
+  public void setTransport(Transport transport) {
+    this.transport = transport;
+  }
+
+  /**
+   * Gets the transport used to make requests, or {@literal null} if the
+   * default one is used.
+   */
+  public Transport getTransport() {
+    return transport;
+  }
+
+  /**
+   * Sets the listener notified of each request made to GCM, typically a
+   * {@link SendMetrics}.
+   *
+   * @param sendListener listener to be notified, or {@literal null} to not
+   *        notify any (the default).
+   */
+  public void setSendListener(SendListener sendListener) {
+    this.sendListener = sendListener;
+  }
+
+  /**
+   * Gets the listener notified of each request, if any.
+   */
+  public SendListener getSendListener() {
+    return sendListener;
+  }
+
+  /**
+   * Sets the sink of the changes to be made to stored registrations, which
+   * gets the canonical ids and the removed or invalid registration ids found
+   * in each response.
+   *
+   * @param registrationSink sink to be used, or {@literal null} to not
+   *        report changes (the default).
+   */
+  public void setRegistrationSink(RegistrationSink registrationSink) {
+    this.registrationSink = registrationSink;
+  }
+
+  /**
+   * Gets the sink of registration changes, if any.
+   */
+  public RegistrationSink getRegistrationSink() {
+    return registrationSink;
+  }
+
+  /**
+   * Sets the maximum number of multicast requests made at the same time when
+   * a message is sent to more than {@link Constants#MULTICAST_SIZE} devices.
+   *
+   * <p>
+   * Requests are only made concurrently if the sender was created with an
+   * executor; otherwise they are made sequentially, in the calling thread.
+   * The synchronous {@code send()} methods make one of them in the calling
+   * thread, and the others in threads of the executor when they are free.
+   *
+   * @throws IllegalArgumentException if the value is not positive.
+   */
+  public void setMaxChunksInFlight(int maxChunksInFlight) {
+    if (maxChunksInFlight <= 0) {
+      throw new IllegalArgumentException("maxChunksInFlight must be positive");
+    }
+    this.maxChunksInFlight = maxChunksInFlight;
+  }
+
+  /**
+   * Gets the maximum number of multicast requests made at the same time.
+   */
+  public int getMaxChunksInFlight() {
+    return maxChunksInFlight;
+  }
+
+  /**
+   * Sets the limiter consulted before each request made to GCM.
+   *
+   * <p>
+   * The same limiter can be shared by many senders (including senders with
+   * different API keys), so they all respect the same limits.
+   *
+   * @param rateLimiter limiter to be used, or {@literal null} to not limit
+   *        the rate of messages (the default).
+   */
+  public void setRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  /**
+   * Gets the rate limiter, if any.
+   */
+  public RateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
+  /**
+   * Sets the circuit breaker that stops requests while GCM is failing.
+   *
+   * <p>
+   * While the breaker is open, requests fail right away with a
+   * {@link CircuitOpenException}, which is not retried.
+   *
+   * @param circuitBreaker breaker to be used, or {@literal null} to always
+   *        make requests (the default).
+   */
+  public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  /**
+   * Gets the circuit breaker, if any.
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  /**
+   * Sets the limiter of requests made to GCM at the same time.
+   *
+   * <p>
+   * Unlike {@link #setMaxChunksInFlight(int)}, which applies to each
+   * message, the limit applies to all requests made with this sender (or
+   * with any sender sharing the limiter), and adapts to how GCM copes with
+   * the load. Synchronous requests wait for a free slot in the thread
+   * making them, while asynchronous ones are queued until a slot is freed.
+   *
+   * @param concurrencyLimiter limiter to be used, or {@literal null} to not
+   *        limit concurrent requests (the default).
+   */
+  public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+    this.concurrencyLimiter = concurrencyLimiter;
+  }
+
+  /**
+   * Gets the concurrency limiter, if any.
+   */
+  public ConcurrencyLimiter getConcurrencyLimiter() {
+    return concurrencyLimiter;
+  }
+
+  /**
+   * Sets the maximum time spent retrying a request, which is either a message
+   * to one device or a chunk of up to {@link Constants#MULTICAST_SIZE}
+   * devices of a multicast.
+   *
+   * <p>
+   * The deadline is counted from the first attempt of the request; a retry
+   * that would be made after it is not made at all, and the request ends as
+   * if it had run out of retries.
+   *
+   * @param retryDeadline deadline in milliseconds, or {@literal 0} for no
+   *        deadline (the default).
+   *
+   * @throws IllegalArgumentException if the value is negative.
+   */
+  public void setRetryDeadline(long retryDeadline) {
+    if (retryDeadline < 0) {
+      throw new IllegalArgumentException("retryDeadline cannot be negative");
+    }
+    this.retryDeadline = retryDeadline;
+  }
+
+  /**
+   * Gets the maximum time (in milliseconds) spent retrying a request, or
+   * {@literal 0} if there is no deadline.
+   */
+  public long getRetryDeadline() {
+    return retryDeadline;
+  }
+
+  /**
+   * Sets the timeout to establish a connection to GCM.
+   *
+   * <p>
+   * Connections obtained from a {@link ConnectionPool} use the timeout of
+   * the pool instead, unless the pool has none. Either way, the timeout is
+   * shortened to the time left before the deadline of the call, if any.
+   *
+   * @param connectTimeout timeout in milliseconds, or {@literal 0} for no
+   *        timeout; it's {@value #DEFAULT_CONNECT_TIMEOUT} by default.
+   *
+   * @throws IllegalArgumentException if the value is negative.
+   */
+  public void setConnectTimeout(int connectTimeout) {
+    if (connectTimeout < 0) {
+      throw new IllegalArgumentException("connectTimeout cannot be negative");
+    }
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * Gets the timeout (in milliseconds) to establish a connection to GCM, or
+   * {@literal 0} if there is no timeout.
+   */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Sets the timeout to read from a connection to GCM, which bounds how long
+   * a request can stall waiting for the response.
+   *
+   * <p>
+   * Like {@link #setConnectTimeout(int)}, connections obtained from a
+   * {@link ConnectionPool} use the timeout of the pool instead, unless the
+   * pool has none, and the timeout is shortened to the time left before the
+   * deadline of the call, if any.
+   *
+   * @param readTimeout timeout in milliseconds, or {@literal 0} for no
+   *        timeout; it's {@value #DEFAULT_READ_TIMEOUT} by default.
+   *
+   * @throws IllegalArgumentException if the value is negative.
+   */
+  public void setReadTimeout(int readTimeout) {
+    if (readTimeout < 0) {
+      throw new IllegalArgumentException("readTimeout cannot be negative");
+    }
+    this.readTimeout = readTimeout;
+  }
+
+  /**
+   * Gets the timeout (in milliseconds) to read from a connection to GCM, or
+   * {@literal 0} if there is no timeout.
+   */
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  /**
+   * Sets the minimum size of a request body for it to be compressed with
+   * gzip; when compression is enabled, GCM is also asked to compress its
+   * responses.
+   *
+   * <p>
+   * Multicast bodies are mostly registration ids, which are random enough to
+   * only shrink by about a quarter, while responses shrink by about 90%;
+   * compression pays off when the link to GCM is slow or metered, but costs
+   * a few milliseconds of CPU time per 1,000 recipients. It applies to the
+   * requests made by the sender itself, not to the ones made through a
+   * {@link Transport}.
+   *
+   * @param compressionThreshold size in bytes, or {@literal 0} to never
+   *        compress (the default).
+   *
+   * @throws IllegalArgumentException if the value is negative.
+   */
+  public void setCompressionThreshold(int compressionThreshold) {
+    if (compressionThreshold < 0) {
+      throw new IllegalArgumentException(
+          "compressionThreshold cannot be negative");
+    }
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  /**
+   * Gets the minimum size of a request body for it to be compressed.
+   */
+  public int getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  /**
+   * Sends a message to one device, retrying in case of unavailability.
+   *
+   * <p>
+   * <strong>Note: </strong> this method uses exponential back-off to retry in
+   * case of service unavailability and hence could block the calling thread
+   * for many seconds. When GCM asks for a longer delay through the
+   * {@code Retry-After} header, that delay is honored instead.
+   *
+   * @param message message to be sent, including the device's registration id.
+   * @param registrationId device where the message will be sent.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return result of the request (see its javadoc for more details)
+   *
+   * @throws IllegalArgumentException if registrationId is {@literal null}.
+   * @throws InvalidRequestException if GCM didn't returned a 200 or 503 status.
+   * @throws IOException if message could not be sent.
+   */
+  public Result send(Message message, String registrationId, int retries)
+      throws IOException {
+    return send(message, registrationId, retries, Long.MAX_VALUE);
+  }
+
+  private Result send(Message message, String registrationId, int retries,
+      long deadline) throws IOException {
+    int attempt = 0;
+    Result result = null;
+    Backoff backoff = new Backoff(deadline);
+    boolean tryAgain;
+    do {
+      attempt++;
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("Attempt #" + attempt + " to send message " +
+            message + " to regIds " + registrationId);
+      }
+      Attempt context = new Attempt(deadline);
+      Attempt previous = enterAttempt(context);
+      try {
+        result = sendNoRetry(message, registrationId);
+      } finally {
+        exitAttempt(context, previous);
+      }
+      tryAgain = result == null && attempt <= retries;
+      if (tryAgain) {
+        long sleepTime = backoff.nextDelay(context);
+        tryAgain = sleepTime >= 0;
+        if (tryAgain) {
+          onRetry(attempt + 1, sleepTime);
+          sleep(sleepTime);
+        }
+      }
+    } while (tryAgain);
+    if (result == null) {
+      throw new IOException("Could not send message after " + attempt +
+          " attempts");
+    }
+    return result;
+  }
+
+  /**
+   * Sends a message to one device, retrying in case of unavailability until
+   * a deadline expires.
+   *
+   * <p>
+   * Works like {@link #send(Message, String, int)}, except that no attempt
+   * is made after the deadline, retries are given up when they would be made
+   * after it, and the timeouts of the connections are shortened so the
+   * request in progress can't stall past it (see
+   * {@link #setReadTimeout(int)}); a {@link Transport}, if set, is given the
+   * time left instead.
+   *
+   * @param message message to be sent, including the device's registration id.
+   * @param registrationId device where the message will be sent.
+   * @param retries number of retries in case of service unavailability errors.
+   * @param timeout maximum time the call can take.
+   * @param unit unit of the timeout.
+   *
+   * @return result of the request (see its javadoc for more details)
+   *
+   * @throws IllegalArgumentException if registrationId is {@literal null} or
+   *         timeout is not positive.
+   * @throws DeadlineExceededException if the deadline expired before a
+   *         request could be made.
+   * @throws InvalidRequestException if GCM didn't returned a 200 or 503 status.
+   * @throws IOException if message could not be sent, including when the
+   *         connection timed out.
+   */
+  public Result send(Message message, String registrationId, int retries,
+      long timeout, TimeUnit unit) throws IOException {
+    return send(message, registrationId, retries, toDeadline(timeout, unit));
+  }
+
+  /**
+   * Sends a message without retrying in case of service unavailability. See
+   * {@link #send(Message, String, int)} for more info.
+   *
+   * @return result of the post, or {@literal null} if the GCM service was
+   *         unavailable.
+   *
+   * @throws InvalidRequestException if GCM didn't returned a 200 or 503 status.
+   * @throws IllegalArgumentException if registrationId is {@literal null}.
+   */
+  public Result sendNoRetry(Message message, String registrationId)
+      throws IOException {
+    StringBuilder body = newBody(PARAM_REGISTRATION_ID, registrationId)
+        .append(message.getFormParameters());
+    String requestBody = body.toString();
+    logger.finest("Request body: " + requestBody);
+    Attempt bound = attempts.get();
+    Attempt attempt = startRequest(bound);
+    try {
+      return sendNoRetry(attempt, requestBody, registrationId);
+    } finally {
+      endRequest(attempt, bound);
+    }
+  }
+
+  private Result sendNoRetry(Attempt attempt, String requestBody,
+      String registrationId) throws IOException {
+    RateLimiter limiter = rateLimiter;
+    List<String> regIds = limiter == null ? null
+        : Collections.singletonList(registrationId);
+    CircuitBreaker breaker = circuitBreaker;
+    long probe = CircuitBreaker.NO_PROBE;
+    boolean reserved = false;
+    ConcurrencyLimiter concurrency = concurrencyLimiter;
+    long permit;
+    try {
+      checkDeadline(attempt);
+      if (breaker != null) {
+        probe = breaker.beforeRequest();
+      }
+      if (limiter != null) {
+        waitFor(attempt, limiter, regIds);
+        reserved = true;
+      }
+      permit = concurrency == null ? 0 : acquire(attempt, concurrency);
+    } catch (IOException e) {
+      // the request is not made
+      if (reserved) {
+        limiter.cancel(key, regIds);
+      }
+      releaseProbe(breaker, probe);
+      throw e;
+    }
+    int status = -1;
+    List<Result> results = null;
+    IOException failure = null;
+    try {
+      SendListener listener = sendListener;
+      long start = listener == null ? 0 : System.nanoTime();
+      Transport.Response response;
+      try {
+        response = postPlainText(attempt, requestBody, listener);
+      } catch (IOException e) {
+        onRequestFailed(attempt, breaker, probe, listener, start, e);
+        throw e;
+      }
+      try {
+        status = getStatus(attempt, response, breaker, probe, listener,
+            start);
+        if (status == 503) {
+          logger.fine("GCM service is unavailable");
+          return null;
+        }
+        if (status != 200) {
+          throw new InvalidRequestException(status);
+        }
+        BufferedReader reader =
+            new BufferedReader(new InputStreamReader(response.getBody()));
+        try {
+          String line = reader.readLine();
+
+          if (line == null || line.equals("")) {
+            throw new IOException(
+                "Received empty response from GCM service.");
+          }
+          String[] responseParts = split(line);
+          String token = responseParts[0];
+          String value = responseParts[1];
+          Result result;
+          if (token.equals(TOKEN_MESSAGE_ID)) {
+            Builder builder = new Result.Builder().messageId(value);
+            // check for canonical registration id
+            line = reader.readLine();
+            if (line != null) {
+              responseParts = split(line);
+              token = responseParts[0];
+              value = responseParts[1];
+              if (token.equals(TOKEN_CANONICAL_REG_ID)) {
+                builder.canonicalRegistrationId(value);
+              } else {
+                logger.warning("Received invalid second line from GCM: " +
+                    line);
+              }
+            }
+
+            result = builder.build();
+            if (logger.isLoggable(Level.FINE)) {
+              logger.fine("Message created succesfully (" + result + ")");
+            }
+          } else if (token.equals(TOKEN_ERROR)) {
+            result = new Result.Builder().errorCode(value).build();
+          } else {
+            throw new IOException("Received invalid response from GCM: " +
+                line);
+          }
+          results = Collections.singletonList(result);
+          if (limiter != null) {
+            limiter.onResults(key, regIds, results);
+          }
+          updateRegistrations(Collections.singletonList(registrationId),
+              results);
+          if (listener != null) {
+            boolean sent = result.getMessageId() != null;
+            listener.onResults(sent ? 1 : 0, sent ? 0 : 1,
+                result.getCanonicalRegistrationId() != null ? 1 : 0);
+          }
+          return result;
+        } finally {
+          reader.close();
+        }
+      } finally {
+        response.close();
+      }
+    } catch (IOException e) {
+      failure = e;
+      throw e;
+    } finally {
+      if (concurrency != null) {
+        releaseSlot(attempt, concurrency, permit, status, results, failure);
+      }
+      releaseProbe(breaker, probe);
+    }
+  }
+
+  /**
+   * Sends a message to many devices, retrying in case of unavailability.
+   *
+   * <p>
+   * <strong>Note: </strong> this method uses exponential back-off to retry in
+   * case of service unavailability and hence could block the calling thread
+   * for many seconds. When GCM asks for a longer delay through the
+   * {@code Retry-After} header, that delay is honored instead. Only the
+   * devices whose result was {@link Constants#ERROR_UNAVAILABLE} are retried,
+   * and so are requests rejected with a 503 status.
+   *
+   * <p>
+   * If there are more than {@link Constants#MULTICAST_SIZE} devices, they are
+   * split in chunks of that size, which are sent concurrently (see
+   * {@link #setMaxChunksInFlight(int)}) and whose results are combined in the
+   * same order as the input.
+   *
+   * @param message message to be sent.
+   * @param regIds registration id of the devices that will receive
+   *        the message.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return combined result of all requests made.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty.
+   * @throws InvalidRequestException if GCM didn't returned a 200 or 503 status.
+   * @throws IOException if message could not be sent.
+   */
+  public MulticastResult send(Message message, List<String> regIds, int retries)
+      throws IOException {
+    return send(message, regIds, retries, Long.MAX_VALUE);
+  }
+
+  private MulticastResult send(Message message, List<String> regIds,
+      int retries, long deadline) throws IOException {
+    if (nonNull(regIds).size() <= MULTICAST_SIZE) {
+      return sendChunk(message, regIds, retries, deadline);
+    }
+    return new CallerChunkedMulticast(message, split(regIds), retries,
+        deadline).send();
+  }
+
+  /**
+   * Sends a message to many devices, retrying in case of unavailability until
+   * a deadline expires.
+   *
+   * <p>
+   * Works like {@link #send(Message, List, int)}, except that the deadline
+   * applies to all the requests made, including the retries and all the
+   * chunks: no request is made after it, retries are given up when they
+   * would be made after it, and the timeouts of the connections are
+   * shortened so the requests in progress can't stall past it (see
+   * {@link #setReadTimeout(int)}); a {@link Transport}, if set, is given the
+   * time left instead. Chunks that can't be sent before the
+   * deadline fail the call, and no more chunks are sent after that.
+   *
+   * @param message message to be sent.
+   * @param regIds registration id of the devices that will receive
+   *        the message.
+   * @param retries number of retries in case of service unavailability errors.
+   * @param timeout maximum time the call can take.
+   * @param unit unit of the timeout.
+   *
+   * @return combined result of all requests made.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty, or if timeout is not positive.
+   * @throws DeadlineExceededException if the deadline expired before all
+   *         chunks could be sent.
+   * @throws InvalidRequestException if GCM didn't returned a 200 or 503 status.
+   * @throws IOException if message could not be sent, including when a
+   *         connection timed out.
+   */
+  public MulticastResult send(Message message, List<String> regIds,
+      int retries, long timeout, TimeUnit unit) throws IOException {
+    return send(message, regIds, retries, toDeadline(timeout, unit));
+  }
+
+  /**
+   * Sends a message to at most {@link Constants#MULTICAST_SIZE} devices,
+   * retrying in case of unavailability.
+   */
+  private MulticastResult sendChunk(Message message, List<String> regIds,
+      int retries, long deadline) throws IOException {
+    int attempt = 0;
+    MulticastResult multicastResult = null;
+    Backoff backoff = new Backoff(deadline);
+    // results of each device, updated after each attempt to send the messages
+    MulticastTracker tracker = new MulticastTracker(regIds);
+    boolean tryAgain;
+    InvalidRequestException unavailable = null;
+    do {
+      attempt++;
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("Attempt #" + attempt + " to send message " +
+            message + " to " + tracker.getPendingCount() + " regIds");
+      }
+      Attempt context = new Attempt(deadline);
+      Attempt previous = enterAttempt(context);
+      try {
+        multicastResult = sendNoRetry(message, tracker.getPendingRegIds());
+      } catch (InvalidRequestException e) {
+        if (e.getHttpStatusCode() != 503) {
+          throw e;
+        }
+        logger.fine("GCM service is unavailable");
+        unavailable = e;
+        multicastResult = null;
+      } finally {
+        exitAttempt(context, previous);
+      }
+      if (multicastResult != null) {
+        logger.fine("multicast_id on attempt # " + attempt + ": " +
+            multicastResult.getMulticastId());
+        tracker.update(multicastResult);
+      }
+      tryAgain = tracker.getPendingCount() > 0 && attempt <= retries;
+      if (tryAgain) {
+        long sleepTime = backoff.nextDelay(context);
+        tryAgain = sleepTime >= 0;
+        if (tryAgain) {
+          onRetry(attempt + 1, sleepTime);
+          sleep(sleepTime);
+        }
+      }
+    } while (tryAgain);
+    if (!tracker.hasResults()) {
+      // GCM was unavailable on all attempts
+      throw unavailable;
+    }
+    return tracker.build();
+  }
+
+  /**
+   * Splits a list of registration ids in chunks of at most
+   * {@link Constants#MULTICAST_SIZE} elements.
+   */
+  static List<List<String>> split(List<String> regIds) {
+    List<List<String>> chunks = new ArrayList<List<String>>();
+    for (int i = 0; i < regIds.size(); i += MULTICAST_SIZE) {
+      int end = Math.min(i + MULTICAST_SIZE, regIds.size());
+      chunks.add(regIds.subList(i, end));
+    }
+    return chunks;
+  }
+
+  /**
+   * Gets a copy of a list of registration ids, as the caller might change it
+   * while requests are in progress. Lists of a {@link RegistrationIdArena}
+   * never change, so they are not copied.
+   */
+  static List<String> snapshot(List<String> regIds) {
+    if (regIds instanceof RegistrationIdArena.Ids) {
+      return regIds;
+    }
+    return new ArrayList<String>(regIds);
+  }
+
+  /**
+   * Combines the results of many chunks into one, in the same order.
+   *
+   * <p>
+   * The multicast id of the first chunk becomes the overall multicast id,
+   * while the ids of the other chunks (and of the retries of all chunks) are
+   * returned as retry multicast ids.
+   */
+  static MulticastResult mergeChunks(MulticastResult[] chunkResults) {
+    int success = 0, failure = 0, canonicalIds = 0;
+    List<Long> retryMulticastIds = new ArrayList<Long>();
+    for (int i = 0; i < chunkResults.length; i++) {
+      MulticastResult chunkResult = chunkResults[i];
+      success += chunkResult.getSuccess();
+      failure += chunkResult.getFailure();
+      canonicalIds += chunkResult.getCanonicalIds();
+      if (i > 0) {
+        retryMulticastIds.add(chunkResult.getMulticastId());
+      }
+      retryMulticastIds.addAll(chunkResult.getRetryMulticastIds());
+    }
+    MulticastResult.Builder builder = new MulticastResult.Builder(success,
+        failure, canonicalIds, chunkResults[0].getMulticastId())
+        .retryMulticastIds(retryMulticastIds);
+    for (MulticastResult chunkResult : chunkResults) {
+      for (Result result : chunkResult.getResults()) {
+        builder.addResult(result);
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Sends a message without retrying in case of service unavailability. See
+   * {@link #send(Message, List, int)} for more info.
+   *
+   * @return {@literal true} if the message was sent successfully,
+   *         {@literal false} if it failed but could be retried.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty.
+   * @throws InvalidRequestException if GCM didn't returned a 200 status.
+   * @throws IOException if message could not be sent or received.
+   */
+  public MulticastResult sendNoRetry(Message message,
+      List<String> registrationIds) throws IOException {
+    if (nonNull(registrationIds).isEmpty()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
+    }
+    JsonWriter json = newJsonWriter();
+    writeMulticastRequest(json, message, registrationIds);
+    if (logger.isLoggable(Level.FINEST)) {
+      logger.finest("JSON request: " + json);
+    }
+    Attempt bound = attempts.get();
+    Attempt attempt = startRequest(bound);
+    try {
+      return sendNoRetry(attempt, json, registrationIds);
+    } finally {
+      endRequest(attempt, bound);
+    }
+  }
+
+  private MulticastResult sendNoRetry(Attempt attempt, JsonWriter json,
+      List<String> registrationIds) throws IOException {
+    RateLimiter limiter = rateLimiter;
+    CircuitBreaker breaker = circuitBreaker;
+    long probe = CircuitBreaker.NO_PROBE;
+    boolean reserved = false;
+    ConcurrencyLimiter concurrency = concurrencyLimiter;
+    long permit;
+    try {
+      checkDeadline(attempt);
+      if (breaker != null) {
+        probe = breaker.beforeRequest();
+      }
+      if (limiter != null) {
+        waitFor(attempt, limiter, registrationIds);
+        reserved = true;
+      }
+      permit = concurrency == null ? 0 : acquire(attempt, concurrency);
+    } catch (IOException e) {
+      // the request is not made
+      if (reserved) {
+        limiter.cancel(key, registrationIds);
+      }
+      releaseProbe(breaker, probe);
+      throw e;
+    }
+    int status = -1;
+    List<Result> results = null;
+    IOException failure = null;
+    try {
+      SendListener listener = sendListener;
+      long start = listener == null ? 0 : System.nanoTime();
+      Transport.Response response;
+      try {
+        response = postJson(attempt, json.getBuffer(), json.size(), listener,
+            registrationIds.size());
+      } catch (IOException e) {
+        onRequestFailed(attempt, breaker, probe, listener, start, e);
+        throw e;
+      } finally {
+        releaseJsonWriter(json);
+      }
+      try {
+        status = getStatus(attempt, response, breaker, probe, listener,
+            start);
+        if (status != 200) {
+          InputStream errorBody = response.getBody();
+          String responseBody =
+              errorBody == null ? null : getString(errorBody);
+          logger.finest("JSON error response: " + responseBody);
+          throw new InvalidRequestException(status, responseBody);
+        }
+        Reader reader;
+        if (logger.isLoggable(Level.FINEST)) {
+          String responseBody = getString(response.getBody());
+          logger.finest("JSON response: " + responseBody);
+          reader = new StringReader(responseBody);
+        } else {
+          reader = new InputStreamReader(response.getBody(), UTF8);
+        }
+        MulticastResult multicastResult = parseMulticastResult(reader);
+        results = multicastResult.getResults();
+        if (limiter != null) {
+          limiter.onResults(key, registrationIds, results);
+        }
+        updateRegistrations(registrationIds, results);
+        if (listener != null) {
+          listener.onResults(multicastResult.getSuccess(),
+              multicastResult.getFailure(), multicastResult.getCanonicalIds());
+        }
+        return multicastResult;
+      } finally {
+        response.close();
+      }
+    } catch (IOException e) {
+      failure = e;
+      throw e;
+    } finally {
+      if (concurrency != null) {
+        releaseSlot(attempt, concurrency, permit, status, results, failure);
+      }
+      releaseProbe(breaker, probe);
+    }
+  }
+
+  /**
+   * Writes the JSON body of a multicast request.
+   */
+  static void writeMulticastRequest(JsonWriter json, Message message,
+      List<String> registrationIds) {
+    json.beginObject().fields(message.getJsonFields());
+    json.name(JSON_REGISTRATION_IDS).beginArray();
+    if (registrationIds instanceof RegistrationIdArena.Ids) {
+      ((RegistrationIdArena.Ids) registrationIds).writeJsonValues(json);
+    } else {
+      for (String registrationId : registrationIds) {
+        json.value(registrationId);
+      }
+    }
+    json.endArray().endObject();
+  }
+
+  /**
+   * Parses the JSON response of a multicast request in one pass, creating
+   * the {@link Result} objects as their fields are read.
+   *
+   * @throws IOException if the response could not be read or is invalid.
+   */
+  static MulticastResult parseMulticastResult(Reader reader)
+      throws IOException {
+    JsonReader json = new JsonReader(reader);
+    try {
+      int success = 0, failure = 0, canonicalIds = 0;
+      long multicastId = 0;
+      List<Result> results = null;
+      int fields = 0;
+      json.beginObject();
+      while (json.hasNext()) {
+        int field = json.nextName(MULTICAST_FIELDS);
+        switch (field) {
+          case FIELD_SUCCESS:
+            success = (int) json.nextLong();
+            break;
+          case FIELD_FAILURE:
+            failure = (int) json.nextLong();
+            break;
+          case FIELD_CANONICAL_IDS:
+            canonicalIds = (int) json.nextLong();
+            break;
+          case FIELD_MULTICAST_ID:
+            multicastId = json.nextLong();
+            break;
+          case FIELD_RESULTS:
+            results = parseResults(json);
+            break;
+          default:
+            json.skipValue();
+        }
+        if (field != -1) {
+          fields |= 1 << field;
+        }
+      }
+      json.endObject();
+      for (int i = 0; i < FIELD_RESULTS; i++) {
+        if ((fields & (1 << i)) == 0) {
+          throw new IOException("Error parsing JSON response: missing field "
+              + MULTICAST_FIELDS[i]);
+        }
+      }
+      MulticastResult.Builder builder = new MulticastResult.Builder(success,
+          failure, canonicalIds, multicastId);
+      if (results != null) {
+        for (Result result : results) {
+          builder.addResult(result);
+        }
+      }
+      return builder.build();
+    } finally {
+      json.close();
+    }
+  }
+
+  private static List<Result> parseResults(JsonReader json)
+      throws IOException {
+    List<Result> results = new ArrayList<Result>();
+    json.beginArray();
+    while (json.hasNext()) {
+      Result.Builder builder = new Result.Builder();
+      json.beginObject();
+      while (json.hasNext()) {
+        switch (json.nextName(RESULT_FIELDS)) {
+          case 0:
+            builder.messageId(json.nextString());
+            break;
+          case 1:
+            builder.canonicalRegistrationId(json.nextString());
+            break;
+          case 2:
+            builder.errorCode(json.nextString());
+            break;
+          default:
+            json.skipValue();
+        }
+      }
+      json.endObject();
+      results.add(builder.build());
+    }
+    json.endArray();
+    return results;
+  }
+
+  /**
+   * Sends the entries of a durable queue until it is empty, acknowledging
+   * each entry once sent.
+   *
+   * <p>
+   * Equivalent to {@link #drain(OutboundQueue, int, OutboundQueue)} without
+   * a dead-letter queue.
+   */
+  public int drain(OutboundQueue queue, int retries) throws IOException {
+    return drain(queue, retries, null);
+  }
+
+  /**
+   * Sends the entries of a durable queue until it is empty, acknowledging
+   * each entry once sent.
+   *
+   * <p>
+   * Entries are sent through {@link #send(Message, List, int)}. If one
+   * fails because of GCM unavailability or an I/O error, it is returned to
+   * the queue and its exception is thrown, so it is sent again on the next
+   * call; so is an entry rejected because of the sender's configuration
+   * (for instance, a 401 status for an invalid API key), as the entries
+   * behind it would fail the same way. If GCM rejects the message itself
+   * (with a 400 status), retrying would not help: it is moved to the
+   * dead-letter queue (or dropped, if there is none) and the exception is
+   * thrown, so the entries behind it are not blocked.
+   *
+   * <p>
+   * Devices that were still {@link Constants#ERROR_UNAVAILABLE} after the
+   * retries are added back to the queue as a new entry, and this method
+   * returns right away instead of sending them again while GCM is
+   * unavailable. Many threads can drain the same queue.
+   *
+   * @param queue queue to be drained.
+   * @param retries number of retries of each entry in case of service
+   *        unavailability errors.
+   * @param deadLetters queue the malformed entries are added to, or
+   *        {@literal null} to drop them.
+   *
+   * @return number of entries sent.
+   *
+   * @throws InvalidRequestException if GCM didn't returned a 200 or 503 status.
+   * @throws IOException if an entry could not be read or sent.
+   */
+  public int drain(OutboundQueue queue, int retries, OutboundQueue deadLetters)
+      throws IOException {
+    nonNull(queue);
+    int sent = 0;
+    OutboundQueue.Entry entry;
+    while ((entry = queue.poll()) != null) {
+      Message message = entry.getMessage();
+      List<String> regIds = entry.getRegistrationIds();
+      MulticastResult result = null;
+      boolean rejected = false;
+      try {
+        result = send(message, regIds, retries);
+      } catch (InvalidRequestException e) {
+        if (e.getHttpStatusCode() == 400) {
+          logger.warning("GCM rejected " + entry + ": " + e.getMessage());
+          if (deadLetters != null) {
+            deadLetters.add(message, regIds);
+          }
+          rejected = true;
+          queue.acknowledge(entry);
+        }
+        throw e;
+      } finally {
+        if (result == null && !rejected) {
+          queue.release(entry);
+        }
+      }
+      List<String> unavailable = getUnavailableRegIds(regIds, result);
+      if (!unavailable.isEmpty()) {
+        // added before the entry is acknowledged, so they can't be lost
+        queue.add(message, unavailable);
+      }
+      queue.acknowledge(entry);
+      sent++;
+      if (!unavailable.isEmpty()) {
+        logger.fine(unavailable.size() + " devices of " + entry +
+            " are still unavailable; stopping the drain");
+        break;
+      }
+    }
+    return sent;
+  }
+
+  /**
+   * Gets the devices whose result was {@link Constants#ERROR_UNAVAILABLE}.
+   */
+  private static List<String> getUnavailableRegIds(List<String> regIds,
+      MulticastResult result) {
+    List<String> unavailable = new ArrayList<String>();
+    List<Result> results = result.getResults();
+    for (int i = 0; i < results.size(); i++) {
+      if (ERROR_UNAVAILABLE.equals(results.get(i).getErrorCodeName())) {
+        unavailable.add(regIds.get(i));
+      }
+    }
+    return unavailable;
+  }
+
+  /**
+   * Sends a message to one device asynchronously, retrying in case of
+   * unavailability.
+   *
+   * <p>
+   * Unlike {@link #send(Message, String, int)}, this method does not block the
+   * calling thread: the request is made by the executor passed to the
+   * constructor, and retries are scheduled on that executor instead of
+   * sleeping between attempts.
+   *
+   * @param message message to be sent, including the device's registration id.
+   * @param registrationId device where the message will be sent.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return future holding the result of the request (see its javadoc for
+   *         more details); it fails with an {@link IOException} if the message
+   *         could not be sent.
+   *
+   * @throws IllegalArgumentException if registrationId is {@literal null}.
+   * @throws IllegalStateException if the sender was not created with an
+   *         executor.
+   */
+  public SendFuture<Result> sendAsync(Message message, String registrationId,
+      int retries) {
+    return sendAsync(message, registrationId, retries, Long.MAX_VALUE);
+  }
+
+  /**
+   * Sends a message to one device asynchronously, retrying in case of
+   * unavailability until a deadline expires.
+   *
+   * <p>
+   * Works like {@link #sendAsync(Message, String, int)}, except that the
+   * future fails with a {@link DeadlineExceededException} once the deadline
+   * expires, at which point no more attempts are made; see
+   * {@link #send(Message, String, int, long, TimeUnit)} for more info.
+   *
+   * @param message message to be sent, including the device's registration id.
+   * @param registrationId device where the message will be sent.
+   * @param retries number of retries in case of service unavailability errors.
+   * @param timeout maximum time the request can take.
+   * @param unit unit of the timeout.
+   *
+   * @return future holding the result of the request.
+   *
+   * @throws IllegalArgumentException if registrationId is {@literal null} or
+   *         timeout is not positive.
+   * @throws IllegalStateException if the sender was not created with an
+   *         executor.
+   */
+  public SendFuture<Result> sendAsync(Message message, String registrationId,
+      int retries, long timeout, TimeUnit unit) {
+    long deadline = toDeadline(timeout, unit);
+    return expireAt(sendAsync(message, registrationId, retries, deadline),
+        deadline);
+  }
+
+  private SendFuture<Result> sendAsync(final Message message,
+      final String registrationId, int retries, long deadline) {
+    nonNull(registrationId);
+    final SendFuture<Result> future = new SendFuture<Result>();
+    new AsyncRequest<Result>(future, retries, deadline) {
+
+      @Override
+      boolean attempt(int attempt) throws IOException {
+        if (logger.isLoggable(Level.FINE)) {
+          logger.fine("Attempt #" + attempt + " to send message " +
+              message + " to regIds " + registrationId);
+        }
+        Result result = sendNoRetry(message, registrationId);
+        if (result != null) {
+          future.set(result);
+          return true;
+        }
+        return false;
+      }
+
+      @Override
+      List<String> getRegIds() {
+        return Collections.singletonList(registrationId);
+      }
+
+      @Override
+      Result giveUp(int attempts) throws IOException {
+        throw new IOException("Could not send message after " + attempts +
+            " attempts");
+      }
+    }.start();
+    return future;
+  }
+
+  /**
+   * Sends a message to many devices asynchronously, retrying in case of
+   * unavailability.
+   *
+   * <p>
+   * Unlike {@link #send(Message, List, int)}, this method does not block the
+   * calling thread: each attempt is made by the executor passed to the
+   * constructor, and retries are scheduled on that executor instead of
+   * sleeping between attempts. The results are combined exactly like in the
+   * synchronous version, including the split in chunks when there are more
+   * than {@link Constants#MULTICAST_SIZE} devices.
+   *
+   * @param message message to be sent.
+   * @param regIds registration id of the devices that will receive
+   *        the message.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return future holding the combined result of all requests made.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty.
+   * @throws IllegalStateException if the sender was not created with an
+   *         executor.
+   */
+  public SendFuture<MulticastResult> sendAsync(Message message,
+      List<String> regIds, int retries) {
+    return sendAsync(message, regIds, retries, Long.MAX_VALUE);
+  }
+
+  /**
+   * Sends a message to many devices asynchronously, retrying in case of
+   * unavailability until a deadline expires.
+   *
+   * <p>
+   * Works like {@link #sendAsync(Message, List, int)}, except that the
+   * future fails with a {@link DeadlineExceededException} once the deadline
+   * expires, at which point no more requests are made; see
+   * {@link #send(Message, List, int, long, TimeUnit)} for more info.
+   *
+   * @param message message to be sent.
+   * @param regIds registration id of the devices that will receive
+   *        the message.
+   * @param retries number of retries in case of service unavailability errors.
+   * @param timeout maximum time the requests can take.
+   * @param unit unit of the timeout.
+   *
+   * @return future holding the combined result of all requests made.
+   *
+   * @throws IllegalArgumentException if registrationIds is {@literal null} or
+   *         empty, or if timeout is not positive.
+   * @throws IllegalStateException if the sender was not created with an
+   *         executor.
+   */
+  public SendFuture<MulticastResult> sendAsync(Message message,
+      List<String> regIds, int retries, long timeout, TimeUnit unit) {
+    long deadline = toDeadline(timeout, unit);
+    return expireAt(sendAsync(message, regIds, retries, deadline), deadline);
+  }
+
+  private SendFuture<MulticastResult> sendAsync(Message message,
+      List<String> regIds, int retries, long deadline) {
+    if (nonNull(regIds).isEmpty()) {
+      throw new IllegalArgumentException("registrationIds cannot be empty");
+    }
+    if (regIds.size() <= MULTICAST_SIZE) {
+      return sendChunkAsync(message, regIds, retries, deadline);
+    }
+    if (executor == null) {
+      throw new IllegalStateException(
+          "Sender must be created with an executor to send asynchronously");
+    }
+    return new ChunkedMulticast(message, split(regIds), retries, deadline)
+        .start();
+  }
+
+  /**
+   * Makes a future fail with a {@link DeadlineExceededException} if it's not
+   * done by the given deadline.
+   */
+  private <T> SendFuture<T> expireAt(final SendFuture<T> future,
+      final long deadline) {
+    final ScheduledFuture<?> timer;
+    try {
+      timer = executor.schedule(new Runnable() {
+        public void run() {
+          if (System.currentTimeMillis() >= deadline) {
+            future.setException(
+                new DeadlineExceededException("Deadline expired"));
+          }
+        }
+      }, Math.max(0, deadline - System.currentTimeMillis()),
+          TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      future.setException(e);
+      return future;
+    }
+    if (timer != null) {
+      future.addListener(new Runnable() {
+        public void run() {
+          timer.cancel(false);
+        }
+      }, SAME_THREAD_EXECUTOR);
+    }
+    return future;
+  }
+
+  /**
+   * Sends a message to at most {@link Constants#MULTICAST_SIZE} devices
+   * asynchronously, retrying in case of unavailability.
+   */
+  private SendFuture<MulticastResult> sendChunkAsync(final Message message,
+      List<String> regIds, final int retries, long deadline) {
+    final SendFuture<MulticastResult> future =
+        new SendFuture<MulticastResult>();
+    final MulticastTracker tracker = new MulticastTracker(snapshot(regIds));
+    new AsyncRequest<MulticastResult>(future, retries, deadline) {
+
+      private InvalidRequestException unavailable;
+
+      @Override
+      boolean attempt(int attempt) throws IOException {
+        if (logger.isLoggable(Level.FINE)) {
+          logger.fine("Attempt #" + attempt + " to send message " +
+              message + " to " + tracker.getPendingCount() + " regIds");
+        }
+        MulticastResult multicastResult;
+        try {
+          multicastResult = sendNoRetry(message, tracker.getPendingRegIds());
+        } catch (InvalidRequestException e) {
+          if (e.getHttpStatusCode() != 503) {
+            throw e;
+          }
+          logger.fine("GCM service is unavailable");
+          unavailable = e;
+          return false;
+        }
+        logger.fine("multicast_id on attempt # " + attempt + ": " +
+            multicastResult.getMulticastId());
+        tracker.update(multicastResult);
+        if (tracker.getPendingCount() == 0) {
+          future.set(tracker.build());
+          return true;
+        }
+        return false;
+      }
+
+      @Override
+      List<String> getRegIds() {
+        return tracker.getPendingRegIds();
+      }
+
+      @Override
+      MulticastResult giveUp(int attempts) throws IOException {
+        if (!tracker.hasResults()) {
+          // GCM was unavailable on all attempts
+          throw unavailable;
+        }
+        return tracker.build();
+      }
+    }.start();
+    return future;
+  }
+
+  /**
+   * Multicast split in chunks, which are sent asynchronously with a bounded
+   * number of them in flight.
+   */
+  private final class ChunkedMulticast {
+
+    private final Message message;
+    private final List<List<String>> chunks;
+    private final int retries;
+    private final long deadline;
+    private final MulticastResult[] chunkResults;
+    private final SendFuture<MulticastResult> future =
+        new SendFuture<MulticastResult>();
+
+    // guarded by this
+    private int nextChunk;
+    private int completedChunks;
+    private final List<SendFuture<MulticastResult>> chunkFutures =
+        new ArrayList<SendFuture<MulticastResult>>();
+
+    ChunkedMulticast(Message message, List<List<String>> chunks,
+        int retries, long deadline) {
+      this.message = message;
+      this.chunks = chunks;
+      this.retries = retries;
+      this.deadline = deadline;
+      chunkResults = new MulticastResult[chunks.size()];
+    }
+
+    SendFuture<MulticastResult> start() {
+      // once the multicast fails or is cancelled, so are the chunks in flight
+      future.addListener(new Runnable() {
+        public void run() {
+          cancelChunks();
+        }
+      }, SAME_THREAD_EXECUTOR);
+      int initial = Math.min(maxChunksInFlight, chunks.size());
+      for (int i = 0; i < initial; i++) {
+        sendNextChunk();
+      }
+      return future;
+    }
+
+    private void sendNextChunk() {
+      final int index;
+      synchronized (this) {
+        if (future.isDone() || nextChunk == chunks.size()) {
+          return;
+        }
+        index = nextChunk++;
+      }
+      final SendFuture<MulticastResult> chunkFuture =
+          sendChunkAsync(message, chunks.get(index), retries, deadline);
+      synchronized (this) {
+        chunkFutures.add(chunkFuture);
+      }
+      if (future.isDone()) {
+        chunkFuture.cancel(true);
+      }
+      chunkFuture.addListener(new Runnable() {
+        public void run() {
+          onChunkDone(index, chunkFuture);
+        }
+      }, SAME_THREAD_EXECUTOR);
+    }
+
+    private void onChunkDone(int index,
+        SendFuture<MulticastResult> chunkFuture) {
+      try {
+        chunkResults[index] = chunkFuture.get();
+      } catch (ExecutionException e) {
+        future.setException(e.getCause());
+        return;
+      } catch (Exception e) {
+        // chunk was cancelled, or interrupted (which should not happen)
+        future.setException(e);
+        return;
+      }
+      boolean last;
+      synchronized (this) {
+        last = ++completedChunks == chunks.size();
+      }
+      if (last) {
+        future.set(mergeChunks(chunkResults));
+      } else {
+        sendNextChunk();
+      }
+    }
+
+    private void cancelChunks() {
+      List<SendFuture<MulticastResult>> inFlight;
+      synchronized (this) {
+        inFlight = new ArrayList<SendFuture<MulticastResult>>(chunkFutures);
+      }
+      for (SendFuture<MulticastResult> chunkFuture : inFlight) {
+        chunkFuture.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Multicast split in chunks, which are sent synchronously by the calling
+   * thread and, if there is an executor, by up to
+   * {@code maxChunksInFlight - 1} tasks helping it.
+   *
+   * <p>
+   * Each thread claims the next chunk once done with its previous one, and
+   * the calling thread only waits for the chunks being sent by the others:
+   * a helper that never gets to run claims nothing, so the call can't
+   * deadlock when made from a thread of the executor.
+   */
+  private final class CallerChunkedMulticast implements Runnable {
+
+    private final Message message;
+    private final List<List<String>> chunks;
+    private final int retries;
+    private final long deadline;
+    private final MulticastResult[] chunkResults;
+
+    // guarded by this
+    private int nextChunk;
+    private int chunksInFlight;
+    private Throwable failure;
+
+    CallerChunkedMulticast(Message message, List<List<String>> chunks,
+        int retries, long deadline) {
+      this.message = message;
+      this.chunks = chunks;
+      this.retries = retries;
+      this.deadline = deadline;
+      chunkResults = new MulticastResult[chunks.size()];
+    }
+
+    MulticastResult send() throws IOException {
+      if (executor != null) {
+        int helpers = Math.min(maxChunksInFlight, chunks.size()) - 1;
+        try {
+          for (int i = 0; i < helpers; i++) {
+            executor.execute(this);
+          }
+        } catch (RejectedExecutionException e) {
+          // the calling thread sends the chunks left
+          logger.log(Level.FINE, "Executor rejected chunk sender", e);
+        }
+      }
+      try {
+        sendChunks();
+        awaitChunks();
+      } catch (IOException e) {
+        fail(e);
+        throw e;
+      } catch (RuntimeException e) {
+        fail(e);
+        throw e;
+      } catch (Error e) {
+        fail(e);
+        throw e;
+      }
+      return mergeChunks(chunkResults);
+    }
+
+    public void run() {
+      try {
+        sendChunks();
+      } catch (Throwable t) {
+        fail(t);
+      }
+    }
+
+    private void sendChunks() throws IOException {
+      while (true) {
+        int index;
+        synchronized (this) {
+          if (failure != null || nextChunk == chunks.size()) {
+            return;
+          }
+          index = nextChunk++;
+          chunksInFlight++;
+        }
+        try {
+          chunkResults[index] =
+              sendChunk(message, chunks.get(index), retries, deadline);
+        } finally {
+          synchronized (this) {
+            chunksInFlight--;
+            notifyAll();
+          }
+        }
+      }
+    }
+
+    /**
+     * Waits for the chunks being sent by the helpers, and rethrows the
+     * failure of any of them.
+     */
+    private synchronized void awaitChunks() throws IOException {
+      try {
+        while (chunksInFlight > 0 && failure == null) {
+          if (deadline == Long.MAX_VALUE) {
+            wait();
+          } else {
+            long timeout = deadline - System.currentTimeMillis();
+            if (timeout <= 0) {
+              throw new DeadlineExceededException(
+                  "Deadline expired sending message");
+            }
+            wait(timeout);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted sending message");
+      }
+      if (failure instanceof IOException) {
+        throw (IOException) failure;
+      }
+      if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      }
+      if (failure instanceof Error) {
+        throw (Error) failure;
+      }
+    }
+
+    /**
+     * Records the first failure, so no more chunks are sent.
+     */
+    private synchronized void fail(Throwable t) {
+      if (failure == null) {
+        failure = t;
+      }
+      notifyAll();
+    }
+  }
+
+  /**
+   * Request whose attempts are made by the executor, with a {@link Backoff}
+   * between them.
+   *
+   * <p>
+   * Each attempt first reserves capacity from the {@link RateLimiter} (if
+   * any), and is scheduled again after the delay it asks for instead of
+   * sleeping. It then takes a slot of the {@link ConcurrencyLimiter} (if
+   * any) without blocking: while the limit is reached, the request is queued
+   * by the limiter, and scheduled again once a slot is freed for it.
+   */
+  private abstract class AsyncRequest<T> implements Runnable {
+
+    private final SendFuture<T> future;
+    private final int retries;
+    private final long deadline;
+    private int attempt;
+    private Backoff backoff;
+    // limiter whose capacity was reserved for the next attempt (and the
+    // devices it was reserved for), if any
+    private RateLimiter reservation;
+    private List<String> reservedIds;
+    // limiter whose slot was taken for the next attempt, if any
+    private ConcurrencyLimiter slot;
+
+    AsyncRequest(SendFuture<T> future, int retries, long deadline) {
+      this.future = future;
+      this.retries = retries;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Makes a new attempt, setting the future when the request is done.
+     *
+     * @param attempt number of this attempt, starting at 1.
+     * @return whether the request is done.
+     */
+    abstract boolean attempt(int attempt) throws IOException;
+
+    /**
+     * Gets the devices the next attempt is sent to.
+     */
+    abstract List<String> getRegIds();
+
+    /**
+     * Gets the outcome of a request that ran out of retries (or whose
+     * deadline expired) without being done.
+     *
+     * @param attempts number of attempts made.
+     */
+    abstract T giveUp(int attempts) throws IOException;
+
+    void start() {
+      if (executor == null) {
+        throw new IllegalStateException(
+            "Sender must be created with an executor to send asynchronously");
+      }
+      schedule(0);
+    }
+
+    public void run() {
+      if (future.isDone()) {
+        // cancelled by the caller
+        cancelReservation();
+        cancelSlot();
+        return;
+      }
+      if (reservation == null && !reserve()) {
+        // scheduled again once the rate limiter allows it
+        return;
+      }
+      if (slot == null && !acquireSlot()) {
+        // scheduled again once a slot is freed
+        return;
+      }
+      if (backoff == null) {
+        // the retry deadline starts with the first attempt
+        backoff = new Backoff(deadline);
+      }
+      attempt++;
+      // the attempt is made with the deadline of the call, and uses the
+      // reservation and the slot, which are given back if it doesn't
+      Attempt context = new Attempt(deadline);
+      context.reservation = reservation;
+      context.reservedIds = reservedIds;
+      context.slot = slot;
+      reservation = null;
+      reservedIds = null;
+      slot = null;
+      try {
+        boolean done;
+        Attempt previous = enterAttempt(context);
+        try {
+          done = attempt(attempt);
+        } finally {
+          exitAttempt(context, previous);
+        }
+        if (done) {
+          return;
+        }
+        long delay = attempt <= retries ? backoff.nextDelay(context) : -1;
+        if (delay < 0) {
+          future.set(giveUp(attempt));
+        } else {
+          onRetry(attempt + 1, delay);
+          schedule(delay);
+        }
+      } catch (Exception e) {
+        future.setException(e);
+      }
+    }
+
+    /**
+     * Reserves capacity from the {@link RateLimiter} (if any) for the next
+     * attempt, or schedules it after the delay the limiter asks for.
+     *
+     * @return whether the attempt can be made right away.
+     */
+    private boolean reserve() {
+      RateLimiter limiter = rateLimiter;
+      if (limiter == null) {
+        return true;
+      }
+      List<String> regIds = getRegIds();
+      long delay = limiter.reserve(key, regIds);
+      if (delay > deadline - System.currentTimeMillis()) {
+        limiter.cancel(key, regIds);
+        future.setException(new DeadlineExceededException(
+            "Rate limiter delay of " + delay + "ms exceeds the deadline"));
+        return false;
+      }
+      reservation = limiter;
+      reservedIds = regIds;
+      if (delay <= 0) {
+        return true;
+      }
+      logger.finer("Scheduling attempt in " + delay +
+          "ms for the rate limiter");
+      schedule(delay);
+      return false;
+    }
+
+    private void cancelReservation() {
+      if (reservation != null) {
+        RateLimiter limiter = reservation;
+        reservation = null;
+        limiter.cancel(key, reservedIds);
+        reservedIds = null;
+      }
+    }
+
+    /**
+     * Takes a slot of the {@link ConcurrencyLimiter} (if any) for the next
+     * attempt, or queues the request until one is freed.
+     *
+     * @return whether the attempt can be made right away.
+     */
+    private boolean acquireSlot() {
+      final ConcurrencyLimiter concurrency = concurrencyLimiter;
+      if (concurrency == null) {
+        return true;
+      }
+      boolean acquired = concurrency.acquireOrQueue(new Runnable() {
+        public void run() {
+          slot = concurrency;
+          schedule(0);
+        }
+      });
+      if (acquired) {
+        slot = concurrency;
+      }
+      return acquired;
+    }
+
+    private void cancelSlot() {
+      if (slot != null) {
+        ConcurrencyLimiter concurrency = slot;
+        slot = null;
+        concurrency.cancel();
+      }
+    }
+
+    private void schedule(long delay) {
+      try {
+        if (delay == 0) {
+          executor.execute(this);
+        } else {
+          executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+      } catch (RejectedExecutionException e) {
+        cancelReservation();
+        cancelSlot();
+        future.setException(e);
+      }
+    }
+  }
+
+  /**
+   * Delays between the attempts of a request: exponential back-off with
+   * jitter, unless GCM asked for a longer delay through {@code Retry-After}
+   * (which is honored up to {@link #MAX_BACKOFF_DELAY}).
+   */
+  private final class Backoff {
+
+    private final long deadline;
+    private int backoff = BACKOFF_INITIAL_DELAY;
+
+    /**
+     * @param callDeadline deadline of the call, or {@link Long#MAX_VALUE} if
+     *        there is none.
+     */
+    Backoff(long callDeadline) {
+      long timeout = retryDeadline;
+      deadline = timeout == 0 ? callDeadline
+          : Math.min(callDeadline, System.currentTimeMillis() + timeout);
+    }
+
+    /**
+     * Gets the delay (in milliseconds) before the next attempt, based on the
+     * response of the last attempt.
+     *
+     * @return the delay, or {@literal -1} if the next attempt would be made
+     *         after the deadline.
+     */
+    long nextDelay(Attempt last) {
+      long delay = backoff / 2 + random.nextInt(backoff);
+      if (2 * backoff < MAX_BACKOFF_DELAY) {
+        backoff *= 2;
+      }
+      if (last.retryAfter >= 0) {
+        // the server can't make a call wait forever
+        delay = Math.max(delay, Math.min(last.retryAfter, MAX_BACKOFF_DELAY));
+      }
+      if (delay > deadline - System.currentTimeMillis()) {
+        logger.fine("Not retrying, as the retry deadline would be exceeded");
+        return -1;
+      }
+      return delay;
+    }
+  }
+
+  /**
+   * One attempt to send a request: the deadline of its call, the capacity
+   * and slot an {@link AsyncRequest} took for it, and what the request made
+   * with it reported back.
+   *
+   * <p>
+   * An attempt is created by the code retrying the request, which binds it
+   * to the current thread (see {@link #enterAttempt(Attempt)}) only while
+   * calling {@link #sendNoRetry(Message, List)} or
+   * {@link #sendNoRetry(Message, String)}, as those methods (and the
+   * {@code post()} and {@code getConnection()} methods they call) can be
+   * overridden; it is unbound, and what it holds is given back, in a
+   * {@code finally} block. Every other method gets it as a parameter.
+   */
+  private final class Attempt {
+
+    final long deadline;
+    // whether a request was made with this attempt; a nested one gets its own
+    boolean started;
+    // limiter whose capacity was reserved for the request (and the devices
+    // it was reserved for), if any
+    RateLimiter reservation;
+    List<String> reservedIds;
+    // limiter whose slot was taken for the request, if any
+    ConcurrencyLimiter slot;
+    // Retry-After (in milliseconds) of the response, or -1 if none
+    long retryAfter = -1;
+    // size (in bytes, after compression) of the request body, or -1 if
+    // unknown
+    int requestSize = -1;
+
+    /**
+     * @param deadline deadline of the call, or {@link Long#MAX_VALUE} if
+     *        there is none.
+     */
+    Attempt(long deadline) {
+      this.deadline = deadline;
+    }
+
+    /**
+     * Takes the capacity reserved for the request, if it was reserved from
+     * the given limiter.
+     */
+    boolean takeReservation(RateLimiter limiter) {
+      if (reservation != limiter) {
+        return false;
+      }
+      reservation = null;
+      reservedIds = null;
+      return true;
+    }
+
+    /**
+     * Takes the slot held for the request, if it was taken from the given
+     * limiter.
+     */
+    boolean takeSlot(ConcurrencyLimiter concurrency) {
+      if (slot != concurrency) {
+        return false;
+      }
+      slot = null;
+      return true;
+    }
+
+    /**
+     * Gives back the capacity and the slot that were not used, as no request
+     * was made.
+     */
+    void release() {
+      if (reservation != null) {
+        RateLimiter limiter = reservation;
+        reservation = null;
+        limiter.cancel(key, reservedIds);
+        reservedIds = null;
+      }
+      if (slot != null) {
+        ConcurrencyLimiter concurrency = slot;
+        slot = null;
+        concurrency.cancel();
+      }
+    }
+
+    /**
+     * Gets the time left (in milliseconds) before the deadline, or
+     * {@literal 0} if there is none.
+     *
+     * @throws DeadlineExceededException if the deadline expired.
+     */
+    int getTimeLeft() throws DeadlineExceededException {
+      if (deadline == Long.MAX_VALUE) {
+        return 0;
+      }
+      long left = deadline - System.currentTimeMillis();
+      if (left <= 0) {
+        throw new DeadlineExceededException(
+            "Deadline expired before sending request");
+      }
+      return (int) Math.min(left, Integer.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Binds an attempt to the current thread.
+   *
+   * @return the attempt bound before, to be restored through
+   *         {@link #exitAttempt(Attempt, Attempt)}.
+   */
+  private Attempt enterAttempt(Attempt attempt) {
+    Attempt previous = attempts.get();
+    attempts.set(attempt);
+    return previous;
+  }
+
+  /**
+   * Unbinds an attempt from the current thread, restoring the previous one,
+   * and gives back what the attempt did not use.
+   */
+  private void exitAttempt(Attempt attempt, Attempt previous) {
+    if (previous == null) {
+      attempts.remove();
+    } else {
+      attempts.set(previous);
+    }
+    attempt.release();
+  }
+
+  /**
+   * Gets the attempt a request is made with: the one bound to the current
+   * thread, unless there is none or it was already used, in which case a new
+   * one (with the same deadline, if any) is bound.
+   *
+   * @param bound attempt bound to the current thread, if any.
+   */
+  private Attempt startRequest(Attempt bound) {
+    Attempt attempt = bound;
+    if (attempt == null || attempt.started) {
+      attempt = new Attempt(bound == null ? Long.MAX_VALUE : bound.deadline);
+      enterAttempt(attempt);
+    }
+    attempt.started = true;
+    return attempt;
+  }
+
+  /**
+   * Ends a request made with an attempt got from
+   * {@link #startRequest(Attempt)}.
+   */
+  private void endRequest(Attempt attempt, Attempt bound) {
+    if (attempt != bound) {
+      exitAttempt(attempt, bound);
+    }
+  }
+
+  /**
+   * Takes a slot of the {@link ConcurrencyLimiter}, unless the attempt is an
+   * asynchronous one that already holds one.
+   *
+   * @return the time the request started, in nanoseconds.
+   */
+  private long acquire(Attempt attempt, ConcurrencyLimiter concurrency)
+      throws IOException {
+    if (attempt.takeSlot(concurrency)) {
+      return System.nanoTime();
+    }
+    return concurrency.acquire(attempt.deadline);
+  }
+
+  /**
+   * Ends a request that took a slot of the {@link ConcurrencyLimiter},
+   * leaving the limit as is if the request failed (without a response) only
+   * because the deadline of the call expired.
+   */
+  private void releaseSlot(Attempt attempt, ConcurrencyLimiter concurrency,
+      long permit, int status, List<Result> results, IOException failure) {
+    if (status == -1 && failure != null
+        && isDeadlineFailure(attempt, failure)) {
+      concurrency.cancel();
+    } else {
+      concurrency.release(permit, status, results);
+    }
+  }
+
+  /**
+   * Tells whether a request failed only because the deadline of the call
+   * expired, either before it was made or through a timeout shortened to the
+   * time that was left.
+   */
+  private static boolean isDeadlineFailure(Attempt attempt, IOException e) {
+    if (e instanceof DeadlineExceededException) {
+      return true;
+    }
+    return e instanceof SocketTimeoutException
+        && System.currentTimeMillis() >= attempt.deadline;
+  }
+
+  /**
+   * Ends a request checked by the {@link CircuitBreaker} (if any), letting
+   * another request probe GCM if this probe was not made.
+   */
+  private static void releaseProbe(CircuitBreaker breaker, long probe) {
+    if (breaker != null) {
+      breaker.release(probe);
+    }
+  }
+
+  /**
+   * Passes the registration changes found in the results of a request to the
+   * {@link RegistrationSink} (if any).
    */
-  protected static final int BACKOFF_INITIAL_DELAY = 1000;
+  private void updateRegistrations(List<String> regIds, List<Result> results) {
+    RegistrationSink sink = registrationSink;
+    if (sink == null) {
+      return;
+    }
+    List<RegistrationUpdate> updates = null;
+    int size = Math.min(regIds.size(), results.size());
+    for (int i = 0; i < size; i++) {
+      RegistrationUpdate update =
+          RegistrationUpdate.fromResult(regIds.get(i), results.get(i));
+      if (update != null) {
+        if (updates == null) {
+          updates = new ArrayList<RegistrationUpdate>();
+        }
+        updates.add(update);
+      }
+    }
+    if (updates != null) {
+      try {
+        sink.apply(updates);
+      } catch (RuntimeException e) {
+        logger.log(Level.SEVERE, "Failed to apply " + updates.size() +
+            " registration updates", e);
+      }
+    }
+  }
+
   /**
-   * Maximum delay before a retry.
+   * Notifies the {@link SendListener} (if any) that a request is made.
    */
-  protected static final int MAX_BACKOFF_DELAY = 1024000;
-
-  protected final Random random = new Random();
-  protected final Logger logger = Logger.getLogger(getClass().getName());
-
-  private final String key;
+  private static void onRequest(SendListener listener, int devices,
+      int bytes) {
+    if (listener != null) {
+      listener.onRequest(devices, bytes);
+    }
+  }
 
   /**
-   * Default constructor.
+   * Tells the {@link CircuitBreaker} and the {@link SendListener} (if any)
+   * that a request failed without a response.
    *
-   * @param key API key obtained through the Google API Console.
+   * <p>
+   * Failures due only to the deadline of the call are not held against GCM:
+   * the listener is notified, but the probe (if any) is just released once
+   * the request ends.
    */
-  public Sender(String key) {
-    this.key = nonNull(key);
+  private static void onRequestFailed(Attempt attempt, CircuitBreaker breaker,
+      long probe, SendListener listener, long start, IOException e) {
+    if (breaker != null && !isDeadlineFailure(attempt, e)) {
+      breaker.onFailure(probe);
+    }
+    if (listener != null) {
+      listener.onFailure(e, System.nanoTime() - start);
+    }
   }
 
   /**
-   * Sends a message to one device, retrying in case of unavailability.
-   *
-   * <p>
-   * <strong>Note: </strong> this method uses exponential back-off to retry in
-   * case of service unavailability and hence could block the calling thread
-   * for many seconds.
-   *
-   * @param message message to be sent, including the device's registration id.
-   * @param registrationId device where the message will be sent.
-   * @param retries number of retries in case of service unavailability errors.
-   *
-   * @return result of the request (see its javadoc for more details)
-   *
-   * @throws IllegalArgumentException if registrationId is {@literal null}.
-   * @throws InvalidRequestException if GCM didn't returned a 200 or 503 status.
-   * @throws IOException if message could not be sent.
+   * Notifies the {@link SendListener} (if any) that a request will be
+   * retried.
    */
-  public Result send(Message message, String registrationId, int retries)
-      throws IOException {
-    int attempt = 0;
-    Result result = null;
-    int backoff = BACKOFF_INITIAL_DELAY;
-    boolean tryAgain;
-    do {
-      attempt++;
-      if (logger.isLoggable(Level.FINE)) {
-        logger.fine("Attempt #" + attempt + " to send message " +
-            message + " to regIds " + registrationId);
-      }
-      result = sendNoRetry(message, registrationId);
-      tryAgain = result == null && attempt <= retries;
-      if (tryAgain) {
-        int sleepTime = backoff / 2 + random.nextInt(backoff);
-        sleep(sleepTime);
-        if (2 * backoff < MAX_BACKOFF_DELAY) {
-          backoff *= 2;
+  private void onRetry(int attempt, long delay) {
+    SendListener listener = sendListener;
+    if (listener != null) {
+      listener.onRetry(attempt, delay);
+    }
+  }
+
+  /**
+   * Makes a plain-text request to GCM, through the {@link Transport} if one
+   * was set, and notifies the {@link SendListener} (if any).
+   */
+  private Transport.Response postPlainText(Attempt attempt, String body,
+      SendListener listener) throws IOException {
+    Transport t = transport;
+    if (t == null) {
+      HttpURLConnection conn = null;
+      try {
+        conn = post(GCM_SEND_ENDPOINT, body);
+      } finally {
+        // the size is unknown if post() was overridden or failed to send it
+        int sent = attempt.requestSize;
+        if (sent < 0) {
+          sent = conn == null ? 0 : body.getBytes(UTF8).length;
         }
+        onRequest(listener, 1, sent);
       }
-    } while (tryAgain);
-    if (result == null) {
-      throw new IOException("Could not send message after " + attempt +
-          " attempts");
+      return new ConnectionResponse(conn);
     }
-    return result;
+    logger.finest("POST body: " + body);
+    byte[] bytes = body.getBytes(UTF8);
+    onRequest(listener, 1, bytes.length);
+    return t.post(GCM_SEND_ENDPOINT, FORM_CONTENT_TYPE, key, bytes,
+        bytes.length, attempt.getTimeLeft());
   }
 
   /**
-   * Sends a message without retrying in case of service unavailability. See
-   * {@link #send(Message, String, int)} for more info.
-   *
-   * @return result of the post, or {@literal null} if the GCM service was
-   *         unavailable.
-   *
-   * @throws InvalidRequestException if GCM didn't returned a 200 or 503 status.
-   * @throws IllegalArgumentException if registrationId is {@literal null}.
+   * Makes a JSON request to GCM, through the {@link Transport} if one was
+   * set, and notifies the {@link SendListener} (if any).
    */
-  public Result sendNoRetry(Message message, String registrationId)
-      throws IOException {
-    StringBuilder body = newBody(PARAM_REGISTRATION_ID, registrationId);
-    Boolean delayWhileIdle = message.isDelayWhileIdle();
-    if (delayWhileIdle != null) {
-      addParameter(body, PARAM_DELAY_WHILE_IDLE, delayWhileIdle ? "1" : "0");
-    }
-    String collapseKey = message.getCollapseKey();
-    if (collapseKey != null) {
-      addParameter(body, PARAM_COLLAPSE_KEY, collapseKey);
+  private Transport.Response postJson(Attempt attempt, byte[] body,
+      int length, SendListener listener, int devices) throws IOException {
+    Transport t = transport;
+    if (t == null) {
+      HttpURLConnection conn = null;
+      try {
+        conn = post(GCM_SEND_ENDPOINT, JSON_CONTENT_TYPE, body, length);
+      } finally {
+        // the size is unknown if post() was overridden or failed to send it
+        int sent = attempt.requestSize;
+        if (sent < 0) {
+          sent = conn == null ? 0 : length;
+        }
+        onRequest(listener, devices, sent);
+      }
+      return new ConnectionResponse(conn);
     }
-    Integer timeToLive = message.getTimeToLive();
-    if (timeToLive != null) {
-      addParameter(body, PARAM_TIME_TO_LIVE, Integer.toString(timeToLive));
+    onRequest(listener, devices, length);
+    return t.post(GCM_SEND_ENDPOINT, JSON_CONTENT_TYPE, key, body, length,
+        attempt.getTimeLeft());
+  }
+
+  /**
+   * Response of a request made through {@link #post(String, String, byte[],
+   * int)}.
+   */
+  private final class ConnectionResponse implements Transport.Response {
+
+    private final HttpURLConnection conn;
+    private int status = -1;
+
+    ConnectionResponse(HttpURLConnection conn) {
+      this.conn = conn;
     }
-    for (Entry<String, String> entry : message.getData().entrySet()) {
-      String key = PARAM_PAYLOAD_PREFIX + entry.getKey();
-      String value = entry.getValue();
-      addParameter(body, key, URLEncoder.encode(value, UTF8));
+
+    public int getStatus() throws IOException {
+      if (status == -1) {
+        status = conn.getResponseCode();
+      }
+      return status;
     }
-    String requestBody = body.toString();
-    logger.finest("Request body: " + requestBody);
-    HttpURLConnection conn = post(GCM_SEND_ENDPOINT, requestBody);
-    int status = conn.getResponseCode();
-    if (status == 503) {
-      logger.fine("GCM service is unavailable");
-      return null;
+
+    public String getHeader(String name) {
+      return conn.getHeaderField(name);
     }
-    if (status != 200) {
-      throw new InvalidRequestException(status);
+
+    public InputStream getBody() throws IOException {
+      // HTTP errors are returned on the error stream
+      InputStream body = getStatus() == 200 ? conn.getInputStream()
+          : conn.getErrorStream();
+      if (body != null && GZIP_ENCODING.equalsIgnoreCase(
+          conn.getContentEncoding())) {
+        body = new GZIPInputStream(body);
+      }
+      return body;
     }
-    try {
-      BufferedReader reader =
-          new BufferedReader(new InputStreamReader(conn.getInputStream()));
-      try {
-        String line = reader.readLine();
-
-        if (line == null || line.equals("")) {
-          throw new IOException("Received empty response from GCM service.");
-        }
-        String[] responseParts = split(line);
-        String token = responseParts[0];
-        String value = responseParts[1];
-        if (token.equals(TOKEN_MESSAGE_ID)) {
-          Builder builder = new Result.Builder().messageId(value);
-          // check for canonical registration id
-          line = reader.readLine();
-          if (line != null) {
-            responseParts = split(line);
-            token = responseParts[0];
-            value = responseParts[1];
-            if (token.equals(TOKEN_CANONICAL_REG_ID)) {
-              builder.canonicalRegistrationId(value);
-            } else {
-              logger.warning("Received invalid second line from GCM: " + line);
-            }
-          }
 
-          Result result = builder.build();
-          if (logger.isLoggable(Level.FINE)) {
-            logger.fine("Message created succesfully (" + result + ")");
-          }
-          return result;
-        } else if (token.equals(TOKEN_ERROR)) {
-          return new Result.Builder().errorCode(value).build();
-        } else {
-          throw new IOException("Received invalid response from GCM: " + line);
-        }
-      } finally {
-        reader.close();
+    public void close() {
+      if (status == -1) {
+        // the request failed, or its response was never read
+        discardConnection(conn);
+      } else {
+        releaseConnection(conn);
       }
-    } finally {
-      conn.disconnect();
     }
   }
 
   /**
-   * Sends a message to many devices, retrying in case of unavailability.
-   *
-   * <p>
-   * <strong>Note: </strong> this method uses exponential back-off to retry in
-   * case of service unavailability and hence could block the calling thread
-   * for many seconds.
-   *
-   * @param message message to be sent.
-   * @param regIds registration id of the devices that will receive
-   *        the message.
-   * @param retries number of retries in case of service unavailability errors.
-   *
-   * @return combined result of all requests made.
-   *
-   * @throws IllegalArgumentException if registrationIds is {@literal null} or
-   *         empty.
-   * @throws InvalidRequestException if GCM didn't returned a 200 or 503 status.
-   * @throws IOException if message could not be sent.
+   * Gets the status of a response, telling the {@link CircuitBreaker} (if
+   * any) whether GCM failed, notifying the {@link SendListener} (if any), and
+   * keeping its {@code Retry-After}.
    */
-  public MulticastResult send(Message message, List<String> regIds, int retries)
+  private int getStatus(Attempt attempt, Transport.Response response,
+      CircuitBreaker breaker, long probe, SendListener listener, long start)
       throws IOException {
-    int attempt = 0;
-    MulticastResult multicastResult = null;
-    int backoff = BACKOFF_INITIAL_DELAY;
-    // Map of results by registration id, it will be updated after each attempt
-    // to send the messages
-    Map<String, Result> results = new HashMap<String, Result>();
-    List<String> unsentRegIds = new ArrayList<String>(regIds);
-    boolean tryAgain;
-    List<Long> multicastIds = new ArrayList<Long>();
-    do {
-      attempt++;
-      if (logger.isLoggable(Level.FINE)) {
-        logger.fine("Attempt #" + attempt + " to send message " +
-            message + " to regIds " + unsentRegIds);
-      }
-      multicastResult = sendNoRetry(message, unsentRegIds);
-      long multicastId = multicastResult.getMulticastId();
-      logger.fine("multicast_id on attempt # " + attempt + ": " +
-          multicastId);
-      multicastIds.add(multicastId);
-      unsentRegIds = updateStatus(unsentRegIds, results, multicastResult);
-      tryAgain = !unsentRegIds.isEmpty() && attempt <= retries;
-      if (tryAgain) {
-        int sleepTime = backoff / 2 + random.nextInt(backoff);
-        sleep(sleepTime);
-        if (2 * backoff < MAX_BACKOFF_DELAY) {
-          backoff *= 2;
-        }
-      }
-    } while (tryAgain);
-    // calculate summary
-    int success = 0, failure = 0 , canonicalIds = 0;
-    for (Result result : results.values()) {
-      if (result.getMessageId() != null) {
-        success++;
-        if (result.getCanonicalRegistrationId() != null) {
-          canonicalIds++;
-        }
+    int status;
+    try {
+      status = response.getStatus();
+    } catch (IOException e) {
+      onRequestFailed(attempt, breaker, probe, listener, start, e);
+      throw e;
+    }
+    if (listener != null) {
+      listener.onResponse(status, System.nanoTime() - start,
+          getContentLength(response));
+    }
+    if (breaker != null) {
+      if (status >= 500) {
+        breaker.onFailure(probe);
       } else {
-        failure++;
+        breaker.onSuccess(probe);
       }
     }
-    // build a new object with the overall result
-    long multicastId = multicastIds.remove(0);
-    MulticastResult.Builder builder = new MulticastResult.Builder(success,
-        failure, canonicalIds, multicastId).retryMulticastIds(multicastIds);
-    // add results, in the same order as the input
-    for (String regId : regIds) {
-      Result result = results.get(regId);
-      builder.addResult(result);
-    }
-    return builder.build();
+    updateRetryAfter(attempt, response);
+    return status;
   }
 
   /**
-   * Updates the status of the messages sent to devices and the list of devices
-   * that should be retried.
-   *
-   * @param unsentRegIds list of devices that are still pending an update.
-   * @param allResults map of status that will be updated.
-   * @param multicastResult result of the last multicast sent.
-   *
-   * @return updated version of devices that should be retried.
+   * Gets the size of a response body, as announced by its
+   * {@code Content-Length}, or {@literal -1} if unknown.
    */
-  private List<String> updateStatus(List<String> unsentRegIds,
-      Map<String, Result> allResults, MulticastResult multicastResult) {
-    List<Result> results = multicastResult.getResults();
-    if (results.size() != unsentRegIds.size()) {
-      // should never happen, unless there is a flaw in the algorithm
-      throw new RuntimeException("Internal error: sizes do not match. " +
-          "currentResults: " + results + "; unsentRegIds: " + unsentRegIds);
-    }
-    List<String> newUnsentRegIds = new ArrayList<String>();
-    for (int i = 0; i < unsentRegIds.size(); i++) {
-      String regId = unsentRegIds.get(i);
-      Result result = results.get(i);
-      allResults.put(regId, result);
-      String error = result.getErrorCodeName();
-      if (error != null && error.equals(Constants.ERROR_UNAVAILABLE)) {
-        newUnsentRegIds.add(regId);
+  private static long getContentLength(Transport.Response response) {
+    String value = response.getHeader(HEADER_CONTENT_LENGTH);
+    if (value != null) {
+      try {
+        return Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        // fall through
       }
     }
-    return newUnsentRegIds;
+    return -1;
   }
 
   /**
-   * Sends a message without retrying in case of service unavailability. See
-   * {@link #send(Message, List, int)} for more info.
-   *
-   * @return {@literal true} if the message was sent successfully,
-   *         {@literal false} if it failed but could be retried.
+   * Keeps the {@code Retry-After} of a response (if any) in its attempt, so
+   * the next {@link Backoff} delay honors it.
+   */
+  private void updateRetryAfter(Attempt attempt, Transport.Response response) {
+    long retryAfter = parseRetryAfter(response.getHeader(HEADER_RETRY_AFTER),
+        System.currentTimeMillis());
+    if (retryAfter >= 0) {
+      logger.fine("GCM asked to retry after " + retryAfter + "ms");
+    }
+    attempt.retryAfter = retryAfter;
+  }
+
+  /**
+   * Parses the value of a {@code Retry-After} header, which is either a
+   * number of seconds or an HTTP date.
    *
-   * @throws IllegalArgumentException if registrationIds is {@literal null} or
-   *         empty.
-   * @throws InvalidRequestException if GCM didn't returned a 200 status.
-   * @throws IOException if message could not be sent or received.
+   * @param value value of the header, or {@literal null}.
+   * @param now current time, used to compute the delay of dates.
+   * @return delay in milliseconds (saturated to {@link Long#MAX_VALUE}), or
+   *         {@literal -1} if the value is {@literal null} or invalid.
    */
-  public MulticastResult sendNoRetry(Message message,
-      List<String> registrationIds) throws IOException {
-    if (nonNull(registrationIds).isEmpty()) {
-      throw new IllegalArgumentException("registrationIds cannot be empty");
+  static long parseRetryAfter(String value, long now) {
+    if (value == null) {
+      return -1;
     }
-    Map<Object, Object> jsonRequest = new HashMap<Object, Object>();
-    setJsonField(jsonRequest, PARAM_TIME_TO_LIVE, message.getTimeToLive());
-    setJsonField(jsonRequest, PARAM_COLLAPSE_KEY, message.getCollapseKey());
-    setJsonField(jsonRequest, PARAM_DELAY_WHILE_IDLE,
-        message.isDelayWhileIdle());
-    jsonRequest.put(JSON_REGISTRATION_IDS, registrationIds);
-    Map<String, String> payload = message.getData();
-    if (!payload.isEmpty()) {
-      jsonRequest.put(JSON_PAYLOAD, payload);
-    }
-    String requestBody = JSONValue.toJSONString(jsonRequest);
-    logger.finest("JSON request: " + requestBody);
-    HttpURLConnection conn =
-        post(GCM_SEND_ENDPOINT, "application/json", requestBody);
-    int status = conn.getResponseCode();
-    String responseBody;
-    if (status != 200) {
-      responseBody = getString(conn.getErrorStream());
-      logger.finest("JSON error response: " + responseBody);
-      throw new InvalidRequestException(status, responseBody);
-    }
-    responseBody = getString(conn.getInputStream());
-    logger.finest("JSON response: " + responseBody);
-    JSONParser parser = new JSONParser();
-    JSONObject jsonResponse;
+    value = value.trim();
     try {
-      jsonResponse = (JSONObject) parser.parse(responseBody);
-      int success = getNumber(jsonResponse, JSON_SUCCESS).intValue();
-      int failure = getNumber(jsonResponse, JSON_FAILURE).intValue();
-      int canonicalIds = getNumber(jsonResponse, JSON_CANONICAL_IDS).intValue();
-      long multicastId = getNumber(jsonResponse, JSON_MULTICAST_ID).longValue();
-      MulticastResult.Builder builder = new MulticastResult.Builder(success,
-          failure, canonicalIds, multicastId);
-      @SuppressWarnings("unchecked")
-      List<Map<String, Object>> results =
-          (List<Map<String, Object>>) jsonResponse.get(JSON_RESULTS);
-      if (results != null) {
-        for (Map<String, Object> jsonResult : results) {
-          String messageId = (String) jsonResult.get(JSON_MESSAGE_ID);
-          String canonicalRegId =
-              (String) jsonResult.get(TOKEN_CANONICAL_REG_ID);
-          String error = (String) jsonResult.get(JSON_ERROR);
-          Result result = new Result.Builder()
-              .messageId(messageId)
-              .canonicalRegistrationId(canonicalRegId)
-              .errorCode(error)
-              .build();
-          builder.addResult(result);
-        }
+      long seconds = Long.parseLong(value);
+      if (seconds < 0) {
+        return -1;
       }
-      MulticastResult multicastResult = builder.build();
-      return multicastResult;
+      return seconds > Long.MAX_VALUE / 1000 ? Long.MAX_VALUE : seconds * 1000;
+    } catch (NumberFormatException e) {
+      // must be a date then
+    }
+    // SimpleDateFormat is not thread safe
+    DateFormat format =
+        new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    try {
+      return Math.max(0, format.parse(value).getTime() - now);
     } catch (ParseException e) {
-      throw newIoException(responseBody, e);
-    } catch (CustomParserException e) {
-      throw newIoException(responseBody, e);
+      return -1;
     }
   }
 
-  private IOException newIoException(String responseBody, Exception e) {
-    // log exception, as IOException constructor that takes a message and cause
-    // is only available on Java 6
-    String msg = "Error parsing JSON response (" + responseBody + ")";
-    logger.log(Level.WARNING, msg, e);
-    return new IOException(msg + ":" + e);
-  }
-
   /**
-   * Sets a JSON field, but only if the value is not {@literal null}.
+   * Gets the {@link JsonWriter} used by the current thread to build requests.
    */
-  private void setJsonField(Map<Object, Object> json, String field,
-      Object value) {
-    if (value != null) {
-      json.put(field, value);
+  private JsonWriter newJsonWriter() {
+    JsonWriter json = jsonWriters.get();
+    if (json == null) {
+      json = new JsonWriter(INITIAL_REQUEST_BUFFER_SIZE);
+      jsonWriters.set(json);
     }
+    return json.reset();
   }
 
-  private Number getNumber(Map<?, ?> json, String field) {
-    Object value = json.get(field);
-    if (value == null) {
-      throw new CustomParserException("Missing field: " + field);
-    }
-    if (!(value instanceof Number)) {
-      throw new CustomParserException("Field " + field +
-          " does not contain a number: " + value);
+  /**
+   * Releases the buffer of a {@link JsonWriter} after its request was sent,
+   * unless it grew too big to be kept around.
+   */
+  private void releaseJsonWriter(JsonWriter json) {
+    if (json.getBuffer().length > MAX_REQUEST_BUFFER_SIZE) {
+      jsonWriters.remove();
     }
-    return (Number) value;
   }
 
-  class CustomParserException extends RuntimeException {
-    CustomParserException(String message) {
-      super(message);
+  /**
+   * Gets the {@link GzipEncoder} used by the current thread to compress
+   * requests.
+   */
+  private GzipEncoder getGzipEncoder() {
+    GzipEncoder gzip = gzipEncoders.get();
+    if (gzip == null) {
+      gzip = new GzipEncoder(Deflater.BEST_SPEED, INITIAL_GZIP_BUFFER_SIZE);
+      gzipEncoders.set(gzip);
     }
+    return gzip;
   }
 
   private String[] split(String line) throws IOException {
@@ -455,30 +2494,100 @@ public class Sender {
    */
   protected HttpURLConnection post(String url, String body)
       throws IOException {
-    return post(url, "application/x-www-form-urlencoded;charset=UTF-8", body);
+    return post(url, FORM_CONTENT_TYPE, body);
   }
 
+  /**
+   * Make an HTTP post to a given URL, with a given content type.
+   *
+   * @return HTTP response.
+   *
+   * @deprecated only plain-text requests (see {@link #post(String, String)})
+   *             are still made through this method; JSON requests are written
+   *             as bytes and made through
+   *             {@link #post(String, String, byte[], int)}, which this method
+   *             calls. Subclasses adding headers or authentication should
+   *             override that method instead, so they see all requests.
+   */
+  @Deprecated
   protected HttpURLConnection post(String url, String contentType, String body)
       throws IOException {
     if (url == null || body == null) {
       throw new IllegalArgumentException("arguments cannot be null");
     }
+    logger.finest("POST body: " + body);
+    byte[] bytes = body.getBytes(UTF8);
+    return post(url, contentType, bytes, bytes.length);
+  }
+
+  /**
+   * Make an HTTP post to a given URL, whose body is given by the first
+   * {@code length} bytes of an array.
+   *
+   * <p>
+   * All requests made to GCM (without a {@link Transport}) go through this
+   * method, which makes it the one to override to change them.
+   *
+   * @return HTTP response.
+   */
+  protected HttpURLConnection post(String url, String contentType,
+      byte[] body, int length) throws IOException {
+    if (url == null || body == null) {
+      throw new IllegalArgumentException("arguments cannot be null");
+    }
     if (!url.startsWith("https://")) {
       logger.warning("URL does not use https: " + url);
     }
     logger.fine("Sending POST to " + url);
-    logger.finest("POST body: " + body);
-    byte[] bytes = body.getBytes();
+    int threshold = compressionThreshold;
+    GzipEncoder gzip = null;
+    if (threshold > 0 && length >= threshold) {
+      gzip = getGzipEncoder().encode(body, length);
+      if (logger.isLoggable(Level.FINEST)) {
+        logger.finest("Compressed request body from " + length + " to " +
+            gzip.size() + " bytes");
+      }
+      body = gzip.getBuffer();
+      length = gzip.size();
+    }
+    Attempt attempt = attempts.get();
+    if (attempt != null) {
+      // no connection must exist if the deadline expired, as releasing it
+      // would send the request anyway
+      checkDeadline(attempt);
+    }
     HttpURLConnection conn = getConnection(url);
+    setTimeouts(conn, attempt);
     conn.setDoOutput(true);
     conn.setUseCaches(false);
-    conn.setFixedLengthStreamingMode(bytes.length);
+    conn.setFixedLengthStreamingMode(length);
     conn.setRequestMethod("POST");
     conn.setRequestProperty("Content-Type", contentType);
     conn.setRequestProperty("Authorization", "key=" + key);
-    OutputStream out = conn.getOutputStream();
-    out.write(bytes);
-    out.close();
+    if (threshold > 0) {
+      conn.setRequestProperty(HEADER_ACCEPT_ENCODING, GZIP_ENCODING);
+    }
+    if (gzip != null) {
+      conn.setRequestProperty(HEADER_CONTENT_ENCODING, GZIP_ENCODING);
+    }
+    try {
+      OutputStream out = conn.getOutputStream();
+      out.write(body, 0, length);
+      if (attempt != null) {
+        // only known once the connection is leased and the body written
+        attempt.requestSize = length;
+      }
+      out.close();
+    } catch (IOException e) {
+      discardConnection(conn);
+      throw e;
+    } finally {
+      if (gzip != null && gzip.getBuffer().length > MAX_REQUEST_BUFFER_SIZE) {
+        // don't wait for the finalizer to free the deflater
+        gzip.close();
+        gzipEncoders.remove();
+      }
+    }
     return conn;
   }
 
@@ -518,12 +2627,83 @@ public class Sender {
 
   /**
    * Gets an {@link HttpURLConnection} given an URL.
+   *
+   * <p>
+   * If a {@link ConnectionPool} was set, the connection is obtained from it,
+   * waiting no longer than the deadline of the call (if any).
    */
   protected HttpURLConnection getConnection(String url) throws IOException {
+    ConnectionPool pool = connectionPool;
+    if (pool != null) {
+      Attempt attempt = attempts.get();
+      return pool.getConnection(url,
+          attempt == null ? 0 : attempt.getTimeLeft());
+    }
     HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
     return conn;
   }
 
+  /**
+   * Sets the timeouts of a connection that don't come from the
+   * {@link ConnectionPool}, and shortens them to the time left before the
+   * deadline of the attempt (if any).
+   *
+   * @throws DeadlineExceededException if the deadline expired while the
+   *         connection was obtained, in which case it is discarded before
+   *         it connects.
+   */
+  private void setTimeouts(HttpURLConnection conn, Attempt attempt)
+      throws IOException {
+    int connect = conn.getConnectTimeout();
+    int read = conn.getReadTimeout();
+    if (connect == 0) {
+      connect = connectTimeout;
+    }
+    if (read == 0) {
+      read = readTimeout;
+    }
+    int max;
+    try {
+      max = attempt == null ? 0 : attempt.getTimeLeft();
+    } catch (DeadlineExceededException e) {
+      discardConnection(conn);
+      throw e;
+    }
+    if (max > 0) {
+      connect = connect == 0 ? max : Math.min(connect, max);
+      read = read == 0 ? max : Math.min(read, max);
+    }
+    conn.setConnectTimeout(connect);
+    conn.setReadTimeout(read);
+  }
+
+  /**
+   * Releases a connection once its response has been read, returning it to
+   * the {@link ConnectionPool} (if any) or disconnecting it otherwise.
+   */
+  protected void releaseConnection(HttpURLConnection conn) {
+    ConnectionPool pool = connectionPool;
+    if (pool != null) {
+      pool.release(conn);
+    } else {
+      conn.disconnect();
+    }
+  }
+
+  /**
+   * Discards a connection that failed before its response was read, only
+   * disconnecting it: reading its response would make it send the request
+   * again.
+   */
+  private void discardConnection(HttpURLConnection conn) {
+    ConnectionPool pool = connectionPool;
+    if (pool != null) {
+      pool.discard(conn);
+    } else {
+      conn.disconnect();
+    }
+  }
+
   /**
    * Convenience method to convert an InputStream to a String.
    *
@@ -555,6 +2735,55 @@ public class Sender {
     return argument;
   }
 
+  /**
+   * Reserves capacity for a request from the {@link RateLimiter} and waits
+   * as told, unless the wait would exceed the deadline of the call, in which
+   * case the reservation is cancelled, unless the attempt is an
+   * asynchronous one whose capacity was already reserved.
+   */
+  private void waitFor(Attempt attempt, RateLimiter limiter,
+      List<String> regIds) throws DeadlineExceededException {
+    if (attempt.takeReservation(limiter)) {
+      return;
+    }
+    long millis = limiter.reserve(key, regIds);
+    if (millis > attempt.deadline - System.currentTimeMillis()) {
+      limiter.cancel(key, regIds);
+      throw new DeadlineExceededException("Rate limiter delay of " + millis +
+          "ms exceeds the deadline");
+    }
+    if (millis > 0) {
+      logger.finer("Waiting " + millis + "ms for the rate limiter");
+      sleep(millis);
+    }
+  }
+
+  /**
+   * Converts a timeout to a deadline (in milliseconds since the epoch).
+   *
+   * @throws IllegalArgumentException if the timeout is not positive.
+   */
+  private static long toDeadline(long timeout, TimeUnit unit) {
+    if (timeout <= 0) {
+      throw new IllegalArgumentException("timeout must be positive");
+    }
+    long millis = nonNull(unit).toMillis(timeout);
+    long now = System.currentTimeMillis();
+    return millis >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + millis;
+  }
+
+  /**
+   * Checks that the deadline of an attempt (if any) did not expire.
+   */
+  private static void checkDeadline(Attempt attempt)
+      throws DeadlineExceededException {
+    long deadline = attempt.deadline;
+    if (deadline != Long.MAX_VALUE && System.currentTimeMillis() >= deadline) {
+      throw new DeadlineExceededException(
+          "Deadline expired before sending request");
+    }
+  }
+
   void sleep(long millis) {
     try {
       Thread.sleep(millis);
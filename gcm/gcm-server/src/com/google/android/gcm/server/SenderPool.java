@@ -0,0 +1,265 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import com.google.android.gcm.server.ChunkDispatcher.ChunkQueue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Sends messages on behalf of many applications, each with its own API key,
+ * without letting a big campaign of one of them starve the others.
+ *
+ * <p>
+ * Each key (see {@link #addKey(String, int, int, double)}) gets its own
+ * {@link Sender}, all of them sharing the same executor and, if set, the same
+ * {@link ConnectionPool} and {@link RateLimiter}; each key can also have its
+ * own rate, enforced on top of the shared limiter.
+ * Messages are split in chunks of up to {@link Constants#MULTICAST_SIZE}
+ * devices, and at most a given number of chunks are in flight at the same
+ * time, overall and for each key. When a chunk completes, the next one is
+ * picked through start-time fair queuing: each key gets a share of the
+ * devices sent to proportional to its weight, as long as it has chunks
+ * waiting.
+ *
+ * <p>
+ * Instances of this class are thread safe.
+ */
+public final class SenderPool {
+
+  private final ScheduledExecutorService executor;
+  private final ChunkDispatcher dispatcher;
+
+  // guarded by this
+  private final Map<String, ChunkQueue> queues =
+      new HashMap<String, ChunkQueue>();
+  private final Map<String, KeyRateLimiter> keyLimiters =
+      new HashMap<String, KeyRateLimiter>();
+  private ConnectionPool connectionPool;
+  private RateLimiter rateLimiter;
+
+  /**
+   * Default constructor.
+   *
+   * @param executor executor used to make the requests and to schedule their
+   *        retries.
+   * @param maxChunksInFlight maximum number of chunks (of any key) being sent
+   *        at the same time.
+   *
+   * @throws IllegalArgumentException if executor is {@literal null} or
+   *         maxChunksInFlight is not positive.
+   */
+  public SenderPool(ScheduledExecutorService executor, int maxChunksInFlight) {
+    this.executor = Sender.nonNull(executor);
+    dispatcher = new ChunkDispatcher(maxChunksInFlight, 1);
+  }
+
+  /**
+   * Sets the pool of persistent connections shared by the senders of all
+   * keys.
+   */
+  public synchronized void setConnectionPool(ConnectionPool connectionPool) {
+    this.connectionPool = connectionPool;
+    for (ChunkQueue queue : queues.values()) {
+      queue.sender.setConnectionPool(connectionPool);
+    }
+  }
+
+  /**
+   * Sets the rate limiter shared by the senders of all keys.
+   */
+  public synchronized void setRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+    for (Map.Entry<String, ChunkQueue> entry : queues.entrySet()) {
+      KeyRateLimiter keyLimiter = keyLimiters.get(entry.getKey());
+      if (keyLimiter != null) {
+        keyLimiter.shared = rateLimiter;
+      } else {
+        entry.getValue().sender.setRateLimiter(rateLimiter);
+      }
+    }
+  }
+
+  /**
+   * Adds an API key to the pool.
+   *
+   * @param apiKey API key obtained through the Google API Console.
+   * @param weight share of the devices sent to that this key gets when other
+   *        keys have messages waiting, relative to their weights.
+   * @param maxChunksInFlight maximum number of chunks of this key being sent
+   *        at the same time.
+   *
+   * @return the sender of the key, which can be further configured.
+   *
+   * @throws IllegalArgumentException if apiKey is {@literal null} or was
+   *         already added, or if weight or maxChunksInFlight are not
+   *         positive.
+   */
+  public Sender addKey(String apiKey, int weight, int maxChunksInFlight) {
+    return addKey(apiKey, weight, maxChunksInFlight, 0);
+  }
+
+  /**
+   * Adds an API key to the pool, limiting the rate of its messages.
+   *
+   * <p>
+   * The rate is enforced by a limiter of the key, on top of the limiter
+   * shared by all keys (if any): replacing the rate limiter of the returned
+   * sender drops both.
+   *
+   * @param apiKey API key obtained through the Google API Console.
+   * @param weight share of the devices sent to that this key gets when other
+   *        keys have messages waiting, relative to their weights.
+   * @param maxChunksInFlight maximum number of chunks of this key being sent
+   *        at the same time.
+   * @param rate maximum number of messages per second sent with this key, or
+   *        {@literal 0} for no limit other than the shared one.
+   *
+   * @return the sender of the key, which can be further configured.
+   *
+   * @throws IllegalArgumentException if apiKey is {@literal null} or was
+   *         already added, if weight or maxChunksInFlight are not positive,
+   *         or if rate is negative.
+   */
+  public Sender addKey(String apiKey, int weight, int maxChunksInFlight,
+      double rate) {
+    if (!(rate >= 0)) {
+      throw new IllegalArgumentException("rate cannot be negative");
+    }
+    Sender sender = new Sender(apiKey, executor);
+    KeyRateLimiter keyLimiter = rate > 0 ? new KeyRateLimiter(
+        new TokenBucketRateLimiter.Builder().keyRate(rate).build()) : null;
+    synchronized (this) {
+      sender.setConnectionPool(connectionPool);
+      if (keyLimiter != null) {
+        keyLimiter.shared = rateLimiter;
+        sender.setRateLimiter(keyLimiter);
+      } else {
+        sender.setRateLimiter(rateLimiter);
+      }
+      addSender(apiKey, sender, weight, maxChunksInFlight);
+      if (keyLimiter != null) {
+        keyLimiters.put(apiKey, keyLimiter);
+      }
+    }
+    return sender;
+  }
+
+  /**
+   * Adds an API key with a given sender.
+   */
+  synchronized void addSender(String apiKey, Sender sender, int weight,
+      int maxChunksInFlight) {
+    if (queues.containsKey(Sender.nonNull(apiKey))) {
+      throw new IllegalArgumentException("API key already added");
+    }
+    queues.put(apiKey,
+        dispatcher.addQueue(sender, 0, weight, maxChunksInFlight));
+  }
+
+  /**
+   * Gets the sender of a key, or {@literal null} if the key was not added.
+   */
+  public synchronized Sender getSender(String apiKey) {
+    ChunkQueue queue = queues.get(apiKey);
+    return queue == null ? null : queue.sender;
+  }
+
+  /**
+   * Sends a message to many devices asynchronously, on behalf of a key; see
+   * {@link Sender#sendAsync(Message, List, int)} for more info.
+   *
+   * @param apiKey key of the application sending the message.
+   * @param message message to be sent.
+   * @param regIds registration id of the devices that will receive
+   *        the message.
+   * @param retries number of retries in case of service unavailability errors.
+   *
+   * @return future holding the combined result of all requests made.
+   *
+   * @throws IllegalArgumentException if the key was not added, or if
+   *         registrationIds is {@literal null} or empty.
+   */
+  public SendFuture<MulticastResult> send(String apiKey, Message message,
+      List<String> regIds, int retries) {
+    ChunkQueue queue;
+    synchronized (this) {
+      queue = queues.get(apiKey);
+    }
+    if (queue == null) {
+      throw new IllegalArgumentException("Unknown API key");
+    }
+    return dispatcher.send(queue, message, regIds, retries);
+  }
+
+  /**
+   * Gets the number of chunks waiting to be sent.
+   */
+  public int getQueuedChunks() {
+    return dispatcher.getQueuedChunks();
+  }
+
+  /**
+   * Gets the number of chunks being sent.
+   */
+  public int getChunksInFlight() {
+    return dispatcher.getChunksInFlight();
+  }
+
+  /**
+   * Limiter of a key, which also reserves capacity from the limiter shared
+   * by all keys.
+   */
+  private static final class KeyRateLimiter implements RateLimiter {
+
+    private final RateLimiter own;
+    volatile RateLimiter shared;
+
+    KeyRateLimiter(RateLimiter own) {
+      this.own = own;
+    }
+
+    public long reserve(String apiKey, List<String> registrationIds) {
+      long wait = own.reserve(apiKey, registrationIds);
+      RateLimiter limiter = shared;
+      if (limiter != null) {
+        wait = Math.max(wait, limiter.reserve(apiKey, registrationIds));
+      }
+      return wait;
+    }
+
+    public void cancel(String apiKey, List<String> registrationIds) {
+      own.cancel(apiKey, registrationIds);
+      RateLimiter limiter = shared;
+      if (limiter != null) {
+        limiter.cancel(apiKey, registrationIds);
+      }
+    }
+
+    public void onResults(String apiKey, List<String> registrationIds,
+        List<Result> results) {
+      own.onResults(apiKey, registrationIds, results);
+      RateLimiter limiter = shared;
+      if (limiter != null) {
+        limiter.onResults(apiKey, registrationIds, results);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.Constants.ERROR_DEVICE_QUOTA_EXCEEDED;
+import static com.google.android.gcm.server.Constants.ERROR_QUOTA_EXCEEDED;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * {@link RateLimiter} based on token buckets, with an optional limit for all
+ * messages, for the messages of each API key, and for the messages of each
+ * device.
+ *
+ * <p>
+ * Each bucket holds up to one second worth of messages, so short bursts are
+ * sent right away. Once a bucket is empty, requests are spaced according to
+ * its rate.
+ *
+ * <p>
+ * When GCM returns {@link Constants#ERROR_QUOTA_EXCEEDED}, the rates of all
+ * messages and of the API key are halved (down to 1/16 of the configured
+ * rate); similarly, {@link Constants#ERROR_DEVICE_QUOTA_EXCEEDED} halves the
+ * rate of that device. A tightened rate grows back by 1/16 of the configured
+ * rate every second without quota errors.
+ *
+ * <p>
+ * Instances are created using a {@link Builder}:
+ * <pre><code>
+ * RateLimiter limiter = new TokenBucketRateLimiter.Builder()
+ *    .globalRate(10000)
+ *    .keyRate(2000)
+ *    .deviceRate(1)
+ *    .build();
+ * </pre></code>
+ */
+public final class TokenBucketRateLimiter implements RateLimiter {
+
+  private static final Logger logger =
+      Logger.getLogger(TokenBucketRateLimiter.class.getName());
+
+  /**
+   * Fraction of the configured rate a bucket is tightened to at most, and
+   * that it grows back every second.
+   */
+  private static final double RATE_STEP = 1.0 / 16;
+  private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
+  private static final long ONE_MILLISECOND = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final double globalRate;
+  private final double keyRate;
+  private final double deviceRate;
+  private final TokenBucket globalBucket;
+  private final ConcurrentMap<String, TokenBucket> keyBuckets =
+      new ConcurrentHashMap<String, TokenBucket>();
+  // guarded by itself
+  private final Map<String, TokenBucket> deviceBuckets;
+
+  public static final class Builder {
+
+    private double globalRate;
+    private double keyRate;
+    private double deviceRate;
+    private int maxDevices = 100000;
+
+    /**
+     * Sets the maximum number of messages per second, for all API keys and
+     * devices (by default, there is no limit).
+     */
+    public Builder globalRate(double value) {
+      globalRate = checkRate(value);
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of messages per second sent with each API key
+     * (by default, there is no limit).
+     */
+    public Builder keyRate(double value) {
+      keyRate = checkRate(value);
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of messages per second sent to each device
+     * (by default, there is no limit); for example, {@literal 1.0 / 60}
+     * allows one message per minute.
+     */
+    public Builder deviceRate(double value) {
+      deviceRate = checkRate(value);
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of devices whose rate is tracked (100,000 by
+     * default); the least recently used ones are forgotten beyond that.
+     */
+    public Builder maxDevices(int value) {
+      if (value <= 0) {
+        throw new IllegalArgumentException("maxDevices must be positive");
+      }
+      maxDevices = value;
+      return this;
+    }
+
+    public TokenBucketRateLimiter build() {
+      return new TokenBucketRateLimiter(this);
+    }
+
+    private static double checkRate(double value) {
+      if (!(value > 0)) {
+        throw new IllegalArgumentException("rate must be positive");
+      }
+      return value;
+    }
+  }
+
+  private TokenBucketRateLimiter(Builder builder) {
+    globalRate = builder.globalRate;
+    keyRate = builder.keyRate;
+    deviceRate = builder.deviceRate;
+    long now = System.nanoTime();
+    globalBucket = globalRate > 0 ? new TokenBucket(globalRate, now) : null;
+    final int maxDevices = builder.maxDevices;
+    deviceBuckets = new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<String, TokenBucket> eldest) {
+        return size() > maxDevices;
+      }
+    };
+  }
+
+  public long reserve(String apiKey, List<String> registrationIds) {
+    return reserve(apiKey, registrationIds, System.nanoTime());
+  }
+
+  public void cancel(String apiKey, List<String> registrationIds) {
+    cancel(apiKey, registrationIds, System.nanoTime());
+  }
+
+  public void onResults(String apiKey, List<String> registrationIds,
+      List<Result> results) {
+    onResults(apiKey, registrationIds, results, System.nanoTime());
+  }
+
+  /**
+   * Reserves capacity for a request at the given time (as returned by
+   * {@link System#nanoTime()}).
+   */
+  long reserve(String apiKey, List<String> registrationIds, long now) {
+    int messages = registrationIds.size();
+    long wait = 0;
+    if (globalBucket != null) {
+      wait = globalBucket.reserve(messages, now);
+    }
+    if (keyRate > 0) {
+      wait = Math.max(wait, getKeyBucket(apiKey, now).reserve(messages, now));
+    }
+    if (deviceRate > 0) {
+      for (String registrationId : registrationIds) {
+        TokenBucket bucket = getDeviceBucket(registrationId, now);
+        wait = Math.max(wait, bucket.reserve(1, now));
+      }
+    }
+    // rounds up, so callers don't wake up too early
+    return (wait + ONE_MILLISECOND - 1) / ONE_MILLISECOND;
+  }
+
+  /**
+   * Cancels a reservation at the given time (as returned by
+   * {@link System#nanoTime()}).
+   */
+  void cancel(String apiKey, List<String> registrationIds, long now) {
+    int messages = registrationIds.size();
+    if (globalBucket != null) {
+      globalBucket.refund(messages, now);
+    }
+    if (keyRate > 0) {
+      TokenBucket bucket = keyBuckets.get(apiKey);
+      if (bucket != null) {
+        bucket.refund(messages, now);
+      }
+    }
+    if (deviceRate > 0) {
+      synchronized (deviceBuckets) {
+        for (String registrationId : registrationIds) {
+          // devices forgotten since then start with a full bucket anyway
+          TokenBucket bucket = deviceBuckets.get(registrationId);
+          if (bucket != null) {
+            bucket.refund(1, now);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Notifies the results of a request at the given time (as returned by
+   * {@link System#nanoTime()}).
+   */
+  void onResults(String apiKey, List<String> registrationIds,
+      List<Result> results, long now) {
+    boolean quotaExceeded = false;
+    for (int i = 0; i < results.size(); i++) {
+      String error = results.get(i).getErrorCodeName();
+      if (ERROR_QUOTA_EXCEEDED.equals(error)) {
+        quotaExceeded = true;
+      } else if (ERROR_DEVICE_QUOTA_EXCEEDED.equals(error) && deviceRate > 0) {
+        getDeviceBucket(registrationIds.get(i), now).tighten(now);
+      }
+    }
+    if (quotaExceeded) {
+      logger.fine("Quota exceeded for API key, tightening rates");
+    }
+    if (globalBucket != null) {
+      globalBucket.adapt(quotaExceeded, now);
+    }
+    if (keyRate > 0) {
+      getKeyBucket(apiKey, now).adapt(quotaExceeded, now);
+    }
+  }
+
+  /**
+   * Gets the current rate of all messages, or {@literal 0} if there is no
+   * limit.
+   */
+  public double getGlobalRate() {
+    return globalBucket == null ? 0 : globalBucket.getRate();
+  }
+
+  /**
+   * Gets the current rate of the messages of an API key, or {@literal 0} if
+   * there is no limit.
+   */
+  public double getKeyRate(String apiKey) {
+    TokenBucket bucket = keyBuckets.get(apiKey);
+    return bucket == null ? keyRate : bucket.getRate();
+  }
+
+  private TokenBucket getKeyBucket(String apiKey, long now) {
+    TokenBucket bucket = keyBuckets.get(apiKey);
+    if (bucket == null) {
+      TokenBucket newBucket = new TokenBucket(keyRate, now);
+      bucket = keyBuckets.putIfAbsent(apiKey, newBucket);
+      if (bucket == null) {
+        bucket = newBucket;
+      }
+    }
+    return bucket;
+  }
+
+  private TokenBucket getDeviceBucket(String registrationId, long now) {
+    synchronized (deviceBuckets) {
+      TokenBucket bucket = deviceBuckets.get(registrationId);
+      if (bucket == null) {
+        bucket = new TokenBucket(deviceRate, now);
+        deviceBuckets.put(registrationId, bucket);
+      }
+      return bucket;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("TokenBucketRateLimiter(")
+        .append("globalRate=").append(getGlobalRate()).append(",")
+        .append("keyRate=").append(keyRate).append(",")
+        .append("deviceRate=").append(deviceRate).append(")")
+        .toString();
+  }
+
+  /**
+   * Bucket whose tokens are messages; reservations can take more tokens than
+   * available, and then the next ones wait for the debt to be refilled.
+   */
+  private static final class TokenBucket {
+
+    private final double maxRate;
+
+    // guarded by this
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private long lastAdapt;
+
+    TokenBucket(double maxRate, long now) {
+      this.maxRate = maxRate;
+      rate = maxRate;
+      tokens = getCapacity();
+      lastRefill = now;
+      lastAdapt = now;
+    }
+
+    /**
+     * Takes tokens from the bucket.
+     *
+     * @return nanoseconds to wait until the tokens are actually available.
+     */
+    synchronized long reserve(int count, long now) {
+      refill(now);
+      tokens -= count;
+      return tokens >= 0 ? 0 : (long) (-tokens / rate * ONE_SECOND);
+    }
+
+    /**
+     * Gives back tokens taken by a reservation.
+     */
+    synchronized void refund(int count, long now) {
+      refill(now);
+      tokens = Math.min(getCapacity(), tokens + count);
+    }
+
+    /**
+     * Halves the rate, after a quota error.
+     */
+    synchronized void tighten(long now) {
+      refill(now);
+      rate = Math.max(rate / 2, maxRate * RATE_STEP);
+      tokens = Math.min(tokens, 0);
+      lastAdapt = now;
+    }
+
+    /**
+     * Tightens the rate after a quota error, or relaxes it if it's been long
+     * enough since the last change.
+     */
+    synchronized void adapt(boolean quotaExceeded, long now) {
+      if (quotaExceeded) {
+        tighten(now);
+      } else if (rate < maxRate && now - lastAdapt >= ONE_SECOND) {
+        refill(now);
+        rate = Math.min(maxRate, rate + maxRate * RATE_STEP);
+        lastAdapt = now;
+      }
+    }
+
+    synchronized double getRate() {
+      return rate;
+    }
+
+    private double getCapacity() {
+      return Math.max(1, rate);
+    }
+
+    private void refill(long now) {
+      long elapsed = now - lastRefill;
+      if (elapsed > 0) {
+        tokens = Math.min(getCapacity(),
+            tokens + rate * elapsed / ONE_SECOND);
+        lastRefill = now;
+      }
+    }
+  }
+
+}
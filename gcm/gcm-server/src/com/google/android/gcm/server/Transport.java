@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Transport used by a {@link Sender} to make HTTP requests to GCM.
+ *
+ * <p>
+ * By default, a sender makes its requests through {@link java.net.URL}
+ * connections; setting a transport (see
+ * {@link Sender#setTransport(Transport)}) replaces that, for example to use
+ * another HTTP client (such as {@link Http2Transport}) or to answer requests
+ * in-process in load tests.
+ * Implementations must be thread safe.
+ */
+public interface Transport {
+
+  /**
+   * Makes an HTTP POST request.
+   *
+   * @param url URL of the request.
+   * @param contentType value of the {@code Content-Type} header.
+   * @param apiKey API key, to be sent in the {@code Authorization} header as
+   *        {@code key=apiKey}.
+   * @param body array holding the body of the request, which must not be
+   *        modified nor kept after this method returns.
+   * @param length number of bytes of the array that form the body.
+   * @param timeout time left (in milliseconds) before the deadline of the
+   *        call making the request (see
+   *        {@link Sender#send(Message, List, int, long,
+   *        java.util.concurrent.TimeUnit)}), which the request must not
+   *        outlive, or {@literal 0} if the call has no deadline.
+   *
+   * @return the response, which the caller closes once it has been read.
+   *
+   * @throws IOException if the request could not be made.
+   */
+  Response post(String url, String contentType, String apiKey, byte[] body,
+      int length, int timeout) throws IOException;
+
+  /**
+   * Response of a request.
+   */
+  interface Response {
+
+    /**
+     * Gets the HTTP status of the response.
+     */
+    int getStatus() throws IOException;
+
+    /**
+     * Gets the value of a response header, or {@literal null} if the
+     * response does not have it.
+     */
+    String getHeader(String name);
+
+    /**
+     * Gets the body of the response, be it a success (200) or an error; an
+     * error response might have no body, in which case it returns
+     * {@literal null}.
+     */
+    InputStream getBody() throws IOException;
+
+    /**
+     * Releases the resources used by the response.
+     */
+    void close();
+  }
+
+}
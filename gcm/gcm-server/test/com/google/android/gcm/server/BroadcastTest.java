@@ -0,0 +1,444 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BroadcastTest {
+
+  private final Message message =
+      new Message.Builder().collapseKey("108").build();
+  // chunks sent so far, in order
+  private final BlockingQueue<SentChunk> sent =
+      new LinkedBlockingQueue<SentChunk>();
+  // indexes of the chunks that fail right away
+  private final List<Integer> failingChunks = new ArrayList<Integer>();
+  // whether chunks complete right away
+  private volatile boolean completeChunks = true;
+  private ExecutorService background;
+  private File checkpoint;
+
+  @Mock private Sender sender;
+
+  @Before
+  public void setFixtures() throws Exception {
+    background = Executors.newSingleThreadExecutor();
+    checkpoint = File.createTempFile("broadcast", "");
+    assertTrue(checkpoint.delete());
+    when(sender.sendAsync(eq(message), anyListOf(String.class), eq(5)))
+        .thenAnswer(new Answer<SendFuture<MulticastResult>>() {
+          @SuppressWarnings("unchecked")
+          public SendFuture<MulticastResult> answer(
+              InvocationOnMock invocation) {
+            SentChunk chunk = new SentChunk(message.getCollapseKey(),
+                message, (List<String>) invocation.getArguments()[1]);
+            sent.add(chunk);
+            if (failingChunks.contains(chunk.index())) {
+              chunk.future.setException(new IOException());
+            } else if (completeChunks) {
+              chunk.complete();
+            }
+            return chunk.future;
+          }
+        });
+  }
+
+  @After
+  public void deleteFiles() {
+    background.shutdownNow();
+    checkpoint.delete();
+    new File(checkpoint.getPath() + ".tmp").delete();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_noChunksInFlight() {
+    new Broadcast(sender, checkpoint, 0);
+  }
+
+  @Test
+  public void testSend() throws Exception {
+    Broadcast broadcast = new Broadcast(sender, checkpoint, 2);
+    assertNull(broadcast.getProgress());
+    Broadcast.Progress progress =
+        broadcast.send(message, new RegIds(2500), 5);
+    assertEquals(3, sent.size());
+    assertEquals(1000, sent.take().regIds.size());
+    assertEquals(1000, sent.take().regIds.size());
+    SentChunk last = sent.take();
+    assertEquals(500, last.regIds.size());
+    assertEquals("regId2000", last.regIds.get(0));
+    assertEquals(3, progress.getChunks());
+    assertEquals(0, progress.getSkippedChunks());
+    assertEquals(3, progress.getCompletedChunks());
+    assertEquals(2500, progress.getDevices());
+    assertEquals(2500, progress.getSuccess());
+    assertEquals(0, progress.getFailure());
+    assertEquals(2500, broadcast.getProgress().getSuccess());
+    assertTrue(checkpoint.exists());
+  }
+
+  @Test
+  public void testSend_empty() throws Exception {
+    Broadcast.Progress progress = new Broadcast(sender, checkpoint, 2)
+        .send(message, new RegIds(0), 5);
+    assertEquals(0, progress.getChunks());
+    assertTrue(sent.isEmpty());
+  }
+
+  @Test
+  public void testSend_completedCampaignIsNotSentAgain() throws Exception {
+    new Broadcast(sender, checkpoint, 2).send(message, new RegIds(2500), 5);
+    sent.clear();
+    RegIds regIds = new RegIds(2500);
+    Broadcast.Progress progress =
+        new Broadcast(sender, checkpoint, 2).send(message, regIds, 5);
+    assertTrue(sent.isEmpty());
+    assertEquals(2500, regIds.read);
+    assertEquals(3, progress.getChunks());
+    assertEquals(3, progress.getSkippedChunks());
+    assertEquals(2500, progress.getSuccess());
+  }
+
+  @Test
+  public void testSend_resume() throws Exception {
+    failingChunks.add(2);
+    Broadcast broadcast = new Broadcast(sender, checkpoint, 1);
+    try {
+      broadcast.send(message, new RegIds(4500), 5);
+      fail("Should have thrown IOException");
+    } catch (IOException expected) {
+    }
+    // no more chunks are sent after a failure
+    assertEquals(3, sent.size());
+    assertEquals(2, broadcast.getProgress().getCompletedChunks());
+    assertEquals(2000, broadcast.getProgress().getSuccess());
+    sent.clear();
+    failingChunks.clear();
+    Broadcast.Progress progress =
+        new Broadcast(sender, checkpoint, 1).send(message, new RegIds(4500), 5);
+    assertEquals(3, sent.size());
+    assertEquals("regId2000", sent.take().regIds.get(0));
+    assertEquals(5, progress.getChunks());
+    assertEquals(2, progress.getSkippedChunks());
+    assertEquals(5, progress.getCompletedChunks());
+    assertEquals(4500, progress.getSuccess());
+  }
+
+  @Test
+  public void testSend_resumeAfterOutOfOrderCompletion() throws Exception {
+    completeChunks = false;
+    Future<Broadcast.Progress> result = sendInBackground(
+        new Broadcast(sender, checkpoint, 3), new RegIds(4500));
+    SentChunk first = sent.poll(5, TimeUnit.SECONDS);
+    SentChunk second = sent.poll(5, TimeUnit.SECONDS);
+    SentChunk third = sent.poll(5, TimeUnit.SECONDS);
+    third.complete();
+    SentChunk fourth = sent.poll(5, TimeUnit.SECONDS);
+    second.complete();
+    SentChunk fifth = sent.poll(5, TimeUnit.SECONDS);
+    first.future.setException(new IOException());
+    fourth.complete();
+    fifth.complete();
+    try {
+      result.get(5, TimeUnit.SECONDS);
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+    completeChunks = true;
+    Broadcast.Progress progress =
+        new Broadcast(sender, checkpoint, 3).send(message, new RegIds(4500), 5);
+    // only the failed chunk is sent again
+    assertEquals(0, sent.take().index());
+    assertTrue(sent.isEmpty());
+    assertEquals(4, progress.getSkippedChunks());
+    assertEquals(5, progress.getCompletedChunks());
+    assertEquals(4500, progress.getSuccess());
+  }
+
+  @Test
+  public void testSend_backpressure() throws Exception {
+    completeChunks = false;
+    RegIds regIds = new RegIds(5000);
+    Future<Broadcast.Progress> result =
+        sendInBackground(new Broadcast(sender, checkpoint, 2), regIds);
+    SentChunk first = sent.poll(5, TimeUnit.SECONDS);
+    SentChunk second = sent.poll(5, TimeUnit.SECONDS);
+    // the third chunk is not read until a chunk completes
+    assertNull(sent.poll(100, TimeUnit.MILLISECONDS));
+    assertEquals(2000, regIds.read);
+    first.complete();
+    SentChunk third = sent.poll(5, TimeUnit.SECONDS);
+    assertEquals(2, third.index());
+    assertEquals(3000, regIds.read);
+    // from now on, chunks complete right away
+    completeChunks = true;
+    second.complete();
+    third.complete();
+    assertEquals(5, result.get(5, TimeUnit.SECONDS).getCompletedChunks());
+    assertEquals(5000, regIds.read);
+  }
+
+  @Test
+  public void testSend_corruptCheckpoint() throws Exception {
+    new Broadcast(sender, checkpoint, 2).send(message, new RegIds(2500), 5);
+    RandomAccessFile file = new RandomAccessFile(checkpoint, "rw");
+    file.seek(8);
+    file.write(42);
+    file.close();
+    try {
+      new Broadcast(sender, checkpoint, 2).send(message, new RegIds(2500), 5);
+      fail("Should have thrown IOException");
+    } catch (IOException expected) {
+    }
+    checkpoint.delete();
+    new FileOutputStream(checkpoint).close();
+    try {
+      new Broadcast(sender, checkpoint, 2).send(message, new RegIds(2500), 5);
+      fail("Should have thrown IOException");
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void testSend_unknownCheckpointVersion() throws Exception {
+    CheckedOutputStream checked = new CheckedOutputStream(
+        new FileOutputStream(checkpoint), new CRC32());
+    DataOutputStream out = new DataOutputStream(checked);
+    out.writeInt(1);
+    out.writeInt(2);
+    out.writeInt(0);
+    out.writeLong(2000);
+    out.writeLong(1990);
+    out.writeLong(10);
+    out.writeLong(0);
+    out.writeLong(checked.getChecksum().getValue());
+    out.close();
+    try {
+      new Broadcast(sender, checkpoint, 2).send(message, new RegIds(2500), 5);
+      fail("Should have thrown IOException");
+    } catch (IOException expected) {
+    }
+    assertEquals(0, sent.size());
+  }
+
+  @Test
+  public void testSend_deadTokenFilter() throws Exception {
+    DeadTokenFilter filter = new DeadTokenFilter(1000, 0.000001);
+    filter.add("regId5");
+    for (int i = 2000; i < 2500; i++) {
+      filter.add("regId" + i);
+    }
+    Broadcast broadcast = new Broadcast(sender, checkpoint, 2);
+    broadcast.setDeadTokenFilter(filter);
+    assertSame(filter, broadcast.getDeadTokenFilter());
+    Broadcast.Progress progress =
+        broadcast.send(message, new RegIds(2500), 5);
+    // the last chunk is not sent, as all its devices are dead
+    assertEquals(2, sent.size());
+    List<String> first = sent.take().regIds;
+    assertEquals(999, first.size());
+    assertFalse(first.contains("regId5"));
+    assertEquals(1000, sent.take().regIds.size());
+    assertEquals(3, progress.getChunks());
+    assertEquals(3, progress.getCompletedChunks());
+    assertEquals(1999, progress.getDevices());
+    assertEquals(501, progress.getFilteredDevices());
+    // the filtered devices are kept in the checkpoint
+    progress =
+        new Broadcast(sender, checkpoint, 2).send(message, new RegIds(2500), 5);
+    assertEquals(3, progress.getSkippedChunks());
+    assertEquals(501, progress.getFilteredDevices());
+  }
+
+  @Test
+  public void testSend_deadTokenFilterFedByResults() throws Exception {
+    completeChunks = false;
+    DeadTokenFilter filter = new DeadTokenFilter(1000, 0.000001);
+    Broadcast broadcast = new Broadcast(sender, checkpoint, 2);
+    broadcast.setDeadTokenFilter(filter);
+    Future<Broadcast.Progress> result =
+        sendInBackground(broadcast, new RegIds(3));
+    SentChunk chunk = sent.poll(5, TimeUnit.SECONDS);
+    chunk.future.set(new MulticastResult.Builder(1, 2, 0, 1)
+        .addResult(new Result.Builder()
+            .errorCode(Constants.ERROR_NOT_REGISTERED).build())
+        .addResult(new Result.Builder()
+            .errorCode(Constants.ERROR_INVALID_REGISTRATION).build())
+        .addResult(new Result.Builder().messageId("id").build())
+        .build());
+    assertEquals(2, result.get(5, TimeUnit.SECONDS).getFailure());
+    assertTrue(filter.mightContain("regId0"));
+    assertTrue(filter.mightContain("regId1"));
+    assertFalse(filter.mightContain("regId2"));
+    assertEquals(2, filter.getCount());
+  }
+
+  @Test
+  public void testSend_senderFails() throws Exception {
+    IllegalStateException exception = new IllegalStateException();
+    when(sender.sendAsync(eq(message), anyListOf(String.class), eq(5)))
+        .thenThrow(exception);
+    try {
+      new Broadcast(sender, checkpoint, 2).send(message, new RegIds(2500), 5);
+      fail("Should have thrown IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertSame(exception, e);
+    }
+  }
+
+  @Test
+  public void testSend_iteratorFailsWithChunksInFlight() throws Exception {
+    completeChunks = false;
+    Future<Broadcast.Progress> result = sendInBackground(
+        new Broadcast(sender, checkpoint, 3), new RegIds(4500, 2500));
+    SentChunk first = sent.poll(5, TimeUnit.SECONDS);
+    SentChunk second = sent.poll(5, TimeUnit.SECONDS);
+    // the failure is not reported while chunks are in flight
+    try {
+      result.get(100, TimeUnit.MILLISECONDS);
+      fail("Should have thrown TimeoutException");
+    } catch (TimeoutException expected) {
+    }
+    first.complete();
+    second.complete();
+    try {
+      result.get(5, TimeUnit.SECONDS);
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    assertTrue(sent.isEmpty());
+    // the chunks in flight were recorded, so only the rest is sent
+    completeChunks = true;
+    Broadcast.Progress progress =
+        new Broadcast(sender, checkpoint, 3).send(message, new RegIds(4500), 5);
+    assertEquals(2, progress.getSkippedChunks());
+    assertEquals(3, sent.size());
+    assertEquals(2, sent.take().index());
+    assertEquals(5, progress.getCompletedChunks());
+  }
+
+  @Test
+  public void testSend_concurrentCompletionsAreAllRecorded() throws Exception {
+    completeChunks = false;
+    Future<Broadcast.Progress> result = sendInBackground(
+        new Broadcast(sender, checkpoint, 8), new RegIds(8000));
+    ExecutorService completers = Executors.newFixedThreadPool(8);
+    try {
+      for (int i = 0; i < 8; i++) {
+        final SentChunk chunk = sent.poll(5, TimeUnit.SECONDS);
+        completers.execute(new Runnable() {
+          public void run() {
+            chunk.complete();
+          }
+        });
+      }
+      assertEquals(8, result.get(5, TimeUnit.SECONDS).getCompletedChunks());
+    } finally {
+      completers.shutdown();
+    }
+    // the checkpoint holds all chunks, however their writes were batched
+    Broadcast.Progress progress =
+        new Broadcast(sender, checkpoint, 8).send(message, new RegIds(8000), 5);
+    assertEquals(8, progress.getSkippedChunks());
+    assertEquals(8000, progress.getSuccess());
+    assertTrue(sent.isEmpty());
+  }
+
+  private Future<Broadcast.Progress> sendInBackground(
+      final Broadcast broadcast, final RegIds regIds) {
+    return background.submit(new Callable<Broadcast.Progress>() {
+      public Broadcast.Progress call() throws Exception {
+        return broadcast.send(message, regIds, 5);
+      }
+    });
+  }
+
+  /**
+   * Iterator of registration ids that counts how many were read.
+   */
+  private static final class RegIds implements Iterator<String> {
+
+    private final int size;
+    // position at which next() throws, if any
+    private final int failAt;
+    volatile int read;
+
+    RegIds(int size) {
+      this(size, -1);
+    }
+
+    RegIds(int size, int failAt) {
+      this.size = size;
+      this.failAt = failAt;
+    }
+
+    public boolean hasNext() {
+      return read < size;
+    }
+
+    public String next() {
+      if (read == failAt) {
+        throw new IllegalStateException("cursor closed");
+      }
+      return "regId" + read++;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+}
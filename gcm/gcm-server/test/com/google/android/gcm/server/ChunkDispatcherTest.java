@@ -0,0 +1,336 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.SentChunk.completeAll;
+import static com.google.android.gcm.server.SentChunk.keys;
+import static com.google.android.gcm.server.SentChunk.newRegIds;
+import static com.google.android.gcm.server.SentChunk.record;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import com.google.android.gcm.server.ChunkDispatcher.ChunkQueue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ChunkDispatcherTest {
+
+  private final Message message =
+      new Message.Builder().collapseKey("108").build();
+  // chunks sent so far, in order
+  private final List<SentChunk> sent = new ArrayList<SentChunk>();
+
+  @Mock private Sender senderA;
+  @Mock private Sender senderB;
+
+  @Before
+  public void setFixtures() {
+    record(senderA, "A", 5, sent);
+    record(senderB, "B", 5, sent);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_noChunksInFlight() {
+    new ChunkDispatcher(0, 1);
+  }
+
+  @Test
+  public void testAddQueue_invalid() {
+    ChunkDispatcher dispatcher = new ChunkDispatcher(1, 2);
+    try {
+      dispatcher.addQueue(senderA, 2, 1, 1);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      dispatcher.addQueue(senderA, -1, 1, 1);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      dispatcher.addQueue(senderA, 0, 0, 1);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      dispatcher.addQueue(senderA, 0, 1, 0);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      dispatcher.addQueue(null, 0, 1, 1);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testSend_invalid() {
+    ChunkDispatcher dispatcher = new ChunkDispatcher(1, 1);
+    ChunkQueue queue = dispatcher.addQueue(senderA, 0, 1, 1);
+    try {
+      dispatcher.send(queue, null, newRegIds(1), 5);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      dispatcher.send(queue, message, new ArrayList<String>(), 5);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertTrue(sent.isEmpty());
+  }
+
+  @Test
+  public void testSend_mergesChunks() throws Exception {
+    ChunkDispatcher dispatcher = new ChunkDispatcher(4, 1);
+    ChunkQueue queue = dispatcher.addQueue(senderA, 0, 1, 4);
+    List<String> regIds = newRegIds(1500);
+    SendFuture<MulticastResult> future =
+        dispatcher.send(queue, message, regIds, 5);
+    assertEquals(2, sent.size());
+    assertEquals(regIds.subList(0, 1000), sent.get(0).regIds);
+    assertEquals(regIds.subList(1000, 1500), sent.get(1).regIds);
+    // chunks complete out of order
+    sent.get(1).complete(2);
+    assertFalse(future.isDone());
+    sent.get(0).complete(1);
+    MulticastResult result = future.get();
+    assertEquals(1500, result.getSuccess());
+    assertEquals(1500, result.getTotal());
+    assertEquals(1, result.getMulticastId());
+    assertEquals(1, result.getRetryMulticastIds().size());
+    assertEquals(2, result.getRetryMulticastIds().get(0).longValue());
+    assertEquals(0, dispatcher.getChunksInFlight());
+    assertEquals(1, queue.latencies.getCount());
+    assertEquals(2, queue.queueTimes.getCount());
+  }
+
+  @Test
+  public void testSend_strictPriority() throws Exception {
+    ChunkDispatcher dispatcher = new ChunkDispatcher(1, 2);
+    ChunkQueue low = dispatcher.addQueue(senderA, 1, 1, 1);
+    ChunkQueue high = dispatcher.addQueue(senderB, 0, 1, 1);
+    dispatcher.send(low, message, newRegIds(3000), 5);
+    dispatcher.send(high, message, newRegIds(2000), 5);
+    assertEquals(1, low.getChunksInFlight());
+    assertEquals(2, low.getQueuedChunks());
+    assertEquals(2, high.getQueuedChunks());
+    // the chunk in flight is not preempted
+    assertEquals("ABBAA", completeAll(sent));
+  }
+
+  @Test
+  public void testSend_fairQueuing() throws Exception {
+    ChunkDispatcher dispatcher = new ChunkDispatcher(1, 1);
+    ChunkQueue a = dispatcher.addQueue(senderA, 0, 1, 1);
+    ChunkQueue b = dispatcher.addQueue(senderB, 0, 1, 1);
+    dispatcher.send(a, message, newRegIds(4000), 5);
+    dispatcher.send(b, message, newRegIds(2000), 5);
+    assertEquals(5, dispatcher.getQueuedChunks());
+    // B is not stuck behind all chunks of A
+    assertEquals("ABABAA", completeAll(sent));
+  }
+
+  @Test
+  public void testSend_weightedFairQueuing() throws Exception {
+    ChunkDispatcher dispatcher = new ChunkDispatcher(1, 1);
+    ChunkQueue a = dispatcher.addQueue(senderA, 0, 1, 1);
+    ChunkQueue b = dispatcher.addQueue(senderB, 0, 3, 1);
+    dispatcher.send(a, message, newRegIds(4000), 5);
+    dispatcher.send(b, message, newRegIds(4000), 5);
+    assertEquals("ABBBABAA", completeAll(sent));
+  }
+
+  @Test
+  public void testSend_fairQueuingBySize() throws Exception {
+    ChunkDispatcher dispatcher = new ChunkDispatcher(1, 1);
+    ChunkQueue a = dispatcher.addQueue(senderA, 0, 1, 1);
+    ChunkQueue b = dispatcher.addQueue(senderB, 0, 1, 1);
+    dispatcher.send(a, message, newRegIds(3000), 5);
+    // small messages of B take their share of devices, not of chunks
+    for (int i = 0; i < 4; i++) {
+      dispatcher.send(b, message, newRegIds(500), 5);
+    }
+    assertEquals("ABBABBA", completeAll(sent));
+  }
+
+  @Test
+  public void testSend_idleQueueDoesNotAccumulateCredit() throws Exception {
+    ChunkDispatcher dispatcher = new ChunkDispatcher(1, 1);
+    ChunkQueue a = dispatcher.addQueue(senderA, 0, 1, 1);
+    ChunkQueue b = dispatcher.addQueue(senderB, 0, 1, 1);
+    dispatcher.send(a, message, newRegIds(3000), 5);
+    assertEquals("AAA", completeAll(sent));
+    dispatcher.send(a, message, newRegIds(3000), 5);
+    dispatcher.send(b, message, newRegIds(3000), 5);
+    assertEquals("AAAABABAB", completeAll(sent));
+  }
+
+  @Test
+  public void testSend_maxChunksInFlightPerQueue() throws Exception {
+    ChunkDispatcher dispatcher = new ChunkDispatcher(4, 1);
+    ChunkQueue a = dispatcher.addQueue(senderA, 0, 1, 2);
+    ChunkQueue b = dispatcher.addQueue(senderB, 0, 1, 4);
+    dispatcher.send(a, message, newRegIds(4000), 5);
+    assertEquals(2, dispatcher.getChunksInFlight());
+    assertEquals(2, dispatcher.getQueuedChunks());
+    dispatcher.send(b, message, newRegIds(4000), 5);
+    assertEquals(4, dispatcher.getChunksInFlight());
+    assertEquals("AABB", keys(sent));
+    sent.get(2).complete(1);
+    // A is still capped, so the free slot goes to B
+    assertEquals("AABBB", keys(sent));
+    sent.get(0).complete(1);
+    assertEquals("AABBBA", keys(sent));
+  }
+
+  @Test
+  public void testSend_failedChunk() throws Exception {
+    ChunkDispatcher dispatcher = new ChunkDispatcher(1, 1);
+    ChunkQueue queue = dispatcher.addQueue(senderA, 0, 1, 1);
+    SendFuture<MulticastResult> future =
+        dispatcher.send(queue, message, newRegIds(2500), 5);
+    assertEquals(1, sent.size());
+    IOException exception = new IOException();
+    sent.get(0).future.setException(exception);
+    try {
+      future.get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertSame(exception, e.getCause());
+    }
+    // the remaining chunks are dropped
+    assertEquals(1, sent.size());
+    assertEquals(0, dispatcher.getQueuedChunks());
+    assertEquals(0, dispatcher.getChunksInFlight());
+    assertEquals(1, queue.latencies.getCount());
+  }
+
+  @Test
+  public void testSend_failedChunkCancelsChunksInFlight() throws Exception {
+    ChunkDispatcher dispatcher = new ChunkDispatcher(2, 1);
+    ChunkQueue queue = dispatcher.addQueue(senderA, 0, 1, 2);
+    SendFuture<MulticastResult> future =
+        dispatcher.send(queue, message, newRegIds(2000), 5);
+    sent.get(0).future.setException(new IOException());
+    assertTrue(future.isDone());
+    assertTrue(sent.get(1).future.isCancelled());
+    assertEquals(0, dispatcher.getChunksInFlight());
+  }
+
+  @Test
+  public void testSend_senderFails() throws Exception {
+    IllegalStateException exception = new IllegalStateException();
+    when(senderA.sendAsync(any(Message.class), anyListOf(String.class),
+        eq(5))).thenThrow(exception);
+    ChunkDispatcher dispatcher = new ChunkDispatcher(1, 1);
+    ChunkQueue queue = dispatcher.addQueue(senderA, 0, 1, 1);
+    SendFuture<MulticastResult> future =
+        dispatcher.send(queue, message, newRegIds(2500), 5);
+    try {
+      future.get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertSame(exception, e.getCause());
+    }
+    assertEquals(0, dispatcher.getQueuedChunks());
+    assertEquals(0, dispatcher.getChunksInFlight());
+  }
+
+  @Test
+  public void testSend_cancelled() throws Exception {
+    ChunkDispatcher dispatcher = new ChunkDispatcher(1, 1);
+    ChunkQueue queue = dispatcher.addQueue(senderA, 0, 1, 1);
+    SendFuture<MulticastResult> future =
+        dispatcher.send(queue, message, newRegIds(2500), 5);
+    assertTrue(future.cancel(false));
+    sent.get(0).complete(1);
+    assertEquals(1, sent.size());
+    assertEquals(0, dispatcher.getQueuedChunks());
+  }
+
+  @Test
+  public void testSend_cancelledCancelsChunksInFlight() throws Exception {
+    ChunkDispatcher dispatcher = new ChunkDispatcher(2, 1);
+    ChunkQueue queue = dispatcher.addQueue(senderA, 0, 1, 2);
+    SendFuture<MulticastResult> future =
+        dispatcher.send(queue, message, newRegIds(3000), 5);
+    assertEquals(2, dispatcher.getChunksInFlight());
+    assertEquals(1, dispatcher.getQueuedChunks());
+    assertTrue(future.cancel(false));
+    // chunks in flight are given up too, so the sender stops waiting on them
+    assertTrue(sent.get(0).future.isCancelled());
+    assertTrue(sent.get(1).future.isCancelled());
+    assertEquals(2, sent.size());
+    assertEquals(0, dispatcher.getQueuedChunks());
+    assertEquals(0, dispatcher.getChunksInFlight());
+  }
+
+  @Test
+  public void testSend_synchronousCompletionsDoNotRecurse() throws Exception {
+    // chunks sent with 6 retries complete right away, but the first one
+    when(senderA.sendAsync(any(Message.class), anyListOf(String.class),
+        eq(6))).thenAnswer(new Answer<SendFuture<MulticastResult>>() {
+          @SuppressWarnings("unchecked")
+          public SendFuture<MulticastResult> answer(
+              InvocationOnMock invocation) {
+            SentChunk chunk = new SentChunk("A", message,
+                (List<String>) invocation.getArguments()[1]);
+            sent.add(chunk);
+            if (sent.size() > 1) {
+              chunk.complete();
+            }
+            return chunk.future;
+          }
+        });
+    ChunkDispatcher dispatcher = new ChunkDispatcher(1, 1);
+    ChunkQueue queue = dispatcher.addQueue(senderA, 0, 1, 1);
+    List<SendFuture<MulticastResult>> futures =
+        new ArrayList<SendFuture<MulticastResult>>();
+    for (int i = 0; i < 20000; i++) {
+      futures.add(dispatcher.send(queue, message, newRegIds(1), 6));
+    }
+    assertEquals(19999, dispatcher.getQueuedChunks());
+    sent.get(0).complete();
+    assertEquals(20000, sent.size());
+    assertEquals(0, dispatcher.getQueuedChunks());
+    assertEquals(0, dispatcher.getChunksInFlight());
+    for (SendFuture<MulticastResult> future : futures) {
+      assertEquals(1, future.get().getTotal());
+    }
+  }
+
+}
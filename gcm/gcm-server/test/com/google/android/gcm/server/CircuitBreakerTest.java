@@ -0,0 +1,187 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.android.gcm.server.CircuitBreaker.State;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CircuitBreakerTest {
+
+  private final long now = 1000000;
+  private final CircuitBreaker breaker = new CircuitBreaker(4, 0.5, 100);
+
+  @Test
+  public void testClosed() {
+    assertEquals(State.CLOSED, breaker.getState());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(CircuitBreaker.NO_PROBE, breaker.allowRequest(now));
+      // 1 failure every 4 requests is below the threshold
+      breaker.record(CircuitBreaker.NO_PROBE, i % 4 != 0, now);
+    }
+    assertEquals(State.CLOSED, breaker.getState());
+    assertEquals(0.25, breaker.getFailureRate(), 0);
+    assertEquals(0, breaker.getTrips());
+  }
+
+  @Test
+  public void testOpens() {
+    breaker.record(CircuitBreaker.NO_PROBE, false, now);
+    breaker.record(CircuitBreaker.NO_PROBE, false, now);
+    breaker.record(CircuitBreaker.NO_PROBE, false, now);
+    // window is not full yet
+    assertEquals(State.CLOSED, breaker.getState());
+    breaker.record(CircuitBreaker.NO_PROBE, true, now);
+    assertEquals(State.OPEN, breaker.getState());
+    assertEquals(1, breaker.getTrips());
+    assertEquals(CircuitBreaker.REJECTED, breaker.allowRequest(now + 99));
+    assertEquals(1, breaker.getRejectedRequests());
+    // late outcomes of requests made before opening are ignored
+    breaker.record(CircuitBreaker.NO_PROBE, true, now);
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testSlidingWindow() {
+    breaker.record(CircuitBreaker.NO_PROBE, false, now);
+    breaker.record(CircuitBreaker.NO_PROBE, true, now);
+    breaker.record(CircuitBreaker.NO_PROBE, true, now);
+    breaker.record(CircuitBreaker.NO_PROBE, true, now);
+    // first failure slides out of the window
+    breaker.record(CircuitBreaker.NO_PROBE, false, now);
+    breaker.record(CircuitBreaker.NO_PROBE, true, now);
+    assertEquals(State.CLOSED, breaker.getState());
+    assertEquals(0.25, breaker.getFailureRate(), 0);
+    breaker.record(CircuitBreaker.NO_PROBE, false, now);
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testHalfOpen_probeSucceeds() {
+    open();
+    long probe = breaker.allowRequest(now + 100);
+    assertTrue(probe > 0);
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    // only one probe at a time
+    assertEquals(CircuitBreaker.REJECTED, breaker.allowRequest(now + 101));
+    breaker.record(probe, true, now + 102);
+    assertEquals(State.CLOSED, breaker.getState());
+    assertEquals(0, breaker.getFailureRate(), 0);
+    assertEquals(CircuitBreaker.NO_PROBE, breaker.allowRequest(now + 103));
+  }
+
+  @Test
+  public void testHalfOpen_probeFails() {
+    open();
+    long probe = breaker.allowRequest(now + 100);
+    breaker.record(probe, false, now + 150);
+    assertEquals(State.OPEN, breaker.getState());
+    assertEquals(2, breaker.getTrips());
+    assertEquals(CircuitBreaker.REJECTED, breaker.allowRequest(now + 249));
+    assertTrue(breaker.allowRequest(now + 250) > 0);
+  }
+
+  @Test
+  public void testHalfOpen_probeNeverReported() {
+    open();
+    long probe = breaker.allowRequest(now + 100);
+    assertEquals(CircuitBreaker.REJECTED, breaker.allowRequest(now + 199));
+    long next = breaker.allowRequest(now + 200);
+    assertTrue(next > 0);
+    // the outcome of the given up probe is ignored
+    breaker.record(probe, false, now + 201);
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    breaker.record(next, true, now + 202);
+    assertEquals(State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testHalfOpen_onlyProbeCounts() {
+    open();
+    long probe = breaker.allowRequest(now + 100);
+    // late outcomes of requests made before opening
+    breaker.record(CircuitBreaker.NO_PROBE, true, now + 101);
+    breaker.record(CircuitBreaker.NO_PROBE, false, now + 102);
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    assertEquals(1, breaker.getTrips());
+    breaker.record(probe, true, now + 103);
+    assertEquals(State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testHalfOpen_probeReleased() {
+    open();
+    long probe = breaker.allowRequest(now + 100);
+    // the probe was not made, so the next request probes right away
+    breaker.release(probe);
+    long next = breaker.allowRequest(now + 101);
+    assertTrue(next > 0);
+    assertTrue(next != probe);
+    // releasing a request whose outcome was recorded does nothing
+    breaker.release(CircuitBreaker.NO_PROBE);
+    breaker.release(probe);
+    assertEquals(CircuitBreaker.REJECTED, breaker.allowRequest(now + 102));
+    breaker.record(next, false, now + 103);
+    breaker.release(next);
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testBeforeRequest() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(1, 1, 60000);
+    long token = breaker.beforeRequest();
+    assertEquals(CircuitBreaker.NO_PROBE, token);
+    breaker.onFailure(token);
+    breaker.release(token);
+    try {
+      breaker.beforeRequest();
+      fail("Should have thrown CircuitOpenException");
+    } catch (CircuitOpenException e) {
+      // expected
+    }
+    assertTrue(breaker.toString().contains("state=OPEN"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_invalidWindowSize() {
+    new CircuitBreaker(0, 0.5, 100);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_invalidThreshold() {
+    new CircuitBreaker(4, 0, 100);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_invalidTimeout() {
+    new CircuitBreaker(4, 0.5, 0);
+  }
+
+  private void open() {
+    for (int i = 0; i < 4; i++) {
+      breaker.record(CircuitBreaker.NO_PROBE, false, now);
+    }
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+}
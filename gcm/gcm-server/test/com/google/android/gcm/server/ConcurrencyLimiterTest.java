@@ -0,0 +1,269 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ConcurrencyLimiterTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final List<Result> ok = Collections.singletonList(
+      new Result.Builder().messageId("4815162342").build());
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_invalidMinLimit() {
+    new ConcurrencyLimiter(1, 0, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_initialBelowMin() {
+    new ConcurrencyLimiter(1, 2, 4);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_initialAboveMax() {
+    new ConcurrencyLimiter(5, 2, 4);
+  }
+
+  @Test
+  public void testAdditiveIncrease() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 3);
+    // a round of 2 requests using the limit raises it by about one
+    for (int round = 0; round < 2; round++) {
+      limiter.acquire();
+      limiter.acquire();
+      limiter.release(round * 10 * MS, 200, ok, (round + 1) * 10 * MS);
+      limiter.release(round * 10 * MS, 200, ok, (round + 1) * 10 * MS);
+    }
+    assertEquals(3, limiter.getLimit());
+    // up to the maximum
+    for (int i = 0; i < 10; i++) {
+      limiter.acquire();
+      limiter.acquire();
+      limiter.acquire();
+      for (int j = 0; j < 3; j++) {
+        limiter.release(0, 200, ok, 10 * MS);
+      }
+    }
+    assertEquals(3, limiter.getLimit());
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void testNoIncreaseWhenLimitIsNotUsed() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 8);
+    for (int i = 0; i < 10; i++) {
+      request(limiter, 0, 10 * MS, 200, ok);
+    }
+    assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void testMultiplicativeDecrease() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 3, 8);
+    request(limiter, 0, MS, 503, null);
+    assertEquals(4, limiter.getLimit());
+    request(limiter, 2 * MS, 3 * MS, -1, null);
+    // down to the minimum
+    assertEquals(3, limiter.getLimit());
+    assertEquals(2, limiter.getDecreases());
+  }
+
+  @Test
+  public void testDecreasesOncePerRoundTrip() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 8);
+    limiter.acquire();
+    limiter.acquire();
+    limiter.release(0, 500, null, 10 * MS);
+    // started before the decrease
+    limiter.release(MS, 500, null, 11 * MS);
+    assertEquals(4, limiter.getLimit());
+    request(limiter, 12 * MS, 20 * MS, 500, null);
+    assertEquals(2, limiter.getLimit());
+  }
+
+  @Test
+  public void testUnavailableResults() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 8);
+    List<Result> results = new ArrayList<Result>();
+    for (int i = 0; i < 95; i++) {
+      results.add(new Result.Builder().messageId("id").build());
+    }
+    for (int i = 0; i < 5; i++) {
+      results.add(new Result.Builder()
+          .errorCode(Constants.ERROR_UNAVAILABLE).build());
+    }
+    request(limiter, 0, MS, 200, results);
+    // a few unavailable devices are tolerated
+    assertEquals(8, limiter.getLimit());
+    for (int i = 0; i < 10; i++) {
+      results.set(i, new Result.Builder()
+          .errorCode(Constants.ERROR_INTERNAL_SERVER_ERROR).build());
+    }
+    request(limiter, 2 * MS, 3 * MS, 200, results);
+    assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void testClientErrorsDontChangeLimit() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 8);
+    for (int i = 0; i < 5; i++) {
+      request(limiter, 0, MS, 401, null);
+      // response could not be parsed
+      request(limiter, 0, MS, 200, null);
+    }
+    assertEquals(1, limiter.getLimit());
+    assertEquals(0, limiter.getDecreases());
+  }
+
+  @Test
+  public void testLatencyIncrease() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 8);
+    request(limiter, 0, 10 * MS, 200, ok);
+    request(limiter, 0, 15 * MS, 200, ok);
+    assertEquals(8, limiter.getLimit());
+    request(limiter, 0, 50 * MS, 200, ok);
+    assertEquals(7, limiter.getLimit());
+  }
+
+  @Test
+  public void testBaselineFollowsLatency() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 8);
+    request(limiter, 0, 10 * MS, 200, ok);
+    // latency went up for good: the limit goes down for a while, then stops
+    long now = 0;
+    for (int i = 0; i < 200; i++) {
+      request(limiter, now, now + 50 * MS, 200, ok);
+      now += 50 * MS;
+    }
+    long decreases = limiter.getDecreases();
+    assertTrue(decreases > 0);
+    for (int i = 0; i < 10; i++) {
+      request(limiter, now, now + 50 * MS, 200, ok);
+      now += 50 * MS;
+    }
+    assertEquals(decreases, limiter.getDecreases());
+  }
+
+  @Test
+  public void testAcquireWaits() throws Exception {
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1);
+    long start = limiter.acquire();
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          limiter.acquire();
+          acquired.countDown();
+        } catch (Exception e) {
+          // test fails on timeout
+        }
+      }
+    };
+    thread.start();
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+    limiter.release(start, 200, ok);
+    assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    assertEquals(1, limiter.getInFlight());
+  }
+
+  @Test
+  public void testAcquireDeadline() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1);
+    long start = limiter.acquire();
+    try {
+      limiter.acquire(System.currentTimeMillis() + 50);
+      fail("Should have thrown DeadlineExceededException");
+    } catch (DeadlineExceededException expected) {
+    }
+    assertEquals(1, limiter.getInFlight());
+    limiter.release(start, 200, ok);
+    limiter.acquire(System.currentTimeMillis() + 50);
+    assertEquals(1, limiter.getInFlight());
+  }
+
+  @Test
+  public void testAcquireOrQueue() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1);
+    Runnable first = mock(Runnable.class);
+    Runnable second = mock(Runnable.class);
+    Runnable third = mock(Runnable.class);
+    assertTrue(limiter.acquireOrQueue(first));
+    assertFalse(limiter.acquireOrQueue(second));
+    assertFalse(limiter.acquireOrQueue(third));
+    verify(first, never()).run();
+    verify(second, never()).run();
+    // the slot goes to the first waiter
+    limiter.release(0, 200, ok, 10 * MS);
+    verify(second).run();
+    verify(third, never()).run();
+    assertEquals(1, limiter.getInFlight());
+    // and then to the next one, even if its request was not made
+    limiter.cancel();
+    verify(third).run();
+    assertEquals(1, limiter.getInFlight());
+    limiter.cancel();
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void testAcquireOrQueue_waitersGoFirst() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1);
+    long start = limiter.acquire();
+    Runnable waiter = mock(Runnable.class);
+    assertFalse(limiter.acquireOrQueue(waiter));
+    limiter.release(start, 200, ok);
+    verify(waiter).run();
+    // the slot was handed to the waiter
+    try {
+      limiter.acquire(System.currentTimeMillis() + 50);
+      fail("Should have thrown DeadlineExceededException");
+    } catch (DeadlineExceededException expected) {
+    }
+  }
+
+  @Test
+  public void testToString() {
+    assertEquals("ConcurrencyLimiter(limit=4,inFlight=0,minLimit=1," +
+        "maxLimit=8)", new ConcurrencyLimiter(4, 1, 8).toString());
+  }
+
+  /**
+   * Makes a request, which started and ended at the given times.
+   */
+  private static void request(ConcurrencyLimiter limiter, long start,
+      long end, int status, List<Result> results) throws Exception {
+    limiter.acquire();
+    limiter.release(start, status, results, end);
+  }
+
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ConnectionPoolTest {
+
+  private final ConnectionPool pool = new ConnectionPool(2, 4, 8);
+
+  @Mock private HttpURLConnection mockedConn;
+  @Mock private InputStream mockedStream;
+
+  private ServerSocket serverSocket;
+  private String url;
+  private final AtomicInteger accepted = new AtomicInteger();
+  private final AtomicInteger closed = new AtomicInteger();
+
+  @After
+  public void stopServer() throws Exception {
+    if (serverSocket != null) {
+      serverSocket.close();
+    }
+  }
+
+  @Test
+  public void testConstructor() {
+    assertEquals(2, pool.getMaxConnections());
+    assertEquals(4, pool.getConnectTimeout());
+    assertEquals(8, pool.getReadTimeout());
+    assertEquals(0, pool.getLeasedConnections());
+    assertEquals(0, pool.getDiscardedConnections());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_noConnections() {
+    new ConnectionPool(0, 4, 8);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_negativeTimeout() {
+    new ConnectionPool(2, -4, 8);
+  }
+
+  @Test
+  public void testSetIdleTimeout() {
+    assertEquals(0, pool.getIdleTimeout());
+    pool.setIdleTimeout(15);
+    assertEquals(15, pool.getIdleTimeout());
+    assertEquals("ConnectionPool(maxConnections=2,connectTimeout=4,"
+        + "readTimeout=8,idleTimeout=15,leased=0)", pool.toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSetIdleTimeout_negative() {
+    pool.setIdleTimeout(-1);
+  }
+
+  @Test
+  public void testIdleTimeout_reusesFreshSockets() throws Exception {
+    startKeepAliveServer();
+    pool.setIdleTimeout(5000);
+    get();
+    get();
+    assertEquals(1, accepted.get());
+    assertEquals(0, pool.getEvictedConnections());
+  }
+
+  @Test
+  public void testIdleTimeout_evictsStaleSockets() throws Exception {
+    startKeepAliveServer();
+    pool.setIdleTimeout(50);
+    get();
+    Thread.sleep(100);
+    get();
+    assertEquals(2, accepted.get());
+    assertEquals(1, pool.getEvictedConnections());
+    // the stale socket was closed, not just skipped
+    for (int i = 0; i < 100 && closed.get() == 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, closed.get());
+  }
+
+  @Test
+  public void testGetKeepAliveTimeout() {
+    assertEquals(ConnectionPool.DEFAULT_KEEP_ALIVE_TIMEOUT,
+        ConnectionPool.getKeepAliveTimeout(null));
+    assertEquals(ConnectionPool.DEFAULT_KEEP_ALIVE_TIMEOUT,
+        ConnectionPool.getKeepAliveTimeout("max=100"));
+    assertEquals(ConnectionPool.DEFAULT_KEEP_ALIVE_TIMEOUT,
+        ConnectionPool.getKeepAliveTimeout("timeout=abc"));
+    assertEquals(30, ConnectionPool.getKeepAliveTimeout("timeout=30"));
+    assertEquals(30,
+        ConnectionPool.getKeepAliveTimeout("max=100, Timeout = 30"));
+  }
+
+  /**
+   * Makes a request through a connection of the pool, and releases it.
+   */
+  private void get() throws IOException {
+    HttpURLConnection conn = pool.getConnection(url);
+    assertEquals(200, conn.getResponseCode());
+    pool.release(conn);
+  }
+
+  /**
+   * Starts a server that answers requests on persistent connections, and
+   * counts the connections it accepts and sees closed.
+   */
+  private void startKeepAliveServer() throws IOException {
+    serverSocket = new ServerSocket(0, 10, InetAddress.getByName(null));
+    url = "http://localhost:" + serverSocket.getLocalPort() + "/gcm/send";
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            final Socket socket = serverSocket.accept();
+            accepted.incrementAndGet();
+            Thread connection = new Thread() {
+              @Override
+              public void run() {
+                serve(socket);
+              }
+            };
+            connection.setDaemon(true);
+            connection.start();
+          }
+        } catch (IOException e) {
+          // server stopped
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void serve(Socket socket) {
+    try {
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), "UTF-8"));
+      OutputStream out = socket.getOutputStream();
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (line.length() == 0) {
+          out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok"
+              .getBytes("UTF-8"));
+          out.flush();
+        }
+      }
+      closed.incrementAndGet();
+      socket.close();
+    } catch (IOException e) {
+      closed.incrementAndGet();
+    }
+  }
+
+  @Test
+  public void testGetConnection() throws Exception {
+    HttpURLConnection conn = pool.getConnection("http://localhost/gcm/send");
+    assertEquals(4, conn.getConnectTimeout());
+    assertEquals(8, conn.getReadTimeout());
+    assertEquals(1, pool.getLeasedConnections());
+  }
+
+  @Test
+  public void testRelease_foreignConnection() throws Exception {
+    pool.release(mockedConn);
+    verify(mockedConn).disconnect();
+    assertEquals(0, pool.getLeasedConnections());
+  }
+
+  @Test
+  public void testLease() throws Exception {
+    assertSame(mockedConn, pool.lease(mockedConn));
+    verify(mockedConn).setConnectTimeout(4);
+    verify(mockedConn).setReadTimeout(8);
+    assertEquals(1, pool.getLeasedConnections());
+  }
+
+  @Test
+  public void testLease_timeout() throws Exception {
+    pool.lease(mockedConn, 10);
+    pool.lease(mockedConn, 10);
+    try {
+      pool.lease(mockedConn, 10);
+      fail("Should have thrown DeadlineExceededException");
+    } catch (DeadlineExceededException expected) {
+    }
+    assertEquals(2, pool.getLeasedConnections());
+  }
+
+  @Test
+  public void testRelease_closesStream() throws Exception {
+    when(mockedConn.getInputStream()).thenReturn(mockedStream);
+    pool.lease(mockedConn);
+    pool.release(mockedConn);
+    verify(mockedStream).close();
+    verify(mockedConn, never()).disconnect();
+    assertEquals(0, pool.getLeasedConnections());
+    assertEquals(0, pool.getDiscardedConnections());
+  }
+
+  @Test
+  public void testRelease_closesErrorStream() throws Exception {
+    when(mockedConn.getErrorStream()).thenReturn(mockedStream);
+    pool.lease(mockedConn);
+    pool.release(mockedConn);
+    verify(mockedStream).close();
+    verify(mockedConn, never()).getInputStream();
+    verify(mockedConn, never()).disconnect();
+  }
+
+  @Test
+  public void testRelease_errorWithoutBody() throws Exception {
+    when(mockedConn.getResponseCode()).thenReturn(503);
+    pool.lease(mockedConn);
+    pool.release(mockedConn);
+    verify(mockedConn, never()).getInputStream();
+    verify(mockedConn, never()).disconnect();
+    assertEquals(0, pool.getDiscardedConnections());
+  }
+
+  @Test
+  public void testRelease_discardsBrokenConnection() throws Exception {
+    when(mockedConn.getInputStream()).thenThrow(new IOException());
+    pool.lease(mockedConn);
+    pool.release(mockedConn);
+    verify(mockedConn).disconnect();
+    assertEquals(0, pool.getLeasedConnections());
+    assertEquals(1, pool.getDiscardedConnections());
+  }
+
+  @Test
+  public void testDiscard() throws Exception {
+    pool.lease(mockedConn);
+    pool.discard(mockedConn);
+    verify(mockedConn).disconnect();
+    verify(mockedConn, never()).getResponseCode();
+    verify(mockedConn, never()).getInputStream();
+    assertEquals(0, pool.getLeasedConnections());
+    assertEquals(1, pool.getDiscardedConnections());
+    // connections not obtained from the pool are only disconnected
+    pool.discard(mockedConn);
+    assertEquals(0, pool.getLeasedConnections());
+    assertEquals(1, pool.getDiscardedConnections());
+  }
+
+  @Test
+  public void testFailedConnectIsNotRetried() throws Exception {
+    // nothing listens on that port once the socket is closed
+    ServerSocket closed = new ServerSocket(0, 1, InetAddress.getByName(null));
+    closed.close();
+    final String url =
+        "http://127.0.0.1:" + closed.getLocalPort() + "/gcm/send";
+    // HttpURLConnection asks for a proxy each time it connects
+    final ProxySelector defaultSelector = ProxySelector.getDefault();
+    final AtomicInteger connects = new AtomicInteger();
+    ProxySelector.setDefault(new ProxySelector() {
+      @Override
+      public List<Proxy> select(URI uri) {
+        if (url.startsWith(uri.toString())) {
+          connects.incrementAndGet();
+        }
+        return Collections.singletonList(Proxy.NO_PROXY);
+      }
+
+      @Override
+      public void connectFailed(URI uri, SocketAddress address,
+          IOException e) {
+      }
+    });
+    try {
+      Sender sender = new Sender("key") {
+        @Override
+        protected HttpURLConnection getConnection(String ignored)
+            throws IOException {
+          return super.getConnection(url);
+        }
+      };
+      sender.setConnectionPool(new ConnectionPool(1, 1000, 1000));
+      try {
+        sender.sendNoRetry(new Message.Builder().build(),
+            Arrays.asList("4", "8"));
+        fail("Should have thrown IOException");
+      } catch (IOException expected) {
+      }
+      // reading the response of the failed connection would connect again
+      assertEquals(1, connects.get());
+      assertEquals(0, sender.getConnectionPool().getLeasedConnections());
+      assertEquals(1, sender.getConnectionPool().getDiscardedConnections());
+    } finally {
+      ProxySelector.setDefault(defaultSelector);
+    }
+  }
+
+  @Test
+  public void testRelease_twice() throws Exception {
+    when(mockedConn.getInputStream()).thenReturn(mockedStream);
+    pool.lease(mockedConn);
+    pool.release(mockedConn);
+    pool.release(mockedConn);
+    assertEquals(0, pool.getLeasedConnections());
+  }
+
+}
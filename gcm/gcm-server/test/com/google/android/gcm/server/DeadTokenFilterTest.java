@@ -0,0 +1,210 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DeadTokenFilterTest {
+
+  private File file;
+
+  @Before
+  public void setFixtures() throws Exception {
+    file = File.createTempFile("filter", "");
+    assertTrue(file.delete());
+  }
+
+  @After
+  public void deleteFiles() {
+    file.delete();
+    new File(file.getPath() + ".tmp").delete();
+  }
+
+  @Test
+  public void testAdd() {
+    DeadTokenFilter filter = new DeadTokenFilter(100, 0.01);
+    assertFalse(filter.mightContain("4"));
+    assertTrue(filter.add("4"));
+    assertFalse(filter.add("4"));
+    assertTrue(filter.add("8"));
+    assertTrue(filter.mightContain("4"));
+    assertTrue(filter.mightContain("8"));
+    assertFalse(filter.mightContain("15"));
+    assertEquals(2, filter.getCount());
+  }
+
+  @Test
+  public void testSize() {
+    DeadTokenFilter filter = new DeadTokenFilter(1000000, 0.01);
+    // 9.6 bits per id
+    assertEquals(1198136, filter.getSizeInBytes());
+    assertEquals(7, filter.getHashCount());
+    filter = new DeadTokenFilter(1000000, 0.001);
+    assertEquals(1797200, filter.getSizeInBytes());
+    assertEquals(10, filter.getHashCount());
+    filter = new DeadTokenFilter(1, 0.5);
+    assertEquals(8, filter.getSizeInBytes());
+  }
+
+  @Test
+  public void testFalsePositiveRate() {
+    DeadTokenFilter filter = new DeadTokenFilter(10000, 0.01);
+    assertEquals(0, filter.getFalsePositiveRate(), 0);
+    for (int i = 0; i < 10000; i++) {
+      filter.add(regId(i));
+    }
+    for (int i = 0; i < 10000; i++) {
+      assertTrue(filter.mightContain(regId(i)));
+    }
+    int falsePositives = 0;
+    for (int i = 10000; i < 110000; i++) {
+      if (filter.mightContain(regId(i))) {
+        falsePositives++;
+      }
+    }
+    assertEquals(0.01, falsePositives / 100000.0, 0.002);
+    assertEquals(0.01, filter.getFalsePositiveRate(), 0.002);
+  }
+
+  @Test
+  public void testApply() {
+    DeadTokenFilter filter = new DeadTokenFilter(100, 0.01);
+    filter.apply(Arrays.asList(
+        update("4", new Result.Builder()
+            .errorCode(Constants.ERROR_NOT_REGISTERED).build()),
+        update("8", new Result.Builder()
+            .errorCode(Constants.ERROR_INVALID_REGISTRATION).build()),
+        update("15", new Result.Builder().messageId("id")
+            .canonicalRegistrationId("16").build()),
+        update("23", new Result.Builder()
+            .errorCode(Constants.ERROR_MISMATCH_SENDER_ID).build())));
+    assertTrue(filter.mightContain("4"));
+    assertTrue(filter.mightContain("8"));
+    assertFalse(filter.mightContain("15"));
+    assertFalse(filter.mightContain("16"));
+    // valid for other senders
+    assertFalse(filter.mightContain("23"));
+  }
+
+  @Test
+  public void testAddResults() {
+    DeadTokenFilter filter = new DeadTokenFilter(100, 0.01);
+    filter.addResults(Arrays.asList("4", "8", "15", "16", "23"),
+        Arrays.asList(
+            new Result.Builder().messageId("id").build(),
+            new Result.Builder().errorCode(Constants.ERROR_INVALID_REGISTRATION)
+                .build(),
+            new Result.Builder().errorCode(Constants.ERROR_UNAVAILABLE).build(),
+            new Result.Builder().errorCode(Constants.ERROR_NOT_REGISTERED)
+                .build(),
+            new Result.Builder().errorCode(Constants.ERROR_MISMATCH_SENDER_ID)
+                .build()));
+    assertFalse(filter.mightContain("4"));
+    assertTrue(filter.mightContain("8"));
+    assertFalse(filter.mightContain("15"));
+    assertTrue(filter.mightContain("16"));
+    assertFalse(filter.mightContain("23"));
+  }
+
+  @Test
+  public void testConstructor_invalid() {
+    double[][] arguments = {{0, 0.01}, {100, 0}, {100, 1}, {100, Double.NaN},
+        {1e12, 1e-9}};
+    for (double[] argument : arguments) {
+      try {
+        new DeadTokenFilter((long) argument[0], argument[1]);
+        fail("Should have thrown IllegalArgumentException: " + argument[0] +
+            ", " + argument[1]);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void testSaveAndLoad() throws Exception {
+    DeadTokenFilter filter = new DeadTokenFilter(1000, 0.01);
+    for (int i = 0; i < 100; i++) {
+      filter.add("regId" + i);
+    }
+    filter.save(file);
+    // saving again replaces the file
+    filter.add("regId100");
+    filter.save(file);
+    DeadTokenFilter loaded = DeadTokenFilter.load(file);
+    assertEquals(filter.getSizeInBytes(), loaded.getSizeInBytes());
+    assertEquals(filter.getHashCount(), loaded.getHashCount());
+    assertEquals(101, loaded.getCount());
+    for (int i = 0; i <= 100; i++) {
+      assertTrue(loaded.mightContain("regId" + i));
+    }
+    assertFalse(loaded.mightContain("regId101"));
+    assertFalse(new File(file.getPath() + ".tmp").exists());
+  }
+
+  @Test
+  public void testLoad_invalid() throws Exception {
+    try {
+      DeadTokenFilter.load(file);
+      fail("Should have thrown FileNotFoundException");
+    } catch (FileNotFoundException expected) {
+    }
+    new DeadTokenFilter(1000, 0.01).save(file);
+    RandomAccessFile corrupt = new RandomAccessFile(file, "rw");
+    corrupt.seek(30);
+    corrupt.write(42);
+    corrupt.close();
+    try {
+      DeadTokenFilter.load(file);
+      fail("Should have thrown IOException");
+    } catch (IOException expected) {
+    }
+    new FileOutputStream(file).close();
+    try {
+      DeadTokenFilter.load(file);
+      fail("Should have thrown IOException");
+    } catch (IOException expected) {
+    }
+  }
+
+  private static RegistrationUpdate update(String regId, Result result) {
+    return RegistrationUpdate.fromResult(regId, result);
+  }
+
+  /**
+   * Creates registration ids that only differ in their last chars.
+   */
+  private static String regId(int i) {
+    return "APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqxHun4MxP5egoKMwt2KZFBaFUH" + i;
+  }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+public class GzipEncoderTest {
+
+  @Test
+  public void testEncode() throws Exception {
+    byte[] body = newBody(1000);
+    GzipEncoder gzip = new GzipEncoder(Deflater.BEST_SPEED, 1024);
+    gzip.encode(body, body.length);
+    assertTrue(gzip.size() < body.length / 2);
+    assertArrayEquals(body, decode(gzip));
+  }
+
+  @Test
+  public void testEncode_partOfArray() throws Exception {
+    byte[] body = newBody(10);
+    GzipEncoder gzip = new GzipEncoder(Deflater.BEST_SPEED, 1024);
+    gzip.encode(body, 5);
+    byte[] expected = new byte[5];
+    System.arraycopy(body, 0, expected, 0, 5);
+    assertArrayEquals(expected, decode(gzip));
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void testClose() throws Exception {
+    GzipEncoder gzip = new GzipEncoder(Deflater.BEST_SPEED, 1024);
+    gzip.close();
+    // the deflater was ended
+    gzip.encode(newBody(10), 10);
+  }
+
+  @Test
+  public void testEncode_empty() throws Exception {
+    GzipEncoder gzip = new GzipEncoder(Deflater.BEST_SPEED, 0);
+    gzip.encode(new byte[0], 0);
+    assertEquals(0, decode(gzip).length);
+  }
+
+  @Test
+  public void testEncode_growsBuffer() throws Exception {
+    // random bytes don't compress
+    byte[] body = new byte[10000];
+    new Random(42).nextBytes(body);
+    GzipEncoder gzip = new GzipEncoder(Deflater.BEST_COMPRESSION, 16);
+    gzip.encode(body, body.length);
+    assertTrue(gzip.size() > body.length);
+    assertArrayEquals(body, decode(gzip));
+  }
+
+  @Test
+  public void testEncode_reusesBuffer() throws Exception {
+    GzipEncoder gzip = new GzipEncoder(Deflater.BEST_SPEED, 64 * 1024);
+    byte[] first = newBody(1000);
+    byte[] buffer = gzip.encode(first, first.length).getBuffer();
+    byte[] second = newBody(10);
+    assertSame(buffer, gzip.encode(second, second.length).getBuffer());
+    assertArrayEquals(second, decode(gzip));
+  }
+
+  private static byte[] newBody(int regIds) throws IOException {
+    StringBuilder body = new StringBuilder("{\"registration_ids\":[");
+    for (int i = 0; i < regIds; i++) {
+      if (i > 0) {
+        body.append(',');
+      }
+      body.append("\"APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx-").append(i)
+          .append("\"");
+    }
+    return body.append("]}").toString().getBytes("UTF-8");
+  }
+
+  private static byte[] decode(GzipEncoder gzip) throws IOException {
+    InputStream in = new GZIPInputStream(
+        new ByteArrayInputStream(gzip.getBuffer(), 0, gzip.size()));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+    return out.toByteArray();
+  }
+
+}
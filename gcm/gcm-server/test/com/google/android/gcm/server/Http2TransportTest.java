@@ -0,0 +1,245 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class Http2TransportTest {
+
+  private ServerSocket serverSocket;
+  private String url;
+  private volatile String reply;
+  private volatile int replyDelay;
+  private final Map<String, String> requestHeaders =
+      new HashMap<String, String>();
+  private volatile String requestBody;
+
+  @Before
+  public void setUp() throws Exception {
+    assumeTrue(Http2Transport.isAvailable());
+    serverSocket = new ServerSocket(0, 10, InetAddress.getByName(null));
+    url = "http://localhost:" + serverSocket.getLocalPort() + "/gcm/send";
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        serve();
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (serverSocket != null) {
+      serverSocket.close();
+    }
+  }
+
+  @Test
+  public void testConstructor() {
+    Http2Transport transport = new Http2Transport();
+    assertEquals(Http2Transport.DEFAULT_CONNECT_TIMEOUT,
+        transport.getConnectTimeout());
+    assertEquals(Http2Transport.DEFAULT_REQUEST_TIMEOUT,
+        transport.getRequestTimeout());
+    transport = new Http2Transport(4, 8);
+    assertEquals(4, transport.getConnectTimeout());
+    assertEquals(8, transport.getRequestTimeout());
+    assertEquals("Http2Transport(connectTimeout=4,requestTimeout=8)",
+        transport.toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_negativeTimeout() {
+    new Http2Transport(-4, 8);
+  }
+
+  @Test
+  public void testPost() throws Exception {
+    reply = "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n"
+        + "Content-Length: 7\r\nRetry-After: 10\r\n\r\n{\"a\":1}";
+    byte[] body = "{\"b\":2}...".getBytes("UTF-8");
+    Transport.Response response = new Http2Transport().post(url,
+        "application/json", "secret", body, 7, 0);
+    assertEquals(200, response.getStatus());
+    assertEquals("10", response.getHeader("Retry-After"));
+    assertEquals("10", response.getHeader("retry-after"));
+    assertNull(response.getHeader("Content-Encoding"));
+    assertEquals("{\"a\":1}", read(response.getBody()));
+    response.close();
+    synchronized (requestHeaders) {
+      assertEquals("key=secret", requestHeaders.get("authorization"));
+      assertEquals("application/json", requestHeaders.get("content-type"));
+    }
+    assertEquals("{\"b\":2}", requestBody);
+  }
+
+  @Test
+  public void testPost_errorWithoutBody() throws Exception {
+    reply = "HTTP/1.1 503 Unavailable\r\nContent-Length: 0\r\n\r\n";
+    byte[] body = "registration_id=4815".getBytes("UTF-8");
+    Transport.Response response = new Http2Transport().post(url,
+        "application/x-www-form-urlencoded;charset=UTF-8", "secret", body,
+        body.length, 0);
+    assertEquals(503, response.getStatus());
+    assertNull(response.getHeader("Retry-After"));
+    assertEquals("", read(response.getBody()));
+    response.close();
+    assertEquals("registration_id=4815", requestBody);
+  }
+
+  @Test
+  public void testPost_requestTimeout() throws Exception {
+    reply = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n";
+    replyDelay = 5000;
+    byte[] body = "{}".getBytes("UTF-8");
+    try {
+      new Http2Transport(1000, 100).post(url, "application/json", "secret",
+          body, body.length, 0);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testPost_callDeadline() throws Exception {
+    reply = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n";
+    replyDelay = 5000;
+    byte[] body = "{}".getBytes("UTF-8");
+    long start = System.currentTimeMillis();
+    try {
+      // the time left before the deadline is shorter than the request timeout
+      new Http2Transport().post(url, "application/json", "secret", body,
+          body.length, 100);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertTrue(System.currentTimeMillis() - start < 4000);
+    }
+  }
+
+  @Test
+  public void testPost_bodyIsCopied() throws Exception {
+    reply = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n";
+    replyDelay = 0;
+    byte[] body = "{\"b\":2}".getBytes("UTF-8");
+    Transport.Response response = new Http2Transport().post(url,
+        "application/json", "secret", body, body.length, 0);
+    // the caller is free to reuse the array once post() returns
+    Arrays.fill(body, (byte) 'x');
+    assertEquals(200, response.getStatus());
+    response.close();
+    assertEquals("{\"b\":2}", requestBody);
+  }
+
+  @Test
+  public void testPost_connectionRefused() throws Exception {
+    serverSocket.close();
+    byte[] body = "{}".getBytes("UTF-8");
+    try {
+      new Http2Transport().post(url, "application/json", "secret", body,
+          body.length, 0);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testPost_invalidUrl() throws Exception {
+    new Http2Transport().post("http://local host", "application/json",
+        "secret", new byte[0], 0, 0);
+  }
+
+  /**
+   * Serves a single HTTP/1.1 request (ignoring the upgrade to HTTP/2 asked
+   * by the client) with the reply set by the test.
+   */
+  private void serve() {
+    try {
+      Socket socket = serverSocket.accept();
+      try {
+        InputStream in = socket.getInputStream();
+        int contentLength = 0;
+        String line = readLine(in);
+        while ((line = readLine(in)).length() > 0) {
+          int separator = line.indexOf(':');
+          String name = line.substring(0, separator).trim().toLowerCase();
+          String value = line.substring(separator + 1).trim();
+          synchronized (requestHeaders) {
+            requestHeaders.put(name, value);
+          }
+          if (name.equals("content-length")) {
+            contentLength = Integer.parseInt(value);
+          }
+        }
+        byte[] body = new byte[contentLength];
+        int read = 0;
+        while (read < contentLength) {
+          read += in.read(body, read, contentLength - read);
+        }
+        requestBody = new String(body, "UTF-8");
+        Thread.sleep(replyDelay);
+        socket.getOutputStream().write(reply.getBytes("UTF-8"));
+        socket.getOutputStream().flush();
+      } finally {
+        socket.close();
+      }
+    } catch (Exception e) {
+      // the test failed or closed the socket
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1 && b != '\n') {
+      if (b != '\r') {
+        line.write(b);
+      }
+    }
+    return line.toString("UTF-8");
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1) {
+      out.write(b);
+    }
+    return out.toString("UTF-8");
+  }
+
+}
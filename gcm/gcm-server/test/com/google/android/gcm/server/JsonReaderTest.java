@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+@RunWith(MockitoJUnitRunner.class)
+public class JsonReaderTest {
+
+  private static final String[] NAMES = {"id", "ids", "obj"};
+
+  @Test
+  public void testObject() throws Exception {
+    JsonReader json = newReader(" { 'id' : -108 ,'ids':['4', \"8\" ],\n" +
+        " 'other': {'a': [1, {'b': 'c]}'}], 'd': true}, 'obj': {},\n" +
+        " 'null': null, 'float': 1.5e3 } ");
+    json.beginObject();
+    assertTrue(json.hasNext());
+    assertEquals(0, json.nextName(NAMES));
+    assertEquals(-108, json.nextLong());
+    assertEquals(1, json.nextName(NAMES));
+    json.beginArray();
+    assertEquals("4", json.nextString());
+    assertTrue(json.hasNext());
+    assertEquals("8", json.nextString());
+    assertFalse(json.hasNext());
+    json.endArray();
+    assertEquals(-1, json.nextName(NAMES));
+    json.skipValue();
+    assertEquals(2, json.nextName(NAMES));
+    json.beginObject();
+    assertFalse(json.hasNext());
+    json.endObject();
+    assertEquals(-1, json.nextName(NAMES));
+    assertNull(json.nextString());
+    assertEquals(-1, json.nextName(NAMES));
+    assertEquals(1500, json.nextLong());
+    assertFalse(json.hasNext());
+    json.endObject();
+  }
+
+  @Test
+  public void testEscapes() throws Exception {
+    JsonReader json = new JsonReader(new StringReader(
+        "[\"q\\\" b\\\\ s\\/ n\\n t\\t u\\u00e7\"]"));
+    json.beginArray();
+    assertEquals("q\" b\\ s/ n\n t\t u\u00e7", json.nextString());
+    json.endArray();
+  }
+
+  @Test
+  public void testLongString() throws Exception {
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      value.append(i % 10);
+    }
+    JsonReader json = newReader("['" + value + "']");
+    json.beginArray();
+    assertEquals(value.toString(), json.nextString());
+    json.endArray();
+  }
+
+  @Test(expected = IOException.class)
+  public void testMissingComma() throws Exception {
+    JsonReader json = newReader("['4' '8']");
+    json.beginArray();
+    json.nextString();
+    json.nextString();
+  }
+
+  @Test(expected = IOException.class)
+  public void testNotANumber() throws Exception {
+    JsonReader json = newReader("{'id': '108'}");
+    json.beginObject();
+    json.nextName(NAMES);
+    json.nextLong();
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncated() throws Exception {
+    JsonReader json = newReader("{'id': 108");
+    json.beginObject();
+    json.nextName(NAMES);
+    json.nextLong();
+    json.hasNext();
+  }
+
+  // replace ' by ", otherwise JSON strings would need to escape double-quotes
+  private JsonReader newReader(String json) {
+    return new JsonReader(new StringReader(json.replaceAll("'", "\"")));
+  }
+
+}
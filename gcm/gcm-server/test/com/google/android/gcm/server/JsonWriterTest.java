@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.nio.ByteBuffer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class JsonWriterTest {
+
+  private final JsonWriter json = new JsonWriter(4);
+
+  @Test
+  public void testEmptyObject() {
+    json.beginObject().endObject();
+    assertEquals("{}", json.toString());
+  }
+
+  @Test
+  public void testObject() {
+    json.beginObject()
+        .name("ttl").value(108)
+        .name("delay").value(true)
+        .name("ids").beginArray().value("4").value("8").endArray()
+        .name("data").beginObject()
+            .name("k1").value("v1")
+            .name("k2").value("v2")
+        .endObject()
+        .name("empty").beginArray().endArray()
+        .endObject();
+    assertEquals("{\"ttl\":108,\"delay\":true,\"ids\":[\"4\",\"8\"]," +
+        "\"data\":{\"k1\":\"v1\",\"k2\":\"v2\"},\"empty\":[]}",
+        json.toString());
+  }
+
+  @Test
+  public void testFields() throws Exception {
+    json.beginObject()
+        .fields(new byte[0])
+        .fields("\"a\":1,\"b\":\"2\"".getBytes("UTF-8"))
+        .name("c").value(3)
+        .endObject();
+    assertEquals("{\"a\":1,\"b\":\"2\",\"c\":3}", json.toString());
+    json.reset().beginObject()
+        .name("c").value(3)
+        .fields("\"a\":1".getBytes("UTF-8"))
+        .endObject();
+    assertEquals("{\"c\":3,\"a\":1}", json.toString());
+  }
+
+  @Test
+  public void testByteBufferValues() throws Exception {
+    ByteBuffer buffer =
+        ByteBuffer.wrap("skip-4:8-caf\u00e9".getBytes("UTF-8"));
+    buffer.position(5);
+    json.beginArray().value(buffer, 1).value(buffer, 0).value(buffer, 1);
+    buffer.position(9);
+    json.value(buffer, 5).endArray();
+    assertEquals("[\"4\",\"\",\":\",\"caf\u00e9\"]", json.toString());
+  }
+
+  @Test
+  public void testEscaping() throws Exception {
+    String value = "quote\" backslash\\ slash/ tab\t newline\n control\u0001";
+    json.beginObject().name("key").value(value).endObject();
+    JSONObject parsed = (JSONObject) new JSONParser().parse(json.toString());
+    assertEquals(value, parsed.get("key"));
+  }
+
+  @Test
+  public void testUnicode() throws Exception {
+    String value = "a\u00e7\u00e3o \u65e5\u672c \ud83d\ude00";
+    json.beginArray().value(value).endArray();
+    byte[] expected = ("[\"" + value + "\"]").getBytes("UTF-8");
+    assertEquals(expected.length, json.size());
+    assertEquals(new String(expected, "UTF-8"),
+        new String(json.getBuffer(), 0, json.size(), "UTF-8"));
+    JSONArray parsed = (JSONArray) new JSONParser().parse(json.toString());
+    assertEquals(value, parsed.get(0));
+  }
+
+  @Test
+  public void testReset() {
+    json.beginArray().value("a long value that makes the buffer grow")
+        .endArray();
+    int capacity = json.getBuffer().length;
+    assertTrue(capacity > 4);
+    json.reset().beginArray().value(false).endArray();
+    assertEquals("[false]", json.toString());
+    assertEquals(7, json.size());
+    assertEquals(capacity, json.getBuffer().length);
+  }
+
+}
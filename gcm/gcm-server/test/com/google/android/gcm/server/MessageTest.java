@@ -18,12 +18,17 @@ package com.google.android.gcm.server;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Map;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -73,4 +78,105 @@ public class MessageTest {
     Message message = new Message.Builder().build();
     message.getData().clear();
   }
+
+  @Test
+  public void testBuilderChangesDoNotAffectMessage() throws Exception {
+    Message.Builder builder = new Message.Builder().addData("k1", "v1");
+    Message message = builder.build();
+    String formParameters = message.getFormParameters();
+    int hashCode = message.hashCode();
+    builder.addData("k2", "v2");
+    assertEquals(1, message.getData().size());
+    assertEquals(formParameters, message.getFormParameters());
+    assertEquals(hashCode, message.hashCode());
+  }
+
+  @Test
+  public void testEquals() {
+    Message message = new Message.Builder()
+        .collapseKey("108")
+        .timeToLive(42)
+        .addData("k1", "v1")
+        .addData("k2", "v2")
+        .build();
+    Message same = new Message.Builder()
+        .collapseKey("108")
+        .timeToLive(42)
+        .addData("k2", "v2")
+        .addData("k1", "v1")
+        .build();
+    assertEquals(message, same);
+    assertEquals(message.hashCode(), same.hashCode());
+    assertFalse(message.equals(new Message.Builder()
+        .collapseKey("108")
+        .timeToLive(42)
+        .addData("k1", "v1")
+        .build()));
+    assertFalse(message.equals(new Message.Builder()
+        .collapseKey("108")
+        .addData("k1", "v1")
+        .addData("k2", "v2")
+        .build()));
+    assertFalse(new Message.Builder().build().equals(
+        new Message.Builder().delayWhileIdle(false).build()));
+    assertFalse(message.equals(null));
+  }
+
+  @Test
+  public void testGetFormParameters_empty() throws Exception {
+    Message message = new Message.Builder().build();
+    assertEquals("", message.getFormParameters());
+  }
+
+  @Test
+  public void testGetFormParameters() throws Exception {
+    Message message = new Message.Builder()
+        .delayWhileIdle(true)
+        .collapseKey("108")
+        .timeToLive(42)
+        .addData("k1", "v 1")
+        .addData("k2", "v&2")
+        .build();
+    String parameters = message.getFormParameters();
+    assertEquals("&delay_while_idle=1&collapse_key=108&time_to_live=42" +
+        "&data.k1=v+1&data.k2=v%262", parameters);
+    assertSame(parameters, message.getFormParameters());
+  }
+
+  @Test
+  public void testGetJsonFields_empty() throws Exception {
+    Message message = new Message.Builder().build();
+    assertEquals(0, message.getJsonFields().length);
+  }
+
+  @Test
+  public void testGetJsonFields() throws Exception {
+    Message message = new Message.Builder()
+        .delayWhileIdle(false)
+        .collapseKey("108")
+        .timeToLive(42)
+        .addData("k1", "v1")
+        .build();
+    byte[] fields = message.getJsonFields();
+    assertEquals("\"time_to_live\":42,\"collapse_key\":\"108\"," +
+        "\"delay_while_idle\":false,\"data\":{\"k1\":\"v1\"}",
+        new String(fields, "UTF-8"));
+    assertSame(fields, message.getJsonFields());
+  }
+
+  @Test
+  public void testEncodedFormsAreNotSerialized() throws Exception {
+    Message message = new Message.Builder().collapseKey("108").build();
+    String parameters = message.getFormParameters();
+    byte[] fields = message.getJsonFields();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(message);
+    out.close();
+    Message copy = (Message) new ObjectInputStream(
+        new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    assertEquals(parameters, copy.getFormParameters());
+    assertEquals(new String(fields, "UTF-8"),
+        new String(copy.getJsonFields(), "UTF-8"));
+  }
 }
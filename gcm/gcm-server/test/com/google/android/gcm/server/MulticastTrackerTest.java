@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MulticastTrackerTest {
+
+  private final List<String> regIds = Arrays.asList("4", "8", "15", "8");
+  private final MulticastTracker tracker = new MulticastTracker(regIds);
+  private final Result unavailable =
+      new Result.Builder().errorCode(Constants.ERROR_UNAVAILABLE).build();
+  private final Result notRegistered =
+      new Result.Builder().errorCode(Constants.ERROR_NOT_REGISTERED).build();
+
+  @Test
+  public void testInitialState() {
+    assertSame(regIds, tracker.getPendingRegIds());
+    assertEquals(4, tracker.getPendingCount());
+    assertFalse(tracker.hasResults());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testBuild_noResults() {
+    tracker.build();
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testUpdate_sizesDoNotMatch() {
+    tracker.update(newResult(1, sent("1")));
+  }
+
+  @Test
+  public void testUpdate() {
+    tracker.update(newResult(1, sent("1"), unavailable, notRegistered,
+        unavailable));
+    List<String> pending = tracker.getPendingRegIds();
+    assertEquals(Arrays.asList("8", "8"), pending);
+    assertEquals(2, tracker.getPendingCount());
+    assertTrue(tracker.hasResults());
+    tracker.update(newResult(2, unavailable, sent("2")));
+    // lists returned before are not affected
+    assertEquals(Arrays.asList("8", "8"), pending);
+    assertEquals(Arrays.asList("8"), tracker.getPendingRegIds());
+    tracker.update(newResult(3, new Result.Builder().messageId("3")
+        .canonicalRegistrationId("16").build()));
+    assertEquals(0, tracker.getPendingCount());
+    assertTrue(tracker.getPendingRegIds().isEmpty());
+
+    MulticastResult result = tracker.build();
+    assertEquals(1, result.getMulticastId());
+    assertEquals(Arrays.asList(2L, 3L), result.getRetryMulticastIds());
+    assertEquals(3, result.getSuccess());
+    assertEquals(1, result.getFailure());
+    assertEquals(1, result.getCanonicalIds());
+    List<Result> results = result.getResults();
+    assertEquals("1", results.get(0).getMessageId());
+    assertEquals("3", results.get(1).getMessageId());
+    assertEquals("16", results.get(1).getCanonicalRegistrationId());
+    assertSame(notRegistered, results.get(2));
+    assertEquals("2", results.get(3).getMessageId());
+  }
+
+  @Test
+  public void testBuild_stillUnavailable() {
+    tracker.update(newResult(1, sent("1"), unavailable, sent("2"),
+        sent("3")));
+    MulticastResult result = tracker.build();
+    assertEquals(3, result.getSuccess());
+    assertEquals(1, result.getFailure());
+    assertSame(unavailable, result.getResults().get(1));
+    assertNull(result.getResults().get(1).getMessageId());
+    assertTrue(result.getRetryMulticastIds().isEmpty());
+  }
+
+  private static Result sent(String messageId) {
+    return new Result.Builder().messageId(messageId).build();
+  }
+
+  private static MulticastResult newResult(long multicastId,
+      Result... results) {
+    MulticastResult.Builder builder =
+        new MulticastResult.Builder(0, 0, 0, multicastId);
+    for (Result result : results) {
+      builder.addResult(result);
+    }
+    return builder.build();
+  }
+
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(MockitoJUnitRunner.class)
+public class OutboundQueueTest {
+
+  private final Message message = new Message.Builder()
+      .collapseKey("108")
+      .delayWhileIdle(true)
+      .timeToLive(42)
+      .addData("k1", "v1")
+      .addData("k2", "\u00e7\u00e3o")
+      .build();
+  private File directory;
+  private OutboundQueue queue;
+
+  @Before
+  public void setFixtures() throws Exception {
+    directory = File.createTempFile("queue", "");
+    assertTrue(directory.delete());
+    queue = new OutboundQueue(directory);
+  }
+
+  @After
+  public void deleteDirectory() throws Exception {
+    queue.close();
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAdd_emptyRegIds() throws Exception {
+    queue.add(message, new ArrayList<String>());
+  }
+
+  @Test
+  public void testAddAndPoll() throws Exception {
+    assertNull(queue.poll());
+    queue.add(message, Arrays.asList("4", "8"));
+    queue.add(new Message.Builder().build(), Arrays.asList("15"));
+    assertEquals(2, queue.getPendingEntries());
+    OutboundQueue.Entry entry = queue.poll();
+    assertEquals(0, entry.getSequence());
+    assertEquals(message, entry.getMessage());
+    assertEquals(Arrays.asList("4", "8"), entry.getRegistrationIds());
+    entry = queue.poll();
+    assertEquals(1, entry.getSequence());
+    assertEquals(new Message.Builder().build(), entry.getMessage());
+    assertEquals(Arrays.asList("15"), entry.getRegistrationIds());
+    assertNull(queue.poll());
+    assertEquals(0, queue.getPendingEntries());
+    assertEquals(2, queue.getUnacknowledgedEntries());
+  }
+
+  @Test
+  public void testAdd_splitsInChunks() throws Exception {
+    List<String> regIds = new ArrayList<String>();
+    for (int i = 0; i < 2500; i++) {
+      regIds.add("regId-" + i);
+    }
+    queue.add(message, regIds);
+    assertEquals(regIds.subList(0, 1000), queue.poll().getRegistrationIds());
+    assertEquals(regIds.subList(1000, 2000),
+        queue.poll().getRegistrationIds());
+    assertEquals(regIds.subList(2000, 2500),
+        queue.poll().getRegistrationIds());
+  }
+
+  @Test
+  public void testRelease() throws Exception {
+    queue.add(message, Arrays.asList("4"));
+    queue.add(message, Arrays.asList("8"));
+    OutboundQueue.Entry entry = queue.poll();
+    queue.release(entry);
+    assertEquals(entry.getSequence(), queue.poll().getSequence());
+    queue.acknowledge(entry);
+    // acknowledged entries are not returned
+    queue.release(entry);
+    assertEquals(1, queue.poll().getSequence());
+  }
+
+  @Test
+  public void testRecovery() throws Exception {
+    queue.add(message, Arrays.asList("4"));
+    queue.add(message, Arrays.asList("8"));
+    queue.add(message, Arrays.asList("15"));
+    queue.acknowledge(queue.poll());
+    // polled, but not acknowledged
+    queue.poll();
+    queue.close();
+    queue = new OutboundQueue(directory);
+    assertEquals(2, queue.getPendingEntries());
+    assertEquals(Arrays.asList("8"), queue.poll().getRegistrationIds());
+    assertEquals(Arrays.asList("15"), queue.poll().getRegistrationIds());
+    queue.add(message, Arrays.asList("16"));
+    assertEquals(3, queue.poll().getSequence());
+  }
+
+  @Test
+  public void testRecovery_allAcknowledged() throws Exception {
+    queue.add(message, Arrays.asList("4"));
+    queue.acknowledge(queue.poll());
+    queue.close();
+    queue = new OutboundQueue(directory);
+    assertEquals(0, queue.getPendingEntries());
+    queue.add(message, Arrays.asList("8"));
+    assertEquals(1, queue.poll().getSequence());
+  }
+
+  @Test
+  public void testRecovery_outOfOrderAcknowledgements() throws Exception {
+    queue.add(message, Arrays.asList("4"));
+    queue.add(message, Arrays.asList("8"));
+    OutboundQueue.Entry first = queue.poll();
+    queue.acknowledge(queue.poll());
+    queue.close();
+    queue = new OutboundQueue(directory);
+    // the checkpoint only covers the entries before the first pending one
+    assertEquals(2, queue.getPendingEntries());
+    assertEquals(first.getSequence(), queue.poll().getSequence());
+  }
+
+  @Test
+  public void testRecovery_truncatesIncompleteRecord() throws Exception {
+    queue.add(message, Arrays.asList("4"));
+    queue.add(message, Arrays.asList("8"));
+    queue.close();
+    File segment = getSegment();
+    long size = segment.length();
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    file.setLength(size - 1);
+    file.close();
+    queue = new OutboundQueue(directory);
+    assertEquals(1, queue.getPendingEntries());
+    assertEquals(Arrays.asList("4"), queue.poll().getRegistrationIds());
+    queue.add(message, Arrays.asList("15"));
+    assertEquals(Arrays.asList("15"), queue.poll().getRegistrationIds());
+  }
+
+  @Test
+  public void testRecovery_dropsCorruptRecord() throws Exception {
+    queue.add(message, Arrays.asList("4"));
+    queue.add(message, Arrays.asList("8"));
+    queue.close();
+    File segment = getSegment();
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    // flips a byte of the last registration id
+    file.seek(segment.length() - 5);
+    file.write('9');
+    file.close();
+    queue = new OutboundQueue(directory);
+    assertEquals(1, queue.getPendingEntries());
+    assertEquals(Arrays.asList("4"), queue.poll().getRegistrationIds());
+  }
+
+  @Test
+  public void testRecovery_ignoresCorruptCheckpoint() throws Exception {
+    queue.add(message, Arrays.asList("4"));
+    queue.acknowledge(queue.poll());
+    queue.close();
+    FileOutputStream out =
+        new FileOutputStream(new File(directory, "checkpoint"));
+    out.write(new byte[16]);
+    out.close();
+    queue = new OutboundQueue(directory);
+    // sent again, rather than lost
+    assertEquals(1, queue.getPendingEntries());
+  }
+
+  @Test
+  public void testSegments() throws Exception {
+    queue.close();
+    queue = new OutboundQueue(directory, 1);
+    queue.add(message, Arrays.asList("4"));
+    queue.add(message, Arrays.asList("8"));
+    queue.add(message, Arrays.asList("15"));
+    assertEquals(3, queue.getSegments());
+    OutboundQueue.Entry first = queue.poll();
+    queue.acknowledge(queue.poll());
+    assertEquals(3, queue.getSegments());
+    queue.acknowledge(first);
+    assertEquals(1, queue.getSegments());
+    queue.acknowledge(queue.poll());
+    // the current segment is kept
+    assertEquals(1, queue.getSegments());
+    queue.close();
+    queue = new OutboundQueue(directory, 1);
+    assertEquals(0, queue.getPendingEntries());
+    queue.add(message, Arrays.asList("16"));
+    assertEquals(3, queue.poll().getSequence());
+  }
+
+  @Test
+  public void testConcurrentAdds() throws Exception {
+    final int threads = 8;
+    final int adds = 50;
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicReference<Exception> error = new AtomicReference<Exception>();
+    for (int i = 0; i < threads; i++) {
+      final String regId = Integer.toString(i);
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            for (int j = 0; j < adds; j++) {
+              queue.add(message, Arrays.asList(regId));
+            }
+          } catch (Exception e) {
+            error.set(e);
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    done.await();
+    assertNull(error.get());
+    assertEquals(threads * adds, queue.getPendingEntries());
+    queue.close();
+    queue = new OutboundQueue(directory);
+    assertEquals(threads * adds, queue.getPendingEntries());
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    queue.close();
+    queue.close();
+    try {
+      queue.add(message, Arrays.asList("4"));
+      fail("Should have thrown IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  private File getSegment() {
+    File[] files = directory.listFiles();
+    for (File file : files) {
+      if (file.getName().endsWith(".log")) {
+        return file;
+      }
+    }
+    throw new AssertionError("No segment in " + Arrays.asList(files));
+  }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.SentChunk.completeAll;
+import static com.google.android.gcm.server.SentChunk.keys;
+import static com.google.android.gcm.server.SentChunk.newRegIds;
+import static com.google.android.gcm.server.SentChunk.record;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.gcm.server.PrioritySender.Lane;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PrioritySenderTest {
+
+  private final Message interactive =
+      new Message.Builder().collapseKey("I").build();
+  private final Message normal =
+      new Message.Builder().collapseKey("N").build();
+  private final Message bulk =
+      new Message.Builder().collapseKey("B").build();
+  // chunks sent so far, in order
+  private final List<SentChunk> sent = new ArrayList<SentChunk>();
+
+  @Mock private Sender sender;
+
+  @Before
+  public void setFixtures() {
+    // chunks are keyed by the collapse key of their message
+    record(sender, null, 5, sent);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_noSender() {
+    new PrioritySender.Builder(null, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_noChunksInFlight() {
+    new PrioritySender.Builder(sender, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_invalidLaneChunksInFlight() {
+    new PrioritySender.Builder(sender, 1).maxChunksInFlight(Lane.BULK, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_invalidWeight() {
+    new PrioritySender.Builder(sender, 1).weight(Lane.BULK, 0);
+  }
+
+  @Test
+  public void testSend_strict() throws Exception {
+    PrioritySender prioritySender =
+        new PrioritySender.Builder(sender, 1).build();
+    prioritySender.send(Lane.BULK, bulk, newRegIds(3000), 5);
+    prioritySender.send(Lane.NORMAL, normal, newRegIds(2000), 5);
+    prioritySender.send(Lane.INTERACTIVE, interactive, newRegIds(1), 5);
+    assertEquals(2, prioritySender.getQueuedChunks(Lane.BULK));
+    assertEquals(1, prioritySender.getChunksInFlight(Lane.BULK));
+    assertEquals(2, prioritySender.getQueuedChunks(Lane.NORMAL));
+    assertEquals(1, prioritySender.getQueuedChunks(Lane.INTERACTIVE));
+    // the chunk in flight is not preempted
+    assertEquals("BINNBB", completeAll(sent));
+  }
+
+  @Test
+  public void testSend_weighted() throws Exception {
+    PrioritySender prioritySender = new PrioritySender.Builder(sender, 1)
+        .weight(Lane.NORMAL, 3)
+        .build();
+    prioritySender.send(Lane.BULK, bulk, newRegIds(4000), 5);
+    prioritySender.send(Lane.NORMAL, normal, newRegIds(4000), 5);
+    // bulk is not starved
+    assertEquals("BNNNNBBB", completeAll(sent));
+  }
+
+  @Test
+  public void testSend_laneMaxChunksInFlight() throws Exception {
+    PrioritySender prioritySender = new PrioritySender.Builder(sender, 3)
+        .maxChunksInFlight(Lane.BULK, 2)
+        .build();
+    prioritySender.send(Lane.BULK, bulk, newRegIds(5000), 5);
+    assertEquals(2, prioritySender.getChunksInFlight(Lane.BULK));
+    assertEquals(3, prioritySender.getQueuedChunks(Lane.BULK));
+    // a slot was kept for other lanes
+    prioritySender.send(Lane.INTERACTIVE, interactive, newRegIds(1), 5);
+    assertEquals("BBI", keys(sent));
+  }
+
+  @Test
+  public void testSend_metrics() throws Exception {
+    PrioritySender prioritySender =
+        new PrioritySender.Builder(sender, 1).build();
+    SendFuture<MulticastResult> bulkFuture =
+        prioritySender.send(Lane.BULK, bulk, newRegIds(1500), 5);
+    SendFuture<MulticastResult> interactiveFuture =
+        prioritySender.send(Lane.INTERACTIVE, interactive, newRegIds(1), 5);
+    sent.get(0).complete();
+    assertFalse(bulkFuture.isDone());
+    sent.get(1).complete();
+    assertEquals(1, interactiveFuture.get().getTotal());
+    sent.get(2).complete();
+    assertEquals(1500, bulkFuture.get().getTotal());
+    assertEquals(2, prioritySender.getQueueTimes(Lane.BULK).getCount());
+    assertEquals(1, prioritySender.getLatencies(Lane.BULK).getCount());
+    assertEquals(1, prioritySender.getQueueTimes(Lane.INTERACTIVE).getCount());
+    assertEquals(1, prioritySender.getLatencies(Lane.INTERACTIVE).getCount());
+    assertEquals(0, prioritySender.getLatencies(Lane.NORMAL).getCount());
+  }
+
+  @Test
+  public void testSend_failureIsMeasured() throws Exception {
+    PrioritySender prioritySender =
+        new PrioritySender.Builder(sender, 1).build();
+    SendFuture<MulticastResult> future =
+        prioritySender.send(Lane.NORMAL, normal, newRegIds(1), 5);
+    sent.get(0).future.setException(new IllegalStateException());
+    try {
+      future.get();
+    } catch (ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof IllegalStateException);
+    }
+    assertEquals(1, prioritySender.getLatencies(Lane.NORMAL).getCount());
+  }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RegistrationIdArenaTest {
+
+  private final RegistrationIdArena arena = new RegistrationIdArena(2, 10);
+
+  @Test
+  public void testAdd() {
+    assertEquals(0, arena.add("4"));
+    assertEquals(1, arena.add("15"));
+    assertEquals(2, arena.add("16"));
+    assertEquals(3, arena.size());
+    assertEquals(Arrays.asList("4", "15", "16"), arena.asList());
+    assertEquals(5, arena.getUsedBytes());
+    assertEquals(10, arena.getAllocatedBytes());
+  }
+
+  @Test
+  public void testAdd_manySegments() {
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      String regId = "id" + i;
+      expected.add(regId);
+      assertEquals(i, arena.add(regId));
+    }
+    assertEquals(expected, arena.asList());
+    assertEquals(expected.subList(7, 93), arena.subList(7, 93));
+    // ids don't span segments, so each one holds 2 or 3 ids
+    assertEquals(490, arena.getAllocatedBytes());
+    assertEquals(390, arena.getUsedBytes());
+  }
+
+  @Test
+  public void testAdd_nonAscii() {
+    arena.add("caf\u00e9");
+    arena.add("\u00e9t\u00e9");
+    assertEquals(Arrays.asList("caf\u00e9", "\u00e9t\u00e9"), arena.asList());
+    assertEquals(10, arena.getUsedBytes());
+    assertEquals(10, arena.getAllocatedBytes());
+  }
+
+  @Test
+  public void testAdd_segmentSize() {
+    arena.add("0123456789");
+    assertEquals("0123456789", arena.asList().get(0));
+    try {
+      arena.add("0123456789A");
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(1, arena.size());
+  }
+
+  @Test
+  public void testAdd_invalid() {
+    for (String regId : new String[] {"", "a\"b", "a\\b", "a\nb"}) {
+      try {
+        arena.add(regId);
+        fail("Should have thrown IllegalArgumentException: " + regId);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+    assertEquals(0, arena.size());
+    assertEquals(0, arena.getAllocatedBytes());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAdd_null() {
+    arena.add(null);
+  }
+
+  @Test
+  public void testAddAll() {
+    arena.addAll(Arrays.asList("4", "8"));
+    assertEquals(Arrays.asList("4", "8"), arena.asList());
+  }
+
+  @Test
+  public void testRelease() {
+    arena.add("4");
+    List<String> ids = arena.asList();
+    arena.release();
+    assertEquals(0, arena.getAllocatedBytes());
+    try {
+      ids.get(0);
+      fail("Should have thrown IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      arena.add("8");
+      fail("Should have thrown IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    // does nothing the second time
+    arena.release();
+  }
+
+  @Test
+  public void testRelease_whileReading() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      arena.add("id" + i);
+    }
+    final List<String> ids = arena.asList();
+    final CountDownLatch reading = new CountDownLatch(1);
+    final AtomicReference<Exception> failure =
+        new AtomicReference<Exception>();
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            for (int i = 0; i < ids.size(); i++) {
+              assertEquals("id" + i, ids.get(i));
+            }
+            reading.countDown();
+          }
+        } catch (Exception e) {
+          failure.set(e);
+        }
+      }
+    };
+    reader.start();
+    assertTrue(reading.await(5, TimeUnit.SECONDS));
+    // the reader stops with an exception, instead of reading freed memory
+    arena.release();
+    reader.join(5000);
+    assertTrue(failure.get() instanceof IllegalStateException);
+  }
+
+  @Test
+  public void testConstructor_invalid() {
+    try {
+      new RegistrationIdArena(-1, 10);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new RegistrationIdArena(10, 0);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testAsList_notAffectedByLaterIds() {
+    arena.add("4");
+    List<String> regIds = arena.asList();
+    arena.add("8");
+    assertEquals(Collections.singletonList("4"), regIds);
+    assertEquals(Arrays.asList("4", "8"), arena.asList());
+  }
+
+  @Test
+  public void testAsList_readOnly() {
+    arena.add("4");
+    try {
+      arena.asList().add("8");
+      fail("Should have thrown UnsupportedOperationException");
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  @Test
+  public void testSubList() {
+    arena.addAll(Arrays.asList("4", "8", "15", "16", "23", "42"));
+    List<String> regIds = arena.subList(1, 5);
+    assertEquals(Arrays.asList("8", "15", "16", "23"), regIds);
+    assertEquals(Arrays.asList("15", "16"), regIds.subList(1, 3));
+    assertEquals(Collections.emptyList(), regIds.subList(4, 4));
+    assertEquals(Collections.emptyList(), arena.subList(6, 6));
+  }
+
+  @Test
+  public void testSubList_outOfRange() {
+    arena.addAll(Arrays.asList("4", "8"));
+    int[][] ranges = {{-1, 1}, {0, 3}, {2, 1}};
+    for (int[] range : ranges) {
+      try {
+        arena.subList(range[0], range[1]);
+        fail("Should have thrown IndexOutOfBoundsException");
+      } catch (IndexOutOfBoundsException expected) {
+      }
+      try {
+        arena.asList().subList(range[0], range[1]);
+        fail("Should have thrown IndexOutOfBoundsException");
+      } catch (IndexOutOfBoundsException expected) {
+      }
+    }
+    try {
+      arena.subList(0, 1).get(1);
+      fail("Should have thrown IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException expected) {
+    }
+  }
+
+  @Test
+  public void testWriteMulticastRequest() {
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 50; i++) {
+      String regId = i % 7 == 0 ? "\u00e9" + i : "id" + i;
+      expected.add(regId);
+      arena.add(regId);
+    }
+    Message message = new Message.Builder().addData("k", "v").build();
+    for (int[] range : new int[][] {{0, 50}, {3, 41}, {5, 6}, {9, 9}}) {
+      JsonWriter expectedJson = new JsonWriter();
+      Sender.writeMulticastRequest(expectedJson, message,
+          expected.subList(range[0], range[1]));
+      JsonWriter json = new JsonWriter();
+      Sender.writeMulticastRequest(json, message,
+          arena.subList(range[0], range[1]));
+      assertEquals(expectedJson.toString(), json.toString());
+    }
+  }
+
+  @Test
+  public void testSnapshot() {
+    arena.add("4");
+    List<String> regIds = arena.asList();
+    assertSame(regIds, Sender.snapshot(regIds));
+    List<String> list = new ArrayList<String>(regIds);
+    List<String> copy = Sender.snapshot(list);
+    list.add("8");
+    assertEquals(regIds, copy);
+  }
+
+}
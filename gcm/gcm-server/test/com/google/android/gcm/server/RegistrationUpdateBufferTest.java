@@ -0,0 +1,106 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RegistrationUpdateBufferTest {
+
+  private final RegistrationUpdate removed4 = newUpdate("4", null);
+  private final RegistrationUpdate removed8 = newUpdate("8", null);
+  private final RegistrationUpdate replaced4 = newUpdate("4", "15");
+  private final RegistrationUpdate replaced16 = newUpdate("16", "23");
+
+  @Mock private RegistrationSink sink;
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_nullSink() {
+    new RegistrationUpdateBuffer(null, 10);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_invalidBatchSize() {
+    new RegistrationUpdateBuffer(sink, 0);
+  }
+
+  @Test
+  public void testFlush() {
+    RegistrationUpdateBuffer buffer = new RegistrationUpdateBuffer(sink, 10);
+    buffer.flush();
+    buffer.apply(Arrays.asList(removed4, removed8));
+    buffer.apply(Arrays.asList(replaced4));
+    assertEquals(2, buffer.getBufferedUpdates());
+    verify(sink, never()).apply(anyListOf(RegistrationUpdate.class));
+    buffer.flush();
+    // coalesced, the last change winning
+    verify(sink).apply(Arrays.asList(replaced4, removed8));
+    assertEquals(0, buffer.getBufferedUpdates());
+  }
+
+  @Test
+  public void testFlushesWhenFull() {
+    RegistrationUpdateBuffer buffer = new RegistrationUpdateBuffer(sink, 2);
+    buffer.apply(Arrays.asList(removed4));
+    buffer.apply(Arrays.asList(replaced4));
+    verify(sink, never()).apply(anyListOf(RegistrationUpdate.class));
+    buffer.apply(Arrays.asList(removed8));
+    verify(sink).apply(Arrays.asList(replaced4, removed8));
+    assertEquals(0, buffer.getBufferedUpdates());
+  }
+
+  @Test
+  public void testFlush_sinkFails() {
+    RegistrationUpdateBuffer buffer = new RegistrationUpdateBuffer(sink, 10);
+    buffer.apply(Arrays.asList(removed4, replaced16));
+    RuntimeException exception = new RuntimeException();
+    doThrow(exception).when(sink)
+        .apply(Arrays.asList(removed4, replaced16));
+    try {
+      buffer.flush();
+      fail("Should have thrown RuntimeException");
+    } catch (RuntimeException e) {
+      assertSame(exception, e);
+    }
+    assertEquals(2, buffer.getBufferedUpdates());
+    buffer.apply(Arrays.asList(replaced4));
+    buffer.flush();
+    verify(sink).apply(Arrays.asList(replaced4, replaced16));
+  }
+
+  private static RegistrationUpdate newUpdate(String regId,
+      String canonicalId) {
+    Result result = canonicalId == null
+        ? new Result.Builder().errorCode(Constants.ERROR_NOT_REGISTERED).build()
+        : new Result.Builder().messageId("42")
+            .canonicalRegistrationId(canonicalId).build();
+    return RegistrationUpdate.fromResult(regId, result);
+  }
+
+}
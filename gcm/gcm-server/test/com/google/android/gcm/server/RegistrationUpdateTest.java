@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import com.google.android.gcm.server.RegistrationUpdate.Type;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RegistrationUpdateTest {
+
+  @Test
+  public void testFromResult_sent() {
+    assertNull(RegistrationUpdate.fromResult("4",
+        new Result.Builder().messageId("42").build()));
+    assertNull(RegistrationUpdate.fromResult("4", new Result.Builder()
+        .messageId("42").canonicalRegistrationId("4").build()));
+  }
+
+  @Test
+  public void testFromResult_canonicalId() {
+    RegistrationUpdate update = RegistrationUpdate.fromResult("4",
+        new Result.Builder().messageId("42").canonicalRegistrationId("8")
+            .build());
+    assertEquals(Type.CANONICAL_ID, update.getType());
+    assertEquals("4", update.getRegistrationId());
+    assertEquals("8", update.getCanonicalRegistrationId());
+    assertNull(update.getErrorCode());
+    assertEquals("RegistrationUpdate(CANONICAL_ID, 4 -> 8)",
+        update.toString());
+  }
+
+  @Test
+  public void testFromResult_errors() {
+    assertUpdate(Type.NOT_REGISTERED, Constants.ERROR_NOT_REGISTERED);
+    assertUpdate(Type.INVALID_REGISTRATION,
+        Constants.ERROR_INVALID_REGISTRATION);
+    assertUpdate(Type.INVALID_REGISTRATION,
+        Constants.ERROR_MISMATCH_SENDER_ID);
+    assertUpdate(null, Constants.ERROR_UNAVAILABLE);
+    assertUpdate(null, Constants.ERROR_MESSAGE_TOO_BIG);
+  }
+
+  @Test
+  public void testEquals() {
+    RegistrationUpdate update = newNotRegistered("4");
+    assertEquals(update, newNotRegistered("4"));
+    assertEquals(update.hashCode(), newNotRegistered("4").hashCode());
+    assertFalse(update.equals(newNotRegistered("8")));
+    assertFalse(update.equals(RegistrationUpdate.fromResult("4",
+        new Result.Builder().errorCode(Constants.ERROR_INVALID_REGISTRATION)
+            .build())));
+    RegistrationUpdate invalid = RegistrationUpdate.fromResult("4",
+        new Result.Builder().errorCode(Constants.ERROR_INVALID_REGISTRATION)
+            .build());
+    assertFalse(invalid.equals(RegistrationUpdate.fromResult("4",
+        new Result.Builder().errorCode(Constants.ERROR_MISMATCH_SENDER_ID)
+            .build())));
+  }
+
+  private static RegistrationUpdate newNotRegistered(String regId) {
+    return RegistrationUpdate.fromResult(regId, new Result.Builder()
+        .errorCode(Constants.ERROR_NOT_REGISTERED).build());
+  }
+
+  private static void assertUpdate(Type expected, String error) {
+    RegistrationUpdate update = RegistrationUpdate.fromResult("4",
+        new Result.Builder().errorCode(error).build());
+    if (expected == null) {
+      assertNull(update);
+    } else {
+      assertEquals(expected, update.getType());
+      assertEquals("4", update.getRegistrationId());
+      assertNull(update.getCanonicalRegistrationId());
+      assertEquals(error, update.getErrorCode());
+    }
+  }
+
+}
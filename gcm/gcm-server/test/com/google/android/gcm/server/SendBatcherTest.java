@@ -0,0 +1,251 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SendBatcherTest {
+
+  private final Message message =
+      new Message.Builder().collapseKey("108").build();
+  private final List<Runnable> scheduled = new ArrayList<Runnable>();
+
+  @Mock private Sender sender;
+  @Mock private ScheduledExecutorService executor;
+  private SendBatcher batcher;
+
+  @Before
+  public void setFixtures() throws Exception {
+    batcher = new SendBatcher(sender, executor, 10, 3);
+    // runs tasks right away, but keeps the scheduled ones for later
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) {
+        ((Runnable) invocation.getArguments()[0]).run();
+        return null;
+      }
+    }).when(executor).execute(any(Runnable.class));
+    when(executor.schedule(any(Runnable.class), eq(10L),
+        eq(TimeUnit.MILLISECONDS))).thenAnswer(new Answer<Object>() {
+          public Object answer(InvocationOnMock invocation) {
+            scheduled.add((Runnable) invocation.getArguments()[0]);
+            return null;
+          }
+        });
+    when(sender.sendAsync(eq(message), anyListOf(String.class), eq(3)))
+        .thenAnswer(new Answer<SendFuture<MulticastResult>>() {
+          public SendFuture<MulticastResult> answer(
+              InvocationOnMock invocation) {
+            @SuppressWarnings("unchecked")
+            List<String> regIds = (List<String>) invocation.getArguments()[1];
+            MulticastResult.Builder builder =
+                new MulticastResult.Builder(regIds.size(), 0, 0, 42);
+            for (String regId : regIds) {
+              builder.addResult(new Result.Builder().messageId(regId).build());
+            }
+            return done(builder.build());
+          }
+        });
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_nullSender() {
+    new SendBatcher(null, executor, 10, 3);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_negativeLinger() {
+    new SendBatcher(sender, executor, -1, 3);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSend_nullRegId() {
+    batcher.send(message, null);
+  }
+
+  @Test
+  public void testSend_batchesEqualMessages() throws Exception {
+    SendFuture<Result> future1 = batcher.send(message, "4");
+    SendFuture<Result> future2 =
+        batcher.send(new Message.Builder().collapseKey("108").build(), "8");
+    assertEquals(1, scheduled.size());
+    assertEquals(2, batcher.getPendingDevices());
+    assertFalse(future1.isDone());
+    verify(sender, never()).sendAsync(any(Message.class),
+        anyListOf(String.class), anyInt());
+    scheduled.get(0).run();
+    verify(sender).sendAsync(message, Arrays.asList("4", "8"), 3);
+    assertEquals("4", future1.get().getMessageId());
+    assertEquals("8", future2.get().getMessageId());
+    assertEquals(0, batcher.getPendingDevices());
+  }
+
+  @Test
+  public void testSend_differentMessages() throws Exception {
+    Message other = new Message.Builder().collapseKey("42").build();
+    when(sender.sendAsync(eq(other), anyListOf(String.class), eq(3)))
+        .thenReturn(done(new MulticastResult.Builder(1, 0, 0, 42)
+            .addResult(new Result.Builder().messageId("other").build())
+            .build()));
+    batcher.send(message, "4");
+    SendFuture<Result> future = batcher.send(other, "4");
+    assertEquals(2, scheduled.size());
+    scheduled.get(1).run();
+    verify(sender).sendAsync(other, Arrays.asList("4"), 3);
+    assertEquals("other", future.get().getMessageId());
+    assertEquals(1, batcher.getPendingDevices());
+  }
+
+  @Test
+  public void testSend_fullBatchIsSentRightAway() throws Exception {
+    List<SendFuture<Result>> futures = new ArrayList<SendFuture<Result>>();
+    for (int i = 0; i < Constants.MULTICAST_SIZE + 1; i++) {
+      futures.add(batcher.send(message, Integer.toString(i)));
+    }
+    ArgumentCaptor<List<String>> regIds = newListCaptor();
+    verify(sender).sendAsync(eq(message), regIds.capture(), eq(3));
+    assertEquals(Constants.MULTICAST_SIZE, regIds.getValue().size());
+    assertEquals("999", futures.get(999).get().getMessageId());
+    // the next device starts a new batch
+    assertFalse(futures.get(1000).isDone());
+    assertEquals(1, batcher.getPendingDevices());
+    assertEquals(2, scheduled.size());
+    // the linger of the full batch does nothing
+    scheduled.get(0).run();
+    assertFalse(futures.get(1000).isDone());
+    scheduled.get(1).run();
+    assertEquals("1000", futures.get(1000).get().getMessageId());
+  }
+
+  @Test
+  public void testSend_failure() throws Exception {
+    IOException exception = new IOException();
+    SendFuture<MulticastResult> multicast = new SendFuture<MulticastResult>();
+    multicast.setException(exception);
+    when(sender.sendAsync(eq(message), anyListOf(String.class), eq(3)))
+        .thenReturn(multicast);
+    SendFuture<Result> future1 = batcher.send(message, "4");
+    SendFuture<Result> future2 = batcher.send(message, "8");
+    scheduled.get(0).run();
+    assertFailure(exception, future1);
+    assertFailure(exception, future2);
+  }
+
+  @Test
+  public void testSend_cancelled() throws Exception {
+    SendFuture<Result> future1 = batcher.send(message, "4");
+    SendFuture<Result> future2 = batcher.send(message, "8");
+    assertTrue(future1.cancel(false));
+    scheduled.get(0).run();
+    verify(sender).sendAsync(message, Arrays.asList("8"), 3);
+    assertEquals("8", future2.get().getMessageId());
+  }
+
+  @Test
+  public void testSend_completesWhenMulticastDoes() throws Exception {
+    SendFuture<MulticastResult> multicast = new SendFuture<MulticastResult>();
+    when(sender.sendAsync(eq(message), anyListOf(String.class), eq(3)))
+        .thenReturn(multicast);
+    SendFuture<Result> future = batcher.send(message, "4");
+    // the batch returns once the multicast is started
+    scheduled.get(0).run();
+    assertFalse(future.isDone());
+    multicast.set(new MulticastResult.Builder(1, 0, 0, 42)
+        .addResult(new Result.Builder().messageId("4").build()).build());
+    assertEquals("4", future.get().getMessageId());
+  }
+
+  @Test
+  public void testSend_notStarted() throws Exception {
+    IllegalStateException exception = new IllegalStateException();
+    when(sender.sendAsync(eq(message), anyListOf(String.class), eq(3)))
+        .thenThrow(exception);
+    SendFuture<Result> future = batcher.send(message, "4");
+    scheduled.get(0).run();
+    assertFailure(exception, future);
+  }
+
+  @Test
+  public void testSend_rejected() throws Exception {
+    RejectedExecutionException exception = new RejectedExecutionException();
+    when(executor.schedule(any(Runnable.class), eq(10L),
+        eq(TimeUnit.MILLISECONDS))).thenThrow(exception);
+    SendFuture<Result> future = batcher.send(message, "4");
+    assertFailure(exception, future);
+    assertEquals(0, batcher.getPendingDevices());
+  }
+
+  @Test
+  public void testFlush() throws Exception {
+    SendFuture<Result> future = batcher.send(message, "4");
+    batcher.flush();
+    assertEquals("4", future.get().getMessageId());
+    scheduled.get(0).run();
+    verify(sender).sendAsync(message, Arrays.asList("4"), 3);
+  }
+
+  private void assertFailure(Exception expected, SendFuture<Result> future)
+      throws Exception {
+    try {
+      future.get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertSame(expected, e.getCause());
+    }
+  }
+
+  private static SendFuture<MulticastResult> done(MulticastResult result) {
+    SendFuture<MulticastResult> future = new SendFuture<MulticastResult>();
+    future.set(result);
+    return future;
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static ArgumentCaptor<List<String>> newListCaptor() {
+    return (ArgumentCaptor) ArgumentCaptor.forClass(List.class);
+  }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SendFutureTest {
+
+  private final SendFuture<String> future = new SendFuture<String>();
+  private final Executor sameThreadExecutor = new Executor() {
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  @Mock private Runnable listener;
+
+  @Test
+  public void testSet() throws Exception {
+    assertFalse(future.isDone());
+    assertTrue(future.set("108"));
+    assertTrue(future.isDone());
+    assertFalse(future.isCancelled());
+    assertEquals("108", future.get());
+    assertEquals("108", future.get(1, TimeUnit.MILLISECONDS));
+    assertFalse(future.set("42"));
+    assertFalse(future.cancel(true));
+    assertEquals("108", future.get());
+  }
+
+  @Test
+  public void testSetException() throws Exception {
+    IOException exception = new IOException();
+    assertTrue(future.setException(exception));
+    assertTrue(future.isDone());
+    assertFalse(future.set("108"));
+    try {
+      future.get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertSame(exception, e.getCause());
+    }
+  }
+
+  @Test(expected = CancellationException.class)
+  public void testCancel() throws Exception {
+    assertTrue(future.cancel(false));
+    assertTrue(future.isDone());
+    assertTrue(future.isCancelled());
+    assertFalse(future.set("108"));
+    future.get();
+  }
+
+  @Test(expected = TimeoutException.class)
+  public void testGet_timeout() throws Exception {
+    future.get(1, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void testAddListener_beforeDone() {
+    future.addListener(listener, sameThreadExecutor);
+    verify(listener, never()).run();
+    future.set("108");
+    verify(listener).run();
+  }
+
+  @Test
+  public void testAddListener_afterDone() {
+    future.setException(new IOException());
+    future.addListener(listener, sameThreadExecutor);
+    verify(listener).run();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAddListener_nullExecutor() {
+    future.addListener(listener, null);
+  }
+
+}
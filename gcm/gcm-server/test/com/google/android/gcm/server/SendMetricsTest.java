@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.gcm.server.SendMetrics.Histogram;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SendMetricsTest {
+
+  private static final long MILLIS = 1000000;
+
+  private final SendMetrics metrics = new SendMetrics();
+
+  @Test
+  public void testRequests() {
+    metrics.onRequest(1000, 200000);
+    metrics.onRequest(1, 100);
+    assertEquals(2, metrics.getInFlightRequests());
+    metrics.onResponse(200, 10 * MILLIS, 5000);
+    metrics.onResults(900, 100, 10);
+    metrics.onRetry(2, 1000);
+    metrics.onRequest(100, 20000);
+    metrics.onResponse(503, 20 * MILLIS, -1);
+    metrics.onFailure(new IOException(), 30 * MILLIS);
+    assertEquals(0, metrics.getInFlightRequests());
+    assertEquals(3, metrics.getRequests());
+    assertEquals(1, metrics.getFailedRequests());
+    assertEquals(1101, metrics.getDevices());
+    assertEquals(220100, metrics.getBytesSent());
+    assertEquals(5000, metrics.getBytesReceived());
+    assertEquals(1, metrics.getStatusCount(200));
+    assertEquals(1, metrics.getStatusCount(503));
+    assertEquals(0, metrics.getStatusCount(500));
+    assertEquals(0, metrics.getStatusCount(1000));
+    assertEquals(900, metrics.getSuccess());
+    assertEquals(100, metrics.getFailure());
+    assertEquals(10, metrics.getCanonicalIds());
+    assertEquals(1, metrics.getRetries());
+    assertEquals(3, metrics.getLatencies().getCount());
+    assertEquals(30000, metrics.getLatencies().getMax());
+    assertEquals(20000, metrics.getLatencies().getMean(), 0);
+    String string = metrics.toString();
+    assertTrue(string, string.contains("statuses={200=1,503=1}"));
+  }
+
+  @Test
+  public void testHistogram_empty() {
+    Histogram histogram = metrics.getLatencies();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMean(), 0);
+    assertEquals(0, histogram.getPercentile(99));
+  }
+
+  @Test
+  public void testHistogram_percentiles() {
+    Histogram histogram = metrics.getLatencies();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000L);
+    }
+    assertEquals(1000, histogram.getMax());
+    assertEquals(500.5, histogram.getMean(), 0);
+    assertWithin(500, histogram.getPercentile(50));
+    assertWithin(990, histogram.getPercentile(99));
+    assertEquals(1000, histogram.getPercentile(100));
+    assertEquals(1, histogram.getPercentile(0));
+  }
+
+  @Test
+  public void testHistogram_buckets() {
+    long previousBound = -1;
+    for (int bucket = 0; bucket < 4 * 62; bucket++) {
+      long bound = Histogram.upperBound(bucket);
+      assertTrue(bound > previousBound);
+      assertEquals(bucket, Histogram.bucket(previousBound + 1));
+      assertEquals(bucket, Histogram.bucket(bound));
+      previousBound = bound;
+    }
+    assertEquals(Long.MAX_VALUE, previousBound);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testHistogram_invalidPercentile() {
+    metrics.getLatencies().getPercentile(101);
+  }
+
+  private void assertWithin(long expected, long actual) {
+    assertTrue("expected " + expected + ", was " + actual,
+        actual >= expected && actual <= expected * 1.25);
+  }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static com.google.android.gcm.server.SentChunk.completeAll;
+import static com.google.android.gcm.server.SentChunk.keys;
+import static com.google.android.gcm.server.SentChunk.newRegIds;
+import static com.google.android.gcm.server.SentChunk.record;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SenderPoolTest {
+
+  private final Message message =
+      new Message.Builder().collapseKey("108").build();
+  // chunks sent so far, in order
+  private final List<SentChunk> sent = new ArrayList<SentChunk>();
+
+  @Mock private ScheduledExecutorService executor;
+  @Mock private Sender senderA;
+  @Mock private Sender senderB;
+
+  @Before
+  public void setFixtures() {
+    record(senderA, "A", 5, sent);
+    record(senderB, "B", 5, sent);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_noExecutor() {
+    new SenderPool(null, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_noChunksInFlight() {
+    new SenderPool(executor, 0);
+  }
+
+  @Test
+  public void testAddKey() {
+    ConnectionPool connectionPool = new ConnectionPool(4, 0, 0);
+    RateLimiter rateLimiter = new TokenBucketRateLimiter.Builder().build();
+    SenderPool pool = new SenderPool(executor, 1);
+    Sender first = pool.addKey("A", 1, 1);
+    pool.setConnectionPool(connectionPool);
+    pool.setRateLimiter(rateLimiter);
+    Sender second = pool.addKey("B", 1, 1);
+    assertSame(first, pool.getSender("A"));
+    assertSame(second, pool.getSender("B"));
+    assertNull(pool.getSender("C"));
+    // shared collaborators are set on existing and new senders
+    assertSame(connectionPool, first.getConnectionPool());
+    assertSame(connectionPool, second.getConnectionPool());
+    assertSame(rateLimiter, first.getRateLimiter());
+    assertSame(rateLimiter, second.getRateLimiter());
+  }
+
+  @Test
+  public void testAddKey_rate() {
+    RateLimiter shared = new TokenBucketRateLimiter.Builder().build();
+    SenderPool pool = new SenderPool(executor, 1);
+    Sender slow = pool.addKey("A", 1, 1, 100);
+    Sender fast = pool.addKey("B", 1, 1, 1000);
+    Sender unlimited = pool.addKey("C", 1, 1);
+    pool.setRateLimiter(shared);
+    assertSame(shared, unlimited.getRateLimiter());
+    // each key has its own rate: 200 messages are over the second worth of
+    // messages of A, but not of B
+    List<String> regIds = newRegIds(200);
+    assertTrue(slow.getRateLimiter().reserve("A", regIds) > 0);
+    assertEquals(0, fast.getRateLimiter().reserve("B", regIds));
+  }
+
+  @Test
+  public void testAddKey_rateAlsoUsesSharedLimiter() {
+    RateLimiter shared = mock(RateLimiter.class);
+    List<String> regIds = newRegIds(1);
+    when(shared.reserve("A", regIds)).thenReturn(42L);
+    SenderPool pool = new SenderPool(executor, 1);
+    pool.setRateLimiter(shared);
+    Sender sender = pool.addKey("A", 1, 1, 100);
+    RateLimiter limiter = sender.getRateLimiter();
+    assertEquals(42, limiter.reserve("A", regIds));
+    limiter.cancel("A", regIds);
+    verify(shared).cancel("A", regIds);
+    // replacing the shared limiter keeps the rate of the key
+    pool.setRateLimiter(null);
+    assertSame(limiter, sender.getRateLimiter());
+    assertEquals(0, limiter.reserve("A", regIds));
+  }
+
+  @Test
+  public void testAddKey_invalid() {
+    SenderPool pool = new SenderPool(executor, 1);
+    pool.addKey("A", 1, 1);
+    try {
+      pool.addKey("A", 1, 1);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      pool.addKey("B", 0, 1);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      pool.addKey("B", 1, 0);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      pool.addKey("B", 1, 1, -1);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertNull(pool.getSender("B"));
+  }
+
+  @Test
+  public void testSend_invalid() {
+    SenderPool pool = new SenderPool(executor, 1);
+    pool.addSender("A", senderA, 1, 1);
+    try {
+      pool.send("B", message, newRegIds(1), 5);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      pool.send("A", message, new ArrayList<String>(), 5);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertTrue(sent.isEmpty());
+  }
+
+  @Test
+  public void testSend_weightedFairQueuing() throws Exception {
+    SenderPool pool = new SenderPool(executor, 1);
+    pool.addSender("A", senderA, 1, 1);
+    pool.addSender("B", senderB, 3, 1);
+    pool.send("A", message, newRegIds(4000), 5);
+    pool.send("B", message, newRegIds(4000), 5);
+    assertEquals("ABBBABAA", completeAll(sent));
+  }
+
+  @Test
+  public void testSend_maxChunksInFlightPerKey() throws Exception {
+    SenderPool pool = new SenderPool(executor, 4);
+    pool.addSender("A", senderA, 1, 2);
+    pool.addSender("B", senderB, 1, 4);
+    pool.send("A", message, newRegIds(4000), 5);
+    assertEquals(2, pool.getChunksInFlight());
+    assertEquals(2, pool.getQueuedChunks());
+    pool.send("B", message, newRegIds(4000), 5);
+    assertEquals(4, pool.getChunksInFlight());
+    assertEquals("AABB", keys(sent));
+    sent.get(2).complete(1);
+    // A is still capped, so the free slot goes to B
+    assertEquals("AABBB", keys(sent));
+    sent.get(0).complete(1);
+    assertEquals("AABBBA", keys(sent));
+  }
+
+}
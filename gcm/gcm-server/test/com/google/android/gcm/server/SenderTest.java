@@ -16,16 +16,25 @@
 package com.google.android.gcm.server;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -39,18 +48,33 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 @RunWith(MockitoJUnitRunner.class)
 public class SenderTest {
@@ -77,6 +101,12 @@ public class SenderTest {
   @Spy private Sender sender = new Sender(authKey);
 
   @Mock private HttpURLConnection mockedConn;
+  @Mock private ScheduledExecutorService executor;
+  @Mock private RateLimiter rateLimiter;
+  @Mock private Transport transport;
+  @Mock private Transport.Response transportResponse;
+  @Mock private SendListener sendListener;
+  @Mock private RegistrationSink registrationSink;
   private final ByteArrayOutputStream outputStream = 
       new ByteArrayOutputStream();
   private Result result;
@@ -84,6 +114,16 @@ public class SenderTest {
   @Before
   public void setFixtures() {
     result = new Result.Builder().build();
+    // runs tasks right away, as if the delay had already passed
+    Answer<Object> runTask = new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) {
+        ((Runnable) invocation.getArguments()[0]).run();
+        return null;
+      }
+    };
+    doAnswer(runTask).when(executor).execute(any(Runnable.class));
+    doAnswer(runTask).when(executor).schedule(any(Runnable.class), anyLong(),
+        any(TimeUnit.class));
   }
 
   @Test(expected = IllegalArgumentException.class)
@@ -313,6 +353,28 @@ public class SenderTest {
     verify(sender, times(2)).sendNoRetry(message, regIds);
   }
 
+  @Test
+  public void testSend_json_duplicateRegIds() throws Exception {
+    doNothing().when(sender).sleep(anyLong());
+    Result unavailable = new Result.Builder().errorCode("Unavailable").build();
+    List<String> regIds = Arrays.asList("4", "8", "4");
+    doReturn(new MulticastResult.Builder(1, 2, 0, 100)
+        .addResult(new Result.Builder().messageId("1").build())
+        .addResult(unavailable)
+        .addResult(unavailable).build())
+        .when(sender).sendNoRetry(message, regIds);
+    doReturn(new MulticastResult.Builder(2, 0, 0, 200)
+        .addResult(new Result.Builder().messageId("2").build())
+        .addResult(new Result.Builder().messageId("3").build()).build())
+        .when(sender).sendNoRetry(message, Arrays.asList("8", "4"));
+    MulticastResult actualResult = sender.send(message, regIds, 1);
+    // each occurrence of the duplicate id keeps its own result
+    assertEquals(3, actualResult.getSuccess());
+    assertResult(actualResult.getResults().get(0), "1", null, null);
+    assertResult(actualResult.getResults().get(1), "2", null, null);
+    assertResult(actualResult.getResults().get(2), "3", null, null);
+  }
+
   @Test()
   public void testSend_json_ok() throws Exception {
     doNothing().when(sender).sleep(anyInt());
@@ -396,229 +458,1909 @@ public class SenderTest {
   }
 
   @Test(expected = IllegalArgumentException.class)
-  public void testSendNoRetry_json_nullRegIds() throws Exception {
-    sender.sendNoRetry(message, (List<String>) null);
+  public void testConstructor_nullExecutor() {
+    new Sender(authKey, null);
   }
 
-  @Test(expected = IllegalArgumentException.class)
-  public void testSendNoRetry_json_emptyRegIds() throws Exception {
-    sender.sendNoRetry(message, Collections.<String>emptyList());
+  @Test(expected = IllegalStateException.class)
+  public void testSendAsync_noExecutor() throws Exception {
+    sender.sendAsync(message, regId, 0);
   }
 
   @Test
-  public void testSendNoRetry_json_badRequest() throws Exception {
-    setResponseExpectations(42, "bad json");
+  public void testSendAsync_retryOk() throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    doThrow(new AssertionError("Thou should not sleep!")).when(asyncSender)
+        .sleep(anyInt());
+    doReturn(null) // fails 1st time
+        .doReturn(null) // fails 2nd time
+        .doReturn(result) // succeeds 3rd time
+        .when(asyncSender).sendNoRetry(message, regId);
+    SendFuture<Result> future = asyncSender.sendAsync(message, regId, 2);
+    assertEquals(result, future.get());
+    verify(asyncSender, times(3)).sendNoRetry(message, regId);
+    ArgumentCaptor<Long> capturedDelay = ArgumentCaptor.forClass(Long.class);
+    verify(executor).execute(any(Runnable.class));
+    verify(executor, times(2)).schedule(any(Runnable.class),
+        capturedDelay.capture(), eq(TimeUnit.MILLISECONDS));
+    long backoffRange = Sender.BACKOFF_INITIAL_DELAY;
+    for (long value : capturedDelay.getAllValues()) {
+      assertTrue(value >= backoffRange / 2);
+      assertTrue(value <= backoffRange * 3 / 2);
+      backoffRange *= 2;
+    }
+  }
+
+  @Test
+  public void testSendAsync_retryFails() throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    doReturn(null).when(asyncSender).sendNoRetry(message, regId);
+    SendFuture<Result> future = asyncSender.sendAsync(message, regId, 2);
     try {
-      sender.sendNoRetry(message, Arrays.asList("108"));
-    } catch (InvalidRequestException e) {
-      assertEquals(42, e.getHttpStatusCode());
-      assertEquals("bad json", e.getDescription());
-      assertRequestJsonBody("108");
+      future.get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+      assertTrue(e.getCause().getMessage().contains("3"));
     }
+    verify(asyncSender, times(3)).sendNoRetry(message, regId);
   }
 
-  @Test()
-  public void testSendNoRetry_json_ok() throws Exception {
-    String json = replaceQuotes("\n"
-        + "{"
-        + "  'multicast_id': 108,"
-        + "  'success': 2,"
-        + "  'failure': 1,"
-        + "  'canonical_ids': 1,"
-        + "  'results': ["
-        + "    {'message_id': '16'}, "
-        + "    {'error': 'DOH!'}, "
-        + "    {'message_id': '23', 'registration_id': '42'}"
-        + "  ]"
-        + "}");
-    setResponseExpectations(200, json);
-    MulticastResult multicastResult = sender.sendNoRetry(message,
-        Arrays.asList("4", "8", "15"));
-    assertNotNull(multicastResult);
-    assertEquals(3, multicastResult.getTotal());
-    assertEquals(2, multicastResult.getSuccess());
-    assertEquals(1, multicastResult.getFailure());
-    assertEquals(1, multicastResult.getCanonicalIds());
-    assertEquals(108, multicastResult.getMulticastId());
-    List<Result> results = multicastResult.getResults();
-    assertNotNull(results);
-    assertEquals(3, results.size());
-    assertResult(results.get(0), "16", null, null);
-    assertResult(results.get(1), null, "DOH!", null);
-    assertResult(results.get(2), "23", null, "42");
-    assertRequestJsonBody("4", "8", "15");
+  @Test
+  public void testSendAsync_exception() throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    IOException exception = new IOException();
+    doThrow(exception).when(asyncSender).sendNoRetry(message, regId);
+    SendFuture<Result> future = asyncSender.sendAsync(message, regId, 2);
+    try {
+      future.get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertEquals(exception, e.getCause());
+    }
+    verify(asyncSender).sendNoRetry(message, regId);
+    verify(executor, never()).schedule(any(Runnable.class), anyLong(),
+        any(TimeUnit.class));
   }
 
-  // replace ' by ", otherwise JSON strins would need to escape double-quotes
-  private String replaceQuotes(String json) {
-    return json.replaceAll("'", "\"");
+  @Test
+  public void testSendAsync_json_secondAttemptOk() throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    Result unaivalableResult =
+        new Result.Builder().errorCode("Unavailable").build();
+    Result okResult = new Result.Builder().messageId("42").build();
+    Result errorResult = new Result.Builder().errorCode("D'OH!").build();
+    MulticastResult mockedResult1 = new MulticastResult.Builder(0, 0, 0, 100)
+        .addResult(unaivalableResult).addResult(errorResult).build();
+    MulticastResult mockedResult2 = new MulticastResult.Builder(0, 0, 0, 200)
+        .addResult(okResult).build();
+    doReturn(mockedResult1).when(asyncSender).sendNoRetry(message,
+        Arrays.asList("108", "4"));
+    doReturn(mockedResult2).when(asyncSender).sendNoRetry(message,
+        Arrays.asList("108"));
+    MulticastResult actualResult = asyncSender.sendAsync(message,
+        Arrays.asList("108", "4"), 10).get();
+    assertEquals(2, actualResult.getTotal());
+    assertEquals(1, actualResult.getSuccess());
+    assertEquals(1, actualResult.getFailure());
+    assertEquals(0, actualResult.getCanonicalIds());
+    assertEquals(100, actualResult.getMulticastId());
+    assertEquals(2, actualResult.getResults().size());
+    assertResult(actualResult.getResults().get(0), "42", null, null);
+    assertResult(actualResult.getResults().get(1), null, "D'OH!", null);
+    List<Long> retryMulticastIds = actualResult.getRetryMulticastIds();
+    assertEquals(1, retryMulticastIds.size());
+    assertEquals(200, retryMulticastIds.get(0).longValue());
+    verify(asyncSender, times(2)).sendNoRetry(eq(message),
+        anyListOf(String.class));
   }
 
-  private void assertResult(Result result, String messageId, String error,
-      String canonicalRegistrationId) {
-    assertEquals(messageId, result.getMessageId());
-    assertEquals(error, result.getErrorCodeName());
-    assertEquals(canonicalRegistrationId, result.getCanonicalRegistrationId());
+  @Test
+  public void testSendAsync_json_allAttemptsFail() throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    Result unaivalableResult =
+        new Result.Builder().errorCode("Unavailable").build();
+    MulticastResult mockedResult = new MulticastResult.Builder(0, 0, 0, 42)
+        .addResult(unaivalableResult).build();
+    List<String> regIds = Arrays.asList("108");
+    doReturn(mockedResult).when(asyncSender).sendNoRetry(message, regIds);
+    MulticastResult actualResult =
+        asyncSender.sendAsync(message, regIds, 2).get();
+    assertEquals(1, actualResult.getFailure());
+    assertResult(actualResult.getResults().get(0), null, "Unavailable", null);
+    assertEquals(2, actualResult.getRetryMulticastIds().size());
+    verify(asyncSender, times(3)).sendNoRetry(message, regIds);
   }
 
-  private void assertRequestJsonBody(String...expectedRegIds) throws Exception {
-    ArgumentCaptor<String> capturedBody = ArgumentCaptor.forClass(String.class);
-    verify(sender).post(eq(Constants.GCM_SEND_ENDPOINT), eq("application/json"),
-        capturedBody.capture());
-    // parse body
-    String body = capturedBody.getValue();
-    JSONObject json = (JSONObject) jsonParser.parse(body);
-    assertEquals(ttl, ((Long) json.get("time_to_live")).intValue());
-    assertEquals(collapseKey, json.get("collapse_key"));
-    assertEquals(delayWhileIdle, json.get("delay_while_idle"));
-    @SuppressWarnings("unchecked")
-    Map<String, Object> payload = (Map<String, Object>) json.get("data");
-    assertNotNull("no payload", payload);
-    assertEquals("wrong payload size", 3, payload.size());
-    assertEquals("v1", payload.get("k1"));
-    assertEquals("v2", payload.get("k2"));
-    assertEquals("v3", payload.get("k3"));
-    JSONArray actualRegIds = (JSONArray) json.get("registration_ids");
-    assertEquals("Wrong number of regIds",
-        expectedRegIds.length, actualRegIds.size());
-    for (int i = 0; i < expectedRegIds.length; i++) {
-      String expectedRegId = expectedRegIds[i];
-      String actualRegId = (String) actualRegIds.get(i);
-      assertEquals("invalid regId at index " + i, expectedRegId, actualRegId);
-    }
+  @Test(expected = IllegalArgumentException.class)
+  public void testSendAsync_json_emptyRegIds() throws Exception {
+    new Sender(authKey, executor).sendAsync(message,
+        Collections.<String>emptyList(), 1);
   }
 
   @Test
-  public void testNewKeyValues() {
-    Map<String, String> x = Sender.newKeyValues("key", "value");
-    assertEquals(1, x.size());
-    assertEquals("value", x.get("key"));
+  public void testSend_json_chunks() throws Exception {
+    List<String> regIds = newRegIds(2500);
+    doAnswer(new EchoMulticastAnswer()).when(sender)
+        .sendNoRetry(eq(message), anyListOf(String.class));
+    MulticastResult actualResult = sender.send(message, regIds, 1);
+    assertChunkedResult(regIds, actualResult);
+    verify(sender, times(3)).sendNoRetry(eq(message), anyListOf(String.class));
+    verify(sender).sendNoRetry(message, regIds.subList(0, 1000));
+    verify(sender).sendNoRetry(message, regIds.subList(1000, 2000));
+    verify(sender).sendNoRetry(message, regIds.subList(2000, 2500));
   }
 
-  @Test(expected = IllegalArgumentException.class)
-  public void testNewKeyValues_nullKey() {
-    Sender.newKeyValues(null, "value");
+  @Test
+  public void testSend_json_chunksWithExecutor() throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    asyncSender.setMaxChunksInFlight(2);
+    List<String> regIds = newRegIds(2500);
+    doAnswer(new EchoMulticastAnswer()).when(asyncSender)
+        .sendNoRetry(eq(message), anyListOf(String.class));
+    MulticastResult actualResult = asyncSender.send(message, regIds, 1);
+    assertChunkedResult(regIds, actualResult);
+    verify(asyncSender, times(3)).sendNoRetry(eq(message),
+        anyListOf(String.class));
   }
 
-  @Test(expected = IllegalArgumentException.class)
-  public void testNewKeyValues_nullValue() {
-    Sender.newKeyValues("key", null);
+  @Test
+  public void testSend_json_chunksFromExecutorThread() throws Exception {
+    // the only thread of the executor makes the call
+    ScheduledExecutorService singleThread =
+        Executors.newScheduledThreadPool(1);
+    try {
+      final Sender asyncSender = spy(new Sender(authKey, singleThread));
+      final List<String> regIds = newRegIds(1500);
+      doAnswer(new EchoMulticastAnswer()).when(asyncSender)
+          .sendNoRetry(eq(message), anyListOf(String.class));
+      Future<MulticastResult> result = singleThread.submit(
+          new Callable<MulticastResult>() {
+            public MulticastResult call() throws IOException {
+              return asyncSender.send(message, regIds, 1);
+            }
+          });
+      assertChunkedResult(regIds, result.get(5, TimeUnit.SECONDS));
+    } finally {
+      singleThread.shutdownNow();
+    }
   }
 
   @Test
-  public void testNewBody() {
-    StringBuilder body = Sender.newBody("name", "value");
-    assertEquals("name=value", body.toString());
+  public void testSend_json_chunkFailsWithExecutor() throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    List<String> regIds = newRegIds(2500);
+    IOException exception = new IOException();
+    doAnswer(new EchoMulticastAnswer()).when(asyncSender)
+        .sendNoRetry(eq(message), anyListOf(String.class));
+    doThrow(exception).when(asyncSender)
+        .sendNoRetry(message, regIds.subList(0, 1000));
+    try {
+      asyncSender.send(message, regIds, 1);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertSame(exception, e);
+    }
   }
 
-  @Test(expected = IllegalArgumentException.class)
-  public void testNewBody_nullKey() {
-    Sender.newBody(null, "value");
+  @Test
+  public void testSendAsync_json_chunks() throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    List<String> regIds = newRegIds(2500);
+    doAnswer(new EchoMulticastAnswer()).when(asyncSender)
+        .sendNoRetry(eq(message), anyListOf(String.class));
+    MulticastResult actualResult =
+        asyncSender.sendAsync(message, regIds, 1).get();
+    assertChunkedResult(regIds, actualResult);
+  }
+
+  @Test
+  public void testSendAsync_json_chunkFails() throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    List<String> regIds = newRegIds(2500);
+    IOException exception = new IOException();
+    doAnswer(new EchoMulticastAnswer()).when(asyncSender)
+        .sendNoRetry(eq(message), anyListOf(String.class));
+    doThrow(exception).when(asyncSender)
+        .sendNoRetry(message, regIds.subList(1000, 2000));
+    try {
+      asyncSender.sendAsync(message, regIds, 1).get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertEquals(exception, e.getCause());
+    }
+    // the last chunk is not sent once another one failed
+    verify(asyncSender, never()).sendNoRetry(message,
+        regIds.subList(2000, 2500));
   }
 
   @Test(expected = IllegalArgumentException.class)
-  public void testNewBody_nullValue() {
-    Sender.newBody("key", null);
+  public void testSetMaxChunksInFlight_invalid() {
+    sender.setMaxChunksInFlight(0);
   }
 
   @Test
-  public void testAddParameter() {
-    StringBuilder body = new StringBuilder("P=NP");
-    Sender.addParameter(body, "name", "value");
-    assertEquals("P=NP&name=value", body.toString());
+  public void testSend_honorsRetryAfter() throws Exception {
+    setResponseExpectations(503, "");
+    when(mockedConn.getHeaderField("Retry-After")).thenReturn("120");
+    doNothing().when(sender).sleep(anyLong());
+    try {
+      sender.send(message, regId, 1);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("2"));
+    }
+    verify(sender).sleep(120000);
   }
 
-  @Test(expected = IllegalArgumentException.class)
-  public void testAddParameter_nullBody() {
-    Sender.addParameter(null, "key", "value");
+  @Test
+  public void testSend_json_retriesServiceUnavailable() throws Exception {
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 1, " +
+        "'failure': 0, 'canonical_ids': 0, 'results': [{'message_id': '4'}]}");
+    when(mockedConn.getResponseCode()).thenReturn(503).thenReturn(200);
+    when(mockedConn.getHeaderField("Retry-After"))
+        .thenReturn("Wed, 21 Oct 2099 07:28:00 GMT").thenReturn(null);
+    when(mockedConn.getErrorStream())
+        .thenReturn(new ByteArrayInputStream(new byte[0]));
+    when(mockedConn.getInputStream())
+        .thenReturn(new ByteArrayInputStream(json.getBytes()));
+    when(mockedConn.getOutputStream()).thenReturn(outputStream);
+    doReturn(mockedConn).when(sender)
+        .getConnection(Constants.GCM_SEND_ENDPOINT);
+    ArgumentCaptor<Long> capturedSleep = ArgumentCaptor.forClass(Long.class);
+    doNothing().when(sender).sleep(anyLong());
+    MulticastResult multicastResult =
+        sender.send(message, Arrays.asList("4"), 1);
+    assertEquals(108, multicastResult.getMulticastId());
+    assertTrue(multicastResult.getRetryMulticastIds().isEmpty());
+    assertResult(multicastResult.getResults().get(0), "4", null, null);
+    verify(sender, times(2)).sendNoRetry(message, Arrays.asList("4"));
+    verify(sender).sleep(capturedSleep.capture());
+    // capped, though the date is decades away
+    assertEquals(Long.valueOf(Sender.MAX_BACKOFF_DELAY),
+        capturedSleep.getValue());
   }
 
-  @Test(expected = IllegalArgumentException.class)
-  public void testAddParameter_nullKey() {
-    StringBuilder body = new StringBuilder();
-    Sender.addParameter(body, null, "value");
+  @Test
+  public void testSend_json_serviceUnavailable() throws Exception {
+    doNothing().when(sender).sleep(anyLong());
+    doThrow(new InvalidRequestException(503))
+        .when(sender).sendNoRetry(message, Arrays.asList("4"));
+    try {
+      sender.send(message, Arrays.asList("4"), 2);
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(503, e.getHttpStatusCode());
+    }
+    verify(sender, times(3)).sendNoRetry(message, Arrays.asList("4"));
   }
 
-  @Test(expected = IllegalArgumentException.class)
-  public void testAddParameter_nullValue() {
-    StringBuilder body = new StringBuilder();
-    Sender.addParameter(body, "key", null);
+  @Test
+  public void testSend_json_serviceUnavailableAfterResults() throws Exception {
+    doNothing().when(sender).sleep(anyLong());
+    List<String> regIds = Arrays.asList("4", "8");
+    MulticastResult result1stCall = new MulticastResult.Builder(1, 1, 0, 42)
+        .addResult(new Result.Builder().messageId("4").build())
+        .addResult(new Result.Builder()
+            .errorCode(Constants.ERROR_UNAVAILABLE).build())
+        .build();
+    doReturn(result1stCall).when(sender).sendNoRetry(message, regIds);
+    doThrow(new InvalidRequestException(503))
+        .when(sender).sendNoRetry(message, Arrays.asList("8"));
+    MulticastResult multicastResult = sender.send(message, regIds, 1);
+    assertEquals(42, multicastResult.getMulticastId());
+    assertEquals(1, multicastResult.getSuccess());
+    assertEquals(1, multicastResult.getFailure());
+    assertResult(multicastResult.getResults().get(1), null,
+        Constants.ERROR_UNAVAILABLE, null);
   }
 
   @Test
-  public void testGetString_oneLine() throws Exception {
-    String expected = "108";
-    InputStream stream = new ByteArrayInputStream(expected.getBytes());
-    String actual = Sender.getString(stream);
-    assertEquals(expected, actual);
+  public void testSend_json_otherErrorsAreNotRetried() throws Exception {
+    doNotSleep();
+    doThrow(new InvalidRequestException(500))
+        .when(sender).sendNoRetry(message, Arrays.asList("4"));
+    try {
+      sender.send(message, Arrays.asList("4"), 2);
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(500, e.getHttpStatusCode());
+    }
+    verify(sender).sendNoRetry(message, Arrays.asList("4"));
   }
 
   @Test
-  public void testGetString_stripsLastLine() throws Exception {
-    InputStream stream = new ByteArrayInputStream("108\n".getBytes());
-    String stripped = Sender.getString(stream);
-    assertEquals("108", stripped);
+  public void testSend_retryDeadline() throws Exception {
+    doNotSleep();
+    doReturn(null).when(sender).sendNoRetry(message, regId);
+    // shorter than the first back-off
+    sender.setRetryDeadline(Sender.BACKOFF_INITIAL_DELAY / 2 - 1);
+    try {
+      sender.send(message, regId, 5);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("1 attempts"));
+    }
+    verify(sender).sendNoRetry(message, regId);
   }
 
   @Test
-  public void testGetString_multipleLines() throws Exception {
-    String expected = "4\n8\n15\n\n16\n23\n42";
-    InputStream stream = new ByteArrayInputStream(expected.getBytes());
-    String actual = Sender.getString(stream);
-    assertEquals(expected, actual);
+  public void testSendAsync_honorsRetryAfter() throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    setResponseExpectations(asyncSender, 503, "");
+    when(mockedConn.getHeaderField("Retry-After")).thenReturn("60");
+    SendFuture<Result> future = asyncSender.sendAsync(message, regId, 1);
+    try {
+      future.get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().getMessage().contains("2"));
+    }
+    verify(executor).schedule(any(Runnable.class), eq(60000L),
+        eq(TimeUnit.MILLISECONDS));
   }
 
- @Test(expected = IllegalArgumentException.class)
-  public void testGetString_nullValue() throws Exception {
-    Sender.getString(null);
+  @Test(timeout = 5000)
+  public void testSendAsync_concurrencyLimiterQueues() throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    setResponseExpectations(asyncSender, 200, "id=4815162342");
+    ConcurrencyLimiter concurrency = new ConcurrencyLimiter(1, 1, 1);
+    long start = concurrency.acquire();
+    asyncSender.setConcurrencyLimiter(concurrency);
+    // returns without blocking the executor thread
+    SendFuture<Result> future = asyncSender.sendAsync(message, regId, 0);
+    assertFalse(future.isDone());
+    verify(asyncSender, never()).getConnection(anyString());
+    // the freed slot is handed to the queued request
+    concurrency.release(start, 200, null);
+    assertEquals("4815162342", future.get().getMessageId());
+    assertEquals(0, concurrency.getInFlight());
+    verify(executor, times(2)).execute(any(Runnable.class));
   }
 
-  @Test(expected = IllegalArgumentException.class)
-  public void testPost_noUrl() throws Exception {
-    sender.post(null, "whatever");
+  @Test
+  public void testSendAsync_unusedSlotIsGivenBack() throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    ConcurrencyLimiter concurrency = new ConcurrencyLimiter(1, 1, 1);
+    asyncSender.setConcurrencyLimiter(concurrency);
+    CircuitBreaker breaker = new CircuitBreaker(1, 1, 60000);
+    breaker.onFailure(breaker.beforeRequest());
+    asyncSender.setCircuitBreaker(breaker);
+    SendFuture<Result> future = asyncSender.sendAsync(message, regId, 0);
+    try {
+      future.get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof CircuitOpenException);
+    }
+    // the slot taken for the attempt was not used by a request
+    assertEquals(0, concurrency.getInFlight());
   }
 
-  @Test(expected = IllegalArgumentException.class)
-  public void testPost_noBody() throws Exception {
-    sender.post(Constants.GCM_SEND_ENDPOINT, null);
+  @Test
+  public void testSendAsync_slotIsGivenBackWhenAttemptThrows()
+      throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    ConcurrencyLimiter concurrency = new ConcurrencyLimiter(1, 1, 1);
+    asyncSender.setConcurrencyLimiter(concurrency);
+    when(rateLimiter.reserve(authKey, Arrays.asList(regId))).thenReturn(0L);
+    asyncSender.setRateLimiter(rateLimiter);
+    RuntimeException exception = new IllegalStateException();
+    doThrow(exception).when(asyncSender).sendNoRetry(message, regId);
+    SendFuture<Result> future = asyncSender.sendAsync(message, regId, 0);
+    try {
+      future.get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertEquals(exception, e.getCause());
+    }
+    assertEquals(0, concurrency.getInFlight());
+    verify(rateLimiter).cancel(authKey, Arrays.asList(regId));
   }
 
   @Test
-  public void testPost() throws Exception {
-    String requestBody = "req";
-    String responseBody = "resp";
-    setResponseExpectations(200, responseBody);
-    HttpURLConnection response =
-        sender.post(Constants.GCM_SEND_ENDPOINT, requestBody);
-    assertEquals(requestBody, new String(outputStream.toByteArray()));
-    verify(mockedConn).setRequestMethod("POST");
-    verify(mockedConn).setFixedLengthStreamingMode(requestBody.length());
-    verify(mockedConn).setRequestProperty("Content-Type",
-        "application/x-www-form-urlencoded;charset=UTF-8");
-    verify(mockedConn).setRequestProperty("Authorization", "key=" + authKey);
-    assertEquals(200, response.getResponseCode());
+  public void testSendAsync_nestedRequestTakesItsOwnSlot() throws Exception {
+    final Sender asyncSender = spy(new Sender(authKey, executor));
+    setResponseExpectations(asyncSender, 200, "");
+    // the nested request is answered first
+    when(mockedConn.getInputStream()).thenReturn(
+        new ByteArrayInputStream("id=108".getBytes()),
+        new ByteArrayInputStream("id=4815162342".getBytes()));
+    final ConcurrencyLimiter concurrency = new ConcurrencyLimiter(2, 1, 2);
+    asyncSender.setConcurrencyLimiter(concurrency);
+    final int[] inFlight = {-1};
+    final Result[] nested = new Result[1];
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        if (inFlight[0] == -1) {
+          // a request made by the listener of the outer one, on its thread
+          inFlight[0] = 0;
+          nested[0] = asyncSender.sendNoRetry(message, "nested");
+        } else {
+          inFlight[0] = concurrency.getInFlight();
+        }
+        return null;
+      }
+    }).when(sendListener).onRequest(anyInt(), anyInt());
+    asyncSender.setSendListener(sendListener);
+    SendFuture<Result> future = asyncSender.sendAsync(message, regId, 0);
+    assertEquals("4815162342", future.get().getMessageId());
+    assertEquals("108", nested[0].getMessageId());
+    // the nested request did not use the slot of the outer one
+    assertEquals(2, inFlight[0]);
+    assertEquals(0, concurrency.getInFlight());
   }
 
   @Test
-  public void testPost_customType() throws Exception {
-    String requestBody = "req";
-    String responseBody = "resp";
-    setResponseExpectations(200, responseBody);
-    HttpURLConnection response =
-        sender.post(Constants.GCM_SEND_ENDPOINT, "stuff", requestBody);
-    assertEquals(requestBody, new String(outputStream.toByteArray()));
-    verify(mockedConn).setRequestMethod("POST");
-    verify(mockedConn).setFixedLengthStreamingMode(requestBody.length());
-    verify(mockedConn).setRequestProperty("Content-Type", "stuff");
-    verify(mockedConn).setRequestProperty("Authorization", "key=" + authKey);
-    assertEquals(200, response.getResponseCode());
+  public void testSendAsync_rateLimiterDelayIsScheduled() throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    doThrow(new AssertionError("Thou should not sleep!")).when(asyncSender)
+        .sleep(anyLong());
+    setResponseExpectations(asyncSender, 200, "id=4815162342");
+    when(rateLimiter.reserve(authKey, Arrays.asList(regId))).thenReturn(500L);
+    asyncSender.setRateLimiter(rateLimiter);
+    final ConcurrencyLimiter concurrency = new ConcurrencyLimiter(1, 1, 1);
+    asyncSender.setConcurrencyLimiter(concurrency);
+    final int[] inFlight = {-1};
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) {
+        inFlight[0] = concurrency.getInFlight();
+        ((Runnable) invocation.getArguments()[0]).run();
+        return null;
+      }
+    }).when(executor).schedule(any(Runnable.class), eq(500L),
+        eq(TimeUnit.MILLISECONDS));
+    SendFuture<Result> future = asyncSender.sendAsync(message, regId, 0);
+    assertEquals("4815162342", future.get().getMessageId());
+    // the slot is only taken once the delay passed
+    assertEquals(0, inFlight[0]);
+    assertEquals(0, concurrency.getInFlight());
+    // the attempt uses the reservation instead of making another one
+    verify(rateLimiter).reserve(authKey, Arrays.asList(regId));
+    verify(rateLimiter, never()).cancel(anyString(), anyListOf(String.class));
   }
 
-  /**
-   * Sets the expectations of the HTTP connection.
-   */
-  private void setResponseExpectations(int statusCode, String response) 
-      throws IOException {
+  @Test
+  public void testSendAsync_cancelledWhileWaitingForRateLimiter()
+      throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    when(rateLimiter.reserve(authKey, Arrays.asList(regId))).thenReturn(500L);
+    asyncSender.setRateLimiter(rateLimiter);
+    doReturn(null).when(executor).schedule(any(Runnable.class), eq(500L),
+        eq(TimeUnit.MILLISECONDS));
+    SendFuture<Result> future = asyncSender.sendAsync(message, regId, 0);
+    ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).schedule(task.capture(), eq(500L),
+        eq(TimeUnit.MILLISECONDS));
+    future.cancel(false);
+    task.getValue().run();
+    verify(asyncSender, never()).getConnection(anyString());
+    verify(rateLimiter).cancel(authKey, Arrays.asList(regId));
+  }
+
+  @Test
+  public void testSendAsync_rateLimiterDelayExceedsDeadline()
+      throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    when(rateLimiter.reserve(authKey, Arrays.asList(regId)))
+        .thenReturn(60000L);
+    asyncSender.setRateLimiter(rateLimiter);
+    SendFuture<Result> future =
+        asyncSender.sendAsync(message, regId, 0, 1, TimeUnit.SECONDS);
+    try {
+      future.get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof DeadlineExceededException);
+    }
+    verify(asyncSender, never()).getConnection(anyString());
+    verify(rateLimiter).cancel(authKey, Arrays.asList(regId));
+  }
+
+  @Test
+  public void testSendAsync_json_retryDeadline() throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    asyncSender.setRetryDeadline(10000);
+    setResponseExpectations(asyncSender, 503, "");
+    when(mockedConn.getHeaderField("Retry-After")).thenReturn("3600");
+    SendFuture<MulticastResult> future =
+        asyncSender.sendAsync(message, Arrays.asList("4"), 5);
+    try {
+      future.get();
+      fail("Should have thrown ExecutionException");
+    } catch (ExecutionException e) {
+      assertEquals(503,
+          ((InvalidRequestException) e.getCause()).getHttpStatusCode());
+    }
+    verify(executor, never()).schedule(any(Runnable.class), anyLong(),
+        any(TimeUnit.class));
+  }
+
+  @Test
+  public void testTimeouts() {
+    assertEquals(10000, sender.getConnectTimeout());
+    assertEquals(60000, sender.getReadTimeout());
+    sender.setConnectTimeout(4);
+    sender.setReadTimeout(8);
+    assertEquals(4, sender.getConnectTimeout());
+    assertEquals(8, sender.getReadTimeout());
+    try {
+      sender.setConnectTimeout(-1);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      sender.setReadTimeout(-1);
+      fail("Should have thrown IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testPost_timeouts() throws Exception {
+    setResponseExpectations(200, "");
+    sender.setConnectTimeout(4);
+    sender.setReadTimeout(8);
+    sender.post(Constants.GCM_SEND_ENDPOINT, "body");
+    verify(mockedConn).setConnectTimeout(4);
+    verify(mockedConn).setReadTimeout(8);
+  }
+
+  @Test
+  public void testPost_poolTimeouts() throws Exception {
+    setResponseExpectations(200, "");
+    // set by the pool
+    when(mockedConn.getConnectTimeout()).thenReturn(15);
+    when(mockedConn.getReadTimeout()).thenReturn(16);
+    sender.post(Constants.GCM_SEND_ENDPOINT, "body");
+    verify(mockedConn).setConnectTimeout(15);
+    verify(mockedConn).setReadTimeout(16);
+  }
+
+  @Test
+  public void testSend_deadlineShortensTimeouts() throws Exception {
+    setResponseExpectations(200, "id=4815162342");
+    sender.setReadTimeout(0);
+    assertNotNull(sender.send(message, regId, 0, 2, TimeUnit.SECONDS));
+    ArgumentCaptor<Integer> connect = ArgumentCaptor.forClass(Integer.class);
+    ArgumentCaptor<Integer> read = ArgumentCaptor.forClass(Integer.class);
+    verify(mockedConn).setConnectTimeout(connect.capture());
+    verify(mockedConn).setReadTimeout(read.capture());
+    assertTrue(connect.getValue() > 0 && connect.getValue() <= 2000);
+    assertTrue(read.getValue() > 0 && read.getValue() <= 2000);
+    // the deadline is gone once the call returns
+    sender.post(Constants.GCM_SEND_ENDPOINT, "body");
+    verify(mockedConn).setConnectTimeout(10000);
+    verify(mockedConn).setReadTimeout(0);
+  }
+
+  @Test
+  public void testSend_deadlineIsPassedToTransport() throws Exception {
+    when(transportResponse.getStatus()).thenReturn(200);
+    when(transportResponse.getBody()).thenAnswer(new Answer<InputStream>() {
+      public InputStream answer(InvocationOnMock invocation) {
+        return new ByteArrayInputStream("id=4815162342".getBytes());
+      }
+    });
+    ArgumentCaptor<Integer> timeout = ArgumentCaptor.forClass(Integer.class);
+    when(transport.post(anyString(), anyString(), anyString(),
+        any(byte[].class), anyInt(), timeout.capture()))
+        .thenReturn(transportResponse);
+    sender.setTransport(transport);
+    assertNotNull(sender.send(message, regId, 0, 2, TimeUnit.SECONDS));
+    assertTrue(timeout.getValue() > 0 && timeout.getValue() <= 2000);
+    // no deadline once the call returns
+    assertNotNull(sender.send(message, regId, 0));
+    assertEquals(0, (int) timeout.getValue());
+  }
+
+  @Test
+  public void testSend_deadlineStopsRetries() throws Exception {
+    setResponseExpectations(503, "");
+    when(mockedConn.getHeaderField("Retry-After")).thenReturn("60");
+    doNotSleep();
+    try {
+      sender.send(message, regId, 5, 10, TimeUnit.SECONDS);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("1 attempts"));
+    }
+  }
+
+  @Test
+  public void testSend_json_deadlineExceededByRateLimiter() throws Exception {
+    when(rateLimiter.reserve(authKey, Arrays.asList("4"))).thenReturn(60000L);
+    sender.setRateLimiter(rateLimiter);
+    doNotSleep();
+    try {
+      sender.send(message, Arrays.asList("4"), 0, 1, TimeUnit.SECONDS);
+      fail("Should have thrown DeadlineExceededException");
+    } catch (DeadlineExceededException expected) {
+    }
+    verify(sender, never()).getConnection(anyString());
+    verify(sender, never()).sleep(anyLong());
+    verify(rateLimiter).cancel(authKey, Arrays.asList("4"));
+  }
+
+  @Test
+  public void testSend_json_deadlineExpiredWhileLeasing() throws Exception {
+    final ConnectionPool pool = new ConnectionPool(1, 0, 0);
+    sender.setConnectionPool(pool);
+    setResponseExpectations(200, "");
+    // the connection is leased right when the deadline expires
+    doAnswer(new Answer<HttpURLConnection>() {
+      public HttpURLConnection answer(InvocationOnMock invocation)
+          throws Exception {
+        Thread.sleep(100);
+        return pool.lease(mockedConn);
+      }
+    }).when(sender).getConnection(Constants.GCM_SEND_ENDPOINT);
+    try {
+      sender.send(message, Arrays.asList("4"), 0, 50, TimeUnit.MILLISECONDS);
+      fail("Should have thrown DeadlineExceededException");
+    } catch (DeadlineExceededException expected) {
+    }
+    // reading a response would connect and send the request anyway
+    verify(mockedConn, never()).getResponseCode();
+    verify(mockedConn, never()).getOutputStream();
+    verify(mockedConn).disconnect();
+    assertEquals(0, pool.getLeasedConnections());
+  }
+
+  @Test
+  public void testSendNoRetry_circuitOpenSkipsRateLimiter()
+      throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(1, 1, 60000);
+    breaker.onFailure(breaker.beforeRequest());
+    sender.setCircuitBreaker(breaker);
+    sender.setRateLimiter(rateLimiter);
+    try {
+      sender.sendNoRetry(message, regId);
+      fail("Should have thrown CircuitOpenException");
+    } catch (CircuitOpenException expected) {
+    }
+    // the breaker is checked before waiting for the rate limiter
+    verify(rateLimiter, never()).reserve(anyString(),
+        anyListOf(String.class));
+    verify(rateLimiter, never()).onResults(anyString(),
+        anyListOf(String.class), anyListOf(Result.class));
+  }
+
+  @Test
+  public void testSendNoRetry_concurrencyLimiterCancelsReservation()
+      throws Exception {
+    ConcurrencyLimiter concurrency = new ConcurrencyLimiter(1, 1, 1);
+    concurrency.acquire();
+    sender.setConcurrencyLimiter(concurrency);
+    sender.setRateLimiter(rateLimiter);
+    try {
+      sender.send(message, regId, 0, 50, TimeUnit.MILLISECONDS);
+      fail("Should have thrown DeadlineExceededException");
+    } catch (DeadlineExceededException expected) {
+    }
+    verify(rateLimiter).reserve(authKey, Arrays.asList(regId));
+    verify(rateLimiter).cancel(authKey, Arrays.asList(regId));
+  }
+
+  @Test
+  public void testSend_json_deadlineExceededByConcurrencyLimiter()
+      throws Exception {
+    ConcurrencyLimiter concurrency = new ConcurrencyLimiter(1, 1, 1);
+    concurrency.acquire();
+    sender.setConcurrencyLimiter(concurrency);
+    try {
+      sender.send(message, Arrays.asList("4"), 0, 50, TimeUnit.MILLISECONDS);
+      fail("Should have thrown DeadlineExceededException");
+    } catch (DeadlineExceededException expected) {
+    }
+    verify(sender, never()).getConnection(anyString());
+    assertEquals(1, concurrency.getInFlight());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSend_invalidTimeout() throws Exception {
+    sender.send(message, regId, 0, 0, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testSendAsync_deadline() throws Exception {
+    Sender asyncSender = spy(new Sender(authKey, executor));
+    setResponseExpectations(asyncSender, 200, "id=4815162342");
+    SendFuture<Result> future =
+        asyncSender.sendAsync(message, regId, 0, 10, TimeUnit.SECONDS);
+    assertEquals("4815162342", future.get().getMessageId());
+    // the expiration timer, which the mocked executor runs right away
+    verify(executor).schedule(any(Runnable.class), anyLong(),
+        eq(TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testSendAsync_json_deadlineExpires() throws Exception {
+    ScheduledExecutorService realExecutor =
+        Executors.newScheduledThreadPool(2);
+    final CountDownLatch stalled = new CountDownLatch(1);
+    try {
+      Sender asyncSender = spy(new Sender(authKey, realExecutor));
+      doAnswer(new Answer<HttpURLConnection>() {
+        public HttpURLConnection answer(InvocationOnMock invocation)
+            throws Exception {
+          stalled.await();
+          throw new IOException();
+        }
+      }).when(asyncSender).getConnection(Constants.GCM_SEND_ENDPOINT);
+      SendFuture<MulticastResult> future = asyncSender.sendAsync(message,
+          Arrays.asList("4"), 0, 100, TimeUnit.MILLISECONDS);
+      try {
+        future.get(5, TimeUnit.SECONDS);
+        fail("Should have thrown ExecutionException");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof DeadlineExceededException);
+      }
+    } finally {
+      stalled.countDown();
+      realExecutor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSendAsync_json_cancelStopsChunks() throws Exception {
+    ScheduledExecutorService queuingExecutor =
+        mock(ScheduledExecutorService.class);
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) {
+        tasks.add((Runnable) invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(queuingExecutor).execute(any(Runnable.class));
+    Sender asyncSender = spy(new Sender(authKey, queuingExecutor));
+    List<String> regIds = new ArrayList<String>();
+    for (int i = 0; i < 2500; i++) {
+      regIds.add("regId" + i);
+    }
+    SendFuture<MulticastResult> future =
+        asyncSender.sendAsync(message, regIds, 0);
+    assertEquals(3, tasks.size());
+    assertTrue(future.cancel(true));
+    for (Runnable task : tasks) {
+      task.run();
+    }
+    verify(asyncSender, never()).getConnection(anyString());
+  }
+
+  @Test
+  public void testSendNoRetry_rateLimiter() throws Exception {
+    setResponseExpectations(200, "id=4815162342");
+    when(rateLimiter.reserve(authKey, Arrays.asList(regId))).thenReturn(108L);
+    doNothing().when(sender).sleep(anyLong());
+    sender.setRateLimiter(rateLimiter);
+    Result result = sender.sendNoRetry(message, regId);
+    verify(sender).sleep(108);
+    verify(rateLimiter).onResults(authKey, Arrays.asList(regId),
+        Arrays.asList(result));
+  }
+
+  @Test
+  public void testSendNoRetry_json_rateLimiter() throws Exception {
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 1, " +
+        "'failure': 1, 'canonical_ids': 0, 'results': [{'message_id': '4'}, " +
+        "{'error': 'QuotaExceeded'}]}");
+    setResponseExpectations(200, json);
+    List<String> regIds = Arrays.asList("4", "8");
+    doNotSleep();
+    sender.setRateLimiter(rateLimiter);
+    MulticastResult multicastResult = sender.sendNoRetry(message, regIds);
+    verify(rateLimiter).reserve(authKey, regIds);
+    verify(rateLimiter).onResults(authKey, regIds,
+        multicastResult.getResults());
+  }
+
+  @Test
+  public void testSendNoRetry_circuitBreakerRecordsOutcome() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(2, 1, 60000);
+    sender.setCircuitBreaker(breaker);
+    setResponseExpectations(503, "");
+    assertNull(sender.sendNoRetry(message, regId));
+    assertEquals(1, breaker.getFailureRate(), 0);
+    setResponseExpectations(401, "");
+    try {
+      sender.sendNoRetry(message, regId);
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      // client errors don't count as failures of GCM
+      assertEquals(0.5, breaker.getFailureRate(), 0);
+    }
+  }
+
+  @Test
+  public void testSendNoRetry_circuitBreakerOpen() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(1, 1, 60000);
+    breaker.onFailure(breaker.beforeRequest());
+    sender.setCircuitBreaker(breaker);
+    try {
+      sender.sendNoRetry(message, regId);
+      fail("Should have thrown CircuitOpenException");
+    } catch (CircuitOpenException e) {
+      // expected
+    }
+    verify(sender, never()).getConnection(anyString());
+    assertEquals(1, breaker.getRejectedRequests());
+  }
+
+  @Test
+  public void testSend_json_circuitBreakerOpens() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(1, 1, 60000);
+    sender.setCircuitBreaker(breaker);
+    setResponseExpectations(503, "");
+    doNothing().when(sender).sleep(anyLong());
+    try {
+      sender.send(message, Arrays.asList("4"), 5);
+      fail("Should have thrown CircuitOpenException");
+    } catch (CircuitOpenException e) {
+      // fails fast, without using up the retries
+    }
+    verify(sender).getConnection(Constants.GCM_SEND_ENDPOINT);
+    verify(sender).sleep(anyLong());
+  }
+
+  @Test
+  public void testSendNoRetry_circuitBreakerRecordsIOException()
+      throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(1, 1, 60000);
+    sender.setCircuitBreaker(breaker);
+    setResponseExpectations(200, "");
+    when(mockedConn.getResponseCode()).thenThrow(new IOException());
+    try {
+      sender.sendNoRetry(message, Arrays.asList("4"));
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+  }
+
+  @Test
+  public void testSend_json_circuitBreakerProbeNotMade() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(1, 1, 60000);
+    // opened long enough ago to be half-open
+    breaker.record(CircuitBreaker.NO_PROBE, false,
+        System.currentTimeMillis() - 60000);
+    sender.setCircuitBreaker(breaker);
+    ConcurrencyLimiter concurrency = new ConcurrencyLimiter(1, 1, 1);
+    concurrency.acquire();
+    sender.setConcurrencyLimiter(concurrency);
+    try {
+      sender.send(message, Arrays.asList("4"), 0, 10, TimeUnit.MILLISECONDS);
+      fail("Should have thrown DeadlineExceededException");
+    } catch (DeadlineExceededException expected) {
+    }
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    // the probe was given back, so the next request can probe
+    assertTrue(breaker.beforeRequest() != CircuitBreaker.NO_PROBE);
+  }
+
+  @Test
+  public void testSend_json_deadlineTimeoutNotHeldAgainstGcm()
+      throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(1, 1, 60000);
+    sender.setCircuitBreaker(breaker);
+    ConcurrencyLimiter concurrency = new ConcurrencyLimiter(4, 1, 8);
+    sender.setConcurrencyLimiter(concurrency);
+    sender.setSendListener(sendListener);
+    setResponseExpectations(200, "");
+    final SocketTimeoutException timeout = new SocketTimeoutException();
+    when(mockedConn.getResponseCode()).thenAnswer(new Answer<Integer>() {
+      public Integer answer(InvocationOnMock invocation) throws Exception {
+        // the read timeout was shortened to the time left
+        Thread.sleep(50);
+        throw timeout;
+      }
+    });
+    try {
+      sender.send(message, Arrays.asList("4"), 0, 10, TimeUnit.MILLISECONDS);
+      fail("Should have thrown IOException");
+    } catch (IOException expected) {
+    }
+    verify(sendListener).onFailure(eq(timeout), anyLong());
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertEquals(4, concurrency.getLimit());
+    assertEquals(0, concurrency.getInFlight());
+  }
+
+  @Test
+  public void testSend_json_deadlineExceededByConnectionPool()
+      throws Exception {
+    ConnectionPool pool = new ConnectionPool(1, 0, 0);
+    pool.lease(mockedConn);
+    sender.setConnectionPool(pool);
+    CircuitBreaker breaker = new CircuitBreaker(1, 1, 60000);
+    sender.setCircuitBreaker(breaker);
+    ConcurrencyLimiter concurrency = new ConcurrencyLimiter(4, 1, 8);
+    sender.setConcurrencyLimiter(concurrency);
+    try {
+      sender.send(message, Arrays.asList("4"), 0, 50, TimeUnit.MILLISECONDS);
+      fail("Should have thrown DeadlineExceededException");
+    } catch (DeadlineExceededException expected) {
+    }
+    assertEquals(1, pool.getLeasedConnections());
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertEquals(4, concurrency.getLimit());
+    assertEquals(0, concurrency.getInFlight());
+  }
+
+  @Test
+  public void testSendNoRetry_concurrencyLimiter() throws Exception {
+    ConcurrencyLimiter concurrency = new ConcurrencyLimiter(4, 1, 8);
+    sender.setConcurrencyLimiter(concurrency);
+    setResponseExpectations(401, "");
+    try {
+      sender.sendNoRetry(message, regId);
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      // client errors don't change the limit
+      assertEquals(4, concurrency.getLimit());
+      assertEquals(0, concurrency.getInFlight());
+    }
+    setResponseExpectations(503, "");
+    assertNull(sender.sendNoRetry(message, regId));
+    assertEquals(2, concurrency.getLimit());
+    assertEquals(0, concurrency.getInFlight());
+  }
+
+  @Test
+  public void testSendNoRetry_json_concurrencyLimiterUnavailable()
+      throws Exception {
+    ConcurrencyLimiter concurrency = new ConcurrencyLimiter(4, 1, 8);
+    sender.setConcurrencyLimiter(concurrency);
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 1, " +
+        "'failure': 1, 'canonical_ids': 0, 'results': [" +
+        "{'message_id': '16'}, {'error': 'Unavailable'}]}");
+    setResponseExpectations(200, json);
+    sender.sendNoRetry(message, Arrays.asList("4", "8"));
+    assertEquals(2, concurrency.getLimit());
+    assertEquals(0, concurrency.getInFlight());
+  }
+
+  @Test
+  public void testSendNoRetry_json_concurrencyLimiterIOException()
+      throws Exception {
+    ConcurrencyLimiter concurrency = new ConcurrencyLimiter(4, 1, 8);
+    sender.setConcurrencyLimiter(concurrency);
+    setResponseExpectations(200, "");
+    when(mockedConn.getResponseCode()).thenThrow(new IOException());
+    try {
+      sender.sendNoRetry(message, Arrays.asList("4"));
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertEquals(2, concurrency.getLimit());
+      assertEquals(0, concurrency.getInFlight());
+    }
+  }
+
+  @Test
+  public void testSendNoRetry_transport() throws Exception {
+    when(transportResponse.getStatus()).thenReturn(200);
+    when(transportResponse.getBody()).thenReturn(
+        new ByteArrayInputStream("id=4815162342".getBytes()));
+    when(transport.post(eq(Constants.GCM_SEND_ENDPOINT),
+        eq("application/x-www-form-urlencoded;charset=UTF-8"), eq(authKey),
+        any(byte[].class), anyInt(), eq(0))).thenReturn(transportResponse);
+    sender.setTransport(transport);
+    Result result = sender.sendNoRetry(message, regId);
+    assertEquals("4815162342", result.getMessageId());
+    verify(transportResponse).close();
+    verify(sender, never()).getConnection(anyString());
+  }
+
+  @Test
+  public void testSendNoRetry_json_transport() throws Exception {
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 0, " +
+        "'failure': 1, 'canonical_ids': 0, " +
+        "'results': [{'error': 'Unavailable'}]}");
+    when(transportResponse.getStatus()).thenReturn(200);
+    when(transportResponse.getHeader("Retry-After")).thenReturn("10");
+    when(transportResponse.getBody())
+        .thenReturn(new ByteArrayInputStream(json.getBytes()));
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    when(transport.post(eq(Constants.GCM_SEND_ENDPOINT),
+        eq("application/json"), eq(authKey), any(byte[].class), anyInt(),
+        eq(0)))
+        .thenAnswer(new Answer<Transport.Response>() {
+          public Transport.Response answer(InvocationOnMock invocation) {
+            Object[] args = invocation.getArguments();
+            body.write((byte[]) args[3], 0, (Integer) args[4]);
+            return transportResponse;
+          }
+        });
+    sender.setTransport(transport);
+    MulticastResult multicastResult =
+        sender.sendNoRetry(message, Arrays.asList("4"));
+    assertEquals(108, multicastResult.getMulticastId());
+    JSONObject request = (JSONObject) jsonParser.parse(body.toString("UTF-8"));
+    assertEquals(Arrays.asList("4"), request.get("registration_ids"));
+    verify(transportResponse).close();
+    verify(sender, never()).getConnection(anyString());
+  }
+
+  @Test
+  public void testSendNoRetry_json_transportError() throws Exception {
+    when(transportResponse.getStatus()).thenReturn(400);
+    when(transportResponse.getBody())
+        .thenReturn(new ByteArrayInputStream("bad json".getBytes()));
+    when(transport.post(anyString(), anyString(), anyString(),
+        any(byte[].class), anyInt(), eq(0))).thenReturn(transportResponse);
+    sender.setTransport(transport);
+    try {
+      sender.sendNoRetry(message, Arrays.asList("4"));
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(400, e.getHttpStatusCode());
+      assertEquals("bad json", e.getDescription());
+    }
+    verify(transportResponse).close();
+  }
+
+  @Test
+  public void testSendNoRetry_sendListener() throws Exception {
+    sender.setSendListener(sendListener);
+    setResponseExpectations(200, "id=4815162342\nregistration_id=108");
+    when(mockedConn.getHeaderField("Content-Length")).thenReturn("36");
+    sender.sendNoRetry(message, regId);
+    verify(sendListener).onRequest(eq(1), anyInt());
+    verify(sendListener).onResponse(eq(200), anyLong(), eq(36L));
+    verify(sendListener).onResults(1, 0, 1);
+    verify(sendListener, never()).onFailure(any(IOException.class),
+        anyLong());
+  }
+
+  @Test
+  public void testSendNoRetry_json_sendListener() throws Exception {
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 1, " +
+        "'failure': 1, 'canonical_ids': 0, " +
+        "'results': [{'message_id': '16'}, {'error': 'Unavailable'}]}");
+    sender.setSendListener(sendListener);
+    setResponseExpectations(200, json);
+    sender.sendNoRetry(message, Arrays.asList("4", "8"));
+    ArgumentCaptor<Integer> bytes = ArgumentCaptor.forClass(Integer.class);
+    verify(sendListener).onRequest(eq(2), bytes.capture());
+    assertEquals(outputStream.size(), (int) bytes.getValue());
+    verify(sendListener).onResponse(eq(200), anyLong(), eq(-1L));
+    verify(sendListener).onResults(1, 1, 0);
+  }
+
+  @Test
+  public void testSendNoRetry_json_sendListenerCompressed() throws Exception {
+    List<String> regIds = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      regIds.add("registration-id-" + i);
+    }
+    sender.setCompressionThreshold(100);
+    sender.setSendListener(sendListener);
+    setResponseExpectations(200, replaceQuotes("{'multicast_id': 108, " +
+        "'success': 0, 'failure': 0, 'canonical_ids': 0, 'results': []}"));
+    sender.sendNoRetry(message, regIds);
+    ArgumentCaptor<Integer> bytes = ArgumentCaptor.forClass(Integer.class);
+    verify(sendListener).onRequest(eq(100), bytes.capture());
+    // the compressed size, not the size of the JSON
+    assertEquals(outputStream.size(), (int) bytes.getValue());
+    verify(mockedConn).setRequestProperty("Content-Encoding", "gzip");
+  }
+
+  @Test
+  public void testSend_json_sendListenerPoolWaitFails() throws Exception {
+    ConnectionPool pool = new ConnectionPool(1, 0, 0);
+    // the only connection is in use
+    pool.lease(mockedConn);
+    sender.setConnectionPool(pool);
+    sender.setCompressionThreshold(1);
+    sender.setSendListener(sendListener);
+    try {
+      sender.send(message, Arrays.asList(regId), 0, 50, TimeUnit.MILLISECONDS);
+      fail("Should have thrown DeadlineExceededException");
+    } catch (DeadlineExceededException e) {
+      // expected
+    }
+    // nothing was sent
+    verify(sendListener).onRequest(1, 0);
+    verify(sendListener).onFailure(any(DeadlineExceededException.class),
+        anyLong());
+  }
+
+  @Test
+  public void testSendNoRetry_sendListenerUtf8() throws Exception {
+    Message message = new Message.Builder().addData("k", "\u00e9t\u00e9")
+        .build();
+    sender.setSendListener(sendListener);
+    setResponseExpectations(200, "id=4815162342");
+    sender.sendNoRetry(message, regId);
+    ArgumentCaptor<Integer> bytes = ArgumentCaptor.forClass(Integer.class);
+    verify(sendListener).onRequest(eq(1), bytes.capture());
+    // bytes (in UTF-8), not chars
+    assertEquals(outputStream.size(), (int) bytes.getValue());
+  }
+
+  @Test
+  public void testSendNoRetry_sendListenerFailure() throws Exception {
+    IOException exception = new IOException();
+    sender.setSendListener(sendListener);
+    setResponseExpectations(200, "");
+    when(mockedConn.getResponseCode()).thenThrow(exception);
+    try {
+      sender.sendNoRetry(message, Arrays.asList("4"));
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      verify(sendListener).onRequest(eq(1), anyInt());
+      verify(sendListener).onFailure(eq(exception), anyLong());
+      verify(sendListener, never()).onResponse(anyInt(), anyLong(),
+          anyLong());
+    }
+  }
+
+  @Test
+  public void testSend_sendListenerRetries() throws Exception {
+    SendMetrics metrics = new SendMetrics();
+    sender.setSendListener(metrics);
+    setResponseExpectations(503, "");
+    doNothing().when(sender).sleep(anyLong());
+    try {
+      sender.send(message, regId, 2);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertEquals(3, metrics.getRequests());
+      assertEquals(3, metrics.getStatusCount(503));
+      assertEquals(2, metrics.getRetries());
+      assertEquals(0, metrics.getInFlightRequests());
+      assertEquals(3, metrics.getLatencies().getCount());
+    }
+  }
+
+  @Test
+  public void testSendAsync_json_sendListenerRetries() throws Exception {
+    sender = spy(new Sender(authKey, executor));
+    sender.setSendListener(sendListener);
+    doThrow(new InvalidRequestException(503))
+        .when(sender).sendNoRetry(message, Arrays.asList("4"));
+    sender.sendAsync(message, Arrays.asList("4"), 1);
+    verify(sendListener).onRetry(eq(2), anyLong());
+  }
+
+  @Test
+  public void testDrain() throws Exception {
+    File directory = newDirectory();
+    OutboundQueue queue = new OutboundQueue(directory);
+    try {
+      queue.add(message, Arrays.asList("4"));
+      queue.add(message, Arrays.asList("8"));
+      doAnswer(new EchoMulticastAnswer()).when(sender)
+          .sendNoRetry(eq(message), anyListOf(String.class));
+      assertEquals(2, sender.drain(queue, 2));
+      verify(sender).send(message, Arrays.asList("4"), 2);
+      verify(sender).send(message, Arrays.asList("8"), 2);
+      assertEquals(0, queue.getUnacknowledgedEntries());
+    } finally {
+      queue.close();
+      delete(directory);
+    }
+  }
+
+  @Test
+  public void testDrain_failure() throws Exception {
+    File directory = newDirectory();
+    OutboundQueue queue = new OutboundQueue(directory);
+    try {
+      queue.add(message, Arrays.asList("4"));
+      IOException exception = new IOException();
+      doThrow(exception).when(sender).sendNoRetry(message, Arrays.asList("4"));
+      try {
+        sender.drain(queue, 2);
+        fail("Should have thrown IOException");
+      } catch (IOException e) {
+        assertEquals(exception, e);
+      }
+      // returned to the queue, to be sent on the next drain
+      assertEquals(1, queue.getPendingEntries());
+      assertEquals(1, queue.getUnacknowledgedEntries());
+    } finally {
+      queue.close();
+      delete(directory);
+    }
+  }
+
+  @Test
+  public void testDrain_unavailable() throws Exception {
+    File directory = newDirectory();
+    OutboundQueue queue = new OutboundQueue(directory);
+    try {
+      queue.add(message, Arrays.asList("4", "8"));
+      queue.add(message, Arrays.asList("15"));
+      MulticastResult result = new MulticastResult.Builder(1, 1, 0, 42)
+          .addResult(new Result.Builder().messageId("4").build())
+          .addResult(new Result.Builder()
+              .errorCode(Constants.ERROR_UNAVAILABLE).build())
+          .build();
+      doReturn(result).when(sender)
+          .sendNoRetry(message, Arrays.asList("4", "8"));
+      assertEquals(1, sender.drain(queue, 0));
+      // the unavailable device is queued again, and the drain stops
+      assertEquals(2, queue.getPendingEntries());
+      assertEquals(2, queue.getUnacknowledgedEntries());
+      assertEquals(Arrays.asList("15"),
+          queue.poll().getRegistrationIds());
+      assertEquals(Arrays.asList("8"), queue.poll().getRegistrationIds());
+    } finally {
+      queue.close();
+      delete(directory);
+    }
+  }
+
+  @Test
+  public void testDrain_rejected() throws Exception {
+    File directory = newDirectory();
+    File deadLettersDirectory = newDirectory();
+    OutboundQueue queue = new OutboundQueue(directory);
+    OutboundQueue deadLetters = new OutboundQueue(deadLettersDirectory);
+    try {
+      queue.add(message, Arrays.asList("4"));
+      queue.add(message, Arrays.asList("8"));
+      InvalidRequestException exception = new InvalidRequestException(400);
+      doThrow(exception).when(sender).sendNoRetry(message, Arrays.asList("4"));
+      doAnswer(new EchoMulticastAnswer()).when(sender)
+          .sendNoRetry(message, Arrays.asList("8"));
+      try {
+        sender.drain(queue, 2, deadLetters);
+        fail("Should have thrown InvalidRequestException");
+      } catch (InvalidRequestException e) {
+        assertEquals(exception, e);
+      }
+      // moved to the dead-letter queue instead of blocking the next entries
+      assertEquals(1, queue.getUnacknowledgedEntries());
+      assertEquals(Arrays.asList("4"),
+          deadLetters.poll().getRegistrationIds());
+      assertEquals(1, sender.drain(queue, 2, deadLetters));
+      assertEquals(0, queue.getUnacknowledgedEntries());
+      verify(sender, times(1)).sendNoRetry(message, Arrays.asList("4"));
+    } finally {
+      queue.close();
+      deadLetters.close();
+      delete(directory);
+      delete(deadLettersDirectory);
+    }
+  }
+
+  @Test
+  public void testDrain_rejectedWithoutDeadLetters() throws Exception {
+    File directory = newDirectory();
+    OutboundQueue queue = new OutboundQueue(directory);
+    try {
+      queue.add(message, Arrays.asList("4"));
+      doThrow(new InvalidRequestException(400)).when(sender)
+          .sendNoRetry(message, Arrays.asList("4"));
+      try {
+        sender.drain(queue, 2);
+        fail("Should have thrown InvalidRequestException");
+      } catch (InvalidRequestException e) {
+        assertEquals(400, e.getHttpStatusCode());
+      }
+      assertEquals(0, queue.getPendingEntries());
+      assertEquals(0, queue.getUnacknowledgedEntries());
+    } finally {
+      queue.close();
+      delete(directory);
+    }
+  }
+
+  @Test
+  public void testDrain_unauthorized() throws Exception {
+    File directory = newDirectory();
+    File deadLettersDirectory = newDirectory();
+    OutboundQueue queue = new OutboundQueue(directory);
+    OutboundQueue deadLetters = new OutboundQueue(deadLettersDirectory);
+    try {
+      queue.add(message, Arrays.asList("4"));
+      queue.add(message, Arrays.asList("8"));
+      doThrow(new InvalidRequestException(401)).when(sender)
+          .sendNoRetry(eq(message), anyListOf(String.class));
+      for (int i = 0; i < 2; i++) {
+        try {
+          sender.drain(queue, 2, deadLetters);
+          fail("Should have thrown InvalidRequestException");
+        } catch (InvalidRequestException e) {
+          assertEquals(401, e.getHttpStatusCode());
+        }
+      }
+      // a wrong API key fails every entry, so none is dropped
+      assertEquals(2, queue.getPendingEntries());
+      assertEquals(2, queue.getUnacknowledgedEntries());
+      assertNull(deadLetters.poll());
+      verify(sender, times(2)).sendNoRetry(message, Arrays.asList("4"));
+      verify(sender, never()).sendNoRetry(message, Arrays.asList("8"));
+    } finally {
+      queue.close();
+      deadLetters.close();
+      delete(directory);
+      delete(deadLettersDirectory);
+    }
+  }
+
+  private File newDirectory() throws IOException {
+    File directory = File.createTempFile("queue", "");
+    assertTrue(directory.delete());
+    return directory;
+  }
+
+  private void delete(File directory) {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testSendNoRetry_registrationSink() throws Exception {
+    sender.setRegistrationSink(registrationSink);
+    setResponseExpectations(200, "id=4815162342\nregistration_id=108");
+    sender.sendNoRetry(message, regId);
+    verify(registrationSink).apply(Arrays.asList(RegistrationUpdate.fromResult(
+        regId, new Result.Builder().messageId("4815162342")
+            .canonicalRegistrationId("108").build())));
+  }
+
+  @Test
+  public void testSendNoRetry_json_registrationSink() throws Exception {
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 2, " +
+        "'failure': 2, 'canonical_ids': 1, 'results': [" +
+        "{'message_id': '16'}, {'error': 'NotRegistered'}, " +
+        "{'message_id': '23', 'registration_id': '42'}, " +
+        "{'error': 'Unavailable'}]}");
+    sender.setRegistrationSink(registrationSink);
+    setResponseExpectations(200, json);
+    sender.sendNoRetry(message, Arrays.asList("4", "8", "15", "16"));
+    ArgumentCaptor<List<RegistrationUpdate>> updates = newUpdatesCaptor();
+    verify(registrationSink).apply(updates.capture());
+    assertEquals(2, updates.getValue().size());
+    RegistrationUpdate removed = updates.getValue().get(0);
+    assertEquals(RegistrationUpdate.Type.NOT_REGISTERED, removed.getType());
+    assertEquals("8", removed.getRegistrationId());
+    RegistrationUpdate replaced = updates.getValue().get(1);
+    assertEquals(RegistrationUpdate.Type.CANONICAL_ID, replaced.getType());
+    assertEquals("15", replaced.getRegistrationId());
+    assertEquals("42", replaced.getCanonicalRegistrationId());
+  }
+
+  @Test
+  public void testSendNoRetry_json_registrationSinkFails() throws Exception {
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 0, " +
+        "'failure': 1, 'canonical_ids': 0, " +
+        "'results': [{'error': 'NotRegistered'}]}");
+    sender.setRegistrationSink(registrationSink);
+    setResponseExpectations(200, json);
+    doThrow(new RuntimeException()).when(registrationSink)
+        .apply(anyListOf(RegistrationUpdate.class));
+    MulticastResult multicastResult =
+        sender.sendNoRetry(message, Arrays.asList("4"));
+    assertEquals(108, multicastResult.getMulticastId());
+  }
+
+  @Test
+  public void testSendNoRetry_json_noRegistrationUpdates() throws Exception {
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 1, " +
+        "'failure': 0, 'canonical_ids': 0, 'results': [{'message_id': '16'}]}");
+    sender.setRegistrationSink(registrationSink);
+    setResponseExpectations(200, json);
+    sender.sendNoRetry(message, Arrays.asList("4"));
+    verify(registrationSink, never())
+        .apply(anyListOf(RegistrationUpdate.class));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSetRetryDeadline_invalid() {
+    sender.setRetryDeadline(-1);
+  }
+
+  @Test
+  public void testParseRetryAfter() {
+    long now = 1000000000000L;
+    assertEquals(-1, Sender.parseRetryAfter(null, now));
+    assertEquals(-1, Sender.parseRetryAfter("soon", now));
+    assertEquals(-1, Sender.parseRetryAfter("-1", now));
+    assertEquals(0, Sender.parseRetryAfter("0", now));
+    assertEquals(120000, Sender.parseRetryAfter(" 120 ", now));
+    assertEquals(Long.MAX_VALUE,
+        Sender.parseRetryAfter(Long.toString(Long.MAX_VALUE / 100), now));
+    // 2001-09-09T01:46:40Z is now
+    assertEquals(60000,
+        Sender.parseRetryAfter("Sun, 09 Sep 2001 01:47:40 GMT", now));
+    assertEquals(0,
+        Sender.parseRetryAfter("Sun, 09 Sep 2001 01:45:40 GMT", now));
+  }
+
+  /**
+   * Answers a multicast request with a success for each registration id
+   * whose message id is the registration id, using the first registration id
+   * as multicast id.
+   */
+  private static class EchoMulticastAnswer implements Answer<MulticastResult> {
+
+    public MulticastResult answer(InvocationOnMock invocation) {
+      @SuppressWarnings("unchecked")
+      List<String> regIds = (List<String>) invocation.getArguments()[1];
+      MulticastResult.Builder builder = new MulticastResult.Builder(
+          regIds.size(), 0, 0, Long.parseLong(regIds.get(0)));
+      for (String regId : regIds) {
+        builder.addResult(new Result.Builder().messageId(regId).build());
+      }
+      return builder.build();
+    }
+  }
+
+  private List<String> newRegIds(int size) {
+    List<String> regIds = new ArrayList<String>(size);
+    for (int i = 0; i < size; i++) {
+      regIds.add(Integer.toString(i));
+    }
+    return regIds;
+  }
+
+  private void assertChunkedResult(List<String> regIds,
+      MulticastResult actualResult) {
+    assertEquals(regIds.size(), actualResult.getTotal());
+    assertEquals(regIds.size(), actualResult.getSuccess());
+    assertEquals(0, actualResult.getFailure());
+    assertEquals(0, actualResult.getMulticastId());
+    // the multicast id of each chunk is its first registration id
+    List<Long> chunkIds = new ArrayList<Long>();
+    for (int i = Constants.MULTICAST_SIZE; i < regIds.size();
+        i += Constants.MULTICAST_SIZE) {
+      chunkIds.add(Long.valueOf(i));
+    }
+    assertEquals(chunkIds, actualResult.getRetryMulticastIds());
+    List<Result> results = actualResult.getResults();
+    assertEquals(regIds.size(), results.size());
+    for (int i = 0; i < regIds.size(); i++) {
+      assertEquals(regIds.get(i), results.get(i).getMessageId());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSendNoRetry_json_nullRegIds() throws Exception {
+    sender.sendNoRetry(message, (List<String>) null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSendNoRetry_json_emptyRegIds() throws Exception {
+    sender.sendNoRetry(message, Collections.<String>emptyList());
+  }
+
+  @Test
+  public void testSendNoRetry_json_badRequest() throws Exception {
+    setResponseExpectations(42, "bad json");
+    try {
+      sender.sendNoRetry(message, Arrays.asList("108"));
+    } catch (InvalidRequestException e) {
+      assertEquals(42, e.getHttpStatusCode());
+      assertEquals("bad json", e.getDescription());
+      assertRequestJsonBody("108");
+    }
+  }
+
+  @Test
+  public void testSendNoRetry_json_errorWithoutBody() throws Exception {
+    setResponseExpectations(503, "");
+    when(mockedConn.getErrorStream()).thenReturn(null);
+    try {
+      sender.sendNoRetry(message, Arrays.asList("108"));
+      fail("Should have thrown InvalidRequestException");
+    } catch (InvalidRequestException e) {
+      assertEquals(503, e.getHttpStatusCode());
+      assertNull(e.getDescription());
+    }
+  }
+
+  @Test()
+  public void testSendNoRetry_json_ok() throws Exception {
+    String json = replaceQuotes("\n"
+        + "{"
+        + "  'multicast_id': 108,"
+        + "  'success': 2,"
+        + "  'failure': 1,"
+        + "  'canonical_ids': 1,"
+        + "  'results': ["
+        + "    {'message_id': '16'}, "
+        + "    {'error': 'DOH!'}, "
+        + "    {'message_id': '23', 'registration_id': '42'}"
+        + "  ]"
+        + "}");
+    setResponseExpectations(200, json);
+    MulticastResult multicastResult = sender.sendNoRetry(message,
+        Arrays.asList("4", "8", "15"));
+    assertNotNull(multicastResult);
+    assertEquals(3, multicastResult.getTotal());
+    assertEquals(2, multicastResult.getSuccess());
+    assertEquals(1, multicastResult.getFailure());
+    assertEquals(1, multicastResult.getCanonicalIds());
+    assertEquals(108, multicastResult.getMulticastId());
+    List<Result> results = multicastResult.getResults();
+    assertNotNull(results);
+    assertEquals(3, results.size());
+    assertResult(results.get(0), "16", null, null);
+    assertResult(results.get(1), null, "DOH!", null);
+    assertResult(results.get(2), "23", null, "42");
+    assertRequestJsonBody("4", "8", "15");
+  }
+
+  @Test
+  public void testParseMulticastResult_fieldsInAnyOrder() throws Exception {
+    String json = replaceQuotes("{"
+        + "  'results': [{'error': 'DOH!', 'unknown': [1, 2]}, {}],"
+        + "  'unknown': {'results': []},"
+        + "  'canonical_ids': 0,"
+        + "  'failure': 1,"
+        + "  'success': 0,"
+        + "  'multicast_id': 108"
+        + "}");
+    MulticastResult multicastResult =
+        Sender.parseMulticastResult(new StringReader(json));
+    assertEquals(108, multicastResult.getMulticastId());
+    assertEquals(1, multicastResult.getFailure());
+    List<Result> results = multicastResult.getResults();
+    assertEquals(2, results.size());
+    assertResult(results.get(0), null, "DOH!", null);
+    assertResult(results.get(1), null, null, null);
+  }
+
+  @Test
+  public void testParseMulticastResult_noResults() throws Exception {
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 0, " +
+        "'failure': 0, 'canonical_ids': 0}");
+    MulticastResult multicastResult =
+        Sender.parseMulticastResult(new StringReader(json));
+    assertTrue(multicastResult.getResults().isEmpty());
+  }
+
+  @Test
+  public void testParseMulticastResult_missingField() throws Exception {
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 0, " +
+        "'failure': 0, 'results': []}");
+    try {
+      Sender.parseMulticastResult(new StringReader(json));
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("canonical_ids"));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testParseMulticastResult_invalidJson() throws Exception {
+    Sender.parseMulticastResult(new StringReader("{'multicast_id': 108"));
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static ArgumentCaptor<List<RegistrationUpdate>> newUpdatesCaptor() {
+    return (ArgumentCaptor) ArgumentCaptor.forClass(List.class);
+  }
+
+  // replace ' by ", otherwise JSON strins would need to escape double-quotes
+  private String replaceQuotes(String json) {
+    return json.replaceAll("'", "\"");
+  }
+
+  private void assertResult(Result result, String messageId, String error,
+      String canonicalRegistrationId) {
+    assertEquals(messageId, result.getMessageId());
+    assertEquals(error, result.getErrorCodeName());
+    assertEquals(canonicalRegistrationId, result.getCanonicalRegistrationId());
+  }
+
+  private void assertRequestJsonBody(String...expectedRegIds) throws Exception {
+    ArgumentCaptor<Integer> capturedLength =
+        ArgumentCaptor.forClass(Integer.class);
+    verify(sender).post(eq(Constants.GCM_SEND_ENDPOINT), eq("application/json"),
+        any(byte[].class), capturedLength.capture());
+    // parse body, as written to the connection
+    String body = new String(outputStream.toByteArray(), "UTF-8");
+    assertEquals(capturedLength.getValue().intValue(),
+        outputStream.toByteArray().length);
+    verify(mockedConn).setFixedLengthStreamingMode(capturedLength.getValue());
+    JSONObject json = (JSONObject) jsonParser.parse(body);
+    assertEquals(ttl, ((Long) json.get("time_to_live")).intValue());
+    assertEquals(collapseKey, json.get("collapse_key"));
+    assertEquals(delayWhileIdle, json.get("delay_while_idle"));
+    @SuppressWarnings("unchecked")
+    Map<String, Object> payload = (Map<String, Object>) json.get("data");
+    assertNotNull("no payload", payload);
+    assertEquals("wrong payload size", 3, payload.size());
+    assertEquals("v1", payload.get("k1"));
+    assertEquals("v2", payload.get("k2"));
+    assertEquals("v3", payload.get("k3"));
+    JSONArray actualRegIds = (JSONArray) json.get("registration_ids");
+    assertEquals("Wrong number of regIds",
+        expectedRegIds.length, actualRegIds.size());
+    for (int i = 0; i < expectedRegIds.length; i++) {
+      String expectedRegId = expectedRegIds[i];
+      String actualRegId = (String) actualRegIds.get(i);
+      assertEquals("invalid regId at index " + i, expectedRegId, actualRegId);
+    }
+  }
+
+  @Test
+  public void testNewKeyValues() {
+    Map<String, String> x = Sender.newKeyValues("key", "value");
+    assertEquals(1, x.size());
+    assertEquals("value", x.get("key"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNewKeyValues_nullKey() {
+    Sender.newKeyValues(null, "value");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNewKeyValues_nullValue() {
+    Sender.newKeyValues("key", null);
+  }
+
+  @Test
+  public void testNewBody() {
+    StringBuilder body = Sender.newBody("name", "value");
+    assertEquals("name=value", body.toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNewBody_nullKey() {
+    Sender.newBody(null, "value");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNewBody_nullValue() {
+    Sender.newBody("key", null);
+  }
+
+  @Test
+  public void testAddParameter() {
+    StringBuilder body = new StringBuilder("P=NP");
+    Sender.addParameter(body, "name", "value");
+    assertEquals("P=NP&name=value", body.toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAddParameter_nullBody() {
+    Sender.addParameter(null, "key", "value");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAddParameter_nullKey() {
+    StringBuilder body = new StringBuilder();
+    Sender.addParameter(body, null, "value");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAddParameter_nullValue() {
+    StringBuilder body = new StringBuilder();
+    Sender.addParameter(body, "key", null);
+  }
+
+  @Test
+  public void testGetString_oneLine() throws Exception {
+    String expected = "108";
+    InputStream stream = new ByteArrayInputStream(expected.getBytes());
+    String actual = Sender.getString(stream);
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testGetString_stripsLastLine() throws Exception {
+    InputStream stream = new ByteArrayInputStream("108\n".getBytes());
+    String stripped = Sender.getString(stream);
+    assertEquals("108", stripped);
+  }
+
+  @Test
+  public void testGetString_multipleLines() throws Exception {
+    String expected = "4\n8\n15\n\n16\n23\n42";
+    InputStream stream = new ByteArrayInputStream(expected.getBytes());
+    String actual = Sender.getString(stream);
+    assertEquals(expected, actual);
+  }
+
+ @Test(expected = IllegalArgumentException.class)
+  public void testGetString_nullValue() throws Exception {
+    Sender.getString(null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPost_noUrl() throws Exception {
+    sender.post(null, "whatever");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPost_noBody() throws Exception {
+    sender.post(Constants.GCM_SEND_ENDPOINT, null);
+  }
+
+  @Test
+  public void testPost() throws Exception {
+    String requestBody = "req";
+    String responseBody = "resp";
+    setResponseExpectations(200, responseBody);
+    HttpURLConnection response =
+        sender.post(Constants.GCM_SEND_ENDPOINT, requestBody);
+    assertEquals(requestBody, new String(outputStream.toByteArray()));
+    verify(mockedConn).setRequestMethod("POST");
+    verify(mockedConn).setFixedLengthStreamingMode(requestBody.length());
+    verify(mockedConn).setRequestProperty("Content-Type",
+        "application/x-www-form-urlencoded;charset=UTF-8");
+    verify(mockedConn).setRequestProperty("Authorization", "key=" + authKey);
+    assertEquals(200, response.getResponseCode());
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testPost_customType() throws Exception {
+    String requestBody = "req";
+    String responseBody = "resp";
+    setResponseExpectations(200, responseBody);
+    HttpURLConnection response =
+        sender.post(Constants.GCM_SEND_ENDPOINT, "stuff", requestBody);
+    assertEquals(requestBody, new String(outputStream.toByteArray()));
+    verify(mockedConn).setRequestMethod("POST");
+    verify(mockedConn).setFixedLengthStreamingMode(requestBody.length());
+    verify(mockedConn).setRequestProperty("Content-Type", "stuff");
+    verify(mockedConn).setRequestProperty("Authorization", "key=" + authKey);
+    assertEquals(200, response.getResponseCode());
+  }
+
+  @Test
+  public void testPost_overrideSeesAllRequests() throws Exception {
+    final List<String> contentTypes = new ArrayList<String>();
+    Sender sender = new Sender(authKey) {
+      @Override
+      protected HttpURLConnection post(String url, String contentType,
+          byte[] body, int length) throws IOException {
+        contentTypes.add(contentType);
+        return super.post(url, contentType, body, length);
+      }
+
+      @Override
+      protected HttpURLConnection getConnection(String url) {
+        return mockedConn;
+      }
+    };
+    when(mockedConn.getOutputStream()).thenReturn(outputStream);
+    when(mockedConn.getResponseCode()).thenReturn(200);
+    when(mockedConn.getInputStream()).thenReturn(
+        new ByteArrayInputStream("id=4815162342".getBytes()),
+        new ByteArrayInputStream(replaceQuotes("{'multicast_id': 108, " +
+            "'success': 1, 'failure': 0, 'canonical_ids': 0, " +
+            "'results': [{'message_id': '16'}]}").getBytes()));
+    sender.sendNoRetry(message, regId);
+    sender.sendNoRetry(message, Arrays.asList(regId));
+    assertEquals(Arrays.asList(
+        "application/x-www-form-urlencoded;charset=UTF-8", "application/json"),
+        contentTypes);
+    verify(mockedConn, times(2)).setRequestProperty("Authorization",
+        "key=" + authKey);
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testPost_compressed() throws Exception {
+    sender.setCompressionThreshold(100);
+    StringBuilder requestBody = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      requestBody.append("registration-id-").append(i).append(',');
+    }
+    setResponseExpectations(200, "resp");
+    sender.post(Constants.GCM_SEND_ENDPOINT, "stuff", requestBody.toString());
+    byte[] compressed = outputStream.toByteArray();
+    assertTrue(compressed.length < requestBody.length() / 2);
+    assertEquals(requestBody.toString(), Sender.getString(
+        new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    verify(mockedConn).setFixedLengthStreamingMode(compressed.length);
+    verify(mockedConn).setRequestProperty("Content-Encoding", "gzip");
+    verify(mockedConn).setRequestProperty("Accept-Encoding", "gzip");
+  }
+
+  @Test
+  public void testPost_belowCompressionThreshold() throws Exception {
+    sender.setCompressionThreshold(100);
+    setResponseExpectations(200, "resp");
+    sender.post(Constants.GCM_SEND_ENDPOINT, "req");
+    assertEquals("req", new String(outputStream.toByteArray()));
+    verify(mockedConn, never()).setRequestProperty(eq("Content-Encoding"),
+        anyString());
+    // responses can still be compressed
+    verify(mockedConn).setRequestProperty("Accept-Encoding", "gzip");
+  }
+
+  @Test
+  public void testPost_notCompressedByDefault() throws Exception {
+    setResponseExpectations(200, "resp");
+    sender.post(Constants.GCM_SEND_ENDPOINT, "req");
+    verify(mockedConn, never()).setRequestProperty(eq("Content-Encoding"),
+        anyString());
+    verify(mockedConn, never()).setRequestProperty(eq("Accept-Encoding"),
+        anyString());
+  }
+
+  @Test
+  public void testSendNoRetry_json_compressedResponse() throws Exception {
+    String json = replaceQuotes("{'multicast_id': 108, 'success': 1, " +
+        "'failure': 0, 'canonical_ids': 0, 'results': [{'message_id': '4'}]}");
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+    gzip.write(json.getBytes());
+    gzip.close();
+    setResponseExpectations(200, "");
+    when(mockedConn.getContentEncoding()).thenReturn("gzip");
+    when(mockedConn.getInputStream()).thenReturn(
+        new ByteArrayInputStream(compressed.toByteArray()));
+    MulticastResult multicastResult =
+        sender.sendNoRetry(message, Arrays.asList("4"));
+    assertEquals(108, multicastResult.getMulticastId());
+    assertResult(multicastResult.getResults().get(0), "4", null, null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSetCompressionThreshold_invalid() {
+    sender.setCompressionThreshold(-1);
+  }
+
+  @Test
+  public void testPost_discardsConnectionOnError() throws Exception {
+    doReturn(mockedConn).when(sender)
+        .getConnection(Constants.GCM_SEND_ENDPOINT);
+    when(mockedConn.getOutputStream()).thenThrow(new IOException());
+    try {
+      sender.post(Constants.GCM_SEND_ENDPOINT, "req");
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      // reading the response would send the request again
+      verify(sender, never()).releaseConnection(mockedConn);
+      verify(mockedConn, never()).getResponseCode();
+      verify(mockedConn).disconnect();
+    }
+  }
+
+  @Test
+  public void testSendNoRetry_responseFails_discardsConnection()
+      throws Exception {
+    ConnectionPool pool = new ConnectionPool(1, 0, 0);
+    sender.setConnectionPool(pool);
+    pool.lease(mockedConn);
+    doReturn(mockedConn).when(sender)
+        .getConnection(Constants.GCM_SEND_ENDPOINT);
+    when(mockedConn.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+    when(mockedConn.getResponseCode()).thenThrow(new SocketTimeoutException());
+    try {
+      sender.sendNoRetry(message, regId);
+      fail("Should have thrown IOException");
+    } catch (IOException expected) {
+    }
+    verify(sender, never()).releaseConnection(mockedConn);
+    verify(mockedConn, times(1)).getResponseCode();
+    verify(mockedConn).disconnect();
+    assertEquals(0, pool.getLeasedConnections());
+    assertEquals(1, pool.getDiscardedConnections());
+  }
+
+  @Test
+  public void testSendNoRetry_serviceUnavailable_releasesConnection()
+      throws Exception {
+    setResponseExpectations(503, "");
+    sender.setConnectionPool(new ConnectionPool(1, 0, 0));
+    sender.sendNoRetry(message, regId);
+    verify(sender).releaseConnection(mockedConn);
+  }
+
+  /**
+   * Sets the expectations of the HTTP connection.
+   */
+  private void setResponseExpectations(int statusCode, String response)
+      throws IOException {
+    setResponseExpectations(sender, statusCode, response);
+  }
+
+  private void setResponseExpectations(Sender sender, int statusCode,
+      String response) throws IOException {
     when(mockedConn.getResponseCode()).thenReturn(statusCode);
     InputStream inputStream = new ByteArrayInputStream(response.getBytes());
     if (statusCode == 200) {
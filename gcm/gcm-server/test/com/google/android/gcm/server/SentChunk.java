@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Chunk sent asynchronously through a mocked {@link Sender}, whose future is
+ * completed by the test.
+ */
+final class SentChunk {
+
+  final String key;
+  final Message message;
+  final List<String> regIds;
+  final SendFuture<MulticastResult> future =
+      new SendFuture<MulticastResult>();
+
+  SentChunk(String key, Message message, List<String> regIds) {
+    this.key = key;
+    this.message = message;
+    this.regIds = regIds;
+  }
+
+  /**
+   * Gets the index of the chunk in its message, whose registration ids were
+   * created by {@link #newRegIds(int)}.
+   */
+  int index() {
+    return Integer.parseInt(regIds.get(0).substring("regId".length()))
+        / Constants.MULTICAST_SIZE;
+  }
+
+  void complete() {
+    complete(1);
+  }
+
+  void complete(long multicastId) {
+    MulticastResult.Builder builder =
+        new MulticastResult.Builder(regIds.size(), 0, 0, multicastId);
+    for (int i = 0; i < regIds.size(); i++) {
+      builder.addResult(new Result.Builder().messageId("id").build());
+    }
+    future.set(builder.build());
+  }
+
+  /**
+   * Makes a mocked sender add the chunks it is asked to send with the given
+   * number of retries to a collection, tagged with a key.
+   *
+   * @param key key of the chunks, or {@literal null} to use the collapse key
+   *        of their message.
+   */
+  static void record(Sender sender, final String key, int retries,
+      final Collection<SentChunk> sent) {
+    when(sender.sendAsync(any(Message.class), anyListOf(String.class),
+        eq(retries))).thenAnswer(new Answer<SendFuture<MulticastResult>>() {
+          @SuppressWarnings("unchecked")
+          public SendFuture<MulticastResult> answer(
+              InvocationOnMock invocation) {
+            Message message = (Message) invocation.getArguments()[0];
+            SentChunk chunk = new SentChunk(
+                key == null ? message.getCollapseKey() : key, message,
+                (List<String>) invocation.getArguments()[1]);
+            sent.add(chunk);
+            return chunk.future;
+          }
+        });
+  }
+
+  /**
+   * Completes the sent chunks one at a time (including the ones sent as a
+   * result), returning the keys of all chunks sent.
+   */
+  static String completeAll(List<SentChunk> sent) {
+    for (int i = 0; i < sent.size(); i++) {
+      sent.get(i).complete(i + 1);
+    }
+    return keys(sent);
+  }
+
+  /**
+   * Gets the keys of the sent chunks, in order.
+   */
+  static String keys(Collection<SentChunk> sent) {
+    StringBuilder keys = new StringBuilder();
+    for (SentChunk chunk : sent) {
+      keys.append(chunk.key);
+    }
+    return keys.toString();
+  }
+
+  static List<String> newRegIds(int size) {
+    List<String> regIds = new ArrayList<String>(size);
+    for (int i = 0; i < size; i++) {
+      regIds.add("regId" + i);
+    }
+    return regIds;
+  }
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gcm.server;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TokenBucketRateLimiterTest {
+
+  private static final long SECOND = 1000000000L;
+
+  private final String key = "4815162342";
+  private final List<String> regIds = Arrays.asList("4", "8", "15", "16");
+
+  @Test
+  public void testNoLimits() {
+    TokenBucketRateLimiter limiter = new TokenBucketRateLimiter.Builder()
+        .build();
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(0, limiter.reserve(key, regIds));
+    }
+    assertEquals(0, limiter.getGlobalRate(), 0);
+    assertEquals(0, limiter.getKeyRate(key), 0);
+  }
+
+  @Test
+  public void testGlobalRate() {
+    TokenBucketRateLimiter limiter = new TokenBucketRateLimiter.Builder()
+        .globalRate(8).build();
+    long now = System.nanoTime();
+    // one second worth of burst
+    assertEquals(0, limiter.reserve(key, regIds, now));
+    assertEquals(0, limiter.reserve("other key", regIds, now));
+    // then 4 messages at 8/s take 500ms
+    assertEquals(500, limiter.reserve(key, regIds, now));
+    assertEquals(1000, limiter.reserve(key, regIds, now));
+    // debt is paid over time
+    assertEquals(0, limiter.reserve(key, regIds, now + 2 * SECOND));
+  }
+
+  @Test
+  public void testKeyRate() {
+    TokenBucketRateLimiter limiter = new TokenBucketRateLimiter.Builder()
+        .keyRate(4).build();
+    long now = System.nanoTime();
+    assertEquals(0, limiter.reserve(key, regIds, now));
+    assertEquals(1000, limiter.reserve(key, regIds, now));
+    // each key has its own bucket
+    assertEquals(0, limiter.reserve("other key", regIds, now));
+  }
+
+  @Test
+  public void testDeviceRate() {
+    TokenBucketRateLimiter limiter = new TokenBucketRateLimiter.Builder()
+        .deviceRate(0.5).build();
+    long now = System.nanoTime();
+    assertEquals(0, limiter.reserve(key, regIds, now));
+    assertEquals(2000,
+        limiter.reserve(key, Collections.singletonList("8"), now));
+    assertEquals(0,
+        limiter.reserve(key, Collections.singletonList("23"), now));
+  }
+
+  @Test
+  public void testCancel() {
+    TokenBucketRateLimiter limiter = new TokenBucketRateLimiter.Builder()
+        .globalRate(8).keyRate(4).deviceRate(0.5).build();
+    long now = System.nanoTime();
+    assertEquals(0, limiter.reserve(key, regIds, now));
+    assertEquals(2000, limiter.reserve(key, regIds, now));
+    // the second request was not made, so its tokens are given back
+    limiter.cancel(key, regIds, now);
+    assertEquals(2000, limiter.reserve(key, regIds, now));
+    limiter.cancel(key, regIds, now);
+    limiter.cancel(key, regIds, now);
+    // but the buckets don't overflow
+    assertEquals(0, limiter.reserve(key, regIds, now));
+    assertEquals(2000, limiter.reserve(key, regIds, now));
+  }
+
+  @Test
+  public void testMaxDevices() {
+    TokenBucketRateLimiter limiter = new TokenBucketRateLimiter.Builder()
+        .deviceRate(1).maxDevices(2).build();
+    long now = System.nanoTime();
+    assertEquals(0, limiter.reserve(key, regIds, now));
+    // "4" was evicted, so it starts over with a full bucket
+    assertEquals(0, limiter.reserve(key, Collections.singletonList("4"), now));
+    assertEquals(1000,
+        limiter.reserve(key, Collections.singletonList("16"), now));
+  }
+
+  @Test
+  public void testQuotaExceeded() {
+    TokenBucketRateLimiter limiter = new TokenBucketRateLimiter.Builder()
+        .globalRate(160).keyRate(32).build();
+    long now = System.nanoTime();
+    List<Result> quotaExceeded =
+        newResults(Constants.ERROR_QUOTA_EXCEEDED, regIds.size());
+    limiter.onResults(key, regIds, quotaExceeded, now);
+    assertEquals(80, limiter.getGlobalRate(), 0);
+    assertEquals(16, limiter.getKeyRate(key), 0);
+    assertEquals(32, limiter.getKeyRate("other key"), 0);
+    for (int i = 0; i < 10; i++) {
+      limiter.onResults(key, regIds, quotaExceeded, now);
+    }
+    // never below 1/16 of the configured rate
+    assertEquals(10, limiter.getGlobalRate(), 0);
+    assertEquals(2, limiter.getKeyRate(key), 0);
+    // bucket was emptied
+    assertEquals(2000, limiter.reserve(key, regIds, now));
+  }
+
+  @Test
+  public void testRecoversAfterQuotaExceeded() {
+    TokenBucketRateLimiter limiter = new TokenBucketRateLimiter.Builder()
+        .keyRate(32).build();
+    long now = System.nanoTime();
+    List<Result> ok = newResults(null, regIds.size());
+    limiter.onResults(key, regIds,
+        newResults(Constants.ERROR_QUOTA_EXCEEDED, regIds.size()), now);
+    assertEquals(16, limiter.getKeyRate(key), 0);
+    // not relaxed more than once per second
+    limiter.onResults(key, regIds, ok, now + SECOND / 2);
+    assertEquals(16, limiter.getKeyRate(key), 0);
+    limiter.onResults(key, regIds, ok, now + SECOND);
+    assertEquals(18, limiter.getKeyRate(key), 0);
+    for (int i = 2; i < 20; i++) {
+      limiter.onResults(key, regIds, ok, now + i * SECOND);
+    }
+    assertEquals(32, limiter.getKeyRate(key), 0);
+  }
+
+  @Test
+  public void testDeviceQuotaExceeded() {
+    TokenBucketRateLimiter limiter = new TokenBucketRateLimiter.Builder()
+        .deviceRate(4).build();
+    long now = System.nanoTime();
+    List<Result> results = newResults(null, regIds.size());
+    results.set(1, new Result.Builder()
+        .errorCode(Constants.ERROR_DEVICE_QUOTA_EXCEEDED).build());
+    limiter.onResults(key, regIds, results, now);
+    // only the device that exceeded its quota is tightened
+    assertEquals(500,
+        limiter.reserve(key, Collections.singletonList("8"), now));
+    assertEquals(0,
+        limiter.reserve(key, Collections.singletonList("4"), now));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_invalidRate() {
+    new TokenBucketRateLimiter.Builder().globalRate(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_invalidMaxDevices() {
+    new TokenBucketRateLimiter.Builder().maxDevices(0);
+  }
+
+  private List<Result> newResults(String error, int size) {
+    List<Result> results = new ArrayList<Result>();
+    for (int i = 0; i < size; i++) {
+      Result.Builder builder = new Result.Builder();
+      if (error == null) {
+        builder.messageId(Integer.toString(i));
+      } else {
+        builder.errorCode(error);
+      }
+      results.add(builder.build());
+    }
+    return results;
+  }
+
+}